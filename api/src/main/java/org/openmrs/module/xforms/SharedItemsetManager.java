@@ -0,0 +1,287 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.kxml2.kdom.Element;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.sms.SmsFormDefCache;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the location and provider lists as shared, versioned itemsets. Instead of every xform
+ * having its own copy of all locations and providers, which has to be rewritten for every
+ * location or provider change, an xform select1 node can reference an itemset by name with the
+ * {@link XformBuilder#ATTRIBUTE_ITEMSET} attribute.
+ *
+ * Each itemset is built once and kept until a location or provider changes. Its version is a
+ * digest of its items, which is used as the ETag when serving it, and the items are filled into
+ * the referencing select1 nodes when the xform is served for data entry.
+ */
+public class SharedItemsetManager {
+
+	private static final Log log = LogFactory.getLog(SharedItemsetManager.class);
+
+	/** The itemset of all locations. */
+	public static final String ITEMSET_LOCATIONS = "locations";
+
+	/** The itemset of all providers. */
+	public static final String ITEMSET_PROVIDERS = "providers";
+
+	/** Matches a select1 start tag which references an itemset, capturing the prefix and itemset name. */
+	private static final Pattern ITEMSET_SELECT1 = Pattern.compile("<(\\w+:)?" + XformBuilder.CONTROL_SELECT1
+	        + "\\b[^>]*\\s" + XformBuilder.ATTRIBUTE_ITEMSET + "\\s*=\\s*[\"']([^\"']*)[\"'][^>]*>");
+
+	/** The built itemsets keyed by name. */
+	private static final Map<String, Itemset> itemsets = new HashMap<String, Itemset>();
+
+	/**
+	 * Checks if new xforms should reference the shared itemsets.
+	 *
+	 * @return true if they should, else false.
+	 */
+	public static boolean isEnabled() {
+		return "true".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty(
+		    XformConstants.GLOBAL_PROP_KEY_USE_SHARED_ITEMSETS, XformConstants.DEFAULT_USE_SHARED_ITEMSETS));
+	}
+
+	/**
+	 * Checks if an itemset name is one of the shared itemsets.
+	 *
+	 * @param name the itemset name.
+	 * @return true if it is, else false.
+	 */
+	public static boolean isItemset(String name) {
+		return ITEMSET_LOCATIONS.equals(name) || ITEMSET_PROVIDERS.equals(name);
+	}
+
+	/**
+	 * Gets an itemset, building it if it is not yet built.
+	 *
+	 * @param name the itemset name.
+	 * @return the itemset, or null if there is no itemset with this name.
+	 */
+	public static Itemset getItemset(String name) {
+		if (!isItemset(name))
+			return null;
+
+		synchronized (itemsets) {
+			Itemset itemset = itemsets.get(name);
+			if (itemset == null) {
+				itemset = buildItemset(name);
+				itemsets.put(name, itemset);
+			}
+			return itemset;
+		}
+	}
+
+	/**
+	 * Drops a built itemset, such that it is rebuilt the next time it is needed.
+	 *
+	 * @param name the itemset name.
+	 */
+	public static void invalidate(String name) {
+		synchronized (itemsets) {
+			itemsets.remove(name);
+		}
+
+		//Compiled sms forms have the items filled in.
+		SmsFormDefCache.clear();
+	}
+
+	/**
+	 * Drops a built itemset once the current transaction commits, such that it is not rebuilt
+	 * before the change is visible. Without a transaction, it is dropped right away.
+	 *
+	 * @param name the itemset name.
+	 */
+	public static void invalidateAfterCommit(final String name) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			invalidate(name);
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+			@Override
+			public void afterCompletion(int status) {
+				invalidate(name);
+			}
+		});
+	}
+
+	/**
+	 * Fills in the items of the shared itemsets which an xform references.
+	 *
+	 * @param xml the xform xml.
+	 * @return the xform xml with the items filled in, or the same xml if it references none.
+	 */
+	public static String fillItemsets(String xml) {
+		if (xml == null || xml.indexOf(XformBuilder.ATTRIBUTE_ITEMSET) < 0)
+			return xml;
+
+		StringBuilder builder = null;
+		int copied = 0;
+
+		Matcher matcher = ITEMSET_SELECT1.matcher(xml);
+		while (matcher.find()) {
+			Itemset itemset = getItemset(matcher.group(2));
+			if (itemset == null)
+				continue;
+
+			String prefix = matcher.group(1) == null ? "" : matcher.group(1);
+			String startTag = matcher.group();
+
+			if (builder == null)
+				builder = new StringBuilder(xml.length() + itemset.items.size() * 64);
+
+			if (startTag.endsWith("/>")) {
+				builder.append(xml, copied, matcher.end() - 2).append('>');
+				itemset.appendItems(builder, prefix);
+				builder.append("</").append(prefix).append(XformBuilder.CONTROL_SELECT1).append('>');
+				copied = matcher.end();
+			} else {
+				//A select1 has no nested select1, so the next end tag is its own.
+				int end = xml.indexOf("</" + prefix + XformBuilder.CONTROL_SELECT1, matcher.end());
+				if (end < 0)
+					continue;
+
+				builder.append(xml, copied, end);
+				itemset.appendItems(builder, prefix);
+				copied = end;
+			}
+		}
+
+		if (builder == null)
+			return xml;
+
+		builder.append(xml, copied, xml.length());
+		return builder.toString();
+	}
+
+	private static Itemset buildItemset(String name) {
+		//Build the items the same way as they would be built into an xform.
+		Element controlNode = new Element().createElement(XformBuilder.NAMESPACE_XFORMS, XformBuilder.CONTROL_SELECT1);
+		XformBuilder.populateItemset(controlNode, name);
+
+		List<String[]> items = new ArrayList<String[]>();
+		for (int index = 0; index < controlNode.getChildCount(); index++) {
+			Element itemNode = controlNode.getElement(index);
+			if (itemNode == null || !XformBuilder.NODE_ITEM.equals(itemNode.getName()))
+				continue;
+
+			items.add(new String[] { getChildText(itemNode, XformBuilder.NODE_LABEL),
+			        getChildText(itemNode, XformBuilder.NODE_VALUE) });
+		}
+
+		Itemset itemset = new Itemset(name, items);
+		if (log.isDebugEnabled())
+			log.debug("Built the " + name + " itemset with " + items.size() + " items, version " + itemset.getVersion());
+
+		return itemset;
+	}
+
+	private static String getChildText(Element parent, String name) {
+		Element child = parent.getElement(XformBuilder.NAMESPACE_XFORMS, name);
+		return child != null && child.getChildCount() > 0 ? child.getText(0) : "";
+	}
+
+	/**
+	 * A built itemset.
+	 */
+	public static class Itemset {
+
+		private final String name;
+
+		/** The label and value of each item. */
+		private final List<String[]> items;
+
+		private final String version;
+
+		private final String xml;
+
+		Itemset(String name, List<String[]> items) {
+			this.name = name;
+			this.items = items;
+
+			StringBuilder builder = new StringBuilder(items.size() * 64);
+			appendItems(builder, XformBuilder.PREFIX_XFORMS + ":");
+			String itemsXml = builder.toString();
+
+			version = digest(itemsXml);
+			xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<" + XformBuilder.PREFIX_XFORMS + ":itemset xmlns:"
+			        + XformBuilder.PREFIX_XFORMS + "=\"" + XformBuilder.NAMESPACE_XFORMS + "\" name=\"" + name
+			        + "\" version=\"" + version + "\">" + itemsXml + "\n</" + XformBuilder.PREFIX_XFORMS + ":itemset>";
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the version, which changes whenever the items change.
+		 */
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * Gets the itemset document.
+		 */
+		public String getXml() {
+			return xml;
+		}
+
+		public int getItemCount() {
+			return items.size();
+		}
+
+		void appendItems(StringBuilder builder, String prefix) {
+			for (String[] item : items) {
+				builder.append("\n<").append(prefix).append(XformBuilder.NODE_ITEM).append('>');
+				appendNode(builder, prefix, XformBuilder.NODE_LABEL, item[0]);
+				appendNode(builder, prefix, XformBuilder.NODE_VALUE, item[1]);
+				builder.append("</").append(prefix).append(XformBuilder.NODE_ITEM).append('>');
+			}
+		}
+
+		private static void appendNode(StringBuilder builder, String prefix, String name, String text) {
+			builder.append('<').append(prefix).append(name).append('>');
+			builder.append(StringEscapeUtils.escapeXml(text));
+			builder.append("</").append(prefix).append(name).append('>');
+		}
+
+		private static String digest(String text) {
+			try {
+				byte[] hash = MessageDigest.getInstance("MD5").digest(
+				    text.getBytes(XformConstants.DEFAULT_CHARACTER_ENCODING));
+				StringBuilder builder = new StringBuilder(hash.length * 2);
+				for (byte b : hash)
+					builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+				return builder.toString();
+			}
+			catch (Exception ex) {
+				//MD5 and UTF-8 are always there, but fall back to the java hash code.
+				return Integer.toHexString(text.hashCode());
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.concurrent.Callable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.xforms.util.DaemonExecutor;
+import org.openmrs.module.xforms.util.LruCache;
+
+/**
+ * Issues and checks short lived sync tokens for non HTTP connections. A device authenticates
+ * once with its username and password and then sends the token, instead of the password, on
+ * the following connections of the same sync. This saves the salted password hash check on
+ * every connection.
+ *
+ * Tokens are signed with a random key generated when the module is loaded, and are only kept in
+ * memory. So a server restart simply makes clients authenticate with their passwords again.
+ *
+ * Each connection gets its own user context, made by becoming the user on a thread of the
+ * {@link DaemonExecutor}. A token stops working once its user is retired or changed, which
+ * includes a password change.
+ *
+ * At most {@link #MAX_TOKEN_COUNT} tokens are kept, dropping the least recently used ones first,
+ * and an expired token is removed when it is looked up.
+ */
+public class SyncTokenManager {
+
+	private static final Log log = LogFactory.getLog(SyncTokenManager.class);
+
+	/** The prefix which tells that a password field contains a sync token instead of a password. */
+	public static final String TOKEN_PREFIX = "xforms-sync-token:";
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/** The key used to sign tokens. */
+	private static final byte[] signingKey = new byte[32];
+
+	/** The most tokens kept. */
+	private static final int MAX_TOKEN_COUNT = 10000;
+
+	/** The issued tokens keyed by the token id. */
+	private static final LruCache<String, TokenEntry> tokens = new LruCache<String, TokenEntry>("syncTokens",
+	        MAX_TOKEN_COUNT);
+
+	/** Holds for tokens which have not expired. */
+	private static final LruCache.Predicate<TokenEntry> UNEXPIRED = new LruCache.Predicate<TokenEntry>() {
+
+		public boolean apply(TokenEntry entry) {
+			return entry.expiry >= System.currentTimeMillis();
+		}
+	};
+
+	static {
+		random.nextBytes(signingKey);
+	}
+
+	/**
+	 * Issues a token for the currently authenticated user. Should not be called for sessions which
+	 * were themselves authenticated with a token, such that a token cannot be renewed without the
+	 * password.
+	 *
+	 * @param username the name the user authenticated with.
+	 * @return the token, including the {@link #TOKEN_PREFIX}.
+	 */
+	public static String issueToken(String username) throws Exception {
+		byte[] idBytes = new byte[16];
+		random.nextBytes(idBytes);
+		String id = toHex(idBytes);
+
+		long expiry = System.currentTimeMillis() + getTimeout();
+		byte[] signature = sign(id, username, expiry);
+
+		User user = Context.getAuthenticatedUser();
+		tokens.put(id, new TokenEntry(username, expiry, signature, user.getUserId(), user.getSystemId(), user
+		        .getDateChanged()));
+
+		return TOKEN_PREFIX + id + "." + toHex(signature);
+	}
+
+	/**
+	 * Checks a token sent by a client and, if valid, makes the user it was issued to the
+	 * authenticated user of the current session.
+	 *
+	 * @param username the name sent by the client.
+	 * @param token the token, including the {@link #TOKEN_PREFIX}.
+	 * @return true if the token is valid, else false.
+	 */
+	public static boolean authenticate(String username, String token) {
+		if (token == null || !token.startsWith(TOKEN_PREFIX))
+			return false;
+
+		String value = token.substring(TOKEN_PREFIX.length());
+		int pos = value.indexOf('.');
+		if (pos < 1)
+			return false;
+
+		String id = value.substring(0, pos);
+		byte[] signature = fromHex(value.substring(pos + 1));
+		if (signature == null)
+			return false;
+
+		TokenEntry entry = tokens.get(id, UNEXPIRED);
+		if (entry == null || !entry.username.equals(username))
+			return false;
+
+		if (!MessageDigest.isEqual(entry.signature, signature))
+			return false;
+
+		UserContext userContext = becomeUser(entry);
+		if (userContext == null) {
+			tokens.remove(id);
+			return false;
+		}
+
+		Context.setUserContext(userContext);
+		return true;
+	}
+
+	/**
+	 * Makes a new user context authenticated as the user a token was issued to.
+	 *
+	 * @param entry the token details.
+	 * @return the user context, or null if the user no longer exists, is retired or has been
+	 *         changed since the token was issued.
+	 */
+	private static UserContext becomeUser(final TokenEntry entry) {
+		try {
+			return DaemonExecutor.call(new Callable<UserContext>() {
+
+				@Override
+				public UserContext call() throws Exception {
+					UserContext userContext = new UserContext();
+					userContext.becomeUser(entry.systemId);
+					return isUnchanged(entry, userContext.getAuthenticatedUser()) ? userContext : null;
+				}
+			});
+		}
+		catch (Exception ex) {
+			log.warn("Failed to authenticate sync token of user " + entry.systemId, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Checks whether a user is still the one a token was issued to. Changing the password also
+	 * sets the date changed of the user.
+	 */
+	private static boolean isUnchanged(TokenEntry entry, User user) {
+		if (user == null || user.isRetired() || !entry.userId.equals(user.getUserId()))
+			return false;
+
+		Date dateChanged = user.getDateChanged();
+		if (entry.dateChanged == null)
+			return dateChanged == null;
+		return dateChanged != null && dateChanged.getTime() == entry.dateChanged.getTime();
+	}
+
+	/**
+	 * Checks whether a password field sent by a client contains a sync token.
+	 *
+	 * @param password the password field.
+	 * @return true if it is a token, else false.
+	 */
+	public static boolean isToken(String password) {
+		return password != null && password.startsWith(TOKEN_PREFIX);
+	}
+
+	private static byte[] sign(String id, String username, long expiry) throws Exception {
+		Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+		mac.init(new SecretKeySpec(signingKey, HMAC_ALGORITHM));
+		return mac.doFinal((id + "|" + username + "|" + expiry).getBytes(XformConstants.DEFAULT_CHARACTER_ENCODING));
+	}
+
+	/**
+	 * Gets the token life time in milliseconds.
+	 */
+	private static long getTimeout() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    XformConstants.GLOBAL_PROP_KEY_SYNC_TOKEN_TIMEOUT, XformConstants.DEFAULT_SYNC_TOKEN_TIMEOUT);
+		try {
+			return Long.parseLong(value.trim()) * 1000;
+		}
+		catch (NumberFormatException ex) {
+			log.error("Invalid value for " + XformConstants.GLOBAL_PROP_KEY_SYNC_TOKEN_TIMEOUT + ": " + value);
+			return Long.parseLong(XformConstants.DEFAULT_SYNC_TOKEN_TIMEOUT) * 1000;
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		if (hex.length() % 2 != 0)
+			return null;
+
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int index = 0; index < bytes.length; index++) {
+			int high = Character.digit(hex.charAt(index * 2), 16);
+			int low = Character.digit(hex.charAt(index * 2 + 1), 16);
+			if (high < 0 || low < 0)
+				return null;
+			bytes[index] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Holds the details of an issued token.
+	 */
+	private static class TokenEntry {
+
+		private final String username;
+
+		private final long expiry;
+
+		private final byte[] signature;
+
+		private final Integer userId;
+
+		private final String systemId;
+
+		private final Date dateChanged;
+
+		TokenEntry(String username, long expiry, byte[] signature, Integer userId, String systemId, Date dateChanged) {
+			this.username = username;
+			this.expiry = expiry;
+			this.signature = signature;
+			this.userId = userId;
+			this.systemId = systemId;
+			this.dateChanged = dateChanged;
+		}
+	}
+}
@@ -228,6 +228,9 @@ public final class XformBuilder implements GlobalPropertyListener {
 	
 	public static final String ATTRIBUTE_UUID = "uuid";
 	
+	/** The name of the shared itemset whose items a select1 node gets when the form is served. */
+	public static final String ATTRIBUTE_ITEMSET = "itemset";
+	
 	public static final String XPATH_VALUE_TRUE = "true()";
 	
 	public static final String XPATH_VALUE_FALSE = "false()";
@@ -403,15 +406,11 @@ public final class XformBuilder implements GlobalPropertyListener {
 	
 	public static final String NODE_NAME_OTHER_IDENTIFIER_LOCATION_ID = "other_identifier_location_id";
 	
-	private static Hashtable<String, String> obsRepeatItems;
-	
-	private static Hashtable<String, String> nodesets;
-	
-	private static Hashtable<String, List<String>> repeatSharedKids;
-	
-	private static Hashtable<String, List<String>> sharedRestrictions;
-	
-	private static Hashtable<String, String> repeatChildTypes;
+	/**
+	 * The state of the xform being built on each thread, such that xforms can be built on several
+	 * threads at the same time.
+	 */
+	private static final ThreadLocal<BuildState> buildState = new ThreadLocal<BuildState>();
 	
 	private static String ATTRIBUTE_PRELOAD = "jr:preload";
 	
@@ -681,12 +680,16 @@ public final class XformBuilder implements GlobalPropertyListener {
 	 * @return - the built xform's xml.
 	 */
 	public static String getXform4mDocuments(Document schemaDoc, Document templateDoc) throws Exception {
-		obsRepeatItems = new Hashtable<String, String>();
-		nodesets = new Hashtable<String, String>();
-		repeatSharedKids = new Hashtable<String, List<String>>();
-		sharedRestrictions = new Hashtable<String, List<String>>();
-		repeatChildTypes = new Hashtable<String, String>();
-		
+		BuildState previous = startBuild();
+		try {
+			return buildXform4mDocuments(schemaDoc, templateDoc);
+		}
+		finally {
+			endBuild(previous);
+		}
+	}
+	
+	private static String buildXform4mDocuments(Document schemaDoc, Document templateDoc) throws Exception {
 		Element formNode = (Element) templateDoc.getRootElement();
 		
 		Document doc = new Document();
@@ -757,17 +760,40 @@ public final class XformBuilder implements GlobalPropertyListener {
 			}
 		}
 		
-		cleanUp();
-		
 		return fromDoc2String(doc);
 	}
 	
-	private static void cleanUp() {
-		obsRepeatItems.clear();
-		nodesets.clear();
-		repeatSharedKids.clear();
-		sharedRestrictions.clear();
-		repeatChildTypes.clear();
+	/**
+	 * Starts building an xform on the current thread, with state of its own. Each call must be
+	 * followed by a call to {@link #endBuild(BuildState)} once the xform is built.
+	 * 
+	 * @return the state of the build this one is nested in, if any.
+	 */
+	static BuildState startBuild() {
+		BuildState previous = buildState.get();
+		buildState.set(new BuildState());
+		return previous;
+	}
+	
+	/**
+	 * Ends building an xform on the current thread.
+	 * 
+	 * @param previous the state returned by {@link #startBuild()}.
+	 */
+	static void endBuild(BuildState previous) {
+		if (previous == null)
+			buildState.remove();
+		else
+			buildState.set(previous);
+	}
+	
+	/**
+	 * Gets the state of the xform being built on the current thread. A template parsed outside a
+	 * build gets new state each time, which is not kept.
+	 */
+	private static BuildState getBuildState() {
+		BuildState state = buildState.get();
+		return state != null ? state : new BuildState();
 	}
 	
 	/**
@@ -907,10 +933,17 @@ public final class XformBuilder implements GlobalPropertyListener {
 			if (isTableFieldNode(child)) {
 				Element controlNode = buildTableFieldUIControlNode(child, bodyNode);
 				
-				if (name.equalsIgnoreCase(NODE_ENCOUNTER_LOCATION_ID) && CONTROL_SELECT1.equals(controlNode.getName()))
-					populateLocations(controlNode);
+				if (name.equalsIgnoreCase(NODE_ENCOUNTER_LOCATION_ID) && CONTROL_SELECT1.equals(controlNode.getName())) {
+					if (SharedItemsetManager.isEnabled())
+						controlNode.setAttribute(null, ATTRIBUTE_ITEMSET, SharedItemsetManager.ITEMSET_LOCATIONS);
+					else
+						populateLocations(controlNode);
+				}
 				else if (name.equalsIgnoreCase(NODE_ENCOUNTER_PROVIDER_ID)) {
-					populateProviders(controlNode, formNode, modelElement, bodyNode);
+					if (SharedItemsetManager.isEnabled() && CONTROL_SELECT1.equals(controlNode.getName()))
+						controlNode.setAttribute(null, ATTRIBUTE_ITEMSET, SharedItemsetManager.ITEMSET_PROVIDERS);
+					else
+						populateProviders(controlNode, formNode, modelElement, bodyNode);
 					
 					//if this is 1.9, we need to add the provider_id_type attribute and set its value, this 
 					//will be used by xml to hl7 xslt to determine if it should include the assigning
@@ -962,6 +995,19 @@ public final class XformBuilder implements GlobalPropertyListener {
 		return controlNode;
 	}
 	
+	/**
+	 * Populates a UI control node with the items of a shared itemset.
+	 * 
+	 * @param controlNode - the UI control node.
+	 * @param itemset - the itemset name, one of the SharedItemsetManager ITEMSET_ constants.
+	 */
+	public static void populateItemset(Element controlNode, String itemset) {
+		if (SharedItemsetManager.ITEMSET_LOCATIONS.equals(itemset))
+			populateLocations(controlNode);
+		else if (SharedItemsetManager.ITEMSET_PROVIDERS.equals(itemset))
+			populateProviders(controlNode, null, null, null);
+	}
+	
 	/**
 	 * Populates a UI control node with providers.
 	 * 
@@ -1048,16 +1094,15 @@ public final class XformBuilder implements GlobalPropertyListener {
 			String oldBinding = binding;
 			binding = parentName + "_" + binding;
 			
-			if (sharedRestrictions != null) {
-				List<String> bindingList = sharedRestrictions.get(oldBinding);
-				if (bindingList == null) {
-					bindingList = new ArrayList<String>();
-					sharedRestrictions.put(oldBinding, bindingList);
-				}
-				
-				bindingList.add(binding);
+			Hashtable<String, List<String>> sharedRestrictions = getBuildState().sharedRestrictions;
+			List<String> bindingList = sharedRestrictions.get(oldBinding);
+			if (bindingList == null) {
+				bindingList = new ArrayList<String>();
+				sharedRestrictions.put(oldBinding, bindingList);
 			}
 			
+			bindingList.add(binding);
+			
 			problemListItems.put(binding, parentName);
 		} else {
 			if (!(parentName.equalsIgnoreCase("obs") || parentName.equalsIgnoreCase("patient")
@@ -1082,6 +1127,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 		//Check if this is an item of a problem list.
 		if (problemList.containsKey(parentName)) {
 			if (problemListItems.contains(name)) {
+				Hashtable<String, List<String>> repeatSharedKids = getBuildState().repeatSharedKids;
 				List<String> repeats = repeatSharedKids.get(name);
 				if (repeats == null) {
 					repeats = new ArrayList<String>();
@@ -1100,8 +1146,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 		//store the binding node with the key being its id attribute.
 		bindings.put(binding, bindNode);
 		
-		if (nodesets != null)
-			nodesets.put(binding, nodeset);
+		getBuildState().nodesets.put(binding, nodeset);
 		
 		return bindNode;
 	}
@@ -1370,7 +1415,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 	                                                     Hashtable<String, String> problemListItems) {
 		String orgName = name;
 		name = getBindNodeName(name);
-		List<String> repeats = repeatSharedKids.get(name);
+		List<String> repeats = getBuildState().repeatSharedKids.get(name);
 		if (repeats == null)
 			return;
 		
@@ -1510,7 +1555,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 			if (name.equals("problem_list"))
 				;//addProblemListItems(name, complexTypeNode, bodyNode, modelNode);
 				
-			String binding = repeatChildTypes.get(orgName);
+			String binding = getBuildState().repeatChildTypes.get(orgName);
 			if (binding != null) {
 				name = binding;
 				bindNode = (Element) bindings.get(binding);
@@ -1545,7 +1590,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 			else if (isNodeWithDataType(node)) {
 				setDataType(bindNode, node);
 				
-				List<String> bindingList = sharedRestrictions.get(name);
+				List<String> bindingList = getBuildState().sharedRestrictions.get(name);
 				if (bindingList != null) {
 					for (String binding : bindingList) {
 						Element bindingNode = (Element) bindings.get(binding);
@@ -1896,10 +1941,10 @@ public final class XformBuilder implements GlobalPropertyListener {
 			//???????
 			if (repeatItem) {
 				if (problemListItems.containsKey(itemName)) {
-					List<String> repeats = repeatSharedKids.get(itemName);
+					List<String> repeats = getBuildState().repeatSharedKids.get(itemName);
 					if (repeats == null) {
 						repeats = new ArrayList<String>();
-						repeatSharedKids.put(itemName, repeats);
+						getBuildState().repeatSharedKids.put(itemName, repeats);
 					}
 					repeats.add(problemListItems.get(itemName));
 				}
@@ -1923,7 +1968,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 				if (repeatItem) {
 					String binding = name + "_" + itemName;
 					if (name.equals(problemListItems.get(binding))) {
-						repeatChildTypes.put(type, binding);
+						getBuildState().repeatChildTypes.put(type, binding);
 					}
 				}
 				
@@ -2344,7 +2389,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 		if (upper != null && lower != null && upper.trim().length() > 0 && lower.trim().length() > 0) {
 			setValidationRule(bindingNode, upper, lower);
 			
-			List<String> bindingList = sharedRestrictions.get(name);
+			List<String> bindingList = getBuildState().sharedRestrictions.get(name);
 			if (bindingList != null) {
 				for (String binding : bindingList) {
 					Element bindNode = (Element) bindings.get(binding);
@@ -2380,7 +2425,7 @@ public final class XformBuilder implements GlobalPropertyListener {
 			repeatControl.addChild(Element.ELEMENT, controlNode);
 		else if (name.contains("problem_added") || name.contains("problem_resolved"))
 			addDefaultProblemListChild(name, repeatControl, null, modelNode);
-		else if (obsRepeatItems.contains(name))
+		else if (getBuildState().obsRepeatItems.contains(name))
 			addDefaultProblemListChild(name, repeatControl, "value" /*nodesets.get(name)*/, modelNode);
 		
 		return repeatControl;
@@ -2702,12 +2747,16 @@ public final class XformBuilder implements GlobalPropertyListener {
 	 * @return - the xml of the new patient xform.
 	 */
 	public static String getNewPatientXform() throws Exception {
-		obsRepeatItems = new Hashtable<String, String>();
-		nodesets = new Hashtable<String, String>();
-		repeatSharedKids = new Hashtable<String, List<String>>();
-		sharedRestrictions = new Hashtable<String, List<String>>();
-		repeatChildTypes = new Hashtable<String, String>();
-		
+		BuildState previous = startBuild();
+		try {
+			return buildNewPatientXform();
+		}
+		finally {
+			endBuild(previous);
+		}
+	}
+	
+	private static String buildNewPatientXform() throws Exception {
 		Document doc = new Document();
 		doc.setEncoding(XformConstants.DEFAULT_CHARACTER_ENCODING);
 		
@@ -3600,4 +3649,20 @@ public final class XformBuilder implements GlobalPropertyListener {
 		//This is not a location or provider element
 		return false;
 	}
+	
+	/**
+	 * The lookups filled in while parsing the template and schema of an xform.
+	 */
+	static class BuildState {
+		
+		private final Hashtable<String, String> obsRepeatItems = new Hashtable<String, String>();
+		
+		private final Hashtable<String, String> nodesets = new Hashtable<String, String>();
+		
+		private final Hashtable<String, List<String>> repeatSharedKids = new Hashtable<String, List<String>>();
+		
+		private final Hashtable<String, List<String>> sharedRestrictions = new Hashtable<String, List<String>>();
+		
+		private final Hashtable<String, String> repeatChildTypes = new Hashtable<String, String>();
+	}
 }
@@ -42,13 +42,20 @@ import org.openmrs.util.FormConstants;
 import org.openmrs.util.FormUtil;
 
 
+/**
+ * Builds xforms from the fields of openmrs forms. The state of a build is kept in a builder
+ * created for it, such that forms can be built on several threads at the same time.
+ */
 public class XformBuilderEx {
 
-	private static Element bodyNode;
-	public static Hashtable<String, Element> bindings;
-	private static Hashtable<FormField, Element> formFields;
-	private static Hashtable<FormField, String> fieldTokens;
-	private static boolean useConceptIdAsHint = false;
+	private Element bodyNode;
+	private Hashtable<String, Element> bindings;
+	private Hashtable<FormField, Element> formFields;
+	private Hashtable<FormField, String> fieldTokens;
+	private boolean useConceptIdAsHint = false;
+	
+	/** The concepts of the form, with their names, answers and datatypes loaded in bulk. */
+	private Map<Integer, Concept> concepts;
 	
 	// List of datatypes that do not require complex definitions
 	private static final Map<String, String> simpleDatatypes = new HashMap<String, String>();
@@ -71,12 +78,28 @@ public class XformBuilderEx {
 	 * @return - the xml content of the xform.
 	 */
 	public static String buildXform(Form form) throws Exception {
+		XformBuilder.BuildState previous = XformBuilder.startBuild();
+		try {
+			return new XformBuilderEx().build(form);
+		}
+		finally {
+			XformBuilder.endBuild(previous);
+		}
+	}
+	
+	private XformBuilderEx() {
+	}
+	
+	private String build(Form form) throws Exception {
 		
 		bindings = new Hashtable<String, Element>();
 		formFields = new Hashtable<FormField, Element>();
 		fieldTokens = new Hashtable<FormField, String>();
 		useConceptIdAsHint = "true".equalsIgnoreCase(Context.getAdministrationService().getGlobalProperty("xforms.useConceptIdAsHint"));
 		
+		//Load the form structure and concepts up front, instead of lazily one at a time.
+		concepts = Context.getService(XformsService.class).getFormConcepts(form);
+		
 		boolean includeRelationshipNodes = !"false".equals(Context.getAdministrationService()
 			.getGlobalProperty(XformConstants.GLOBAL_PROP_KEY_INCLUDE_PATIENT_RELATIONSHIPS));
 		
@@ -164,34 +187,30 @@ public class XformBuilderEx {
 			RelativeBuilder.build(modelNode, groupNode, formNode);
 		}
 		
-		bindings.clear();
-		formFields.clear();
-		fieldTokens.clear();
-		
 		return XformBuilder.fromDoc2String(doc);
 	}
 	
-	public static void simpleConcept(String token, Concept concept, String type, boolean required, Locale locale, FormField formField) {
+	private void simpleConcept(String token, Concept concept, String type, boolean required, Locale locale, FormField formField) {
 		addUInode(token, concept, type, XformBuilder.CONTROL_INPUT, locale, getParentNode(formField, locale));
 	}
 	
-	public static void dateConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {	
+	private void dateConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {	
 		addUInode(token, concept, XformBuilder.DATA_TYPE_DATE, XformBuilder.CONTROL_INPUT, locale, getParentNode(formField, locale));
 	}
 	
-	public static void dateTimeConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {	
+	private void dateTimeConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {	
 		addUInode(token, concept, XformBuilder.DATA_TYPE_DATETIME, XformBuilder.CONTROL_INPUT, locale, getParentNode(formField, locale));
 	}
 	
-	public static void timeConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {	
+	private void timeConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {	
 		addUInode(token, concept, XformBuilder.DATA_TYPE_TIME, XformBuilder.CONTROL_INPUT, locale, getParentNode(formField, locale));
 	}
 	
-	public static void numericConcept(String token, ConceptNumeric concept, boolean required, Locale locale, FormField formField) {	
+	private void numericConcept(String token, ConceptNumeric concept, boolean required, Locale locale, FormField formField) {	
 		addUInode(token, concept, XformBuilder.DATA_TYPE_DECIMAL, XformBuilder.CONTROL_INPUT, locale, getParentNode(formField, locale));
 	}
 	
-	public static void selectSingle(String token, Concept concept,
+	private void selectSingle(String token, Concept concept,
 	                      			Collection<ConceptAnswer> answerList, boolean required,
 	                      			Locale locale, FormField formField) {
 		
@@ -201,7 +220,7 @@ public class XformBuilderEx {
 		}
 	}
 	
-	public static void selectMultiple(String token, Concept concept,
+	private void selectMultiple(String token, Concept concept,
 	                        			Collection<ConceptAnswer> answerList, Locale locale, FormField formField) {
 		
 		Element controlNode = addUInode(token, concept, XformBuilder.DATA_TYPE_TEXT, XformBuilder.CONTROL_SELECT, locale, getParentNode(formField, locale));
@@ -210,7 +229,7 @@ public class XformBuilderEx {
 		}
 	}
 	
-	public static void booleanConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {
+	private void booleanConcept(String token, Concept concept, boolean required, Locale locale, FormField formField) {
 	
 		Element controlNode = addUInode(token, concept, XformBuilder.DATA_TYPE_BOOLEAN, XformBuilder.CONTROL_INPUT, locale, getParentNode(formField, locale));
 		/*if (controlNode != null) {
@@ -236,7 +255,7 @@ public class XformBuilderEx {
 		}*/
 	}
 	
-	private static Element addUInode(String token, Concept concept, String dataType, String controlName, Locale locale, Element bodyNode){
+	private Element addUInode(String token, Concept concept, String dataType, String controlName, Locale locale, Element bodyNode){
 		String bindName = token;
 		
 		Element controlNode = bodyNode.createElement(XformBuilder.NAMESPACE_XFORMS, null);
@@ -286,7 +305,7 @@ public class XformBuilderEx {
 		return controlNode;
 	}
 	
-	private static void addCodedUInodes(boolean multiplSel, Element controlNode, Collection<ConceptAnswer> answerList, Concept concept, String dataType, String controlName, Locale locale){
+	private void addCodedUInodes(boolean multiplSel, Element controlNode, Collection<ConceptAnswer> answerList, Concept concept, String dataType, String controlName, Locale locale){
 		for (ConceptAnswer answer : answerList) {
 			String conceptName = answer.getAnswerConcept().getName(locale).getName();
 			String conceptValue;
@@ -331,7 +350,7 @@ public class XformBuilderEx {
 		}
 	}
 	
-	private static Element getParentNode(FormField formField, Locale locale){
+	private Element getParentNode(FormField formField, Locale locale){
 		formField = formField.getParent();
 		if(formField == null){
 			return bodyNode; //is this problem list?
@@ -374,7 +393,7 @@ public class XformBuilderEx {
 		}
 	}
 	
-	public static void addProblemList(String token, Concept concept, boolean required,
+	private void addProblemList(String token, Concept concept, boolean required,
 	                      			Locale locale, FormField formField) {
 		
 		Element groupNode = bodyNode.createElement(XformBuilder.NAMESPACE_XFORMS, null);
@@ -421,13 +440,13 @@ public class XformBuilderEx {
 		((Element)bindings.get(token).getParent()).addChild(Element.ELEMENT, bindNode);
 	}
 	
-	private static void buildUInodes(Form form) {	
+	private void buildUInodes(Form form) {	
 		Locale locale = Context.getLocale();
 		Map<Integer, TreeSet<FormField>> formStructure = XformsUtil.getFormStructure(form);
 		buildUInodes(form, formStructure, 0, locale);
 	}
 	
-	private static void buildUInodes(Form form, Map<Integer, TreeSet<FormField>> formStructure, Integer sectionId, Locale locale) {	
+	private void buildUInodes(Form form, Map<Integer, TreeSet<FormField>> formStructure, Integer sectionId, Locale locale) {	
 		
 		if (!formStructure.containsKey(sectionId))
 			return;
@@ -463,7 +482,7 @@ public class XformBuilderEx {
 			if (field.getFieldType().getFieldTypeId().equals(
 					FormConstants.FIELD_TYPE_CONCEPT)) {
 				
-				Concept concept = field.getConcept();
+				Concept concept = getConcept(field.getConcept());
 				ConceptDatatype datatype = concept.getDatatype();
 				
 				if ( (name.contains("problem_added") || name.contains("problem_resolved")) &&
@@ -488,7 +507,8 @@ public class XformBuilderEx {
 					simpleConcept(name, concept, XformBuilder.DATA_TYPE_TEXT, required, locale, formField);
 				}
 				else if (datatype.getHl7Abbreviation().equals(HL7Constants.HL7_NUMERIC)) {
-					ConceptNumeric conceptNumeric = Context.getConceptService().getConceptNumeric(concept.getConceptId());
+					ConceptNumeric conceptNumeric = (concept instanceof ConceptNumeric) ? (ConceptNumeric) concept
+					        : Context.getConceptService().getConceptNumeric(concept.getConceptId());
 					numericConcept(name, conceptNumeric, required, locale, formField);
 				} 
 				else if (datatype.getHl7Abbreviation().equals(HL7Constants.HL7_CODED)
@@ -522,7 +542,15 @@ public class XformBuilderEx {
 		}
 	}
 	
-	private static void addHintNode(Element labelNode, Concept concept) {
+	/**
+	 * Gets the loaded instance of a concept, or the concept itself if it was not loaded.
+	 */
+	private Concept getConcept(Concept concept) {
+		Concept loaded = concepts.get(concept.getConceptId());
+		return loaded != null ? loaded : concept;
+	}
+	
+	private void addHintNode(Element labelNode, Concept concept) {
 		String hint = null;
 		if(concept.getDescription() != null)
 			hint = concept.getDescription().getDescription();
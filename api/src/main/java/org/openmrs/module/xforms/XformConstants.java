@@ -39,6 +39,12 @@ public class XformConstants {
 	/** The default xforms complex obs directory. */
 	public static final String XFORMS_COMPLEX_OBS_DIR_DEFAULT = "xforms/complexobs";
 	
+	/** The name of the global property for the directory where chunks of resumable uploads are staged. */
+	public static final String XFORMS_UPLOAD_STAGING_DIR = "xforms.upload_staging_dir";
+	
+	/** The default xforms upload staging directory. */
+	public static final String XFORMS_UPLOAD_STAGING_DIR_DEFAULT = "xforms/staging";
+	
 	/** 
 	 * The dirrectory for archiving xforms after submission to the formentry queue.
 	 * The reason for archiving xforms, even after knowing that the formentry module
@@ -209,6 +215,60 @@ public class XformConstants {
 	/** The global property key for determining whether to include users when downloading xforms. */
 	public static final String GLOBAL_PROP_KEY_INCLUDE_USERS_IN_XFORMS_DOWNLOAD = "xforms.includeUsersInXformsDownload";
 
+	/** The global property key for the number of seconds a sync token stays valid. */
+	public static final String GLOBAL_PROP_KEY_SYNC_TOKEN_TIMEOUT = "xforms.syncTokenTimeout";
+	
+	/** The default number of seconds a sync token stays valid. */
+	public static final String DEFAULT_SYNC_TOKEN_TIMEOUT = "900";
+	
+	/** The global property key for the number of threads processing sms messages. */
+	public static final String GLOBAL_PROP_KEY_SMS_WORKER_THREADS = "xforms.smsWorkerThreads";
+	
+	/** The default number of threads processing sms messages. */
+	public static final String DEFAULT_SMS_WORKER_THREADS = "4";
+	
+	/** The global property key for the maximum number of sms messages waiting to be processed. */
+	public static final String GLOBAL_PROP_KEY_SMS_MAX_PENDING_MESSAGES = "xforms.smsMaxPendingMessages";
+	
+	/** The default maximum number of sms messages waiting to be processed. */
+	public static final String DEFAULT_SMS_MAX_PENDING_MESSAGES = "500";
+	
+	/** The global property key for the milliseconds to wait for more metadata changes before refreshing xforms. */
+	public static final String GLOBAL_PROP_KEY_FORM_REFRESH_DELAY = "xforms.formRefreshDelay";
+	
+	/** The default milliseconds to wait for more metadata changes before refreshing xforms. */
+	public static final String DEFAULT_FORM_REFRESH_DELAY = "0";
+	
+	/** The global property key for whether new xforms get their location and provider lists from shared itemsets. */
+	public static final String GLOBAL_PROP_KEY_USE_SHARED_ITEMSETS = "xforms.useSharedItemsets";
+	
+	/** The default value for whether new xforms get their location and provider lists from shared itemsets. */
+	public static final String DEFAULT_USE_SHARED_ITEMSETS = "false";
+	
+	/** The global property key for the seconds to cache the values of widgets with external sources. */
+	public static final String GLOBAL_PROP_KEY_WIDGET_VALUE_CACHE_TTL = "xforms.widgetValueCacheTtl";
+	
+	/** The default seconds to cache the values of widgets with external sources. */
+	public static final String DEFAULT_WIDGET_VALUE_CACHE_TTL = "300";
+	
+	/** The global property key for the number of threads rebuilding all xforms. */
+	public static final String GLOBAL_PROP_KEY_REBUILD_THREADS = "xforms.rebuildThreads";
+	
+	/** The default number of threads rebuilding all xforms. */
+	public static final String DEFAULT_REBUILD_THREADS = "4";
+	
+	/** The core global property key for whether patient names are matched at their start or anywhere. */
+	public static final String GLOBAL_PROP_KEY_PATIENT_SEARCH_MATCH_MODE = "patientSearch.matchMode";
+	
+	/** The value of the patient search match mode which matches names anywhere. */
+	public static final String PATIENT_SEARCH_MATCH_ANYWHERE = "ANYWHERE";
+	
+	/** The global property key for the days to keep the uids of processed forms. */
+	public static final String GLOBAL_PROP_KEY_PROCESSED_UID_RETENTION_DAYS = "xforms.processedUidRetentionDays";
+	
+	/** The default days to keep the uids of processed forms. */
+	public static final String DEFAULT_PROCESSED_UID_RETENTION_DAYS = "90";
+
 	/** The global property key for the patient download cohort.*/
 	public static final String GLOBAL_PROP_KEY_PATIENT_DOWNLOAD_COHORT = "xforms.patientDownloadCohort";
 	
@@ -302,6 +362,24 @@ public class XformConstants {
 	/** The batchEntry request parameter. */
 	public static final String REQUEST_PARAM_BATCH_ENTRY = "batchEntry";
 	
+	/** The chunkedUpload request parameter. */
+	public static final String REQUEST_PARAM_CHUNKED_UPLOAD = "chunkedUpload";
+	
+	/** The uploadAction request parameter, for chunked uploads. One of start, status, chunk or complete. */
+	public static final String REQUEST_PARAM_UPLOAD_ACTION = "uploadAction";
+	
+	/** The uploadId request parameter. */
+	public static final String REQUEST_PARAM_UPLOAD_ID = "uploadId";
+	
+	/** The offset request parameter. */
+	public static final String REQUEST_PARAM_OFFSET = "offset";
+	
+	/** The totalSize request parameter. */
+	public static final String REQUEST_PARAM_TOTAL_SIZE = "totalSize";
+	
+	/** The checksum request parameter. */
+	public static final String REQUEST_PARAM_CHECKSUM = "checksum";
+	
 	/** The xformentry request parameter. */
 	public static final String REQUEST_PARAM_XFORM_ENTRY = "xformentry";
 	
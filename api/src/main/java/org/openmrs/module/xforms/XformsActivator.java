@@ -11,7 +11,14 @@ package org.openmrs.module.xforms;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.ModuleActivator;
+import org.openmrs.module.xforms.aop.XformRefresher;
+import org.openmrs.module.xforms.download.XformRebuilder;
+import org.openmrs.module.xforms.serialization.ParallelPatientSerializer;
+import org.openmrs.module.xforms.serialization.PipelinedGZIPOutputStream;
+import org.openmrs.module.xforms.util.DaemonExecutor;
 
 /**
  * The xforms activator as required by the openmrs module spec.
@@ -19,9 +26,12 @@ import org.openmrs.module.ModuleActivator;
  * @author Daniel
  *
  */
-public class XformsActivator implements ModuleActivator {
+public class XformsActivator implements ModuleActivator, DaemonTokenAware {
 
 	private Log log = LogFactory.getLog(this.getClass());
+	
+	/** The token which lets this module run code as the daemon user. */
+	private static volatile DaemonToken daemonToken;
 
 
 	@Override
@@ -46,11 +56,29 @@ public class XformsActivator implements ModuleActivator {
 
 	@Override
 	public void willStop() {
-		
+		XformRefresher.shutdown();
+		XformRebuilder.shutdown();
+		ParallelPatientSerializer.shutdown();
+		PipelinedGZIPOutputStream.shutdown();
+		DaemonExecutor.shutdown();
 	}
 
 	@Override
 	public void stopped() {
 		log.info("Stopped Xforms Module");
 	}
+	
+	@Override
+	public void setDaemonToken(DaemonToken token) {
+		daemonToken = token;
+	}
+	
+	/**
+	 * Gets the token which lets this module run code as the daemon user.
+	 * 
+	 * @return the token, or null if the module has not yet been given one.
+	 */
+	public static DaemonToken getDaemonToken() {
+		return daemonToken;
+	}
 }
@@ -15,6 +15,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.logging.Log;
@@ -25,6 +26,9 @@ import org.openmrs.module.xforms.download.PatientDownloadManager;
 import org.openmrs.module.xforms.download.UserDownloadManager;
 import org.openmrs.module.xforms.download.XformDataUploadManager;
 import org.openmrs.module.xforms.download.XformDownloadManager;
+import org.openmrs.module.xforms.model.XformUploadResult;
+import org.openmrs.module.xforms.serialization.PipelinedGZIPOutputStream;
+import org.openmrs.module.xforms.serialization.SerializationUtils;
 
 import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZOutputStream;
@@ -74,6 +78,18 @@ public class XformsServer {
 	/** Action to download a list of patients filtered by name and identifier. */
 	public static final byte ACTION_DOWNLOAD_FILTERED_PATIENTS = 15;
 	
+	/** Action to save a list of form data and get back the processing result of each form. */
+	public static final byte ACTION_UPLOAD_FORMS_WITH_RESULTS = 16;
+	
+	/** Action to get a sync token to use instead of the password on the following connections. */
+	public static final byte ACTION_GET_SYNC_TOKEN = 17;
+	
+	/** Action to download a page of cohorts after a given cursor. */
+	public static final byte ACTION_DOWNLOAD_COHORTS_PAGE = 18;
+	
+	/** Action to download a page of patients, filtered by name and identifier, after a given cursor. */
+	public static final byte ACTION_DOWNLOAD_FILTERED_PATIENTS_PAGE = 19;
+	
 
 	private Log log = LogFactory.getLog(this.getClass());
 
@@ -88,14 +104,13 @@ public class XformsServer {
 	 * 
 	 * @param dis - the stream to read from.
 	 * @param dos - the stream to write to.
+	 * @return true if the action succeeded, else false.
 	 */
-	public void processConnection(DataInputStream dis, DataOutputStream dosParam)
+	public boolean processConnection(DataInputStream dis, DataOutputStream dosParam)
 	throws IOException, Exception {
 
-		GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(dosParam));
-		DataOutputStream dos = new DataOutputStream(gzip);
-
 		byte responseStatus = ResponseStatus.STATUS_ERROR;
+		PipelinedGZIPOutputStream gzipTemp = null;
 
 		try{
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -109,15 +124,27 @@ public class XformsServer {
 			byte action = dis.readByte();
 			Context.openSession();
 			
-			try{
-				Context.authenticate(name, pw);
+			if(SyncTokenManager.isToken(pw)){
+				//A token can only be renewed with the password.
+				if(action == ACTION_GET_SYNC_TOKEN || !SyncTokenManager.authenticate(name, pw))
+					responseStatus = ResponseStatus.STATUS_ACCESS_DENIED;
 			}
-			catch(ContextAuthenticationException ex){
-				responseStatus = ResponseStatus.STATUS_ACCESS_DENIED;
+			else{
+				try{
+					Context.authenticate(name, pw);
+				}
+				catch(ContextAuthenticationException ex){
+					responseStatus = ResponseStatus.STATUS_ACCESS_DENIED;
+				}
 			}
 
 			if(responseStatus != ResponseStatus.STATUS_ACCESS_DENIED){
-				DataOutputStream dosTemp = new DataOutputStream(baos);
+				//The response is compressed on another thread while the action is still producing it,
+				//assuming it will succeed. If it fails, the compressed response is dropped and only
+				//the failure status is sent.
+				gzipTemp = new PipelinedGZIPOutputStream(baos);
+				DataOutputStream dosTemp = new DataOutputStream(gzipTemp);
+				dosTemp.writeByte(ResponseStatus.STATUS_SUCCESS);
 				
 				if (action == ACTION_DOWNLOAD_PATIENTS)
 					;//downloadPatients(String.valueOf(dis.readInt()), dosTemp,serializer, false);
@@ -131,30 +158,43 @@ public class XformsServer {
 					XformDownloadManager.downloadXforms(dosTemp,serializer);
 				else if (action == ACTION_UPLOAD_FORMS)
 					submitXforms(dis, dosTemp,serializer);
+				else if (action == ACTION_UPLOAD_FORMS_WITH_RESULTS)
+					submitXformsWithResults(dis, dosTemp,serializer);
 				else if (action == ACTION_DOWNLOAD_USERS)
 					UserDownloadManager.downloadUsers(dosTemp,serializer);
 				else if (action == ACTION_DOWNLOAD_USERS_AND_FORMS)
 					downloadUsersAndForms(dosTemp,serializer);
 				else if(action == ACTION_DOWNLOAD_FILTERED_PATIENTS)
 					downloadPatients(dis.readUTF(), dis.readUTF(), dosTemp,serializer);
+				else if(action == ACTION_DOWNLOAD_COHORTS_PAGE)
+					PatientDownloadManager.downloadCohorts(dosTemp,serializer, dis.readInt(), dis.readInt());
+				else if(action == ACTION_DOWNLOAD_FILTERED_PATIENTS_PAGE)
+					PatientDownloadManager.downloadPatients(dis.readUTF(), dis.readUTF(), dis.readInt(), dis.readInt(), dosTemp,serializer);
+				else if(action == ACTION_GET_SYNC_TOKEN)
+					dosTemp.writeUTF(SyncTokenManager.issueToken(name));
 
+				dosTemp.flush();
+				gzipTemp.finish();
 				responseStatus = ResponseStatus.STATUS_SUCCESS;
 			}
 
-			dos.writeByte(responseStatus);
-
-			if(responseStatus == ResponseStatus.STATUS_SUCCESS)
-				dos.write(baos.toByteArray());
-
-			dos.close();
-			gzip.finish();
+			if(responseStatus == ResponseStatus.STATUS_SUCCESS){
+				baos.writeTo(dosParam);
+				dosParam.close();
+				return true;
+			}
+			else{
+				DataOutputStream dos = writeStatus(dosParam, responseStatus);
+				dos.close();
+			}
 		}
 		catch(Exception ex){
 			log.error(ex.getMessage(),ex);
 			try{
-				dos.writeByte(responseStatus);
-				dos.flush();
-				gzip.finish();
+				if(gzipTemp != null)
+					gzipTemp.abort();
+				
+				writeStatus(dosParam, responseStatus).flush();
 			}
 			catch(Exception e){
 				e.printStackTrace();
@@ -163,6 +203,23 @@ public class XformsServer {
 		finally{
 			Context.closeSession();
 		}
+		
+		return false;
+	}
+
+	/**
+	 * Writes a compressed response which only has a status.
+	 * 
+	 * @param dosParam - the stream to write to.
+	 * @param responseStatus - the status.
+	 * @return the compressed stream, finished but not closed.
+	 */
+	private DataOutputStream writeStatus(DataOutputStream dosParam, byte responseStatus) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(dosParam));
+		DataOutputStream dos = new DataOutputStream(gzip);
+		dos.writeByte(responseStatus);
+		gzip.finish();
+		return dos;
 	}
 
 	/*private void downloadPatients(String cohortId, OutputStream os, String serializer, boolean isSavedSearch) throws Exception{
@@ -205,6 +262,17 @@ public class XformsServer {
 		}
 	}
 
+	/**
+	 * Saves xforms xml models and writes back the result of each form, keyed by the form uid.
+	 * 
+	 * @param dis - the stream to read from.
+	 * @param dos - the stream to write to.
+	 */
+	private void submitXformsWithResults(DataInputStream dis, DataOutputStream dos, String serializerKey) throws Exception {
+		List<XformUploadResult> results = XformDataUploadManager.submitXformsWithResults(dis, new java.util.Date().toString(),serializerKey);
+		SerializationUtils.write(results, dos);
+	}
+
 	/**
 	 * Downloads a list of users and xforms.
 	 * 
@@ -9,15 +9,21 @@
  */
 package org.openmrs.module.xforms;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Form;
 import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
 import org.openmrs.module.xforms.db.XformsDAO;
 import org.openmrs.module.xforms.formentry.XformsFormEntryError;
 import org.openmrs.module.xforms.model.PatientMedicalHistory;
 import org.openmrs.module.xforms.model.PersonRepeatAttribute;
+import org.openmrs.module.xforms.model.XformSummary;
 import org.openmrs.module.xforms.model.XformUser;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -86,6 +92,32 @@ public interface XformsService {
 	@Transactional(readOnly = true)
 	public List<Xform> getXforms();
 
+	/**
+	 * Gets the ids, uuids and dates of all XForms, without loading their xml, layout, locale,
+	 * javascript and css text.
+	 * 
+	 * @return List of XForm summaries
+	 */
+	@Transactional(readOnly = true)
+	public List<XformSummary> getXformSummaries();
+
+	/**
+	 * Gets the xml of an XForm, without loading its other text.
+	 * 
+	 * @param formId the form id
+	 * @return the xform xml, or null if the form has no XForm
+	 */
+	@Transactional(readOnly = true)
+	public String getXformXml(Integer formId);
+
+	/**
+	 * Gets the xml of all XForms, without loading their other text.
+	 * 
+	 * @return the xform xml keyed by form id, in form id order
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, String> getXformXmls();
+
 	/**
 	 * Gets a list of XForms id and name
 	 * 
@@ -220,9 +252,80 @@ public interface XformsService {
 
 	public List<GlobalProperty> getXFormsGlobalProperties();
 
+	/**
+	 * Gets the repeat attributes of one person and attribute type. Use
+	 * {@link #getPersonRepeatAttributes(Collection, Collection)} when reading
+	 * them for more than one person or attribute type.
+	 * 
+	 * @param personId
+	 *            - the person id.
+	 * @param personAttributeId
+	 *            - the attribute type id.
+	 * @return the attributes.
+	 */
 	public List<PersonRepeatAttribute> getPersonRepeatAttributes(
 			Integer personId, Integer personAttributeId);
 
+	/**
+	 * Gets the repeat attributes of several persons in one go, instead of
+	 * querying per person and attribute type. Repeat attributes are only
+	 * written when new patient forms are processed; neither form filling nor
+	 * the mobile patient download reads them back yet, and so this is meant
+	 * for the paths which come to read them.
+	 * 
+	 * @param personIds
+	 *            - the person ids.
+	 * @param personAttributeIds
+	 *            - the attribute type ids, or null for all types.
+	 * @return the attributes keyed by person id, ordered by attribute type and
+	 *         display order. Voided attributes, and persons without any
+	 *         others, are left out.
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, List<PersonRepeatAttribute>> getPersonRepeatAttributes(
+			Collection<Integer> personIds, Collection<Integer> personAttributeIds);
+
+	/**
+	 * Loads the fields and concepts of a form in a few queries, instead of lazily one at a time
+	 * while an xform is built from them. The concepts come with their names, descriptions,
+	 * datatypes, classes and answers, and the answer concepts with their names and classes.
+	 * 
+	 * @param form
+	 *            - the form.
+	 * @return the concepts of the form fields and of their answers, keyed by
+	 *         concept id.
+	 */
+	@Transactional(readOnly = true)
+	public Map<Integer, Concept> getFormConcepts(Form form);
+
+	/**
+	 * Gets the concept id, table name and attribute name of the field a form
+	 * field has in the database, with the field id, parent form field id and
+	 * max occurs of the form field and whether the field is a multiple select.
+	 * These are from before any unsaved change to the form field or its field.
+	 * 
+	 * @param formFieldId
+	 *            - the form field id.
+	 * @return the concept id, table name, attribute name, field id, parent
+	 *         form field id, max occurs and select multiple, all but the field
+	 *         id of which may be null, or null if the form field is not in the
+	 *         database.
+	 */
+	@Transactional(readOnly = true)
+	public Object[] getSavedFieldOfFormField(Integer formFieldId);
+
+	/**
+	 * Gets the concept id, table name and attribute name of the fields of a
+	 * form, without loading the form fields.
+	 * 
+	 * @param formId
+	 *            - the form id.
+	 * @return the concept id, table name and attribute name of each form
+	 *         field, any of which may be null.
+	 */
+	@Transactional(readOnly = true)
+	public List<Object[]> getFieldsOfForm(Integer formId);
+
 	public void savePersonRepeatAttribute(
 			PersonRepeatAttribute personRepeatAttribute);
 
@@ -231,6 +334,18 @@ public interface XformsService {
 	public List<Object[]> getList(String sql, String displayField,
 			String valueField);
 
+	/**
+	 * Gets the display and value rows of a query, with parameters bound to it.
+	 * 
+	 * @param sql the query, with named parameters.
+	 * @param displayField the display column.
+	 * @param valueField the value column.
+	 * @param parameters the parameter values keyed by name.
+	 * @return the rows.
+	 */
+	public List<Object[]> getList(String sql, String displayField,
+			String valueField, Map<String, Object> parameters);
+
 	public PatientMedicalHistory getPatientMedicalHistory(Integer patientId);
 
 	public List<MedicalHistoryField> getMedicalHistoryFields();
@@ -281,6 +396,104 @@ public interface XformsService {
 	@Transactional(readOnly = true)
 	public String getConceptName(Integer conceptId, String localeKey);
 
+	/**
+	 * Gets a page of non voided cohorts, ordered by cohort id.
+	 * 
+	 * @param afterCohortId
+	 *            the id of the last cohort of the previous page, or null for
+	 *            the first page.
+	 * @param maxResults
+	 *            the maximum number of cohorts to return.
+	 * @return the cohorts.
+	 */
+	@Transactional(readOnly = true)
+	public List<Cohort> getCohorts(Integer afterCohortId, int maxResults);
+
+	/**
+	 * Gets a page of ids of non voided patients matching a name and identifier,
+	 * ordered by patient id. Each page is read with one keyset query. A name
+	 * or identifier is matched as by
+	 * {@link org.openmrs.api.PatientService#getPatients(String, String, List, boolean)}:
+	 * every part of the name matches the start, or with the patientSearch.matchMode
+	 * global property ANYWHERE any part, of a given, middle or family name of the
+	 * same non voided name, and the identifier is matched with the
+	 * patient.identifierPrefix and patient.identifierSuffix global properties.
+	 * The patient.identifierRegex and patient.identifierSearchPattern global
+	 * properties are not applied.
+	 * 
+	 * @param name
+	 *            the patient name, or null for any.
+	 * @param identifier
+	 *            the patient identifier, or null for any.
+	 * @param afterPatientId
+	 *            the id of the last patient of the previous page, or null for
+	 *            the first page.
+	 * @param maxResults
+	 *            the maximum number of ids to return.
+	 * @return the patient ids.
+	 */
+	@Transactional(readOnly = true)
+	public List<Integer> getPatientIds(String name, String identifier,
+			Integer afterPatientId, int maxResults);
+
+	/**
+	 * Gets patients with the given ids in one query, ordered by patient id.
+	 * 
+	 * @param patientIds
+	 *            the patient ids.
+	 * @return the patients.
+	 */
+	@Transactional(readOnly = true)
+	public List<Patient> getPatients(List<Integer> patientIds);
+
+	/**
+	 * Gets the ids of xforms which refer to a given concept, location or
+	 * provider. Xforms whose references have not yet been indexed, as is the
+	 * case for those saved before the index existed, are first indexed.
+	 * 
+	 * @param referenceType
+	 *            one of the XformReferenceUtil.REFERENCE_XXX constants.
+	 * @param referenceId
+	 *            the concept id, location id or provider person id, or null
+	 *            for the location and provider field reference types.
+	 * @return the form ids.
+	 */
+	public List<Integer> getReferencingXformIds(String referenceType,
+			Integer referenceId);
+
+	/**
+	 * Checks whether a form with a given client uid has already been
+	 * processed.
+	 * 
+	 * @param uid
+	 *            the form uid.
+	 * @return true if processed, else false.
+	 */
+	@Transactional(readOnly = true)
+	public boolean isFormUidProcessed(String uid);
+
+	/**
+	 * Records the client uids of forms which are about to be processed, in
+	 * one transaction. The uid column is unique, such that two concurrent
+	 * uploads of the same form cannot both record it. Uids recorded longer
+	 * ago than the processed uid retention are deleted now and again.
+	 * 
+	 * @param uids
+	 *            the form uids.
+	 * @return false, without recording any, if one of the uids is already
+	 *         recorded, else true.
+	 */
+	public boolean saveProcessedFormUids(List<String> uids);
+
+	/**
+	 * Removes the records of form uids, such as when processing the forms
+	 * failed and the client has to be able to resend them.
+	 * 
+	 * @param uids
+	 *            the form uids.
+	 */
+	public void deleteProcessedFormUids(List<String> uids);
+
 	/**
 	 * Sends a stacktrace of the given exception to admin's e-mail, if it is
 	 * defined under {@link XformConstants#GLOBAL_PROP_KEY_ADMIN_EMAIL}. It uses
@@ -9,15 +9,19 @@
  */
 package org.openmrs.module.xforms.aop;
 
+import java.util.Collections;
 import java.util.Date;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.openmrs.Form;
+import org.openmrs.FormField;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.XformsService;
 import org.openmrs.module.xforms.util.DOMUtil;
+import org.openmrs.module.xforms.util.FormTemplateCache;
+import org.openmrs.module.xforms.util.XformCache;
 import org.openmrs.module.xforms.util.XformsUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -25,6 +29,7 @@ import org.w3c.dom.Element;
 /**
  * Advice for deleting an xform attached to a form which has been deleted.
  * Also added support for duplicating an xform when a form is duplicated.
+ * Also updates the questions of saved and purged form fields in their xforms.
  * This class should be renamed to reflect these two functionalities instead of only form delete.
  * 
  * @since 4.0.3
@@ -34,6 +39,7 @@ public class FormDeleteAfterAdvice implements MethodInterceptor {
 	public Object invoke(MethodInvocation invocation) throws Throwable {
 		
 		Object object = null;
+		FormFieldEdit fieldEdit = null;
 		
 		if (invocation.getMethod().getName().equals("purgeForm") || invocation.getMethod().getName().equals("deleteForm")) {
 			object = invocation.proceed();
@@ -70,10 +76,50 @@ public class FormDeleteAfterAdvice implements MethodInterceptor {
 				xformsService.saveXform(newXform);
 			}
 		}
+		else if (invocation.getMethod().getName().equals("retireForm")
+		        || invocation.getMethod().getName().equals("unretireForm")) {
+			object = invocation.proceed();
+			XformCache.removeAfterCommit(((Form) invocation.getArguments()[0]).getFormId());
+		}
+		else if (invocation.getMethod().getName().equals("saveFormField")
+		        || invocation.getMethod().getName().equals("purgeFormField")) {
+			//Taken before a purge, while the field can still be read.
+			fieldEdit = FormFieldEdit.create((FormField) invocation.getArguments()[0], invocation.getMethod().getName()
+			        .equals("purgeFormField"));
+			object = invocation.proceed();
+		}
 		else {
 			object = invocation.proceed();
 		}
 		
+		invalidateTemplates(invocation.getMethod().getName(), invocation.getArguments());
+		
+		//Update only the changed question in the xform, once the change has been committed.
+		if (fieldEdit != null && Context.getService(XformsService.class).hasXform(fieldEdit.getFormId()))
+			XformRefresher.scheduleAfterCommit(Collections.singletonList(fieldEdit.getFormId()), fieldEdit);
+		
         return object;
     }
+	
+	/**
+	 * Removes the cached templates and schemas of forms whose fields may have been changed by a
+	 * form service method. Fields can be on many forms, so changing one clears them all.
+	 */
+	private void invalidateTemplates(String methodName, Object[] args) {
+		if (!(methodName.startsWith("save") || methodName.startsWith("purge") || methodName.startsWith("delete")
+		        || methodName.startsWith("retire") || methodName.startsWith("unretire") || methodName.startsWith("merge")))
+			return;
+		
+		if (args.length > 0 && args[0] instanceof Form) {
+			FormTemplateCache.removeAfterCommit(((Form) args[0]).getFormId());
+		}
+		else if (args.length > 0 && args[0] instanceof FormField) {
+			Form form = ((FormField) args[0]).getForm();
+			if (form != null)
+				FormTemplateCache.removeAfterCommit(form.getFormId());
+		}
+		else if (methodName.contains("Field")) {
+			FormTemplateCache.clearAfterCommit();
+		}
+    }
 }
@@ -0,0 +1,841 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.Field;
+import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.XformBuilder;
+import org.openmrs.module.xforms.XformBuilderEx;
+import org.openmrs.module.xforms.XformsException;
+import org.openmrs.module.xforms.XformsService;
+import org.openmrs.module.xforms.util.LanguageUtil;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Updates the questions of some fields in a stored xform after form fields are saved or purged,
+ * instead of regenerating the whole xform. Fields are matched by their concept, or by table and
+ * attribute for database fields.
+ *
+ * Most edits are patched into the stored xform without building anything: the question of a
+ * field no longer on the form is removed, with its instance node, bindings and controls, and a
+ * form field saved without a change to its field, parent or repeat leaves its question as it is.
+ * Only when a question has to be added or changed is the form built afresh in memory, and the
+ * instance nodes, bindings and controls of the changed fields copied into the stored xform, added
+ * to it or removed from it. Everything else in the stored xform is left as it is.
+ *
+ * Widgets
+ * and translations of removed questions are removed from the layout and locale documents. The
+ * label and hint text of questions and options already in the xform are kept, since they may
+ * have been edited in the form designer.
+ *
+ * An edit is for one form, and edits of the same form are merged while waiting in the
+ * {@link XformRefresher}, such that the form is built once for several changed fields.
+ */
+public class FormFieldEdit implements XformLayoutEdit {
+
+	private final Integer formId;
+
+	/** The ids of the concepts of the changed fields. */
+	private final Set<String> conceptIds = new HashSet<String>();
+
+	/** The table and attribute names of the changed database fields, as table.attribute */
+	private final Set<String> tableAttributes = new HashSet<String>();
+
+	/** The concept ids and table attributes of the purged fields. */
+	private final Set<String> purgedFields = new HashSet<String>();
+
+	/** Whether a question may have to be added or changed, which needs the form to be built. */
+	private boolean build;
+
+	/** The ids of the bindings removed by the last {@link #apply(Document)}. */
+	private final Set<String> removedBindIds = new HashSet<String>();
+
+	private FormFieldEdit(Integer formId) {
+		this.formId = formId;
+	}
+
+	/**
+	 * Creates the edit for a saved form field. This should be called before the form field is
+	 * saved, while the field it had can still be read from the database.
+	 *
+	 * @param formField the form field.
+	 * @return the edit, or null if the field has no question in an xform, like a section.
+	 */
+	public static FormFieldEdit create(FormField formField) {
+		return create(formField, false);
+	}
+
+	/**
+	 * Creates the edit for a saved or purged form field. This should be called before the form
+	 * field is saved or purged, while the field it had can still be read from the database.
+	 *
+	 * @param formField the form field.
+	 * @param purged true if the form field is being purged, else false.
+	 * @return the edit, or null if the field has no question in an xform, like a section.
+	 */
+	public static FormFieldEdit create(FormField formField, boolean purged) {
+		Form form = formField.getForm();
+		Field field = formField.getField();
+		if (form == null || form.getFormId() == null || field == null)
+			return null;
+
+		FormFieldEdit edit = new FormFieldEdit(form.getFormId());
+		edit.addField(field.getConcept() == null ? null : field.getConcept().getConceptId(), field.getTableName(),
+		    field.getAttributeName());
+
+		//The question of the field as saved goes too, if the form field now has another field or
+		//its field another concept.
+		Object[] savedField = null;
+		if (formField.getFormFieldId() != null) {
+			savedField = Context.getService(XformsService.class).getSavedFieldOfFormField(formField.getFormFieldId());
+			if (savedField != null)
+				edit.addField((Integer) savedField[0], (String) savedField[1], (String) savedField[2]);
+		}
+
+		if (edit.conceptIds.isEmpty() && edit.tableAttributes.isEmpty())
+			return null;
+
+		if (purged) {
+			edit.purgedFields.addAll(edit.conceptIds);
+			edit.purgedFields.addAll(edit.tableAttributes);
+		}
+		else
+			edit.build = savedField == null || isQuestionChanged(formField, savedField);
+
+		return edit;
+	}
+
+	/**
+	 * Checks if a form field is being saved with a change which may change its question, compared
+	 * to the form field as saved in the database.
+	 */
+	private static boolean isQuestionChanged(FormField formField, Object[] savedField) {
+		Field field = formField.getField();
+		Integer conceptId = field.getConcept() == null ? null : field.getConcept().getConceptId();
+		Integer parentId = formField.getParent() == null ? null : formField.getParent().getFormFieldId();
+
+		return !equal(conceptId, savedField[0]) || !equal(field.getTableName(), savedField[1])
+		        || !equal(field.getAttributeName(), savedField[2]) || !equal(field.getFieldId(), savedField[3])
+		        || !equal(parentId, savedField[4]) || !equal(formField.getMaxOccurs(), savedField[5])
+		        || !equal(Boolean.TRUE.equals(field.getSelectMultiple()), Boolean.TRUE.equals(savedField[6]));
+	}
+
+	private void addField(Integer conceptId, String tableName, String attributeName) {
+		if (conceptId != null)
+			conceptIds.add(conceptId.toString());
+		else if (tableName != null && attributeName != null)
+			tableAttributes.add(getTableAttribute(tableName, attributeName));
+	}
+
+	public Integer getFormId() {
+		return formId;
+	}
+
+	/**
+	 * Adds the fields of another edit of the same form to this one.
+	 */
+	public void merge(FormFieldEdit edit) {
+		conceptIds.addAll(edit.conceptIds);
+		tableAttributes.addAll(edit.tableAttributes);
+		purgedFields.addAll(edit.purgedFields);
+		build |= edit.build;
+	}
+
+	public boolean apply(Document doc) {
+		removedBindIds.clear();
+
+		Form form = Context.getFormService().getForm(formId);
+		if (form == null)
+			return false; //Deleted since the edit was scheduled.
+
+		if (!build) {
+			Boolean modified = patch(doc);
+			if (modified != null)
+				return modified;
+		}
+
+		return applyBuild(doc, form);
+	}
+
+	/**
+	 * Removes the questions of the changed fields which are no longer on the form, without
+	 * building the form.
+	 *
+	 * @return true if the xform was changed, false if not, or null if a question has to be added
+	 *         or built again, which needs the form to be built.
+	 */
+	private Boolean patch(Document doc) {
+		Set<String> formFields = new HashSet<String>();
+		for (Object[] row : Context.getService(XformsService.class).getFieldsOfForm(formId)) {
+			if (row[0] != null)
+				formFields.add(row[0].toString());
+			else if (row[1] != null && row[2] != null)
+				formFields.add(getTableAttribute((String) row[1], (String) row[2]));
+		}
+
+		Map<String, Element> nodes = getFieldNodes(doc);
+		Set<String> xformFields = new HashSet<String>();
+		for (Element node : nodes.values())
+			xformFields.add(getFieldKey(node));
+
+		Set<String> changedFields = new HashSet<String>(conceptIds);
+		changedFields.addAll(tableAttributes);
+		for (String changedField : changedFields) {
+			//A purged field whose concept is still on the form may have had its own question.
+			if (formFields.contains(changedField)
+			        && (!xformFields.contains(changedField) || purgedFields.contains(changedField)))
+				return null;
+		}
+
+		boolean modified = false;
+		for (Map.Entry<String, Element> entry : nodes.entrySet()) {
+			if (!formFields.contains(getFieldKey(entry.getValue()))) {
+				removeField(doc, entry.getKey(), entry.getValue());
+				modified = true;
+			}
+		}
+		return modified;
+	}
+
+	/**
+	 * Builds the form afresh and copies the questions of the changed fields into the xform.
+	 *
+	 * @return true if the xform was changed, else false.
+	 */
+	private boolean applyBuild(Document doc, Form form) {
+		Document newDoc;
+		try {
+			newDoc = XformsUtil.fromString2Doc(XformBuilderEx.buildXform(form));
+		}
+		catch (Exception ex) {
+			throw new XformsException("Could not build the xform of form " + formId, ex);
+		}
+
+		Map<String, Element> oldNodes = getFieldNodes(doc);
+		Map<String, Element> newNodes = getFieldNodes(newDoc);
+
+		boolean modified = false;
+		for (Map.Entry<String, Element> entry : oldNodes.entrySet()) {
+			if (!newNodes.containsKey(entry.getKey())) {
+				removeField(doc, entry.getKey(), entry.getValue());
+				modified = true;
+			}
+		}
+
+		for (Map.Entry<String, Element> entry : newNodes.entrySet()) {
+			Element oldNode = oldNodes.get(entry.getKey());
+			if (oldNode == null) {
+				addField(doc, newDoc, entry.getKey(), entry.getValue());
+				modified = true;
+			}
+			else if (updateField(doc, newDoc, entry.getKey(), oldNode, entry.getValue()))
+				modified = true;
+		}
+
+		return modified;
+	}
+
+	public boolean applyToLayout(Document layoutDoc) {
+		boolean modified = false;
+		for (Element element : getElements(layoutDoc.getDocumentElement())) {
+			if (removedBindIds.contains(element.getAttribute("Binding"))) {
+				element.getParentNode().removeChild(element);
+				modified = true;
+			}
+		}
+		return modified;
+	}
+
+	public boolean applyToLocale(Document localeDoc) {
+		boolean modified = false;
+		for (Element element : getElements(localeDoc.getDocumentElement())) {
+			String xpath = element.getAttribute(LanguageUtil.ATTRIBUTE_NAME_XPATH);
+			if (xpath.length() > 0 && refersToRemovedBinding(xpath)) {
+				element.getParentNode().removeChild(element);
+				modified = true;
+			}
+		}
+		return modified;
+	}
+
+	private boolean refersToRemovedBinding(String xpath) {
+		for (String bindId : removedBindIds) {
+			if (xpath.contains("@bind='" + bindId + "'") || xpath.contains("@id='" + bindId + "'")
+			        || xpath.contains("@Binding='" + bindId + "'"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the instance node, bindings and controls of a field.
+	 */
+	private void removeField(Document doc, String path, Element node) {
+		List<Element> binds = getBinds(doc, path);
+		Set<String> bindIds = getIds(binds);
+
+		for (Element control : getControls(doc, bindIds))
+			control.getParentNode().removeChild(control);
+		for (Element bind : binds)
+			bind.getParentNode().removeChild(bind);
+		node.getParentNode().removeChild(node);
+
+		removedBindIds.addAll(bindIds);
+	}
+
+	/**
+	 * Replaces the instance node, bindings and controls of a field with those of the new build,
+	 * where they differ. Attributes added to the bindings, such as by the form designer, are kept,
+	 * and so is the label and hint text of the controls.
+	 *
+	 * @return true if anything was changed, else false.
+	 */
+	private boolean updateField(Document doc, Document newDoc, String path, Element oldNode, Element newNode) {
+		boolean modified = false;
+		if (!isSame(oldNode, newNode)) {
+			oldNode.getParentNode().replaceChild(doc.importNode(newNode, true), oldNode);
+			modified = true;
+		}
+
+		List<Element> oldBinds = getBinds(doc, path);
+		List<Element> newBinds = getBinds(newDoc, path);
+		Set<String> oldBindIds = getIds(oldBinds);
+		Set<String> newBindIds = getIds(newBinds);
+
+		for (Element control : getControls(doc, oldBindIds)) {
+			if (!containsAny(newBindIds, getBindIds(control))) {
+				control.getParentNode().removeChild(control);
+				modified = true;
+			}
+		}
+
+		for (Element bind : oldBinds) {
+			if (!newBindIds.contains(bind.getAttribute(XformBuilder.ATTRIBUTE_ID))) {
+				bind.getParentNode().removeChild(bind);
+				removedBindIds.add(bind.getAttribute(XformBuilder.ATTRIBUTE_ID));
+				modified = true;
+			}
+		}
+
+		for (Element newBind : newBinds) {
+			Element oldBind = getBind(oldBinds, newBind.getAttribute(XformBuilder.ATTRIBUTE_ID));
+			if (oldBind == null) {
+				insertBind(doc, newBind);
+				modified = true;
+				continue;
+			}
+
+			NamedNodeMap attributes = newBind.getAttributes();
+			for (int index = 0; index < attributes.getLength(); index++) {
+				Node attribute = attributes.item(index);
+				if (!attribute.getNodeValue().equals(oldBind.getAttribute(attribute.getNodeName()))) {
+					oldBind.setAttribute(attribute.getNodeName(), attribute.getNodeValue());
+					modified = true;
+				}
+			}
+		}
+
+		for (Element newControl : getControls(newDoc, newBindIds)) {
+			Element oldControl = getControl(doc, getBindIds(newControl));
+			if (oldControl == null) {
+				insertControl(doc, newControl);
+				modified = true;
+				continue;
+			}
+
+			Element control = (Element) doc.importNode(newControl, true);
+			keepText(oldControl, control);
+			if (!isSame(oldControl, control)) {
+				oldControl.getParentNode().replaceChild(control, oldControl);
+				modified = true;
+			}
+		}
+
+		return modified;
+	}
+
+	/**
+	 * Copies the label and hint text of a control, of the controls in it and of their options, to
+	 * the new build of the control.
+	 */
+	private void keepText(Element oldControl, Element newControl) {
+		List<Element> oldElements = getElements(oldControl);
+		oldElements.add(0, oldControl);
+		keepLabelAndHint(oldControl, newControl);
+
+		for (Element newElement : getElements(newControl)) {
+			if (isNamed(newElement, XformBuilder.NODE_ITEM)) {
+				Element oldItem = getItem(oldElements, newElement);
+				if (oldItem != null)
+					keepLabelAndHint(oldItem, newElement);
+			}
+			else if (newElement.getAttribute(XformBuilder.ATTRIBUTE_BIND).length() > 0) {
+				Element oldElement = getBoundElement(oldElements, newElement.getAttribute(XformBuilder.ATTRIBUTE_BIND));
+				if (oldElement != null)
+					keepLabelAndHint(oldElement, newElement);
+			}
+		}
+	}
+
+	/**
+	 * Copies the content of the label and hint of an element to those of its new build. A hint
+	 * which was removed is left out of the new build.
+	 */
+	private void keepLabelAndHint(Element oldElement, Element newElement) {
+		for (String name : new String[] { XformBuilder.NODE_LABEL, XformBuilder.NODE_HINT }) {
+			Element oldChild = getNamedChild(oldElement, name);
+			Element newChild = getNamedChild(newElement, name);
+			if (newChild == null)
+				continue;
+
+			if (oldChild == null) {
+				if (XformBuilder.NODE_HINT.equals(name) && getNamedChild(oldElement, XformBuilder.NODE_LABEL) != null)
+					newElement.removeChild(newChild);
+				continue;
+			}
+
+			while (newChild.getFirstChild() != null)
+				newChild.removeChild(newChild.getFirstChild());
+			for (Node node = oldChild.getFirstChild(); node != null; node = node.getNextSibling())
+				newChild.appendChild(node.cloneNode(true));
+		}
+	}
+
+	/**
+	 * Gets the option among some elements which has the value of a new option, and is in the
+	 * control bound like the one the new option is in.
+	 */
+	private Element getItem(List<Element> elements, Element newItem) {
+		String bind = ((Element) newItem.getParentNode()).getAttribute(XformBuilder.ATTRIBUTE_BIND);
+		String value = getText(getNamedChild(newItem, XformBuilder.NODE_VALUE));
+		for (Element element : elements) {
+			if (isNamed(element, XformBuilder.NODE_ITEM)
+			        && ((Element) element.getParentNode()).getAttribute(XformBuilder.ATTRIBUTE_BIND).equals(bind)
+			        && getText(getNamedChild(element, XformBuilder.NODE_VALUE)).equals(value))
+				return element;
+		}
+		return null;
+	}
+
+	private Element getBoundElement(List<Element> elements, String bindId) {
+		for (Element element : elements) {
+			if (element.getAttribute(XformBuilder.ATTRIBUTE_BIND).equals(bindId))
+				return element;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the instance node, bindings and controls of a field from the new build, next to those
+	 * of the fields it follows in the new build.
+	 */
+	private void addField(Document doc, Document newDoc, String path, Element newNode) {
+		Element parent = getParentNode(doc, newNode);
+		Element previous = getPreviousElement(newNode);
+		Element oldPrevious = (previous == null) ? null : getChildElement(parent, previous.getNodeName());
+		parent.insertBefore(doc.importNode(newNode, true), oldPrevious == null ? parent.getFirstChild() : oldPrevious
+		        .getNextSibling());
+
+		List<Element> newBinds = getBinds(newDoc, path);
+		for (Element newBind : newBinds)
+			insertBind(doc, newBind);
+
+		for (Element newControl : getControls(newDoc, getIds(newBinds)))
+			insertControl(doc, newControl);
+	}
+
+	/**
+	 * Gets the element in a document which corresponds to the parent of a node in the new build,
+	 * creating it and its ancestors if missing.
+	 */
+	private Element getParentNode(Document doc, Element newNode) {
+		Element newParent = (Element) newNode.getParentNode();
+		if (isNamed(newParent.getParentNode(), XformBuilder.NODE_INSTANCE))
+			return getFormNode(doc);
+
+		Element parent = getParentNode(doc, newParent);
+		Element node = getChildElement(parent, newParent.getNodeName());
+		if (node == null) {
+			node = (Element) doc.importNode(newParent, false);
+			parent.appendChild(node);
+		}
+		return node;
+	}
+
+	private void insertBind(Document doc, Element newBind) {
+		Element lastBind = null;
+		for (Element bind : getElements(getModelNode(doc))) {
+			if (isNamed(bind, XformBuilder.NODE_BIND))
+				lastBind = bind;
+		}
+
+		Node bind = doc.importNode(newBind, true);
+		if (lastBind != null)
+			lastBind.getParentNode().insertBefore(bind, lastBind.getNextSibling());
+		else
+			getModelNode(doc).appendChild(bind);
+	}
+
+	/**
+	 * Inserts a control of the new build after the control it follows there, or before the one it
+	 * precedes, or else at the end of the first page.
+	 */
+	private void insertControl(Document doc, Element newControl) {
+		Node control = doc.importNode(newControl, true);
+
+		for (Node sibling = newControl.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+			Element oldControl = (sibling instanceof Element) ? getControl(doc, getBindIds((Element) sibling)) : null;
+			if (oldControl != null) {
+				oldControl.getParentNode().insertBefore(control, oldControl.getNextSibling());
+				return;
+			}
+		}
+
+		for (Node sibling = newControl.getNextSibling(); sibling != null; sibling = sibling.getNextSibling()) {
+			Element oldControl = (sibling instanceof Element) ? getControl(doc, getBindIds((Element) sibling)) : null;
+			if (oldControl != null) {
+				oldControl.getParentNode().insertBefore(control, oldControl);
+				return;
+			}
+		}
+
+		Element page = null;
+		for (Element element : getChildElements(doc.getDocumentElement())) {
+			if (isNamed(element, XformBuilder.NODE_GROUP)) {
+				page = element;
+				break;
+			}
+		}
+		(page != null ? page : doc.getDocumentElement()).appendChild(control);
+	}
+
+	/**
+	 * Gets the instance nodes of the changed fields, keyed by their paths.
+	 */
+	private Map<String, Element> getFieldNodes(Document doc) {
+		Map<String, Element> nodes = new LinkedHashMap<String, Element>();
+		Element formNode = getFormNode(doc);
+		if (formNode != null)
+			addFieldNodes(formNode, "/" + formNode.getNodeName(), nodes);
+		return nodes;
+	}
+
+	private void addFieldNodes(Element parent, String parentPath, Map<String, Element> nodes) {
+		for (Element child : getChildElements(parent)) {
+			String path = parentPath + "/" + child.getNodeName();
+			if (isChangedField(child)) {
+				if (!nodes.containsKey(path))
+					nodes.put(path, child);
+			}
+			else
+				addFieldNodes(child, path, nodes);
+		}
+	}
+
+	private boolean isChangedField(Element node) {
+		String key = getFieldKey(node);
+		return key != null && (conceptIds.contains(key) || tableAttributes.contains(key));
+	}
+
+	/**
+	 * Gets the concept id, or the table attribute, of the field of an instance node.
+	 *
+	 * @return the concept id or table attribute, or null if the node is not the node of a field.
+	 */
+	private static String getFieldKey(Element node) {
+		String concept = node.getAttribute(XformBuilder.ATTRIBUTE_OPENMRS_CONCEPT);
+		if (concept.length() > 0) {
+			//Nodes without a datatype are the options of multiple selects.
+			if (node.getAttribute(XformBuilder.ATTRIBUTE_OPENMRS_DATATYPE).length() == 0)
+				return null;
+
+			int pos = concept.indexOf('^');
+			return pos < 0 ? concept : concept.substring(0, pos);
+		}
+
+		String table = node.getAttribute(XformBuilder.ATTRIBUTE_OPENMRS_TABLE);
+		String attribute = node.getAttribute(XformBuilder.ATTRIBUTE_OPENMRS_ATTRIBUTE);
+		if (table.length() > 0 && attribute.length() > 0)
+			return getTableAttribute(table, attribute);
+		return null;
+	}
+
+	/**
+	 * Gets the bindings of the instance node at a path, and of its child nodes.
+	 */
+	private List<Element> getBinds(Document doc, String path) {
+		List<Element> binds = new ArrayList<Element>();
+		Element modelNode = getModelNode(doc);
+		if (modelNode == null)
+			return binds;
+
+		for (Element element : getElements(modelNode)) {
+			if (!isNamed(element, XformBuilder.NODE_BIND))
+				continue;
+
+			String nodeset = element.getAttribute(XformBuilder.ATTRIBUTE_NODESET);
+			if (nodeset.equals(path) || nodeset.startsWith(path + "/"))
+				binds.add(element);
+		}
+		return binds;
+	}
+
+	private Element getBind(List<Element> binds, String id) {
+		for (Element bind : binds) {
+			if (bind.getAttribute(XformBuilder.ATTRIBUTE_ID).equals(id))
+				return bind;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the controls bound to some bindings. A control alone in a group, like a repeat, is
+	 * returned as the group.
+	 */
+	private List<Element> getControls(Document doc, Set<String> bindIds) {
+		List<Element> controls = new ArrayList<Element>();
+		if (bindIds.isEmpty())
+			return controls;
+
+		for (Element child : getChildElements(doc.getDocumentElement())) {
+			if (isNamed(child, XformBuilder.NODE_MODEL))
+				continue;
+
+			List<Element> elements = getElements(child);
+			elements.add(0, child);
+			for (Element element : elements) {
+				if (!bindIds.contains(element.getAttribute(XformBuilder.ATTRIBUTE_BIND)))
+					continue;
+
+				Element control = getControlGroup(element);
+				if (!isInside(control, controls))
+					controls.add(control);
+			}
+		}
+		return controls;
+	}
+
+	/**
+	 * Gets the control, or the group it is alone in, bound to any of some bindings.
+	 */
+	private Element getControl(Document doc, Set<String> bindIds) {
+		List<Element> controls = getControls(doc, bindIds);
+		return controls.isEmpty() ? null : controls.get(0);
+	}
+
+	/**
+	 * Gets the group a control is alone in, with only a label and hint, or else the control.
+	 * Pages, which are groups directly in the document element, are never returned.
+	 */
+	private Element getControlGroup(Element control) {
+		Node parent = control.getParentNode();
+		if (!isNamed(parent, XformBuilder.NODE_GROUP) || parent.getParentNode() == control.getOwnerDocument().getDocumentElement())
+			return control;
+
+		for (Element child : getChildElements((Element) parent)) {
+			if (child != control && !isNamed(child, XformBuilder.NODE_LABEL) && !isNamed(child, XformBuilder.NODE_HINT))
+				return control;
+		}
+		return (Element) parent;
+	}
+
+	/**
+	 * Gets the ids of the bindings a control, and the controls in it, are bound to.
+	 */
+	private Set<String> getBindIds(Element control) {
+		Set<String> bindIds = new HashSet<String>();
+		if (control.getAttribute(XformBuilder.ATTRIBUTE_BIND).length() > 0)
+			bindIds.add(control.getAttribute(XformBuilder.ATTRIBUTE_BIND));
+		for (Element element : getElements(control)) {
+			if (element.getAttribute(XformBuilder.ATTRIBUTE_BIND).length() > 0)
+				bindIds.add(element.getAttribute(XformBuilder.ATTRIBUTE_BIND));
+		}
+		return bindIds;
+	}
+
+	private Set<String> getIds(List<Element> binds) {
+		Set<String> ids = new HashSet<String>();
+		for (Element bind : binds)
+			ids.add(bind.getAttribute(XformBuilder.ATTRIBUTE_ID));
+		return ids;
+	}
+
+	private static boolean containsAny(Set<String> set, Set<String> values) {
+		for (String value : values) {
+			if (set.contains(value))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isInside(Element element, List<Element> ancestors) {
+		for (Node node = element; node != null; node = node.getParentNode()) {
+			if (ancestors.contains(node))
+				return true;
+		}
+		return false;
+	}
+
+	private Element getModelNode(Document doc) {
+		for (Element element : getChildElements(doc.getDocumentElement())) {
+			if (isNamed(element, XformBuilder.NODE_MODEL))
+				return element;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the root node of the main instance, which is the one with a form node.
+	 */
+	private Element getFormNode(Document doc) {
+		Element modelNode = getModelNode(doc);
+		if (modelNode == null)
+			return null;
+
+		for (Element instanceNode : getChildElements(modelNode)) {
+			if (!isNamed(instanceNode, XformBuilder.NODE_INSTANCE))
+				continue;
+
+			List<Element> children = getChildElements(instanceNode);
+			if (!children.isEmpty() && "form".equals(children.get(0).getNodeName()))
+				return children.get(0);
+		}
+		return null;
+	}
+
+	private static Element getChildElement(Element parent, String name) {
+		for (Element child : getChildElements(parent)) {
+			if (child.getNodeName().equals(name))
+				return child;
+		}
+		return null;
+	}
+
+	private static Element getNamedChild(Element parent, String name) {
+		for (Element child : getChildElements(parent)) {
+			if (isNamed(child, name))
+				return child;
+		}
+		return null;
+	}
+
+	private static String getText(Element element) {
+		return element == null ? "" : element.getTextContent().trim();
+	}
+
+	/**
+	 * Checks if two nodes have the same names, attributes and content, not counting the whitespace
+	 * between elements.
+	 */
+	private static boolean isSame(Node node, Node otherNode) {
+		if (node.getNodeType() != otherNode.getNodeType() || !node.getNodeName().equals(otherNode.getNodeName()))
+			return false;
+
+		if (!(node instanceof Element))
+			return String.valueOf(node.getNodeValue()).equals(String.valueOf(otherNode.getNodeValue()));
+
+		NamedNodeMap attributes = node.getAttributes();
+		NamedNodeMap otherAttributes = otherNode.getAttributes();
+		if (attributes.getLength() != otherAttributes.getLength())
+			return false;
+
+		for (int index = 0; index < attributes.getLength(); index++) {
+			Node attribute = attributes.item(index);
+			Node otherAttribute = otherAttributes.getNamedItem(attribute.getNodeName());
+			if (otherAttribute == null || !attribute.getNodeValue().equals(otherAttribute.getNodeValue()))
+				return false;
+		}
+
+		List<Node> children = getContentNodes(node);
+		List<Node> otherChildren = getContentNodes(otherNode);
+		if (children.size() != otherChildren.size())
+			return false;
+
+		for (int index = 0; index < children.size(); index++) {
+			if (!isSame(children.get(index), otherChildren.get(index)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the child nodes of a node, except whitespace text.
+	 */
+	private static List<Node> getContentNodes(Node parent) {
+		List<Node> nodes = new ArrayList<Node>();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() != Node.TEXT_NODE || node.getNodeValue().trim().length() > 0)
+				nodes.add(node);
+		}
+		return nodes;
+	}
+
+	private static Element getPreviousElement(Element element) {
+		for (Node node = element.getPreviousSibling(); node != null; node = node.getPreviousSibling()) {
+			if (node instanceof Element)
+				return (Element) node;
+		}
+		return null;
+	}
+
+	private static List<Element> getChildElements(Element parent) {
+		List<Element> children = new ArrayList<Element>();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element)
+				children.add((Element) node);
+		}
+		return children;
+	}
+
+	/**
+	 * Gets the descendant elements of an element, in document order. The list is a copy, such that
+	 * elements can be removed while going through it.
+	 */
+	private static List<Element> getElements(Element parent) {
+		List<Element> elements = new ArrayList<Element>();
+		NodeList nodes = parent.getElementsByTagName("*");
+		for (int index = 0; index < nodes.getLength(); index++)
+			elements.add((Element) nodes.item(index));
+		return elements;
+	}
+
+	/**
+	 * Checks if a node has a name, with or without a namespace prefix.
+	 */
+	private static boolean isNamed(Node node, String name) {
+		if (!(node instanceof Element))
+			return false;
+
+		String nodeName = node.getNodeName();
+		return nodeName.equals(name) || nodeName.endsWith(":" + name);
+	}
+
+	private static String getTableAttribute(String table, String attribute) {
+		return (table + "." + attribute).toLowerCase();
+	}
+
+	private static boolean equal(Object value, Object otherValue) {
+		return value == null ? otherValue == null : value.equals(otherValue);
+	}
+}
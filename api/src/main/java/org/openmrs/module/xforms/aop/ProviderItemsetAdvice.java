@@ -0,0 +1,30 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.module.xforms.SharedItemsetManager;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Advice for detecting when a provider has been added, changed or removed, such that the shared
+ * providers itemset is rebuilt.
+ */
+public class ProviderItemsetAdvice implements AfterReturningAdvice {
+	
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if (name.equals("saveProvider") || name.equals("retireProvider") || name.equals("unretireProvider")
+		        || name.equals("purgeProvider")) {
+			SharedItemsetManager.invalidateAfterCommit(SharedItemsetManager.ITEMSET_PROVIDERS);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import org.w3c.dom.Document;
+
+/**
+ * A change to an xforms document, resulting from a change in a provider, location, concept or
+ * form field. Edits are applied by the {@link XformRefresher} some time after the change, and so
+ * they only hold ids and names taken at the time of the change, rather than the changed objects.
+ */
+public interface XformEdit {
+
+	/**
+	 * Applies this edit to an xforms document.
+	 *
+	 * @param doc the xforms document.
+	 * @return true if the document was changed, else false.
+	 */
+	boolean apply(Document doc);
+}
@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import org.w3c.dom.Document;
+
+/**
+ * An xform edit which also changes the layout and locale documents of an xform, such as one
+ * removing questions which have widgets and translations. The {@link XformRefresher} applies it to
+ * them right after applying it to the xforms document of the same form.
+ */
+public interface XformLayoutEdit extends XformEdit {
+
+	/**
+	 * Applies this edit to a layout document.
+	 *
+	 * @param layoutDoc the layout document.
+	 * @return true if the document was changed, else false.
+	 */
+	boolean applyToLayout(Document layoutDoc);
+
+	/**
+	 * Applies this edit to a locale document.
+	 *
+	 * @param localeDoc the locale document.
+	 * @return true if the document was changed, else false.
+	 */
+	boolean applyToLocale(Document localeDoc);
+}
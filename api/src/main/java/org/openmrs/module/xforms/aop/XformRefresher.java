@@ -0,0 +1,436 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.XformConstants;
+import org.openmrs.module.xforms.XformsService;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.w3c.dom.Document;
+
+/**
+ * Applies the xform edits resulting from provider, location, concept and form field changes.
+ *
+ * A refresh delay of 0, the default, applies the edits right away on the calling thread, within
+ * the transaction of the change.
+ *
+ * With a longer delay, the edits are applied in the background as the daemon user. They are only
+ * queued once the transaction of the change has committed, such that a rolled back change is
+ * never applied. Edits are collected per form until no new change has come in for the refresh
+ * delay, such that a bulk edit of many locations ends up parsing, serializing and saving each
+ * affected form only once.
+ *
+ * Edits which may need the form to be built, like those of form fields, can be scheduled to be
+ * applied after the commit even with a delay of 0, such that they do not hold up the change.
+ */
+public class XformRefresher {
+
+	private static final Log log = LogFactory.getLog(XformRefresher.class);
+
+	/** How many refresh delays edits can wait, when changes keep coming in. */
+	private static final int MAX_DELAYS = 15;
+
+	private static final Object lock = new Object();
+
+	/** The edits waiting to be applied, keyed by form id. */
+	private static Map<Integer, List<XformEdit>> pendingEdits = new LinkedHashMap<Integer, List<XformEdit>>();
+
+	/** When the oldest waiting edit was scheduled, or 0 if none. */
+	private static long oldestEditTime;
+
+	/** When the latest edit was scheduled. */
+	private static long latestEditTime;
+
+	private static long delay = Long.parseLong(XformConstants.DEFAULT_FORM_REFRESH_DELAY);
+
+	private static Thread thread;
+
+	private static long refreshedFormCount;
+
+	private static long failedFormCount;
+
+	private static long lastRefreshTime;
+
+	/**
+	 * Schedules an edit for some forms.
+	 *
+	 * @param formIds the ids of the forms to edit.
+	 * @param edit the edit.
+	 */
+	public static void schedule(final List<Integer> formIds, final XformEdit edit) {
+		if (formIds.isEmpty())
+			return;
+
+		final long refreshDelay = getRefreshDelay();
+		if (refreshDelay <= 0) {
+			Map<Integer, List<XformEdit>> edits = new LinkedHashMap<Integer, List<XformEdit>>();
+			for (Integer formId : formIds)
+				edits.put(formId, Collections.singletonList(edit));
+			refresh(edits);
+			return;
+		}
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			queue(formIds, edit, refreshDelay);
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+			@Override
+			public void afterCommit() {
+				queue(formIds, edit, refreshDelay);
+			}
+		});
+	}
+
+	/**
+	 * Schedules an edit for some forms, to be applied in the background once the transaction of
+	 * the change has committed, also when the refresh delay is 0. Without a transaction, a delay of
+	 * 0 applies the edit right away.
+	 *
+	 * @param formIds the ids of the forms to edit.
+	 * @param edit the edit.
+	 */
+	public static void scheduleAfterCommit(final List<Integer> formIds, final XformEdit edit) {
+		if (formIds.isEmpty())
+			return;
+
+		if (getRefreshDelay() > 0 || !TransactionSynchronizationManager.isSynchronizationActive()) {
+			schedule(formIds, edit);
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+			@Override
+			public void afterCommit() {
+				queue(formIds, edit, 0);
+			}
+		});
+	}
+
+	/**
+	 * Adds an edit to those waiting to be applied in the background.
+	 */
+	private static void queue(List<Integer> formIds, XformEdit edit, long refreshDelay) {
+		synchronized (lock) {
+			for (Integer formId : formIds) {
+				List<XformEdit> edits = pendingEdits.get(formId);
+				if (edits == null) {
+					edits = new ArrayList<XformEdit>();
+					pendingEdits.put(formId, edits);
+				}
+				
+				//Field edits of a form build it once for all changed fields.
+				XformEdit lastEdit = edits.isEmpty() ? null : edits.get(edits.size() - 1);
+				if (edit instanceof FormFieldEdit && lastEdit instanceof FormFieldEdit)
+					((FormFieldEdit) lastEdit).merge((FormFieldEdit) edit);
+				else
+					edits.add(edit);
+			}
+
+			latestEditTime = System.currentTimeMillis();
+			if (oldestEditTime == 0)
+				oldestEditTime = latestEditTime;
+
+			delay = refreshDelay;
+			startThread();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Applies all waiting edits on the calling thread, which should have an open session. This is
+	 * mainly for tests, which need the forms refreshed before checking them.
+	 */
+	public static void flush() {
+		refresh(takePendingEdits());
+	}
+
+	/**
+	 * Stops the background thread. Waiting edits are applied first.
+	 */
+	public static void shutdown() {
+		Thread refreshThread;
+		synchronized (lock) {
+			refreshThread = thread;
+			thread = null;
+			lock.notifyAll();
+		}
+
+		if (refreshThread != null) {
+			try {
+				refreshThread.join();
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of forms with edits waiting to be applied.
+	 */
+	public static int getPendingFormCount() {
+		synchronized (lock) {
+			return pendingEdits.size();
+		}
+	}
+
+	/**
+	 * Gets how long, in milliseconds, the oldest waiting edit has been waiting.
+	 */
+	public static long getLag() {
+		synchronized (lock) {
+			return oldestEditTime == 0 ? 0 : System.currentTimeMillis() - oldestEditTime;
+		}
+	}
+
+	/**
+	 * Gets the number of forms refreshed since startup.
+	 */
+	public static long getRefreshedFormCount() {
+		synchronized (lock) {
+			return refreshedFormCount;
+		}
+	}
+
+	/**
+	 * Gets the number of forms which failed to refresh since startup.
+	 */
+	public static long getFailedFormCount() {
+		synchronized (lock) {
+			return failedFormCount;
+		}
+	}
+
+	/**
+	 * Gets when forms were last refreshed, or 0 if never.
+	 */
+	public static long getLastRefreshTime() {
+		synchronized (lock) {
+			return lastRefreshTime;
+		}
+	}
+
+	private static void startThread() {
+		if (thread != null)
+			return;
+
+		thread = new Thread(new Runnable() {
+
+			public void run() {
+				runRefreshLoop(Thread.currentThread());
+			}
+		}, "xforms-form-refresher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for edits to become due and applies them, until the thread is stopped.
+	 */
+	private static void runRefreshLoop(Thread refreshThread) {
+		while (true) {
+			Map<Integer, List<XformEdit>> edits;
+			synchronized (lock) {
+				try {
+					while (thread == refreshThread && getWaitTime() > 0)
+						lock.wait(getWaitTime());
+				}
+				catch (InterruptedException ex) {
+					//Stop after applying what is waiting. A new thread is started for later edits.
+					if (thread == refreshThread)
+						thread = null;
+				}
+
+				edits = takePendingEdits();
+				if (edits.isEmpty() && thread != refreshThread)
+					return;
+			}
+
+			final Map<Integer, List<XformEdit>> dueEdits = edits;
+			Runnable task = new Runnable() {
+
+				public void run() {
+					try {
+						refresh(dueEdits);
+					}
+					catch (Exception ex) {
+						log.error("Failed to refresh xforms", ex);
+					}
+				}
+			};
+
+			try {
+				if (!XformsUtil.runAsDaemon(task)) {
+					Context.openSession();
+					try {
+						task.run();
+					}
+					finally {
+						Context.closeSession();
+					}
+				}
+			}
+			catch (InterruptedException ex) {
+				log.error("Interrupted while refreshing xforms", ex);
+				synchronized (lock) {
+					if (thread == refreshThread)
+						thread = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets how long to wait before the waiting edits are due, or 0 if they are due now.
+	 * Edits are due when no change has come in for the refresh delay, or when the oldest has
+	 * waited for too long.
+	 */
+	private static long getWaitTime() {
+		if (pendingEdits.isEmpty())
+			return Long.MAX_VALUE;
+
+		long now = System.currentTimeMillis();
+		long quietWait = latestEditTime + delay - now;
+		long maxWait = oldestEditTime + delay * MAX_DELAYS - now;
+		return Math.max(0, Math.min(quietWait, maxWait));
+	}
+
+	private static Map<Integer, List<XformEdit>> takePendingEdits() {
+		synchronized (lock) {
+			Map<Integer, List<XformEdit>> edits = pendingEdits;
+			pendingEdits = new LinkedHashMap<Integer, List<XformEdit>>();
+			oldestEditTime = 0;
+			return edits;
+		}
+	}
+
+	/**
+	 * Applies edits, parsing and saving each form once.
+	 */
+	private static void refresh(Map<Integer, List<XformEdit>> edits) {
+		if (edits.isEmpty())
+			return;
+
+		XformsService xformsService = Context.getService(XformsService.class);
+
+		int refreshed = 0, failed = 0;
+		for (Map.Entry<Integer, List<XformEdit>> entry : edits.entrySet()) {
+			try {
+				Xform xform = xformsService.getXform(entry.getKey());
+				if (xform == null)
+					continue; //Deleted since the edits were scheduled.
+
+				String xml = xform.getXformXml();
+				Document doc = null;
+
+				boolean modified = false;
+				for (XformEdit edit : entry.getValue()) {
+					//Splice edits into the text until one needs the document.
+					if (doc == null && edit instanceof XformTextEdit) {
+						String patchedXml = ((XformTextEdit) edit).patch(xml);
+						if (patchedXml != null) {
+							modified |= patchedXml != xml;
+							xml = patchedXml;
+							continue;
+						}
+					}
+
+					if (doc == null)
+						doc = XformsUtil.fromString2Doc(xml);
+					modified |= edit.apply(doc);
+				}
+
+				//Edits may also need to change the layout and locale documents.
+				for (XformEdit edit : entry.getValue()) {
+					if (edit instanceof XformLayoutEdit)
+						modified |= applyLayoutEdit(xform, (XformLayoutEdit) edit);
+				}
+
+				if (modified) {
+					xform.setXformXml(doc != null ? XformsUtil.doc2String(doc) : xml);
+					xformsService.saveXform(xform);
+					refreshed++;
+				}
+			}
+			catch (Exception ex) {
+				log.error("Failed to refresh xform with form id " + entry.getKey(), ex);
+				failed++; //failure for one form should not stop others from proceeding.
+			}
+		}
+
+		synchronized (lock) {
+			refreshedFormCount += refreshed;
+			failedFormCount += failed;
+			lastRefreshTime = System.currentTimeMillis();
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Refreshed " + refreshed + " of " + edits.size() + " xforms");
+	}
+
+	/**
+	 * Applies an edit to the layout and locale documents of an xform, where it has them.
+	 *
+	 * @return true if any was changed, else false.
+	 */
+	private static boolean applyLayoutEdit(Xform xform, XformLayoutEdit edit) throws Exception {
+		boolean modified = false;
+
+		String layoutXml = xform.getLayoutXml();
+		if (layoutXml != null && layoutXml.trim().length() > 0) {
+			Document layoutDoc = XformsUtil.fromString2Doc(layoutXml);
+			if (edit.applyToLayout(layoutDoc)) {
+				xform.setLayoutXml(XformsUtil.doc2String(layoutDoc));
+				modified = true;
+			}
+		}
+
+		String localeXml = xform.getLocaleXml();
+		if (localeXml != null && localeXml.trim().length() > 0) {
+			Document localeDoc = XformsUtil.fromString2Doc(localeXml);
+			if (edit.applyToLocale(localeDoc)) {
+				xform.setLocaleXml(XformsUtil.doc2String(localeDoc));
+				modified = true;
+			}
+		}
+
+		return modified;
+	}
+
+	/**
+	 * Gets the refresh delay in milliseconds.
+	 */
+	private static long getRefreshDelay() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    XformConstants.GLOBAL_PROP_KEY_FORM_REFRESH_DELAY, XformConstants.DEFAULT_FORM_REFRESH_DELAY);
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException ex) {
+			log.error("Invalid value for " + XformConstants.GLOBAL_PROP_KEY_FORM_REFRESH_DELAY + ": " + value);
+			return Long.parseLong(XformConstants.DEFAULT_FORM_REFRESH_DELAY);
+		}
+	}
+}
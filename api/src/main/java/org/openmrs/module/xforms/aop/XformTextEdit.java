@@ -0,0 +1,27 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+/**
+ * An xform edit which can usually be spliced into the xform text, saving the {@link XformRefresher}
+ * from parsing and serializing the xform. Where it cannot, the refresher falls back to
+ * {@link XformEdit#apply(org.w3c.dom.Document)}, which must make the same change.
+ */
+public interface XformTextEdit extends XformEdit {
+
+	/**
+	 * Applies this edit to the xforms text.
+	 *
+	 * @param xml the xforms text.
+	 * @return the edited text, the same text instance if there is nothing to change, or null if
+	 *         the edit needs the xforms document.
+	 */
+	String patch(String xml);
+}
@@ -18,10 +18,11 @@ import org.apache.commons.lang.StringEscapeUtils;
 import org.openmrs.Concept;
 import org.openmrs.ConceptAnswer;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.XformBuilder;
 import org.openmrs.module.xforms.XformsService;
-import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.module.xforms.util.FormTemplateCache;
+import org.openmrs.module.xforms.util.NameLookupCache;
+import org.openmrs.module.xforms.util.XformReferenceUtil;
 import org.openmrs.util.FormUtil;
 import org.springframework.aop.AfterReturningAdvice;
 import org.w3c.dom.Document;
@@ -30,219 +31,247 @@ import org.w3c.dom.NodeList;
 
 /**
  * Advice for detecting when a coded concept has any newly added answers or existing ones deleted
- * and then refresh all affected xforms.
+ * and then refresh all affected xforms, in the background through the {@link XformRefresher}.
  * 
  * @since 4.0.3
  */
 public class XformsConceptAdvisor implements AfterReturningAdvice {
 	
 	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
-		if (method.getName().equals("saveConcept")) {
+		if (method.getName().equals("retireConcept") || method.getName().equals("unretireConcept")
+		        || method.getName().equals("purgeConcept")) {
+			NameLookupCache.CONCEPTS.removeConceptAfterCommit(((Concept) args[0]).getConceptId());
+			FormTemplateCache.clearAfterCommit();
+		}
+		else if (method.getName().equals("saveConcept")) {
 			
 			Concept concept = (Concept) args[0];
+			XformsService xformsService = Context.getService(XformsService.class);
+			
+			String newName = concept.getName().getName();
+			String oldName = xformsService.getConceptName(concept.getConceptId(), Context.getLocale().getLanguage());
+			String valueText = getValueText(concept);
+			
+			//The old name is read above, before the cached names are dropped.
+			NameLookupCache.CONCEPTS.removeConceptAfterCommit(concept.getConceptId());
+			
+			//Form templates and schemas have the names and answers of concepts.
+			FormTemplateCache.clearAfterCommit();
+			
 			if (!concept.getDatatype().isCoded()){
-				
-				String newName = concept.getName().getName();
-				String oldName = Context.getService(XformsService.class).getConceptName(concept.getConceptId(), Context.getLocale().getLanguage());
 				if(!newName.equals(oldName)){
-					refreshConceptName(concept, newName, oldName);
+					XformRefresher.schedule(getReferencingXformIds(concept, xformsService), new ConceptNameEdit(concept
+					        .getConceptId().toString(), newName, oldName, valueText));
 				}
 				
 				return; //For the rest, we only deal with coded concepts.
 			}
 			
-			String conceptId = concept.getConceptId().toString();
-			
-			XformsService xformsService = Context.getService(XformsService.class);
-			List<Xform> xforms = xformsService.getXforms();
-			if (xforms == null)
-				return;
-			
-			//Loop through the xforms refreshing one by one
-			for (Xform xform : xforms) {
-				
-				try{
-					String xml = xform.getXformXml();
-					Document doc = XformsUtil.fromString2Doc(xml);
-					
-					//Get all xf:select1 nodes in the xforms document.
-					NodeList elements = doc.getDocumentElement().getElementsByTagName(
-						XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1);
-					
-					//Look for the node which has a concept_id attribute value of conceptId
-					for (int index = 0; index < elements.getLength(); index++) {
-						Element element = (Element) elements.item(index);
-						if (conceptId.equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID))) {
-							refreshConceptWithId(element, concept, doc, xform, xformsService);
-							break;
-						}
-					}
-				}
-				catch(Exception ex){
-					ex.printStackTrace();
-					continue; //failure for one form should not stop others from proceeding.
-				}
+			List<ConceptAnswerItem> answers = new ArrayList<ConceptAnswerItem>();
+			for (ConceptAnswer conceptAnswer : concept.getAnswers()) {
+				Concept answerConcept = conceptAnswer.getAnswerConcept();
+				if (answerConcept != null)
+					answers.add(new ConceptAnswerItem(answerConcept.getConceptId().toString(), getValueText(answerConcept)));
 			}
 			
+			XformRefresher.schedule(getReferencingXformIds(concept, xformsService), new CodedConceptEdit(concept
+			        .getConceptId().toString(), answers, newName, oldName, valueText));
+		}
+	}
+	
+	private List<Integer> getReferencingXformIds(Concept concept, XformsService xformsService) {
+		return xformsService.getReferencingXformIds(XformReferenceUtil.REFERENCE_CONCEPT, concept.getConceptId());
+	}
+	
+	/**
+	 * Gets the text of the xf:value node for a concept.
+	 */
+	private static String getValueText(Concept concept) {
+		return StringEscapeUtils.escapeXml(FormUtil.conceptToString(concept, Context.getLocale()));
+	}
+	
+	/**
+	 * Holds the id and value text of a concept answer.
+	 */
+	private static class ConceptAnswerItem {
+		
+		private final String conceptId;
+		
+		private final String valueText;
+		
+		ConceptAnswerItem(String conceptId, String valueText) {
+			this.conceptId = conceptId;
+			this.valueText = valueText;
 		}
 	}
 	
 	/**
-	 * Refreshes a coded concept in a given xforms select1 node. Where refreshing is simply adding
-	 * newly added answers and deleting those that have been removed from the coded concept.
-	 * 
-	 * @param conceptSelect1Element the concept's select1 node.
-	 * @param concept the coded concept.
-	 * @param doc the xforms document.
-	 * @param xform the xforms object.
-	 * @param xformsService the xforms service.
+	 * Refreshes a coded concept in an xforms document. Where refreshing is simply adding newly
+	 * added answers and deleting those that have been removed from the coded concept.
 	 */
-	private void refreshConceptWithId(Element conceptSelect1Element, Concept concept, Document doc, Xform xform,
-	                                  XformsService xformsService) {
+	private static class CodedConceptEdit implements XformEdit {
+		
+		private final String sConceptId;
+		
+		private final List<ConceptAnswerItem> answers;
+		
+		private final String newName;
 		
-		boolean xformModified = false;
-		List<String> xformConceptAnswers = new ArrayList<String>();
+		private final String oldName;
 		
-		Collection<ConceptAnswer> conceptAnswers = concept.getAnswers();
+		private final String valueText;
 		
-		//Remove all deleted answers from the xform.
-		NodeList elements = conceptSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
-		for (int index = 0; index < elements.getLength(); index++) {
-			Element itemElement = (Element) elements.item(index);
+		CodedConceptEdit(String sConceptId, List<ConceptAnswerItem> answers, String newName, String oldName,
+		    String valueText) {
+			this.sConceptId = sConceptId;
+			this.answers = answers;
+			this.newName = newName;
+			this.oldName = oldName;
+			this.valueText = valueText;
+		}
+		
+		public boolean apply(Document doc) {
+			//Get all xf:select1 nodes in the xforms document.
+			NodeList elements = doc.getDocumentElement().getElementsByTagName(
+				XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1);
 			
-			String conceptId = itemElement.getAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID);
+			//Look for the node which has a concept_id attribute value of conceptId
+			for (int index = 0; index < elements.getLength(); index++) {
+				Element element = (Element) elements.item(index);
+				if (sConceptId.equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID)))
+					return refreshConceptWithId(element, doc);
+			}
 			
-			//If concept is not in the answers, it must have been deleted and so we need to remove it from the xform.
-			if (!conceptAnswerInCollection(conceptAnswers, conceptId)) {
-				conceptSelect1Element.removeChild(itemElement);
-				xformModified = true;
-				index--;
-			} else
-				xformConceptAnswers.add(conceptId);
+			return false;
 		}
 		
-		//Add all new answers to the xform.
-		for (ConceptAnswer conceptAnswer : conceptAnswers) {
-			Concept answerConcept = conceptAnswer.getAnswerConcept();
-			if (answerConcept == null)
-				continue;
+		/**
+		 * Refreshes the coded concept in a given xforms select1 node.
+		 * 
+		 * @param conceptSelect1Element the concept's select1 node.
+		 * @param doc the xforms document.
+		 * @return true if the document was changed, else false.
+		 */
+		private boolean refreshConceptWithId(Element conceptSelect1Element, Document doc) {
 			
-			//Check if the xform already has this answer and add it if it does not exist.
-			String conceptId = answerConcept.getConceptId().toString();
-			if (!xformConceptAnswers.contains(conceptId)) {
-				addNewConceptAnswer(doc, answerConcept, conceptSelect1Element);
-				xformModified = true;
+			boolean xformModified = false;
+			List<String> xformConceptAnswers = new ArrayList<String>();
+			
+			//Remove all deleted answers from the xform.
+			NodeList elements = conceptSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
+			for (int index = 0; index < elements.getLength(); index++) {
+				Element itemElement = (Element) elements.item(index);
+				
+				String conceptId = itemElement.getAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID);
+				
+				//If concept is not in the answers, it must have been deleted and so we need to remove it from the xform.
+				if (!conceptAnswerInCollection(answers, conceptId)) {
+					conceptSelect1Element.removeChild(itemElement);
+					xformModified = true;
+					index--;
+				} else
+					xformConceptAnswers.add(conceptId);
 			}
+			
+			//Add all new answers to the xform.
+			for (ConceptAnswerItem answer : answers) {
+				//Check if the xform already has this answer and add it if it does not exist.
+				if (!xformConceptAnswers.contains(answer.conceptId)) {
+					addNewConceptAnswer(doc, answer, conceptSelect1Element);
+					xformModified = true;
+				}
+			}
+			
+			//Update name if changed.
+			if(!newName.equals(oldName) && refreshConceptName(newName, oldName, valueText, conceptSelect1Element))
+				xformModified = true;
+			
+			return xformModified;
 		}
 		
-		//Update name if changed.
-		String newName = concept.getName().getName();
-		String oldName = Context.getService(XformsService.class).getConceptName(concept.getConceptId(), Context.getLocale().getLanguage());
-		if(!newName.equals(oldName)){
-			refreshConceptName(concept, newName, oldName, conceptSelect1Element);
-			xformModified = true;
+		/**
+		 * Checks if a given conceptId is in a concept answers collection.
+		 * 
+		 * @param conceptAnswers the concept answers collection.
+		 * @param conceptId the concept id.
+		 * @return true if it exists, else false.
+		 */
+		private boolean conceptAnswerInCollection(Collection<ConceptAnswerItem> conceptAnswers, String conceptId) {
+			for (ConceptAnswerItem conceptAnswer : conceptAnswers) {
+				if (conceptAnswer.conceptId.equals(conceptId))
+					return true;
+			}
+			
+			return false;
 		}
 		
-		//Only save if there are changes to the xforms document.
-		if (xformModified) {
-			xform.setXformXml(XformsUtil.doc2String(doc));
-			xformsService.saveXform(xform);
-		}
-	}
-	
-	/**
-	 * Checks if a given conceptId is in a concept answers collection.
-	 * 
-	 * @param conceptAnswers the concept answers collection.
-	 * @param conceptId the concept id.
-	 * @return true if it exists, else false.
-	 */
-	private boolean conceptAnswerInCollection(Collection<ConceptAnswer> conceptAnswers, String conceptId) {
-		for (ConceptAnswer conceptAnswer : conceptAnswers) {
-			Concept answerConcept = conceptAnswer.getAnswerConcept();
-			if (answerConcept == null)
-				continue;
+		/**
+		 * Adds a new concept answer node to its corresponding coded concept select1 node in as xforms
+		 * document.
+		 * 
+		 * @param doc the xforms document.
+		 * @param answer the concept answer whose xforms node to add.
+		 * @param conceptSelect1Element the select1 element for the coded concept that has the answer we
+		 *            are adding.
+		 */
+		private void addNewConceptAnswer(Document doc, ConceptAnswerItem answer, Element conceptSelect1Element) {
+			Element itemNode = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM);
+			itemNode.setAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID, answer.conceptId);
 			
-			if (answerConcept.getConceptId().toString().equals(conceptId))
-				return true;
+			Element node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_LABEL);
+			node.setTextContent(XformBuilder.getConceptName(answer.valueText));
+			itemNode.appendChild(node);
+			
+			node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_VALUE);
+			node.setTextContent(answer.valueText);
+			itemNode.appendChild(node);
+			
+			conceptSelect1Element.appendChild(itemNode);
 		}
-		
-		return false;
 	}
 	
 	/**
-	 * Adds a new concept answer node to its corresponding coded concept select1 node in as xforms
-	 * document.
-	 * 
-	 * @param doc the xforms document.
-	 * @param concept the concept answer whose xforms node to add.
-	 * @param conceptSelect1Element the select1 element for the coded concept that has the answer we
-	 *            are adding.
+	 * Refreshes the name of a concept in the answer nodes of an xforms document.
 	 */
-	private void addNewConceptAnswer(Document doc, Concept concept, Element conceptSelect1Element) {
-		String hl7Name = StringEscapeUtils.escapeXml(FormUtil.conceptToString(concept, Context.getLocale()));
+	private static class ConceptNameEdit implements XformEdit {
 		
-		Element itemNode = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM);
-		itemNode.setAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID, concept.getConceptId().toString());
+		private final String sConceptId;
 		
-		Element node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_LABEL);
-		node.setTextContent(XformBuilder.getConceptName(hl7Name));
-		itemNode.appendChild(node);
+		private final String newName;
 		
-		node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_VALUE);
-		node.setTextContent(hl7Name);
-		itemNode.appendChild(node);
+		private final String oldName;
 		
-		conceptSelect1Element.appendChild(itemNode);
-	}
-	
-	
-	private void refreshConceptName(Concept concept, String newName, String oldName) throws Exception {
-		XformsService xformsService = Context.getService(XformsService.class);
-		List<Xform> xforms = xformsService.getXforms();
-		if (xforms == null)
-			return;
+		private final String valueText;
 		
-		String sConceptId = concept.getId().toString();
+		ConceptNameEdit(String sConceptId, String newName, String oldName, String valueText) {
+			this.sConceptId = sConceptId;
+			this.newName = newName;
+			this.oldName = oldName;
+			this.valueText = valueText;
+		}
 		
-		//Loop through the xforms refreshing one by one
-		for (Xform xform : xforms) {
+		public boolean apply(Document doc) {
+			//Get all xf:item nodes in the xforms document.
+			NodeList elements = doc.getDocumentElement().getElementsByTagName(
+				XformBuilder.PREFIX_XFORMS + ":" + "item");
 			
-			try{
-				String xml = xform.getXformXml();
-				Document doc = XformsUtil.fromString2Doc(xml);
-				
-				//Get all xf:item nodes in the xforms document.
-				NodeList elements = doc.getDocumentElement().getElementsByTagName(
-					XformBuilder.PREFIX_XFORMS + ":" + "item");
-				
-				boolean xformModified = false;
-				
-				//Look for the node which has a concept_id attribute value of conceptId
-				for (int index = 0; index < elements.getLength(); index++) {
-					Element element = (Element) elements.item(index);
-					
-					if (sConceptId.equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID))) {
-						boolean ret = refreshConceptName(concept, newName, oldName, element);
-						if(ret){
-							xformModified = true;
-						}
-					}
-				}
+			boolean xformModified = false;
+			
+			//Look for the node which has a concept_id attribute value of conceptId
+			for (int index = 0; index < elements.getLength(); index++) {
+				Element element = (Element) elements.item(index);
 				
-				if (xformModified) {
-					xform.setXformXml(XformsUtil.doc2String(doc));
-					xformsService.saveXform(xform);
+				if (sConceptId.equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID))) {
+					if (refreshConceptName(newName, oldName, valueText, element))
+						xformModified = true;
 				}
 			}
-			catch(Exception ex){
-				ex.printStackTrace();
-				continue; //failure for one form should not stop others from proceeding.
-			}
+			
+			return xformModified;
 		}
 	}
 	
-	private boolean refreshConceptName(Concept concept, String newName, String oldName, Element parentElement){
+	private static boolean refreshConceptName(String newName, String oldName, String valueText, Element parentElement){
 		NodeList elements = parentElement.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "label");
 		if(elements.getLength() > 0) {
 			Element labelElement = (Element) elements.item(0); //We deal with only the first label node.
@@ -250,7 +279,7 @@ public class XformsConceptAdvisor implements AfterReturningAdvice {
 			//Assuming label element for the select1 node comes first.
 			if (oldName.equals(labelElement.getTextContent())){
 				labelElement.setTextContent(newName);
-				setItemValueText(parentElement, StringEscapeUtils.escapeXml(FormUtil.conceptToString(concept, Context.getLocale())));
+				setItemValueText(parentElement, valueText);
 				return true;
 			}
 		}
@@ -258,7 +287,7 @@ public class XformsConceptAdvisor implements AfterReturningAdvice {
 		return false;
 	}
 	
-	private void setItemValueText(Element parentElement, String valueText){
+	private static void setItemValueText(Element parentElement, String valueText){
 		NodeList elements = parentElement.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "value");
 		if(elements.getLength() > 0) {
 			Element valueElement = (Element) elements.item(0);
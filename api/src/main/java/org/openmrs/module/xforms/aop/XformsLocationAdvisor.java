@@ -17,10 +17,13 @@ import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.openmrs.Location;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.SharedItemsetManager;
 import org.openmrs.module.xforms.XformBuilder;
 import org.openmrs.module.xforms.XformsService;
-import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.module.xforms.util.NameLookupCache;
+import org.openmrs.module.xforms.util.XformItemPatcher;
+import org.openmrs.module.xforms.util.XformItemPatcher.ItemLocation;
+import org.openmrs.module.xforms.util.XformReferenceUtil;
 import org.springframework.aop.Advisor;
 import org.springframework.aop.support.StaticMethodMatcherPointcutAdvisor;
 import org.w3c.dom.Document;
@@ -29,7 +32,7 @@ import org.w3c.dom.NodeList;
 
 /**
  * Advice for detecting when a new location has been added or an existing one deleted and then
- * refresh all affected xforms.
+ * refresh all affected xforms, in the background through the {@link XformRefresher}.
  * 
  * @since 4.0.3
  */
@@ -72,6 +75,8 @@ public class XformsLocationAdvisor extends StaticMethodMatcherPointcutAdvisor im
 			}
 			
 			Object o = invocation.proceed();
+			SharedItemsetManager.invalidateAfterCommit(SharedItemsetManager.ITEMSET_LOCATIONS);
+			NameLookupCache.LOCATIONS.removeAfterCommit(String.valueOf(location.getLocationId()));
 			
 			String methodName = invocation.getMethod().getName();
 			if (methodName.equals("saveLocation")) {
@@ -89,7 +94,7 @@ public class XformsLocationAdvisor extends StaticMethodMatcherPointcutAdvisor im
 	}
 	
 	/**
-	 * Refreshes all xforms with the changes in a location.
+	 * Schedules the refresh of the xforms affected by the changes in a location.
 	 * 
 	 * @param operation the refresh operation.
 	 * @param location the location.
@@ -99,77 +104,132 @@ public class XformsLocationAdvisor extends StaticMethodMatcherPointcutAdvisor im
 	private void refreshXforms(RefreshOperation operation, Location location, String oldName) throws Exception {
 		
 		XformsService xformsService = Context.getService(XformsService.class);
-		List<Xform> xforms = xformsService.getXforms();
-		if (xforms == null)
-			return; //No xforms in the database.
-			
-		//Loop through the xforms refreshing one by one
-		for (Xform xform : xforms) {
-			
-			try{
-				String xml = xform.getXformXml();
-				Document doc = XformsUtil.fromString2Doc(xml);
-				
-				//Get all xf:select1 nodes in the xforms document.
-				NodeList elements = doc.getDocumentElement().getElementsByTagName(
-				    XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1);
-				
-				//Look for the location node which has a bind attribute value of: encounter.location_id.
-				for (int index = 0; index < elements.getLength(); index++) {
-					Element element = (Element) elements.item(index);
-					if ("encounter.location_id".equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_BIND))) {
-						refreshLocationWithId(operation, element, location, oldName, doc, xform, xformsService);
-						break; //We can have only one location element, as of now.
-					}
-				}
-			}
-			catch(Exception ex){
-				ex.printStackTrace();
-				continue; //failure for one form should not stop others from proceeding.
-			}
-		}
+		
+		XformRefresher.schedule(getAffectedXformIds(operation, location, oldName, xformsService), new LocationEdit(
+		        operation, location.getLocationId().toString(), oldName, XformBuilder.getLocationName(location)));
 	}
 	
 	/**
-	 * Refreshes a location in a given xforms select1 node.
+	 * Gets the ids of the xforms affected by a change in a location. An added location goes to all
+	 * xforms with a location question. An edited one goes to those same xforms, as it is added
+	 * where missing, but if the name has not changed, only xforms missing the location are affected.
 	 * 
 	 * @param operation the refresh operation.
-	 * @param locationSelect1Element the location select1 node.
 	 * @param location the location.
-	 * @param oldName the location name before editing.
-	 * @param doc the xforms document.
-	 * @param xform the xform object.
+	 * @param oldName the name the location had before editing.
 	 * @param xformsService the xforms service.
-	 * @throws Exception
+	 * @return the form ids.
+	 */
+	private List<Integer> getAffectedXformIds(RefreshOperation operation, Location location, String oldName,
+	                                          XformsService xformsService) {
+		Integer id = location.getLocationId();
+		if (operation == RefreshOperation.DELETE)
+			return xformsService.getReferencingXformIds(XformReferenceUtil.REFERENCE_LOCATION, id);
+		
+		List<Integer> formIds = xformsService.getReferencingXformIds(XformReferenceUtil.REFERENCE_LOCATION_FIELD, null);
+		if (operation == RefreshOperation.EDIT && XformBuilder.getLocationName(location).equals(oldName))
+			formIds.removeAll(xformsService.getReferencingXformIds(XformReferenceUtil.REFERENCE_LOCATION, id));
+		
+		return formIds;
+	}
+	
+	/**
+	 * Refreshes the location select1 node of an xforms document with the changes in a location.
 	 */
-	private void refreshLocationWithId(RefreshOperation operation, Element locationSelect1Element, Location location,
-	                                   String oldName, Document doc, Xform xform, XformsService xformsService)
-	                                                                                                          throws Exception {
-		String sLocationId = location.getLocationId().toString();
+	static class LocationEdit implements XformTextEdit {
+		
+		private final RefreshOperation operation;
+		
+		private final String sLocationId;
 		
-		if (operation == RefreshOperation.DELETE || operation == RefreshOperation.EDIT) {
+		/** The location name before editing. */
+		private final String oldName;
+		
+		/** The location name after editing. */
+		private final String newName;
+		
+		LocationEdit(RefreshOperation operation, String sLocationId, String oldName, String newName) {
+			this.operation = operation;
+			this.sLocationId = sLocationId;
+			this.oldName = oldName;
+			this.newName = newName;
+		}
+		
+		public String patch(String xml) {
+			ItemLocation location = XformItemPatcher.locate(xml, "encounter.location_id", sLocationId);
+			if (location == null)
+				return null;
 			
-			//Get all xf:item nodes.
-			NodeList elements = locationSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
+			//No location select1 node, so nothing to refresh.
+			if (!location.isSelect1Found())
+				return xml;
+			
+			if (location.isItemFound()) {
+				if (operation == RefreshOperation.DELETE)
+					return XformItemPatcher.removeItem(xml, location);
+				
+				if (operation == RefreshOperation.ADD || newName.equals(oldName))
+					return xml;
+				
+				//Leave it to the document edit, which fails the same way as before for an item without a label.
+				if (location.getLabelText() == null)
+					return null;
+				
+				if (!oldName.equals(location.getLabelText()))
+					return xml;
+				
+				return XformItemPatcher.setItemLabel(xml, location, newName);
+			}
 			
-			boolean locationFound = false;
+			if (operation == RefreshOperation.DELETE)
+				return xml;
 			
-			//Look for an item node having an id attribute equal to the locationId.
+			return XformItemPatcher.appendItem(xml, location, sLocationId, newName, sLocationId);
+		}
+		
+		public boolean apply(Document doc) {
+			//Get all xf:select1 nodes in the xforms document.
+			NodeList elements = doc.getDocumentElement().getElementsByTagName(
+			    XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1);
+			
+			//Look for the location node which has a bind attribute value of: encounter.location_id.
 			for (int index = 0; index < elements.getLength(); index++) {
-				Element itemElement = (Element) elements.item(index);
-				if (!sLocationId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
-					continue; //Not the location we are looking for.
-					
-				//If the location has been deleted, then remove their item node from the xforms document.
-				if (operation == RefreshOperation.DELETE) {
-					locationSelect1Element.removeChild(itemElement);
-				} else {
-					//New name for the location after editing.
-					String newName = XformBuilder.getLocationName(location);
+				Element element = (Element) elements.item(index);
+				if ("encounter.location_id".equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_BIND)))
+					return refreshLocationWithId(element, doc); //We can have only one location element, as of now.
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Refreshes the location in a given xforms select1 node.
+		 * 
+		 * @param locationSelect1Element the location select1 node.
+		 * @param doc the xforms document.
+		 * @return true if the document was changed, else false.
+		 */
+		private boolean refreshLocationWithId(Element locationSelect1Element, Document doc) {
+			if (operation == RefreshOperation.DELETE || operation == RefreshOperation.EDIT) {
+				
+				//Get all xf:item nodes.
+				NodeList elements = locationSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
+				
+				//Look for an item node having an id attribute equal to the locationId.
+				for (int index = 0; index < elements.getLength(); index++) {
+					Element itemElement = (Element) elements.item(index);
+					if (!sLocationId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
+						continue; //Not the location we are looking for.
+						
+					//If the location has been deleted, then remove their item node from the xforms document.
+					if (operation == RefreshOperation.DELETE) {
+						locationSelect1Element.removeChild(itemElement);
+						return true;
+					}
 					
 					//If name has not changed, then just do nothing.
 					if (newName.equals(oldName))
-						return;
+						return false;
 					
 					//If the location name has been edited, then change the xf:label node text.
 					NodeList labels = itemElement.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "label");
@@ -178,79 +238,69 @@ public class XformsLocationAdvisor extends StaticMethodMatcherPointcutAdvisor im
 					//do not change it, possibly the location wants the xforms value not to match the location's name.
 					Element labelElement = (Element) labels.item(0);
 					if (!oldName.equals(labelElement.getTextContent()))
-						return;
+						return false;
 					
 					labelElement.setTextContent(newName);
+					return true;
 				}
 				
-				locationFound = true;
-				break;
-			}
-			
-			//select1 node does not have the location to delete or edit.
-			if (!locationFound) {
+				//select1 node does not have the location to delete or edit.
 				if (operation == RefreshOperation.DELETE)
-					return;
+					return false;
 				
-				addNewLocationNode(doc, locationSelect1Element, location);
+				addNewLocationNode(doc, locationSelect1Element);
+				return true;
 			}
 			
-		} else {
-			
 			//Older versions of openmrs call AOP advisors more than once hence resulting into duplicates
 			//if this check is not performed.
-			if (locationExists(locationSelect1Element, sLocationId))
-				return;
+			if (locationExists(locationSelect1Element))
+				return false;
 			
 			//Add new location
-			addNewLocationNode(doc, locationSelect1Element, location);
+			addNewLocationNode(doc, locationSelect1Element);
+			return true;
 		}
 		
-		xform.setXformXml(XformsUtil.doc2String(doc));
-		xformsService.saveXform(xform);
-	}
-	
-	/**
-	 * Adds a new location node to the xforms document.
-	 * 
-	 * @param doc the xforms document.
-	 * @param locationSelect1Element the select1 element to add the location node.
-	 * @param location the location to add.
-	 * @param personId the person id represented by the location.
-	 */
-	private void addNewLocationNode(Document doc, Element locationSelect1Element, Location location) {
-		Element itemNode = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM);
-		itemNode.setAttribute(XformBuilder.ATTRIBUTE_ID, location.getLocationId().toString());
-		
-		Element node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_LABEL);
-		node.setTextContent(XformBuilder.getLocationName(location));
-		itemNode.appendChild(node);
-		
-		node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_VALUE);
-		node.setTextContent(location.getLocationId().toString());
-		itemNode.appendChild(node);
-		
-		locationSelect1Element.appendChild(itemNode);
-	}
-	
-	/**
-	 * Checks if a location item node exists in a select1 node of an xforms document.
-	 * 
-	 * @param locationSelect1Element the select1 node.
-	 * @param locationId the location id string.
-	 * @return true if exists, else false.
-	 */
-	private boolean locationExists(Element locationSelect1Element, String locationId) {
-		//Get all xf:item nodes.
-		NodeList elements = locationSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
-		
-		//Look for an item node having an id attribute equal to the locationId.
-		for (int index = 0; index < elements.getLength(); index++) {
-			Element itemElement = (Element) elements.item(index);
-			if (locationId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
-				return true;
+		/**
+		 * Adds a new location node to the xforms document.
+		 * 
+		 * @param doc the xforms document.
+		 * @param locationSelect1Element the select1 element to add the location node.
+		 */
+		private void addNewLocationNode(Document doc, Element locationSelect1Element) {
+			Element itemNode = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM);
+			itemNode.setAttribute(XformBuilder.ATTRIBUTE_ID, sLocationId);
+			
+			Element node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_LABEL);
+			node.setTextContent(newName);
+			itemNode.appendChild(node);
+			
+			node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_VALUE);
+			node.setTextContent(sLocationId);
+			itemNode.appendChild(node);
+			
+			locationSelect1Element.appendChild(itemNode);
 		}
 		
-		return false;
+		/**
+		 * Checks if the location item node exists in a select1 node of an xforms document.
+		 * 
+		 * @param locationSelect1Element the select1 node.
+		 * @return true if exists, else false.
+		 */
+		private boolean locationExists(Element locationSelect1Element) {
+			//Get all xf:item nodes.
+			NodeList elements = locationSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
+			
+			//Look for an item node having an id attribute equal to the locationId.
+			for (int index = 0; index < elements.getLength(); index++) {
+				Element itemElement = (Element) elements.item(index);
+				if (sLocationId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
+					return true;
+			}
+			
+			return false;
+		}
 	}
 }
@@ -17,9 +17,13 @@ import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.SharedItemsetManager;
 import org.openmrs.module.xforms.XformBuilder;
 import org.openmrs.module.xforms.XformsService;
+import org.openmrs.module.xforms.util.NameLookupCache;
+import org.openmrs.module.xforms.util.XformItemPatcher;
+import org.openmrs.module.xforms.util.XformItemPatcher.ItemLocation;
+import org.openmrs.module.xforms.util.XformReferenceUtil;
 import org.openmrs.module.xforms.util.XformsUtil;
 import org.openmrs.util.RoleConstants;
 import org.springframework.aop.Advisor;
@@ -33,7 +37,7 @@ import org.w3c.dom.NodeList;
  * refresh all affected xforms. Where a refresh may mean: (1) Removing a deleted provider or a
  * person who no longer has a provider role. (2) Adding a new provider who has just been added as a
  * new person or an existing one who has just got the provider role. (3) Changing the name of an
- * edited provider name.
+ * edited provider name. Refreshes run in the background through the {@link XformRefresher}.
  * 
  * @since 4.0.3
  */
@@ -78,6 +82,8 @@ public class XformsProviderAdvisor extends StaticMethodMatcherPointcutAdvisor im
 			}
 			
 			Object o = invocation.proceed();
+			SharedItemsetManager.invalidateAfterCommit(SharedItemsetManager.ITEMSET_PROVIDERS);
+			NameLookupCache.PERSONS.removeAfterCommit(String.valueOf(XformsUtil.getPersonId(user)));
 			
 			if (user.hasRole(RoleConstants.PROVIDER)) {
 				String methodName = invocation.getMethod().getName();
@@ -100,7 +106,7 @@ public class XformsProviderAdvisor extends StaticMethodMatcherPointcutAdvisor im
 	}
 	
 	/**
-	 * Refreshes all xforms with the changes in a provider.
+	 * Schedules the refresh of the xforms affected by the changes in a provider.
 	 * 
 	 * @param operation the refresh operation.
 	 * @param user the provider.
@@ -110,78 +116,134 @@ public class XformsProviderAdvisor extends StaticMethodMatcherPointcutAdvisor im
 	private void refreshXforms(RefreshOperation operation, User user, String oldName) throws Exception {
 		
 		XformsService xformsService = Context.getService(XformsService.class);
-		List<Xform> xforms = xformsService.getXforms();
-		if (xforms == null)
-			return; //No xforms in the database.
-			
-		//Loop through the xforms refreshing one by one
-		for (Xform xform : xforms) {
-			
-			try{
-				String xml = xform.getXformXml();
-				Document doc = XformsUtil.fromString2Doc(xml);
-				
-				//Get all xf:select1 nodes in the xforms document.
-				NodeList elements = doc.getDocumentElement().getElementsByTagName(
-				    XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1);
-				
-				//Look for the provider node which has a bind attribute value of: encounter.provider_id.
-				for (int index = 0; index < elements.getLength(); index++) {
-					Element element = (Element) elements.item(index);
-					if ("encounter.provider_id".equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_BIND))) {
-						refreshProviderWithId(operation, element, user, oldName, doc, xform, xformsService);
-						break; //We can have only one provider element, as of now.
-					}
-				}
-			}
-			catch(Exception ex){
-				ex.printStackTrace();
-				continue; //failure for one form should not stop others from proceeding.
-			}
-		}
+		
+		Integer personId = XformsUtil.getPersonId(user);
+		XformRefresher.schedule(getAffectedXformIds(operation, user, oldName, xformsService), new ProviderEdit(operation,
+		        personId.toString(), oldName, XformBuilder.getProviderName(user, personId)));
 	}
 	
 	/**
-	 * Refreshes a provider in a given xforms select1 node.
+	 * Gets the ids of the xforms affected by a change in a provider. An added provider goes to all
+	 * xforms with a provider question. An edited one goes to those same xforms, as it is added
+	 * where missing, but if the name has not changed, only xforms missing the provider are affected.
 	 * 
 	 * @param operation the refresh operation.
-	 * @param providerSelect1Element the provider select1 node.
 	 * @param user the provider.
-	 * @param oldName the provider name before editing.
-	 * @param doc the xforms document.
-	 * @param xform the xform object.
+	 * @param oldName the name the provider had before editing.
 	 * @param xformsService the xforms service.
-	 * @throws Exception
+	 * @return the form ids.
 	 */
-	private void refreshProviderWithId(RefreshOperation operation, Element providerSelect1Element, User user,
-	                                   String oldName, Document doc, Xform xform, XformsService xformsService)
-	                                                                                                          throws Exception {
-		Integer personId = XformsUtil.getPersonId(user);
-		String sPersonId = personId.toString();
+	private List<Integer> getAffectedXformIds(RefreshOperation operation, User user, String oldName,
+	                                          XformsService xformsService) {
+		Integer id = XformsUtil.getPersonId(user);
+		if (operation == RefreshOperation.DELETE)
+			return xformsService.getReferencingXformIds(XformReferenceUtil.REFERENCE_PROVIDER, id);
+		
+		List<Integer> formIds = xformsService.getReferencingXformIds(XformReferenceUtil.REFERENCE_PROVIDER_FIELD, null);
+		if (operation == RefreshOperation.EDIT && XformBuilder.getProviderName(user, id).equals(oldName))
+			formIds.removeAll(xformsService.getReferencingXformIds(XformReferenceUtil.REFERENCE_PROVIDER, id));
+		
+		return formIds;
+	}
+	
+	/**
+	 * Refreshes the provider select1 node of an xforms document with the changes in a provider.
+	 */
+	static class ProviderEdit implements XformTextEdit {
 		
-		if (operation == RefreshOperation.DELETE || operation == RefreshOperation.EDIT) {
+		private final RefreshOperation operation;
+		
+		/** The person id of the provider. */
+		private final String sPersonId;
+		
+		/** The provider name before editing. */
+		private final String oldName;
+		
+		/** The provider name after editing. */
+		private final String newName;
+		
+		ProviderEdit(RefreshOperation operation, String sPersonId, String oldName, String newName) {
+			this.operation = operation;
+			this.sPersonId = sPersonId;
+			this.oldName = oldName;
+			this.newName = newName;
+		}
+		
+		public String patch(String xml) {
+			ItemLocation location = XformItemPatcher.locate(xml, "encounter.provider_id", sPersonId);
+			if (location == null)
+				return null;
 			
-			//Get all xf:item nodes.
-			NodeList elements = providerSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
+			//No provider select1 node, so nothing to refresh.
+			if (!location.isSelect1Found())
+				return xml;
+			
+			if (location.isItemFound()) {
+				if (operation == RefreshOperation.DELETE)
+					return XformItemPatcher.removeItem(xml, location);
+				
+				if (operation == RefreshOperation.ADD || newName.equals(oldName))
+					return xml;
+				
+				//Leave it to the document edit, which fails the same way as before for an item without a label.
+				if (location.getLabelText() == null)
+					return null;
+				
+				if (!oldName.equals(location.getLabelText()))
+					return xml;
+				
+				return XformItemPatcher.setItemLabel(xml, location, newName);
+			}
 			
-			boolean providerFound = false;
+			if (operation == RefreshOperation.DELETE)
+				return xml;
 			
-			//Look for an item node having an id attribute equal to the userId.
+			return XformItemPatcher.appendItem(xml, location, sPersonId, newName, sPersonId);
+		}
+		
+		public boolean apply(Document doc) {
+			//Get all xf:select1 nodes in the xforms document.
+			NodeList elements = doc.getDocumentElement().getElementsByTagName(
+			    XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1);
+			
+			//Look for the provider node which has a bind attribute value of: encounter.provider_id.
 			for (int index = 0; index < elements.getLength(); index++) {
-				Element itemElement = (Element) elements.item(index);
-				if (!sPersonId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
-					continue; //Not the provider we are looking for.
-					
-				//If the user has been deleted, then remove their item node from the xforms document.
-				if (operation == RefreshOperation.DELETE) {
-					providerSelect1Element.removeChild(itemElement);
-				} else {
-					//New name for the provider after editing.
-					String newName = XformBuilder.getProviderName(user, personId);
+				Element element = (Element) elements.item(index);
+				if ("encounter.provider_id".equalsIgnoreCase(element.getAttribute(XformBuilder.ATTRIBUTE_BIND)))
+					return refreshProviderWithId(element, doc); //We can have only one provider element, as of now.
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Refreshes the provider in a given xforms select1 node.
+		 * 
+		 * @param providerSelect1Element the provider select1 node.
+		 * @param doc the xforms document.
+		 * @return true if the document was changed, else false.
+		 */
+		private boolean refreshProviderWithId(Element providerSelect1Element, Document doc) {
+			if (operation == RefreshOperation.DELETE || operation == RefreshOperation.EDIT) {
+				
+				//Get all xf:item nodes.
+				NodeList elements = providerSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
+				
+				//Look for an item node having an id attribute equal to the userId.
+				for (int index = 0; index < elements.getLength(); index++) {
+					Element itemElement = (Element) elements.item(index);
+					if (!sPersonId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
+						continue; //Not the provider we are looking for.
+						
+					//If the user has been deleted, then remove their item node from the xforms document.
+					if (operation == RefreshOperation.DELETE) {
+						providerSelect1Element.removeChild(itemElement);
+						return true;
+					}
 					
 					//If name has not changed, then just do nothing.
 					if (newName.equals(oldName))
-						return;
+						return false;
 					
 					//If the user name has been edited, then change the xf:label node text.
 					NodeList labels = itemElement.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "label");
@@ -190,80 +252,70 @@ public class XformsProviderAdvisor extends StaticMethodMatcherPointcutAdvisor im
 					//do not change it, possibly the user wants the xforms value not to match the user's name.
 					Element labelElement = (Element) labels.item(0);
 					if (!oldName.equals(labelElement.getTextContent()))
-						return;
+						return false;
 					
 					labelElement.setTextContent(newName);
+					return true;
 				}
 				
-				providerFound = true;
-				break;
-			}
-			
-			//select1 node does not have the provider to delete or edit.
-			if (!providerFound) {
+				//select1 node does not have the provider to delete or edit.
 				if (operation == RefreshOperation.DELETE)
-					return;
+					return false;
 				
 				//This must be a person who has just got a provider role which he or she did not have before.
-				addNewProviderNode(doc, providerSelect1Element, user, personId);
+				addNewProviderNode(doc, providerSelect1Element);
+				return true;
 			}
 			
-		} else {
-			
 			//Older versions of openmrs call AOP advisors more than once hence resulting into duplicates
 			//if this check is not performed.
-			if (providerExists(providerSelect1Element, sPersonId))
-				return;
+			if (providerExists(providerSelect1Element))
+				return false;
 			
 			//Add new provider
-			addNewProviderNode(doc, providerSelect1Element, user, personId);
+			addNewProviderNode(doc, providerSelect1Element);
+			return true;
 		}
 		
-		xform.setXformXml(XformsUtil.doc2String(doc));
-		xformsService.saveXform(xform);
-	}
-	
-	/**
-	 * Adds a new provider node to the xforms docuement.
-	 * 
-	 * @param doc the xforms document.
-	 * @param providerSelect1Element the select1 element to add the provider node.
-	 * @param user the provider to add.
-	 * @param personId the person id represented by the provider.
-	 */
-	private void addNewProviderNode(Document doc, Element providerSelect1Element, User user, Integer personId) {
-		Element itemNode = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM);
-		itemNode.setAttribute(XformBuilder.ATTRIBUTE_ID, personId.toString());
-		
-		Element node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_LABEL);
-		node.setTextContent(XformBuilder.getProviderName(user, personId));
-		itemNode.appendChild(node);
-		
-		node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_VALUE);
-		node.setTextContent(personId.toString());
-		itemNode.appendChild(node);
-		
-		providerSelect1Element.appendChild(itemNode);
-	}
-	
-	/**
-	 * Checks if a provider item node exists in a select1 node of an xforms document.
-	 * 
-	 * @param providerSelect1Element the select1 node.
-	 * @param personId the person id string for the provider.
-	 * @return true if exists, else false.
-	 */
-	private boolean providerExists(Element providerSelect1Element, String personId) {
-		//Get all xf:item nodes.
-		NodeList elements = providerSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
-		
-		//Look for an item node having an id attribute equal to the personId.
-		for (int index = 0; index < elements.getLength(); index++) {
-			Element itemElement = (Element) elements.item(index);
-			if (personId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
-				return true;
+		/**
+		 * Adds a new provider node to the xforms docuement.
+		 * 
+		 * @param doc the xforms document.
+		 * @param providerSelect1Element the select1 element to add the provider node.
+		 */
+		private void addNewProviderNode(Document doc, Element providerSelect1Element) {
+			Element itemNode = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM);
+			itemNode.setAttribute(XformBuilder.ATTRIBUTE_ID, sPersonId);
+			
+			Element node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_LABEL);
+			node.setTextContent(newName);
+			itemNode.appendChild(node);
+			
+			node = doc.createElement(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_VALUE);
+			node.setTextContent(sPersonId);
+			itemNode.appendChild(node);
+			
+			providerSelect1Element.appendChild(itemNode);
 		}
 		
-		return false;
+		/**
+		 * Checks if the provider item node exists in a select1 node of an xforms document.
+		 * 
+		 * @param providerSelect1Element the select1 node.
+		 * @return true if exists, else false.
+		 */
+		private boolean providerExists(Element providerSelect1Element) {
+			//Get all xf:item nodes.
+			NodeList elements = providerSelect1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + "item");
+			
+			//Look for an item node having an id attribute equal to the personId.
+			for (int index = 0; index < elements.getLength(); index++) {
+				Element itemElement = (Element) elements.item(index);
+				if (sPersonId.equals(itemElement.getAttribute(XformBuilder.ATTRIBUTE_ID)))
+					return true;
+			}
+			
+			return false;
+		}
 	}
 }
@@ -9,9 +9,16 @@
  */
 package org.openmrs.module.xforms.db;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
 import org.openmrs.Person;
 import org.openmrs.User;
 import org.openmrs.module.xforms.MedicalHistoryField;
@@ -19,6 +26,7 @@ import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.formentry.XformsFormEntryError;
 import org.openmrs.module.xforms.model.PatientMedicalHistory;
 import org.openmrs.module.xforms.model.PersonRepeatAttribute;
+import org.openmrs.module.xforms.model.XformSummary;
 import org.openmrs.module.xforms.model.XformUser;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -40,6 +48,21 @@ public interface XformsDAO {
 	 */
 	public List<Xform> getXforms();
 	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformSummaries()
+	 */
+	public List<XformSummary> getXformSummaries();
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformXml(java.lang.Integer)
+	 */
+	public String getXformXml(Integer formId);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformXmls()
+	 */
+	public Map<Integer, String> getXformXmls();
+	
 	/**
 	 * @see org.openmrs.module.xforms.XformsService#saveXform(org.openmrs.module.xforms.Xform)
 	 */
@@ -97,10 +120,32 @@ public interface XformsDAO {
 	
 	
 	public List<PersonRepeatAttribute> getPersonRepeatAttributes(Integer personId, Integer personAttributeId);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getPersonRepeatAttributes(java.util.Collection,java.util.Collection)
+	 */
+	public Map<Integer, List<PersonRepeatAttribute>> getPersonRepeatAttributes(Collection<Integer> personIds, Collection<Integer> personAttributeIds);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getFormConcepts(org.openmrs.Form)
+	 */
+	public Map<Integer, Concept> getFormConcepts(Integer formId);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getSavedFieldOfFormField(java.lang.Integer)
+	 */
+	public Object[] getSavedFieldOfFormField(Integer formFieldId);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getFieldsOfForm(java.lang.Integer)
+	 */
+	public List<Object[]> getFieldsOfForm(Integer formId);
+	
 	public void savePersonRepeatAttribute(PersonRepeatAttribute personRepeatAttribute);
 	public void deletePersonRepeatAttribute(Integer personRepeatAttributeId);
 	
 	public List<Object[]> getList(String sql, String displayField, String valueField);
+	public List<Object[]> getList(String sql, String displayField, String valueField, Map<String, Object> parameters);
 	
 	public PatientMedicalHistory getPatientMedicalHistory(Integer patientId);
 	
@@ -118,4 +163,91 @@ public interface XformsDAO {
 	public String getLocationName(Integer locationId);
 	public String getPersonName(Integer personId);
 	public String getConceptName(Integer conceptId, String localeKey);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getCohorts(java.lang.Integer,int)
+	 */
+	public List<Cohort> getCohorts(Integer afterCohortId, int maxResults);
+	
+	/**
+	 * Gets a page of ids of all non voided patients, ordered by patient id.
+	 * 
+	 * @param afterPatientId the id of the last patient of the previous page, or null for the first page.
+	 * @param maxResults the maximum number of ids to return.
+	 * @return the patient ids.
+	 */
+	public List<Integer> getPatientIds(Integer afterPatientId, int maxResults);
+	
+	/**
+	 * Gets a page of ids of non voided patients matching name and identifier patterns, ordered by
+	 * patient id.
+	 * 
+	 * @param namePatterns the like patterns which a given, middle or family name of the same non
+	 *            voided name must each match, or an empty list for any name.
+	 * @param identifierPattern the like pattern of a non voided identifier, or null for any.
+	 * @param afterPatientId the id of the last patient of the previous page, or null for the first page.
+	 * @param maxResults the maximum number of ids to return.
+	 * @return the patient ids.
+	 */
+	public List<Integer> getPatientIds(List<String> namePatterns, String identifierPattern, Integer afterPatientId,
+	                                   int maxResults);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getPatients(java.util.List)
+	 */
+	public List<Patient> getPatients(List<Integer> patientIds);
+	
+	/**
+	 * Replaces the concepts, locations and providers referenced by an xform.
+	 * 
+	 * @param formId the form id.
+	 * @param references the referenced ids keyed by reference type.
+	 */
+	public void saveXformReferences(Integer formId, Map<String, Set<Integer>> references);
+	
+	/**
+	 * Deletes the references of an xform.
+	 * 
+	 * @param formId the form id.
+	 */
+	public void deleteXformReferences(Integer formId);
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getReferencingXformIds(java.lang.String,java.lang.Integer)
+	 */
+	public List<Integer> getReferencingXformIds(String referenceType, Integer referenceId);
+	
+	/**
+	 * Gets the ids of xforms whose references have not yet been indexed.
+	 * 
+	 * @return the form ids.
+	 */
+	public List<Integer> getUnindexedXformIds();
+
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#isFormUidProcessed(java.lang.String)
+	 */
+	public boolean isFormUidProcessed(String uid);
+	
+	/**
+	 * Records the client uid of a form which has been processed.
+	 * 
+	 * @param uid the form uid.
+	 */
+	public void saveProcessedFormUid(String uid);
+	
+	/**
+	 * Removes the record of a processed form uid.
+	 * 
+	 * @param uid the form uid.
+	 */
+	public void deleteProcessedFormUid(String uid);
+	
+	/**
+	 * Removes the records of form uids processed before a given date.
+	 * 
+	 * @param date the date.
+	 * @return the number of records removed.
+	 */
+	public int deleteProcessedFormUids(Date date);
 }
@@ -14,17 +14,31 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.FlushMode;
 import org.hibernate.Hibernate;
 import org.hibernate.Query;
 import org.hibernate.SQLQuery;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.type.StandardBasicTypes;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.Form;
+import org.openmrs.FormField;
 import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.module.xforms.MedicalHistoryField;
 import org.openmrs.module.xforms.Xform;
@@ -35,7 +49,9 @@ import org.openmrs.module.xforms.model.MedicalHistoryFieldData;
 import org.openmrs.module.xforms.model.MedicalHistoryValue;
 import org.openmrs.module.xforms.model.PatientMedicalHistory;
 import org.openmrs.module.xforms.model.PersonRepeatAttribute;
+import org.openmrs.module.xforms.model.XformSummary;
 import org.openmrs.module.xforms.model.XformUser;
+import org.openmrs.module.xforms.util.XformReferenceUtil;
 import org.openmrs.module.xforms.util.XformsUtil;
 import org.springframework.util.StringUtils;
 
@@ -48,6 +64,9 @@ import org.springframework.util.StringUtils;
 public class HibernateXformsDAO implements XformsDAO {
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/** The most values bound to one in list. */
+	private static final int MAX_IN_LIST_SIZE = 1000;
+	
 	/**
 	 * Hibernate session factories
 	 */
@@ -85,6 +104,39 @@ public class HibernateXformsDAO implements XformsDAO {
 		return getCurrentSession().createQuery("from Xform").list();
 	}
 	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformSummaries()
+	 */
+	public List<XformSummary> getXformSummaries() {
+		return getCurrentSession().createQuery(
+		"select new " + XformSummary.class.getName() + "(formId, uuid, dateCreated, dateChanged) " +
+		"from Xform order by formId").list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformXml(java.lang.Integer)
+	 */
+	public String getXformXml(Integer formId) {
+		Query query = getCurrentSession().createQuery("select xformXml from Xform where formId = :formId");
+		query.setParameter("formId", formId);
+		return (String)query.uniqueResult();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformXmls()
+	 */
+	public Map<Integer, String> getXformXmls() {
+		List<Object[]> results = (List<Object[]>) getCurrentSession().createQuery(
+		"select formId, xformXml from Xform order by formId").list();
+		
+		Map<Integer, String> xmls = new LinkedHashMap<Integer, String>();
+		for (Object[] row : results) {
+			xmls.put((Integer) row[0], (String) row[1]);
+		}
+		
+		return xmls;
+	}
+	
 	/**
 	 * @see org.openmrs.module.xforms.XformsService#saveXform(org.openmrs.module.xforms.Xform)
 	 */
@@ -92,7 +144,13 @@ public class HibernateXformsDAO implements XformsDAO {
 		// getCurrentSession().saveOrUpdate(xform);
 		//deleteXform(xform.getFormId());
 		//Context.evictFromSession(xform);
-		getCurrentSession().save(xform);
+		
+		//Cached xforms are copies not attached to the session, so merge them into the stored one.
+		Session session = getCurrentSession();
+		if (!session.contains(xform) && hasXform(xform.getFormId()))
+			session.merge(xform);
+		else
+			session.save(xform);
 	}
 	
 	/**
@@ -123,37 +181,21 @@ public class HibernateXformsDAO implements XformsDAO {
 	public Object getPatientValue(Integer patientId, String tableName,
 	                              String columnName, String filterValue) {
 		
-		if(tableName.equals("patient")){
-			if(columnName.equals("birthdate")||columnName.equals("birthdate_estimated")||columnName.equals("gender"))
-				tableName = "person";
-		}
-		else if(tableName.equals("patient_address")){
-			if(columnName.equals("address1")||columnName.equals("address2"))
-				tableName = "person_address";
-		}
-		else if(tableName.equals("patient_name")){
-			if(columnName.equals("family_name")||columnName.equals("given_name")||columnName.equals("middle_name"))
-				tableName = "person_name";
+		boolean filtered = filterValue != null && filterValue.trim().length() > 0;
+		String sql = PatientValueSql.getSql(tableName, columnName, filtered);
+		if (sql == null) {
+			log.error("Could not get value for field:[" + columnName + "] table:[" + tableName
+			        + "] ErrorDetails=Not a patient table field");
+			return null;
 		}
 		
-		String sql = "";
 		try {
-			sql = "select "
-				+ columnName
-				+ " from "
-				+ tableName
-				+ " where "
-				+ (tableName.indexOf("person") != -1 ? "person_id"
-						: "patient_id") + "=" + patientId;
-			if (filterValue != null
-					&& tableName.equalsIgnoreCase("PATIENT_IDENTIFIER")
-					&& columnName.equalsIgnoreCase("IDENTIFIER"))
-				sql += " and identifier_type = " + filterValue;
-			else if(tableName.equalsIgnoreCase("PATIENT_IDENTIFIER"))
-				sql += " and preferred=1";
+			Query query = getCurrentSession().createSQLQuery(sql);
+			query.setParameter(PatientValueSql.PARAM_PATIENT_ID, patientId);
+			if (PatientValueSql.isFiltered(sql))
+				query.setParameter(PatientValueSql.PARAM_IDENTIFIER_TYPE, Integer.valueOf(filterValue.trim()));
 			
-			return getCurrentSession().createSQLQuery(sql)
-			.uniqueResult();
+			return query.uniqueResult();
 		} catch (Exception e) {
 			log.error("Could not get value for field:[" + columnName
 				+ "] table:[" + tableName + "] SQL=" + sql
@@ -190,11 +232,11 @@ public class HibernateXformsDAO implements XformsDAO {
 		String sql = "select form_id from xforms_xform where form_id in (select form_id from form) and form_id<>"
 			+ XformConstants.PATIENT_XFORM_FORM_ID;
 		
-		List<Object[]> results = (List<Object[]>) getCurrentSession()
+		List<Number> results = (List<Number>) getCurrentSession()
 				.createSQLQuery(sql).list();
 
-		for (Object[] row : results) {
-			formIds.add((Integer) row[0]);
+		for (Number formId : results) {
+			formIds.add(formId.intValue());
 		}
 
 		return formIds;
@@ -204,27 +246,28 @@ public class HibernateXformsDAO implements XformsDAO {
 	 * @see org.openmrs.module.xforms.XformsService#hasXform(java.lang.Integer)
 	 */
 	public boolean hasXform(Integer formId) {
-		String sql = "select 1 from xforms_xform where form_id=" + formId;
-		return getCurrentSession().createSQLQuery(sql)
-		.uniqueResult() != null;
+		Query query = getCurrentSession().createSQLQuery("select 1 from xforms_xform where form_id = :formId");
+		query.setParameter("formId", formId);
+		return query.uniqueResult() != null;
 	}
 	
 	/**
 	 * @see org.openmrs.module.xforms.XformsService#hasXslt(java.lang.Integer)
 	 */
 	public boolean hasXslt(Integer formId) {
-		String sql = "select 1 from xforms_xform where xslt is not null and form_id="
-			+ formId;
-		return getCurrentSession().createSQLQuery(sql)
-		.uniqueResult() != null;
+		Query query = getCurrentSession().createSQLQuery(
+		"select 1 from xforms_xform where xslt is not null and form_id = :formId");
+		query.setParameter("formId", formId);
+		return query.uniqueResult() != null;
 	}
 	
 	/**
 	 * @see org.openmrs.module.xforms.XformsService#getXslt(java.lang.Integer)
 	 */
 	public String getXslt(Integer formId) {
-		String sql = "select xslt from xforms_xform where form_id=" + formId;
-		Object xslt = getCurrentSession().createSQLQuery(sql).uniqueResult();
+		Query query = getCurrentSession().createSQLQuery("select xslt from xforms_xform where form_id = :formId");
+		query.setParameter("formId", formId);
+		Object xslt = query.uniqueResult();
 		if (xslt != null) {
 			return (String) xslt;
 		}
@@ -266,7 +309,7 @@ public class HibernateXformsDAO implements XformsDAO {
 	
 	public List<PersonRepeatAttribute> getPersonRepeatAttributes(Integer personId, Integer personAttributeId){
 		Query query = getCurrentSession().createQuery(
-			"from PersonRepeatAttributes where personId=:personId "+
+			"from PersonRepeatAttribute where personId=:personId "+
 		"and attributeTypeId=:attributeTypeId");
 		
 		query.setParameter("personId", personId);
@@ -275,6 +318,111 @@ public class HibernateXformsDAO implements XformsDAO {
 		return query.list();
 	}
 	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getPersonRepeatAttributes(java.util.Collection,java.util.Collection)
+	 */
+	public Map<Integer, List<PersonRepeatAttribute>> getPersonRepeatAttributes(Collection<Integer> personIds, Collection<Integer> personAttributeIds){
+		Map<Integer, List<PersonRepeatAttribute>> attributes = new LinkedHashMap<Integer, List<PersonRepeatAttribute>>();
+		if(personIds.isEmpty() || (personAttributeIds != null && personAttributeIds.isEmpty()))
+			return attributes;
+		
+		String hql = "from PersonRepeatAttribute where personId in (:personIds) and voided = false ";
+		if(personAttributeIds != null)
+			hql += "and attributeTypeId in (:attributeTypeIds) ";
+		hql += "order by personId, attributeTypeId, valueDisplayOrder";
+		
+		//Keep the in lists within what databases accept.
+		List<Integer> ids = new ArrayList<Integer>(personIds);
+		for(int start = 0; start < ids.size(); start += MAX_IN_LIST_SIZE){
+			Query query = getCurrentSession().createQuery(hql);
+			query.setParameterList("personIds", ids.subList(start, Math.min(start + MAX_IN_LIST_SIZE, ids.size())));
+			if(personAttributeIds != null)
+				query.setParameterList("attributeTypeIds", personAttributeIds);
+			
+			for(PersonRepeatAttribute attribute : (List<PersonRepeatAttribute>)query.list()){
+				List<PersonRepeatAttribute> list = attributes.get(attribute.getPersonId());
+				if(list == null){
+					list = new ArrayList<PersonRepeatAttribute>();
+					attributes.put(attribute.getPersonId(), list);
+				}
+				list.add(attribute);
+			}
+		}
+		
+		return attributes;
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getFormConcepts(org.openmrs.Form)
+	 */
+	public Map<Integer, Concept> getFormConcepts(Integer formId){
+		Map<Integer, Concept> concepts = new HashMap<Integer, Concept>();
+		
+		//Initializes the form fields of the form, with their fields and concepts.
+		Form form = (Form)getCurrentSession().createQuery(
+			"select distinct f from Form f left join fetch f.formFields ff left join fetch ff.field fld " +
+			"left join fetch fld.fieldType left join fetch fld.concept where f.formId = :formId")
+			.setParameter("formId", formId).uniqueResult();
+		if(form == null)
+			return concepts;
+		
+		Set<Integer> conceptIds = new HashSet<Integer>();
+		for(FormField formField : form.getFormFields()){
+			Concept concept = formField.getField().getConcept();
+			if(concept != null)
+				conceptIds.add(concept.getConceptId());
+		}
+		loadConcepts(conceptIds, true, concepts);
+		
+		Set<Integer> answerConceptIds = new HashSet<Integer>();
+		for(Integer conceptId : conceptIds){
+			Concept concept = concepts.get(conceptId);
+			if(concept == null)
+				continue;
+			
+			for(ConceptAnswer answer : concept.getAnswers(true)){
+				if(answer.getAnswerConcept() != null && !concepts.containsKey(answer.getAnswerConcept().getConceptId()))
+					answerConceptIds.add(answer.getAnswerConcept().getConceptId());
+			}
+		}
+		loadConcepts(answerConceptIds, false, concepts);
+		
+		return concepts;
+	}
+	
+	/**
+	 * Loads concepts with their names, datatypes and classes, and optionally their descriptions
+	 * and answers, in one query per collection for every 1000 concepts. Fetching the collections
+	 * in separate queries keeps each result from being the product of their sizes.
+	 */
+	private void loadConcepts(Collection<Integer> conceptIds, boolean withAnswers, Map<Integer, Concept> concepts){
+		List<Integer> ids = new ArrayList<Integer>(conceptIds);
+		for(int start = 0; start < ids.size(); start += MAX_IN_LIST_SIZE){
+			List<Integer> subList = ids.subList(start, Math.min(start + MAX_IN_LIST_SIZE, ids.size()));
+			
+			Query query = getCurrentSession().createQuery(
+				"select distinct c from Concept c left join fetch c.datatype left join fetch c.conceptClass " +
+				"left join fetch c.names where c.conceptId in (:conceptIds)");
+			query.setParameterList("conceptIds", subList);
+			for(Concept concept : (List<Concept>)query.list())
+				concepts.put(concept.getConceptId(), concept);
+			
+			if(!withAnswers)
+				continue;
+			
+			query = getCurrentSession().createQuery(
+				"select distinct c from Concept c left join fetch c.descriptions where c.conceptId in (:conceptIds)");
+			query.setParameterList("conceptIds", subList);
+			query.list();
+			
+			query = getCurrentSession().createQuery(
+				"select distinct c from Concept c left join fetch c.answers a left join fetch a.answerConcept " +
+				"left join fetch a.answerDrug where c.conceptId in (:conceptIds)");
+			query.setParameterList("conceptIds", subList);
+			query.list();
+		}
+	}
+	
 	public void savePersonRepeatAttribute(PersonRepeatAttribute personRepeatAttribute){
 		getCurrentSession().save(personRepeatAttribute);
 	}
@@ -284,8 +432,17 @@ public class HibernateXformsDAO implements XformsDAO {
 	}
 	
 	public List<Object[]> getList(String sql, String displayField, String valueField){
+		return getList(sql, displayField, valueField, null);
+	}
+	
+	public List<Object[]> getList(String sql, String displayField, String valueField, Map<String, Object> parameters){
 		SQLQuery query = getCurrentSession().createSQLQuery(sql);
 		
+		if(parameters != null){
+			for(Map.Entry<String, Object> parameter : parameters.entrySet())
+				query.setParameter(parameter.getKey(), parameter.getValue());
+		}
+		
 		if(displayField != null && displayField.trim().length() > 0){
 			if(XformsUtil.isOnePointNineAndAbove())
 				query.addScalar(displayField/*, Hibernate.STRING*/);
@@ -396,7 +553,7 @@ public class HibernateXformsDAO implements XformsDAO {
 		"inner join obs o on o.encounter_id = e.encounter_id " +
 		"inner join xforms_medical_history_field mhf on mhf.field_id=o.concept_id " +
 		"and o.person_id = e.patient_id " +
-		"where e.patient_id = " + patientId + " " +
+		"where e.patient_id = :patientId " +
 		"and value_coded is null and o.voided = 0 " +
 		"UNION " +
 		"select mhf.tabIndex, mhf.name, null, null, null, null, null, cn.name, e.encounter_datetime " +
@@ -405,11 +562,12 @@ public class HibernateXformsDAO implements XformsDAO {
 		"inner join concept_name cn on cn.concept_id=o.value_coded " +
 		"inner join xforms_medical_history_field mhf on mhf.field_id=o.concept_id " +
 		"and o.person_id = e.patient_id " +
-		"where e.patient_id = " + patientId + " " +
+		"where e.patient_id = :patientId " +
 		"and value_coded is not null and o.voided = 0 ) as t " +
 		"order by tabIndex,name,encounter_datetime";
 		
 		SQLQuery query = getCurrentSession().createSQLQuery(sql);
+		query.setParameter("patientId", patientId);
 		
 		if(XformsUtil.isOnePointNineAndAbove())
 			query.addScalar("name"/*, Hibernate.STRING*/);
@@ -500,9 +658,11 @@ public class HibernateXformsDAO implements XformsDAO {
 	public String getFieldDefaultValue(Integer formId, String fieldName){
 		String sql = "select distinct default_value from form_field ff inner join field f " +
 		"where ff.field_id=f.field_id " +
-		"and ff.form_id=" + formId + " and name = '" + fieldName + "'";
+		"and ff.form_id = :formId and name = :name";
 		
 		SQLQuery query = getCurrentSession().createSQLQuery(sql);
+		query.setParameter("formId", formId);
+		query.setParameter("name", fieldName);
 		
 		if(XformsUtil.isOnePointNineAndAbove())
 			query.addScalar("default_value"/*, Hibernate.STRING*/);
@@ -542,17 +702,16 @@ public class HibernateXformsDAO implements XformsDAO {
 	}
 	
 	public String getLocationName(Integer locationId){
-		String sql = "select name from location where retired = 0 and location_id=" + locationId;
-		return (String)getCurrentSession().createSQLQuery(sql).uniqueResult(); 
+		String sql = "select name from location where retired = 0 and location_id = :locationId";
+		return (String)getCurrentSession().createSQLQuery(sql).setParameter("locationId", locationId).uniqueResult(); 
 	}
 	
 	public String getPersonName(Integer personId){
 
-		String sql = "select given_name, middle_name, family_name, preferred from person_name where voided = 0 and person_id="
-				+ personId;
+		String sql = "select given_name, middle_name, family_name, preferred from person_name where voided = 0 and person_id = :personId";
 
 		List<Object[]> results = (List<Object[]>) getCurrentSession()
-				.createSQLQuery(sql).list();
+				.createSQLQuery(sql).setParameter("personId", personId).list();
 
 		String name = null;
 
@@ -596,8 +755,142 @@ public class HibernateXformsDAO implements XformsDAO {
 	}
 	
 	public String getConceptName(Integer conceptId, String localeKey){
-		String sql = "select name from concept_name where concept_id=" + conceptId + " and locale='" + localeKey + "' and voided = 0 and locale_preferred=1";		
-		return (String)getCurrentSession().createSQLQuery(sql).uniqueResult();
+		String sql = "select name from concept_name where concept_id = :conceptId and locale = :locale and voided = 0 and locale_preferred = 1";
+		return (String)getCurrentSession().createSQLQuery(sql).setParameter("conceptId", conceptId)
+				.setParameter("locale", localeKey).uniqueResult();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getCohorts(java.lang.Integer,int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Cohort> getCohorts(Integer afterCohortId, int maxResults) {
+		Query query = getCurrentSession().createQuery(
+		"from Cohort where voided = false and cohortId > :afterCohortId order by cohortId");
+		query.setParameter("afterCohortId", afterCohortId != null ? afterCohortId : 0);
+		query.setMaxResults(maxResults);
+		
+		return query.list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#getPatientIds(java.lang.Integer,int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getPatientIds(Integer afterPatientId, int maxResults) {
+		Query query = getCurrentSession().createQuery(
+		"select p.patientId from Patient p where p.voided = false and p.patientId > :afterPatientId order by p.patientId");
+		query.setParameter("afterPatientId", afterPatientId != null ? afterPatientId : 0);
+		query.setMaxResults(maxResults);
+		
+		return query.list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#getPatientIds(java.util.List,java.lang.String,java.lang.Integer,int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getPatientIds(List<String> namePatterns, String identifierPattern, Integer afterPatientId,
+	                                   int maxResults) {
+		StringBuilder hql = new StringBuilder("select distinct p.patientId from Patient p");
+		if (!namePatterns.isEmpty())
+			hql.append(" join p.names pn");
+		if (identifierPattern != null)
+			hql.append(" join p.identifiers pi");
+		
+		hql.append(" where p.voided = false and p.patientId > :afterPatientId");
+		if (!namePatterns.isEmpty())
+			hql.append(" and pn.voided = false");
+		for (int index = 0; index < namePatterns.size(); index++) {
+			String name = ":name" + index;
+			hql.append(" and (pn.givenName like " + name + " or pn.middleName like " + name + " or pn.familyName like "
+			        + name + " or pn.familyName2 like " + name + ")");
+		}
+		if (identifierPattern != null)
+			hql.append(" and pi.voided = false and pi.identifier like :identifier");
+		hql.append(" order by p.patientId");
+		
+		Query query = getCurrentSession().createQuery(hql.toString());
+		query.setParameter("afterPatientId", afterPatientId != null ? afterPatientId : 0);
+		for (int index = 0; index < namePatterns.size(); index++)
+			query.setParameter("name" + index, namePatterns.get(index));
+		if (identifierPattern != null)
+			query.setParameter("identifier", identifierPattern);
+		query.setMaxResults(maxResults);
+		
+		return query.list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getPatients(java.util.List)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Patient> getPatients(List<Integer> patientIds) {
+		if (patientIds == null || patientIds.isEmpty())
+			return new ArrayList<Patient>();
+		
+		Query query = getCurrentSession().createQuery(
+		"from Patient where patientId in (:patientIds) order by patientId");
+		query.setParameterList("patientIds", patientIds);
+		
+		return query.list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#saveXformReferences(java.lang.Integer,java.util.Map)
+	 */
+	public void saveXformReferences(Integer formId, Map<String, Set<Integer>> references) {
+		deleteXformReferences(formId);
+		
+		Query query = getCurrentSession().createSQLQuery(
+		"insert into xforms_xform_reference (form_id, reference_type, reference_id) values (:formId, :referenceType, :referenceId)");
+		query.setParameter("formId", formId);
+		for (Map.Entry<String, Set<Integer>> entry : references.entrySet()) {
+			query.setParameter("referenceType", entry.getKey());
+			for (Integer referenceId : entry.getValue()) {
+				query.setParameter("referenceId", referenceId);
+				query.executeUpdate();
+			}
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#deleteXformReferences(java.lang.Integer)
+	 */
+	public void deleteXformReferences(Integer formId) {
+		Query query = getCurrentSession().createSQLQuery(
+		"delete from xforms_xform_reference where form_id = :formId");
+		query.setParameter("formId", formId);
+		
+		query.executeUpdate();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getReferencingXformIds(java.lang.String,java.lang.Integer)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getReferencingXformIds(String referenceType, Integer referenceId) {
+		SQLQuery query = getCurrentSession().createSQLQuery(
+		"select form_id from xforms_xform_reference where reference_type = :referenceType and reference_id = :referenceId order by form_id");
+		query.setParameter("referenceType", referenceType);
+		query.setParameter("referenceId", referenceId != null ? referenceId : 0);
+		query.addScalar("form_id", StandardBasicTypes.INTEGER);
+		
+		return query.list();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#getUnindexedXformIds()
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getUnindexedXformIds() {
+		SQLQuery query = getCurrentSession().createSQLQuery(
+		"select x.form_id from xforms_xform x where not exists (select 1 from xforms_xform_reference r "
+		        + "where r.form_id = x.form_id and r.reference_type = :referenceType) order by x.form_id");
+		query.setParameter("referenceType", XformReferenceUtil.REFERENCE_FORM);
+		query.addScalar("form_id", StandardBasicTypes.INTEGER);
+		
+		return query.list();
 	}
 	
 	/**
@@ -619,4 +912,86 @@ public class HibernateXformsDAO implements XformsDAO {
 			}
 		}
 	}
+
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#isFormUidProcessed(java.lang.String)
+	 */
+	public boolean isFormUidProcessed(String uid) {
+		SQLQuery query = getCurrentSession().createSQLQuery(
+		"select count(*) from xforms_processed_uid where uid = :uid");
+		query.setParameter("uid", uid);
+		
+		return ((Number) query.uniqueResult()).intValue() > 0;
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#saveProcessedFormUid(java.lang.String)
+	 */
+	public void saveProcessedFormUid(String uid) {
+		Query query = getCurrentSession().createSQLQuery(
+		"insert into xforms_processed_uid (uid, date_created) values (:uid, :dateCreated)");
+		query.setParameter("uid", uid);
+		query.setParameter("dateCreated", new Date());
+		
+		query.executeUpdate();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#deleteProcessedFormUid(java.lang.String)
+	 */
+	public void deleteProcessedFormUid(String uid) {
+		Query query = getCurrentSession().createSQLQuery(
+		"delete from xforms_processed_uid where uid = :uid");
+		query.setParameter("uid", uid);
+		
+		query.executeUpdate();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#deleteProcessedFormUids(java.util.Date)
+	 */
+	public int deleteProcessedFormUids(Date date) {
+		Query query = getCurrentSession().createSQLQuery(
+		"delete from xforms_processed_uid where date_created < :date");
+		query.setParameter("date", date);
+		
+		return query.executeUpdate();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#getSavedFieldOfFormField(java.lang.Integer)
+	 */
+	public Object[] getSavedFieldOfFormField(Integer formFieldId) {
+		SQLQuery query = getCurrentSession().createSQLQuery(
+		"select f.concept_id, f.table_name, f.attribute_name, ff.field_id, ff.parent_form_field, ff.max_occurs, f.select_multiple "
+		        + "from form_field ff inner join field f on f.field_id = ff.field_id where ff.form_field_id = :formFieldId");
+		query.setParameter("formFieldId", formFieldId);
+		query.addScalar("concept_id", StandardBasicTypes.INTEGER);
+		query.addScalar("table_name", StandardBasicTypes.STRING);
+		query.addScalar("attribute_name", StandardBasicTypes.STRING);
+		query.addScalar("field_id", StandardBasicTypes.INTEGER);
+		query.addScalar("parent_form_field", StandardBasicTypes.INTEGER);
+		query.addScalar("max_occurs", StandardBasicTypes.INTEGER);
+		query.addScalar("select_multiple", StandardBasicTypes.BOOLEAN);
+		
+		//Unsaved changes to the form field or its field must not be flushed before they are read.
+		query.setFlushMode(FlushMode.MANUAL);
+		
+		return (Object[]) query.uniqueResult();
+	}
+	
+	/**
+	 * @see org.openmrs.module.xforms.db.XformsDAO#getFieldsOfForm(java.lang.Integer)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object[]> getFieldsOfForm(Integer formId) {
+		SQLQuery query = getCurrentSession().createSQLQuery(
+		"select f.concept_id, f.table_name, f.attribute_name from form_field ff inner join field f on f.field_id = ff.field_id "
+		        + "where ff.form_id = :formId");
+		query.setParameter("formId", formId);
+		query.addScalar("concept_id", StandardBasicTypes.INTEGER);
+		query.addScalar("table_name", StandardBasicTypes.STRING);
+		query.addScalar("attribute_name", StandardBasicTypes.STRING);
+		return query.list();
+	}
 }
@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.db.hibernate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the sql for reading patient table fields, those with the openmrs_table and
+ * openmrs_attribute attributes. The table and column names come from the form, so they are
+ * checked against the patient tables and their columns before going into the sql. The patient id
+ * and identifier type are bound as parameters, such that each table and column gives one
+ * statement text, which is built once and then reused by the driver and database for all
+ * patients.
+ */
+class PatientValueSql {
+
+	/** The name of the patient id parameter. */
+	static final String PARAM_PATIENT_ID = "patientId";
+
+	/** The name of the identifier type parameter, for patient identifiers filtered by type. */
+	static final String PARAM_IDENTIFIER_TYPE = "identifierType";
+
+	private static final String[] AUDIT_COLUMNS = { "creator", "date_created", "changed_by", "date_changed", "voided",
+	        "voided_by", "date_voided", "void_reason", "uuid" };
+
+	/** The columns which can be read, keyed by the lower case table name. */
+	private static final Map<String, Set<String>> allowedColumns = new HashMap<String, Set<String>>();
+
+	/** The sql built so far, keyed by the lower case table and column names. */
+	private static final Map<String, String> sqlTemplates = new HashMap<String, String>();
+
+	static {
+		allow("patient", "patient_id", "tribe");
+		allow("person", "person_id", "gender", "birthdate", "birthdate_estimated", "dead", "death_date",
+		    "cause_of_death");
+		allow("person_name", "person_name_id", "person_id", "preferred", "prefix", "given_name", "middle_name",
+		    "family_name_prefix", "family_name", "family_name2", "family_name_suffix", "degree");
+		allow("person_address", "person_address_id", "person_id", "preferred", "address1", "address2", "address3",
+		    "address4", "address5", "address6", "city_village", "state_province", "postal_code", "country",
+		    "latitude", "longitude", "county_district", "start_date", "end_date");
+		allow("patient_identifier", "patient_identifier_id", "patient_id", "identifier", "identifier_type",
+		    "preferred", "location_id");
+	}
+
+	private static void allow(String tableName, String... columnNames) {
+		Set<String> columns = new HashSet<String>(Arrays.asList(columnNames));
+		columns.addAll(Arrays.asList(AUDIT_COLUMNS));
+		allowedColumns.put(tableName, columns);
+	}
+
+	/**
+	 * Gets the sql for reading a patient table field.
+	 *
+	 * @param tableName the table name, as in the form.
+	 * @param columnName the column name, as in the form.
+	 * @param filtered true if patient identifiers are filtered by the identifier type parameter.
+	 * @return the sql, or null if the table or column can not be read.
+	 */
+	static String getSql(String tableName, String columnName, boolean filtered) {
+		if (tableName == null || columnName == null)
+			return null;
+
+		tableName = tableName.trim().toLowerCase();
+		columnName = columnName.trim().toLowerCase();
+
+		String key = tableName + "." + columnName + (filtered ? "#" + PARAM_IDENTIFIER_TYPE : "");
+		synchronized (sqlTemplates) {
+			String sql = sqlTemplates.get(key);
+			if (sql == null) {
+				sql = buildSql(tableName, columnName, filtered);
+				if (sql == null)
+					return null;
+				sqlTemplates.put(key, sql);
+			}
+			return sql;
+		}
+	}
+
+	/**
+	 * Gets the number of statements built so far.
+	 */
+	static int getTemplateCount() {
+		synchronized (sqlTemplates) {
+			return sqlTemplates.size();
+		}
+	}
+
+	private static String buildSql(String tableName, String columnName, boolean filtered) {
+		tableName = getTableName(tableName, columnName);
+
+		Set<String> columns = allowedColumns.get(tableName);
+		if (columns == null || !columns.contains(columnName))
+			return null;
+
+		String sql = "select " + columnName + " from " + tableName + " where "
+		        + (tableName.indexOf("person") != -1 ? "person_id" : "patient_id") + " = :" + PARAM_PATIENT_ID;
+
+		if (tableName.equals("patient_identifier")) {
+			if (filtered && columnName.equals("identifier"))
+				sql += " and identifier_type = :" + PARAM_IDENTIFIER_TYPE;
+			else
+				sql += " and preferred = 1";
+		}
+
+		return sql;
+	}
+
+	/**
+	 * Gets the table a column is in, for the patient fields which moved to the person tables.
+	 */
+	private static String getTableName(String tableName, String columnName) {
+		if (tableName.equals("patient")) {
+			if (columnName.equals("birthdate") || columnName.equals("birthdate_estimated") || columnName.equals("gender"))
+				return "person";
+		} else if (tableName.equals("patient_address")) {
+			if (columnName.equals("address1") || columnName.equals("address2"))
+				return "person_address";
+		} else if (tableName.equals("patient_name")) {
+			if (columnName.equals("family_name") || columnName.equals("given_name") || columnName.equals("middle_name"))
+				return "person_name";
+		}
+
+		return tableName;
+	}
+
+	/**
+	 * Checks if the sql binds the identifier type.
+	 */
+	static boolean isFiltered(String sql) {
+		return sql.indexOf(":" + PARAM_IDENTIFIER_TYPE) != -1;
+	}
+}
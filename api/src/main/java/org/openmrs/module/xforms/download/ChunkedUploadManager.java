@@ -0,0 +1,312 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.XformsException;
+import org.openmrs.module.xforms.util.XformsUtil;
+
+/**
+ * Manages resumable uploads of large batches of xforms data. A client starts an upload session,
+ * sends the batch in chunks, each with its byte offset and checksum, and can ask for the
+ * number of bytes received so far to resume after a dropped connection. Chunks are kept in a
+ * staging area and the batch is only handed over for processing once all its bytes are in.
+ * Only the user who started an upload can send its chunks, ask for its offset or complete it.
+ */
+public class ChunkedUploadManager {
+
+	private static final Log log = LogFactory.getLog(ChunkedUploadManager.class);
+
+	/** The largest chunk we accept in one request. */
+	public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/** The largest batch we accept in one upload session. */
+	public static final long MAX_UPLOAD_SIZE = 100L * 1024 * 1024;
+
+	/** How long an unfinished upload is kept in the staging area. */
+	private static final long STALE_UPLOAD_AGE = 48L * 60 * 60 * 1000;
+
+	private static final String DATA_FILE_EXTENSION = ".part";
+
+	private static final String INFO_FILE_EXTENSION = ".properties";
+
+	private static final String INFO_TOTAL_SIZE = "totalSize";
+
+	private static final String INFO_OWNER = "owner";
+
+	/** Locks serializing writes to the same upload. */
+	private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Starts a new upload session owned by the authenticated user.
+	 *
+	 * @param totalSize the size in bytes of the whole batch.
+	 * @return the upload session id.
+	 * @throws Exception
+	 */
+	public static String startUpload(long totalSize) throws Exception {
+		if (totalSize <= 0 || totalSize > MAX_UPLOAD_SIZE)
+			throw new XformsException("Invalid upload size: " + totalSize);
+
+		removeStaleUploads();
+
+		String uploadId = UUID.randomUUID().toString();
+
+		Properties info = new Properties();
+		info.setProperty(INFO_TOTAL_SIZE, String.valueOf(totalSize));
+		info.setProperty(INFO_OWNER, String.valueOf(getUserId()));
+		FileOutputStream os = new FileOutputStream(getInfoFile(uploadId));
+		try {
+			info.store(os, null);
+		}
+		finally {
+			os.close();
+		}
+
+		getDataFile(uploadId).createNewFile();
+
+		return uploadId;
+	}
+
+	/**
+	 * Gets the number of bytes received so far for an upload. Clients resume sending from this
+	 * offset.
+	 *
+	 * @param uploadId the upload session id.
+	 * @return the number of bytes received.
+	 */
+	public static long getOffset(String uploadId) throws IOException {
+		return getDataFile(checkOwner(uploadId)).length();
+	}
+
+	/**
+	 * Adds a chunk to an upload. A chunk which was already received, as happens when a client did
+	 * not get our reply, is accepted again without changing anything.
+	 *
+	 * @param uploadId the upload session id.
+	 * @param offset the position of the chunk in the batch.
+	 * @param is the stream to read the chunk from.
+	 * @param checksum the hex encoded MD5 checksum of the chunk.
+	 * @return the number of bytes received so far.
+	 * @throws Exception
+	 */
+	public static long addChunk(String uploadId, long offset, InputStream is, String checksum) throws Exception {
+		checkOwner(uploadId);
+
+		byte[] chunk = readChunk(is);
+		if (checksum == null || !checksum.equalsIgnoreCase(md5(chunk)))
+			throw new XformsException("Checksum mismatch for chunk at offset " + offset + " of upload " + uploadId);
+
+		synchronized (getLock(uploadId)) {
+			File dataFile = getDataFile(uploadId);
+			long received = dataFile.length();
+			if (offset < 0 || offset > received)
+				throw new XformsException("Expected chunk at offset " + received + " but got " + offset);
+
+			if (offset + chunk.length > getTotalSize(uploadId))
+				throw new XformsException("Chunk at offset " + offset + " goes beyond the upload size");
+
+			RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+			try {
+				file.seek(offset);
+				file.write(chunk);
+				received = file.length();
+			}
+			finally {
+				file.close();
+			}
+
+			//Keeps an upload which is still receiving chunks from being seen as stale.
+			getInfoFile(uploadId).setLastModified(System.currentTimeMillis());
+			return received;
+		}
+	}
+
+	/**
+	 * Gets a stream to the staged batch of a finished upload.
+	 *
+	 * @param uploadId the upload session id.
+	 * @return the stream.
+	 * @throws Exception if some bytes of the batch have not yet been received.
+	 */
+	public static InputStream getUploadStream(String uploadId) throws Exception {
+		long received = getOffset(uploadId);
+		long totalSize = getTotalSize(uploadId);
+		if (received != totalSize)
+			throw new XformsException("Upload " + uploadId + " is incomplete: " + received + " of " + totalSize
+			        + " bytes received");
+
+		return new FileInputStream(getDataFile(uploadId));
+	}
+
+	/**
+	 * Removes an upload from the staging area. This does not check the owner, which callers must
+	 * already have done, for instance with {@link #getUploadStream(String)}.
+	 *
+	 * @param uploadId the upload session id.
+	 */
+	public static void removeUpload(String uploadId) {
+		checkUpload(uploadId);
+
+		synchronized (getLock(uploadId)) {
+			deleteFile(getDataFile(uploadId));
+			deleteFile(getInfoFile(uploadId));
+		}
+		locks.remove(uploadId);
+	}
+
+	/**
+	 * Removes uploads which have not received a chunk for too long. The data and info files of an
+	 * upload are only removed together, using the newest of their modification times.
+	 */
+	private static void removeStaleUploads() {
+		File[] files = XformsUtil.getXformsUploadStagingDir().listFiles();
+		if (files == null)
+			return;
+
+		long oldest = System.currentTimeMillis() - STALE_UPLOAD_AGE;
+		for (File file : files) {
+			String name = file.getName();
+			String uploadId;
+			if (name.endsWith(INFO_FILE_EXTENSION))
+				uploadId = name.substring(0, name.length() - INFO_FILE_EXTENSION.length());
+			else if (name.endsWith(DATA_FILE_EXTENSION))
+				uploadId = name.substring(0, name.length() - DATA_FILE_EXTENSION.length());
+			else
+				continue;
+
+			File infoFile = getInfoFile(uploadId);
+			File dataFile = getDataFile(uploadId);
+			if (Math.max(infoFile.lastModified(), dataFile.lastModified()) >= oldest)
+				continue;
+
+			synchronized (getLock(uploadId)) {
+				deleteFile(dataFile);
+				deleteFile(infoFile);
+			}
+			locks.remove(uploadId);
+		}
+	}
+
+	/**
+	 * Makes sure an upload id is well formed and refers to an existing upload. This also prevents
+	 * ids from being used to reach files outside the staging area.
+	 *
+	 * @param uploadId the upload session id.
+	 * @return the upload id.
+	 */
+	private static String checkUpload(String uploadId) {
+		try {
+			if (uploadId != null && UUID.fromString(uploadId).toString().equals(uploadId)
+			        && getInfoFile(uploadId).exists())
+				return uploadId;
+		}
+		catch (IllegalArgumentException ex) {
+			//Not a valid uuid and so reported below.
+		}
+
+		throw new XformsException("Unknown upload: " + uploadId);
+	}
+
+	/**
+	 * Makes sure an upload exists and was started by the authenticated user.
+	 *
+	 * @param uploadId the upload session id.
+	 * @return the upload id.
+	 */
+	private static String checkOwner(String uploadId) throws IOException {
+		checkUpload(uploadId);
+
+		String owner = getInfo(uploadId).getProperty(INFO_OWNER);
+		Integer userId = getUserId();
+		if (owner == null || userId == null || !owner.equals(userId.toString()))
+			throw new XformsException("Upload " + uploadId + " was not started by the current user");
+
+		return uploadId;
+	}
+
+	private static Integer getUserId() {
+		User user = Context.getAuthenticatedUser();
+		return user != null ? user.getUserId() : null;
+	}
+
+	private static long getTotalSize(String uploadId) throws IOException {
+		return Long.parseLong(getInfo(uploadId).getProperty(INFO_TOTAL_SIZE));
+	}
+
+	private static Properties getInfo(String uploadId) throws IOException {
+		Properties info = new Properties();
+		FileInputStream is = new FileInputStream(getInfoFile(uploadId));
+		try {
+			info.load(is);
+		}
+		finally {
+			is.close();
+		}
+		return info;
+	}
+
+	private static byte[] readChunk(InputStream is) throws IOException {
+		byte[] buffer = new byte[8192];
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			if (baos.size() + read > MAX_CHUNK_SIZE)
+				throw new XformsException("Chunk is larger than the maximum of " + MAX_CHUNK_SIZE + " bytes");
+			baos.write(buffer, 0, read);
+		}
+		return baos.toByteArray();
+	}
+
+	private static String md5(byte[] bytes) throws Exception {
+		byte[] digest = MessageDigest.getInstance("MD5").digest(bytes);
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static Object getLock(String uploadId) {
+		Object lock = new Object();
+		Object existing = locks.putIfAbsent(uploadId, lock);
+		return existing != null ? existing : lock;
+	}
+
+	private static File getDataFile(String uploadId) {
+		return new File(XformsUtil.getXformsUploadStagingDir(), uploadId + DATA_FILE_EXTENSION);
+	}
+
+	private static File getInfoFile(String uploadId) {
+		return new File(XformsUtil.getXformsUploadStagingDir(), uploadId + INFO_FILE_EXTENSION);
+	}
+
+	private static void deleteFile(File file) {
+		if (file.exists() && !file.delete())
+			log.warn("Failed to delete staged upload file: " + file.getAbsolutePath());
+	}
+}
@@ -10,6 +10,8 @@
 package org.openmrs.module.xforms.download;
 
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -40,6 +42,9 @@ import org.openmrs.module.xforms.util.XformsUtil;
 public class PatientDownloadManager {
 
 	private static Log log = LogFactory.getLog(PatientDownloadManager.class);
+	
+	/** The largest number of records a client can get in one page. */
+	public static final int MAX_PAGE_SIZE = 500;
 
 
 	/*public static void downloadPatients(String cohortId, OutputStream os, String serializerKey, boolean isSavedSearch) throws Exception{
@@ -163,6 +168,100 @@ public class PatientDownloadManager {
 		XformsUtil.invokeSerializationMethod("serialize",os, serializerKey, XformConstants.DEFAULT_COHORT_SERIALIZER, Context.getCohortService().getAllCohorts());
 	}
 	
+	/**
+	 * Downloads a page of cohorts. The page is preceded by the cursor, which is the id of the
+	 * last cohort in the page, and a flag telling whether there are more cohorts after it. A client
+	 * gets the next page, or resumes an interrupted download, by passing the cursor back.
+	 * 
+	 * @param os the stream to write to.
+	 * @param serializerKey the global property key for the cohort serializer.
+	 * @param afterCohortId the cursor of the previous page, or null for the first page.
+	 * @param pageSize the maximum number of cohorts in the page.
+	 * @throws Exception
+	 */
+	public static void downloadCohorts(OutputStream os, String serializerKey, Integer afterCohortId, int pageSize) throws Exception{
+		if(serializerKey == null)
+			serializerKey = XformConstants.GLOBAL_PROP_KEY_COHORT_SERIALIZER;
+
+		pageSize = getPageSize(pageSize);
+		XformsService xformsService = (XformsService)Context.getService(XformsService.class);
+		List<Cohort> cohorts = xformsService.getCohorts(afterCohortId, pageSize + 1);
+
+		boolean hasMore = cohorts.size() > pageSize;
+		if(hasMore)
+			cohorts = cohorts.subList(0, pageSize);
+
+		Integer cursor = cohorts.isEmpty() ? afterCohortId : cohorts.get(cohorts.size() - 1).getCohortId();
+		writePageHeader(os, cursor, hasMore);
+		XformsUtil.invokeSerializationMethod("serialize",os, serializerKey, XformConstants.DEFAULT_COHORT_SERIALIZER, new ArrayList<Cohort>(cohorts));
+	}
+	
+	/**
+	 * Downloads a page of patients filtered by name and identifier, in the same way as
+	 * {@link #downloadCohorts(OutputStream, String, Integer, int)} does for cohorts.
+	 * 
+	 * @param name the patient name, matched as by PatientService.getPatients, or null for any.
+	 * @param identifier the patient identifier, or null for any.
+	 * @param afterPatientId the cursor of the previous page, or null for the first page.
+	 * @param pageSize the maximum number of patients in the page.
+	 * @param os the stream to write to.
+	 * @param serializerKey the global property key for the patient serializer.
+	 * @throws Exception
+	 */
+	public static void downloadPatients(String name, String identifier, Integer afterPatientId, int pageSize, OutputStream os, String serializerKey) throws Exception{
+		if(serializerKey == null)
+			serializerKey = XformConstants.GLOBAL_PROP_KEY_PATIENT_SERIALIZER;
+
+		if(name != null && name.trim().length() == 0)
+			name = null;
+		if(identifier != null && identifier.trim().length() == 0)
+			identifier = null;
+
+		pageSize = getPageSize(pageSize);
+		XformsService xformsService = (XformsService)Context.getService(XformsService.class);
+		List<Integer> patientIds = xformsService.getPatientIds(name, identifier, afterPatientId, pageSize + 1);
+
+		boolean hasMore = patientIds.size() > pageSize;
+		if(hasMore)
+			patientIds = new ArrayList<Integer>(patientIds.subList(0, pageSize));
+
+		Integer cursor = patientIds.isEmpty() ? afterPatientId : patientIds.get(patientIds.size() - 1);
+		writePageHeader(os, cursor, hasMore);
+		XformsUtil.invokeSerializationMethod("serialize",os, serializerKey, XformConstants.DEFAULT_PATIENT_SERIALIZER, getPatientData(patientIds,xformsService));
+	}
+	
+	private static PatientData getPatientData(List<Integer> patientIds, XformsService xformsService){
+		PatientData patientData  = new PatientData();
+		
+		List<Patient> patients = xformsService.getPatients(patientIds);
+		patientData.setPatients(patients);
+		if(patients.isEmpty())
+			return patientData;
+		
+		List<PatientTableField> fields = PatientTableFieldBuilder.getPatientTableFields(xformsService);
+		if(fields != null && fields.size() > 0){
+			patientData.setFields(fields);
+			patientData.setFieldValues(PatientTableFieldBuilder.getPatientTableFieldValues(patientIds, fields, xformsService));
+			for(Integer patientId : patientIds)
+				patientData.addMedicalHistory(xformsService.getPatientMedicalHistory(patientId));
+		}
+		
+		return patientData;
+	}
+	
+	private static void writePageHeader(OutputStream os, Integer cursor, boolean hasMore) throws IOException{
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeInt(cursor != null ? cursor : 0);
+		dos.writeBoolean(hasMore);
+		dos.flush();
+	}
+	
+	private static int getPageSize(int pageSize){
+		if(pageSize <= 0 || pageSize > MAX_PAGE_SIZE)
+			return MAX_PAGE_SIZE;
+		return pageSize;
+	}
+	
 	/*
 	public static void downloadSavesSearches(OutputStream os, String serializerKey) throws Exception{
 		if(serializerKey == null)
@@ -14,6 +14,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -26,14 +27,17 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.XformBuilder;
 import org.openmrs.module.xforms.XformConstants;
 import org.openmrs.module.xforms.XformsQueueProcessor;
 import org.openmrs.module.xforms.XformsService;
 import org.openmrs.module.xforms.formentry.FormEntryWrapper;
+import org.openmrs.module.xforms.model.XformSummary;
+import org.openmrs.module.xforms.model.XformUploadResult;
 import org.openmrs.module.xforms.util.DOMUtil;
 import org.openmrs.module.xforms.util.XformsUtil;
 import org.openmrs.util.FormUtil;
@@ -79,12 +83,60 @@ public class XformDataUploadManager {
 		String enterer = XformsUtil.getEnterer();
 		List<String> xforms = (List<String>) XformsUtil.invokeDeserializationMethod(is, serializerKey,
 		    XformConstants.DEFAULT_XFORM_SERIALIZER, getXforms());
-		List<Document> docs = mergeNewPatientsWithEncounters(xforms, sessionId, enterer);
+		List<Document> docs = mergeNewPatientsWithEncounters(xforms, sessionId, enterer, null, null);
 		
 		for (Document doc : docs)
 			queueForm(XformsUtil.doc2String(doc), false, null);
 	}
 	
+	/**
+	 * Reads xforms data from a stream, processes each form and reports the outcome of every form
+	 * separately. Unlike {@link #submitXforms(InputStream, String, String)}, a failing form does
+	 * not hide behind a batch success, so clients can resend only the forms which failed. Forms
+	 * whose uid was already processed successfully are skipped and reported as duplicates.
+	 * 
+	 * @param is the stream to read the forms from.
+	 * @param sessionId the user session id.
+	 * @param serializerKey the global property key for the xform serializer.
+	 * @return a list of results, one for each form, keyed by the uid in the form header.
+	 * @throws Exception
+	 */
+	public static List<XformUploadResult> submitXformsWithResults(InputStream is, String sessionId, String serializerKey)
+	                                                                                                                    throws Exception {
+		if (serializerKey == null)
+			serializerKey = XformConstants.GLOBAL_PROP_KEY_XFORM_SERIALIZER;
+		
+		String enterer = XformsUtil.getEnterer();
+		List<String> xforms = (List<String>) XformsUtil.invokeDeserializationMethod(is, serializerKey,
+		    XformConstants.DEFAULT_XFORM_SERIALIZER, getXforms());
+		
+		List<XformUploadResult> results = new ArrayList<XformUploadResult>();
+		Map<Document, List<XformUploadResult>> docResults = new IdentityHashMap<Document, List<XformUploadResult>>();
+		List<Document> docs = mergeNewPatientsWithEncounters(xforms, sessionId, enterer, results, docResults);
+		
+		for (Document doc : docs) {
+			List<XformUploadResult> formResults = docResults.get(doc);
+			List<String> uids = getUids(formResults);
+			if (!setProcessed(uids)) {
+				setDuplicate(formResults);
+				continue;
+			}
+			
+			try {
+				queueForm(XformsUtil.doc2String(doc), true, null);
+			}
+			catch (Exception ex) {
+				log.error(ex.getMessage(), ex);
+				setFailed(formResults, XformsUtil.getActualRootCause(ex, true).getMessage());
+				
+				//Let the client resend the forms.
+				getXformsService().deleteProcessedFormUids(uids);
+			}
+		}
+		
+		return results;
+	}
+	
 	/**
 	 * Adds an xforms data to the xforms queue.
 	 * 
@@ -106,12 +158,18 @@ public class XformDataUploadManager {
 	 * @param xforms a list of xform models.
 	 * @param sessionId the user session id.
 	 * @param enterer the user submitting the forms.
+	 * @param results if not null, gets a result for every form, and forms which cannot be parsed or
+	 *            were already processed are reported here instead of failing the whole batch.
+	 * @param docResults if results is not null, gets the results of the forms in each returned
+	 *            document.
 	 * @return a list of forms where those that deal with new patients with encounters are already
 	 *         merged into one document.
 	 * @throws Exception
 	 */
-	private static List<Document> mergeNewPatientsWithEncounters(List<String> xforms, String sessionId, String enterer)
-	                                                                                                                   throws Exception {
+	private static List<Document> mergeNewPatientsWithEncounters(List<String> xforms, String sessionId, String enterer,
+	                                                             List<XformUploadResult> results,
+	                                                             Map<Document, List<XformUploadResult>> docResults)
+	                                                                                                                throws Exception {
 		DocumentBuilder db = dbf.newDocumentBuilder();
 		
 		//Holds a list of encounter documents.
@@ -123,12 +181,51 @@ public class XformDataUploadManager {
 		//A map of new patientId and a list of encounter documents for this new patient.
 		HashMap<String, List<Document>> patientIdEncounterDocsMap = new HashMap<String, List<Document>>();
 		
+		//A map of new patientId, whose new patient document was already processed, and the id
+		//of the patient created then, or null if that patient cannot be found.
+		HashMap<String, String> duplicatePatientIdMap = new HashMap<String, String>();
+		
 		//Loops through the xml texts creating Document objects for each and put
 		//New patient docs in a map (patientIdEncounterDocsMap) which will point to a list of encounter
 		//docs collected for the new patient keyed by the patient id.
 		for (String xml : xforms) {
 			//Create Document from xml text
-			Document doc = db.parse(IOUtils.toInputStream(xml, XformConstants.DEFAULT_CHARACTER_ENCODING));
+			Document doc;
+			try {
+				doc = db.parse(IOUtils.toInputStream(xml, XformConstants.DEFAULT_CHARACTER_ENCODING));
+			}
+			catch (Exception ex) {
+				if (results == null)
+					throw ex;
+				
+				//Without a document, we cannot get the uid to report against.
+				results.add(new XformUploadResult(null, XformUploadResult.STATUS_FAILED,
+				        XformUploadResult.REASON_INVALID_XML, ex.getMessage()));
+				continue;
+			}
+			
+			if (results != null) {
+				//The client uid has to be read before the header values are overwritten.
+				String uid = DOMUtil.getElementValue(doc, XformConstants.NODE_UID);
+				if (isProcessed(uid)) {
+					results.add(new XformUploadResult(uid, XformUploadResult.STATUS_DUPLICATE,
+					        XformUploadResult.REASON_NONE, null));
+					
+					//Encounters for this new patient now belong to the patient created before.
+					if (DOMUtil.isPatientDoc(doc))
+						duplicatePatientIdMap.put(DOMUtil.getPatientFormPatientId(doc), getExistingPatientId(doc));
+					
+					continue;
+				}
+				
+				XformUploadResult result = new XformUploadResult(uid, XformUploadResult.STATUS_SUCCESS,
+				        XformUploadResult.REASON_NONE, null);
+				results.add(result);
+				
+				List<XformUploadResult> formResults = new ArrayList<XformUploadResult>();
+				formResults.add(result);
+				docResults.put(doc, formResults);
+			}
 			
 			//Set the openmrs form header values.
 			setHeaderValues(doc, sessionId, enterer);
@@ -154,7 +251,17 @@ public class XformDataUploadManager {
 			String patientId = DOMUtil.getEncounterFormPatientId(doc);
 			//This works on the assumption that new patient docs have ids that
 			//match those in the corresponding encounter forms which need to be merged.
-			if (patientId != null && patientIdEncounterDocsMap.containsKey(patientId))
+			if (patientId != null && duplicatePatientIdMap.containsKey(patientId)) {
+				String existingPatientId = duplicatePatientIdMap.get(patientId);
+				if (existingPatientId != null) {
+					DOMUtil.setElementValue(doc.getDocumentElement(), XformBuilder.NODE_PATIENT_PATIENT_ID,
+					    existingPatientId);
+					processedDocs.add(doc);
+				} else {
+					setFailed(docResults.remove(doc), XformUploadResult.REASON_DEPENDENCY_FAILED,
+					    "The new patient of this encounter was already processed but cannot be found");
+				}
+			} else if (patientId != null && patientIdEncounterDocsMap.containsKey(patientId))
 				patientIdEncounterDocsMap.get(patientId).add(doc); //encounter form collected for a new patient
 			else
 				processedDocs.add(doc); //encounter form collected for an existing patient
@@ -165,7 +272,17 @@ public class XformDataUploadManager {
 		for (Entry<String, List<Document>> entry : set) {
 			String patientId = entry.getKey();
 			List<Document> docs = entry.getValue();
-			processedDocs.add(mergeDocs(patientIdPatientDocMap.get(patientId), docs));
+			Document patientDoc = patientIdPatientDocMap.get(patientId);
+			Document mergedDoc = mergeDocs(patientDoc, docs);
+			
+			if (docResults != null && mergedDoc != patientDoc) {
+				List<XformUploadResult> formResults = docResults.remove(patientDoc);
+				for (Document doc : docs)
+					formResults.addAll(docResults.remove(doc));
+				docResults.put(mergedDoc, formResults);
+			}
+			
+			processedDocs.add(mergedDoc);
 		}
 		
 		return processedDocs;
@@ -285,6 +402,126 @@ public class XformDataUploadManager {
 		}
 	}
 	
+	/**
+	 * Checks whether a form with a given client uid has already been processed successfully.
+	 * 
+	 * @param uid the form uid.
+	 * @return true if processed, else false.
+	 */
+	private static boolean isProcessed(String uid) {
+		if (uid == null || uid.trim().length() == 0)
+			return false;
+		
+		return getXformsService().isFormUidProcessed(uid);
+	}
+	
+	/**
+	 * Records the uids of forms, processed together in one document, before processing them. This
+	 * is done in its own transaction because processing a form is not one transaction, and the
+	 * records are removed again if processing fails.
+	 * 
+	 * @param uids the form uids.
+	 * @return false if the forms are being or have been processed by another upload, else true.
+	 */
+	private static boolean setProcessed(List<String> uids) {
+		if (uids.isEmpty())
+			return true;
+		
+		try {
+			return getXformsService().saveProcessedFormUids(uids);
+		}
+		catch (Exception ex) {
+			//A concurrent upload of the same forms violates the unique uid.
+			if (isProcessed(uids.get(0)))
+				return false;
+			throw new APIException(ex.getMessage(), ex);
+		}
+	}
+	
+	/**
+	 * Gets the non blank uids of forms.
+	 * 
+	 * @param formResults the results of the forms.
+	 * @return the uids.
+	 */
+	private static List<String> getUids(List<XformUploadResult> formResults) {
+		List<String> uids = new ArrayList<String>();
+		for (XformUploadResult result : formResults) {
+			String uid = result.getUid();
+			if (uid != null && uid.trim().length() > 0)
+				uids.add(uid);
+		}
+		return uids;
+	}
+	
+	/**
+	 * Gets the id of the patient created by a new patient form processed before, by looking up the
+	 * patient identifier in the form.
+	 * 
+	 * @param patientDoc the new patient document.
+	 * @return the patient id, or null if not exactly one patient has the identifier.
+	 */
+	private static String getExistingPatientId(Document patientDoc) {
+		String identifier = DOMUtil.getElementValue(patientDoc.getDocumentElement(), XformBuilder.NODE_IDENTIFIER);
+		if (identifier == null || identifier.trim().length() == 0)
+			return null;
+		
+		List<Patient> patients = Context.getPatientService().getPatients(identifier);
+		if (patients == null || patients.size() != 1)
+			return null;
+		
+		return patients.get(0).getPatientId().toString();
+	}
+	
+	/**
+	 * Marks forms, processed together in one document, as duplicates.
+	 * 
+	 * @param formResults the results of the forms.
+	 */
+	private static void setDuplicate(List<XformUploadResult> formResults) {
+		for (XformUploadResult result : formResults) {
+			result.setStatus(XformUploadResult.STATUS_DUPLICATE);
+			result.setReasonCode(XformUploadResult.REASON_NONE);
+			result.setReason(null);
+		}
+	}
+	
+	/**
+	 * Marks forms, processed together in one document, as failed. The first form is the one which
+	 * failed while the rest, if any, are encounters merged with it for a new patient.
+	 * 
+	 * @param formResults the results of the forms.
+	 * @param reason the failure message.
+	 */
+	private static void setFailed(List<XformUploadResult> formResults, String reason) {
+		for (int index = 0; index < formResults.size(); index++) {
+			XformUploadResult result = formResults.get(index);
+			result.setStatus(XformUploadResult.STATUS_FAILED);
+			result.setReasonCode(index == 0 ? XformUploadResult.REASON_PROCESSING_ERROR
+			        : XformUploadResult.REASON_DEPENDENCY_FAILED);
+			result.setReason(reason);
+		}
+	}
+	
+	/**
+	 * Marks forms as failed with a given reason code.
+	 * 
+	 * @param formResults the results of the forms.
+	 * @param reasonCode the failure reason code.
+	 * @param reason the failure message.
+	 */
+	private static void setFailed(List<XformUploadResult> formResults, byte reasonCode, String reason) {
+		for (XformUploadResult result : formResults) {
+			result.setStatus(XformUploadResult.STATUS_FAILED);
+			result.setReasonCode(reasonCode);
+			result.setReason(reason);
+		}
+	}
+	
+	private static XformsService getXformsService() {
+		return (XformsService) Context.getService(XformsService.class);
+	}
+	
 	/**
 	 * Gets a map of xforms keyed by the formid
 	 * 
@@ -302,19 +539,14 @@ public class XformDataUploadManager {
 		FormService formService = (FormService) Context.getService(FormService.class);
 		
 		Map<Integer, String> xformMap = new HashMap<Integer, String>();
-		List<Xform> xforms = xformsService.getXforms();
-		boolean patientXformFound = false;
-		String xformData;
-		for (Xform xform : xforms) {
-			if (xform.getFormId() == XformConstants.PATIENT_XFORM_FORM_ID)
-				patientXformFound = true;
-			
-			xformData = xform.getXformXml();
-			if (createNew)
-				xformData = XformDownloadManager.createNewXform(formService, xform.getFormId());
-			
-			xformMap.put(xform.getFormId(), xformData);
-		}
+		if (createNew) {
+			//Only the ids are needed, as the xforms are built again.
+			for (XformSummary xform : xformsService.getXformSummaries())
+				xformMap.put(xform.getFormId(), XformDownloadManager.createNewXform(formService, xform.getFormId()));
+		} else
+			xformMap.putAll(xformsService.getXformXmls());
+		
+		boolean patientXformFound = xformMap.containsKey(XformConstants.PATIENT_XFORM_FORM_ID);
 		if (!patientXformFound) //TODO Should we use the stored global property.
 			xformMap.put(XformConstants.PATIENT_XFORM_FORM_ID, XformBuilder.getNewPatientXform());
 		return xformMap;
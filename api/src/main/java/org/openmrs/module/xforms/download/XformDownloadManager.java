@@ -19,6 +19,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.Form;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.SharedItemsetManager;
 import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.XformBuilderEx;
 import org.openmrs.module.xforms.XformConstants;
@@ -61,12 +62,10 @@ public class XformDownloadManager {
 	private static List<String> getXmlForms(){
 		XformsService xformsService = (XformsService)Context.getService(XformsService.class);
 		
-		List<Xform> xforms = xformsService.getXforms();
 		List<String> xmlforms = new ArrayList<String>();
-		for(Xform xform : xforms){
-			String xml = xform.getXformXml();
+		for(String xml : xformsService.getXformXmls().values()){
 			if(xml != null)
-				xmlforms.add(xml);
+				xmlforms.add(SharedItemsetManager.fillItemsets(xml));
 		}
 		
 		return xmlforms;
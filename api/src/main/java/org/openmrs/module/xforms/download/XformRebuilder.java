@@ -0,0 +1,277 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Form;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.XformBuilderEx;
+import org.openmrs.module.xforms.XformConstants;
+import org.openmrs.module.xforms.XformsService;
+import org.openmrs.module.xforms.model.XformSummary;
+import org.openmrs.module.xforms.util.XformsUtil;
+
+/**
+ * Rebuilds the stored xforms from the fields of their forms, such as after a concept dictionary
+ * update, on a pool of threads in the background. Each form is built and saved in a session of
+ * its own, as the daemon user. Only one rebuild runs at a time.
+ *
+ * Rebuilding replaces the xml of an xform, as refreshing it in the form designer does. The
+ * layout, locale text, javascript and css are kept.
+ */
+public class XformRebuilder {
+
+	private static final Log log = LogFactory.getLog(XformRebuilder.class);
+
+	private static final Object lock = new Object();
+
+	/** The threads of the running rebuild, or null if none is running. */
+	private static ExecutorService executor;
+
+	private static int totalCount;
+
+	private static int rebuiltCount;
+
+	private static int skippedCount;
+
+	private static int failedCount;
+
+	private static long startTime;
+
+	private static long endTime;
+
+	/**
+	 * Starts rebuilding all stored xforms, except that of the patient form.
+	 *
+	 * @return true if started, or false if a rebuild is already running.
+	 */
+	public static boolean startAll() {
+		List<Integer> formIds = new ArrayList<Integer>();
+		for (XformSummary xform : Context.getService(XformsService.class).getXformSummaries()) {
+			if (xform.getFormId() != XformConstants.PATIENT_XFORM_FORM_ID)
+				formIds.add(xform.getFormId());
+		}
+		return start(formIds);
+	}
+
+	/**
+	 * Starts rebuilding the stored xforms of some forms.
+	 *
+	 * @param formIds the form ids.
+	 * @return true if started, or false if a rebuild is already running.
+	 */
+	public static boolean start(List<Integer> formIds) {
+		int threadCount = Math.max(1, Math.min(getThreadCount(), formIds.size()));
+
+		synchronized (lock) {
+			if (executor != null)
+				return false;
+
+			totalCount = formIds.size();
+			rebuiltCount = 0;
+			skippedCount = 0;
+			failedCount = 0;
+			startTime = System.currentTimeMillis();
+			endTime = formIds.isEmpty() ? startTime : 0;
+			if (formIds.isEmpty())
+				return true;
+
+			final ExecutorService rebuildExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "xforms-rebuild-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			executor = rebuildExecutor;
+
+			for (final Integer formId : formIds) {
+				executor.execute(new Runnable() {
+
+					public void run() {
+						rebuildAsDaemon(formId, rebuildExecutor);
+					}
+				});
+			}
+
+			//The threads end once all forms are rebuilt.
+			executor.shutdown();
+		}
+
+		log.info("Rebuilding " + formIds.size() + " xforms on " + threadCount + " threads");
+		return true;
+	}
+
+	/**
+	 * Stops the running rebuild, if any, such as when the module stops. The forms not yet rebuilt
+	 * are left as they are.
+	 */
+	public static void shutdown() {
+		synchronized (lock) {
+			if (executor == null)
+				return;
+
+			executor.shutdownNow();
+			executor = null;
+			endTime = System.currentTimeMillis();
+		}
+	}
+
+	public static boolean isRunning() {
+		synchronized (lock) {
+			return executor != null;
+		}
+	}
+
+	/**
+	 * Gets the number of forms of the running or last rebuild.
+	 */
+	public static int getTotalCount() {
+		synchronized (lock) {
+			return totalCount;
+		}
+	}
+
+	public static int getRebuiltCount() {
+		synchronized (lock) {
+			return rebuiltCount;
+		}
+	}
+
+	/**
+	 * Gets the number of forms skipped because they, or their xforms, were deleted since the
+	 * rebuild started.
+	 */
+	public static int getSkippedCount() {
+		synchronized (lock) {
+			return skippedCount;
+		}
+	}
+
+	public static int getFailedCount() {
+		synchronized (lock) {
+			return failedCount;
+		}
+	}
+
+	/**
+	 * Gets when the running or last rebuild started, or 0 if none has.
+	 */
+	public static long getStartTime() {
+		synchronized (lock) {
+			return startTime;
+		}
+	}
+
+	/**
+	 * Gets when the last rebuild ended, or 0 if one is running or none has.
+	 */
+	public static long getEndTime() {
+		synchronized (lock) {
+			return endTime;
+		}
+	}
+
+	/**
+	 * Rebuilds the xform of a form as the daemon user, and counts the result.
+	 *
+	 * @param formId the form id.
+	 * @param rebuildExecutor the threads of the rebuild the form belongs to.
+	 */
+	private static void rebuildAsDaemon(final Integer formId, ExecutorService rebuildExecutor) {
+		final Boolean[] result = new Boolean[1];
+
+		try {
+			boolean ran = XformsUtil.runAsDaemon(new Runnable() {
+
+				public void run() {
+					try {
+						result[0] = rebuild(formId);
+					}
+					catch (Exception ex) {
+						log.error("Failed to rebuild xform with form id " + formId, ex);
+					}
+				}
+			});
+
+			if (!ran)
+				log.error("Failed to rebuild xform with form id " + formId + " because the module has not started");
+		}
+		catch (InterruptedException ex) {
+			log.error("Interrupted while rebuilding xform with form id " + formId, ex);
+		}
+
+		Boolean rebuilt = result[0];
+		synchronized (lock) {
+			//The rebuild was stopped.
+			if (executor != rebuildExecutor)
+				return;
+
+			if (rebuilt == null)
+				failedCount++;
+			else if (rebuilt)
+				rebuiltCount++;
+			else
+				skippedCount++;
+
+			if (rebuiltCount + skippedCount + failedCount == totalCount) {
+				executor = null;
+				endTime = System.currentTimeMillis();
+				log.info("Rebuilt " + rebuiltCount + " of " + totalCount + " xforms in " + (endTime - startTime)
+				        + "ms, " + failedCount + " failed");
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the xform of a form.
+	 *
+	 * @return true if rebuilt, or false if the form or its xform no longer exists.
+	 */
+	private static boolean rebuild(Integer formId) throws Exception {
+		XformsService xformsService = Context.getService(XformsService.class);
+
+		Form form = Context.getFormService().getForm(formId);
+		Xform xform = xformsService.getXform(formId);
+		if (form == null || xform == null)
+			return false;
+
+		xform.setXformXml(XformBuilderEx.buildXform(form));
+		xformsService.saveXform(xform);
+		return true;
+	}
+
+	/**
+	 * Gets the number of threads to rebuild xforms on.
+	 */
+	private static int getThreadCount() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    XformConstants.GLOBAL_PROP_KEY_REBUILD_THREADS, XformConstants.DEFAULT_REBUILD_THREADS);
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException ex) {
+			log.error("Invalid value for " + XformConstants.GLOBAL_PROP_KEY_REBUILD_THREADS + ": " + value);
+			return Integer.parseInt(XformConstants.DEFAULT_REBUILD_THREADS);
+		}
+	}
+}
@@ -22,6 +22,7 @@ import org.openmrs.User;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.xforms.XformsException;
+import org.openmrs.module.xforms.util.FormTemplateCache;
 import org.openmrs.util.FormUtil;
 import org.openmrs.util.OpenmrsUtil;
 
@@ -55,13 +56,24 @@ public class FormEntryWrapper {
 	public static final String FORMENTRY_GP_SERVER_URL = "formentry.infopath_server_url";
 
 	/**
-	 * Gets the xml template for a form.
+	 * Gets the xml template for a form, generating it only if not in the {@link FormTemplateCache}.
 	 * 
 	 * @param form - the form reference.
 	 * @return the xml template of the form.
 	 */
 	public static String getFormTemplate(Form form){
-		return new FormXmlTemplateBuilder(form,getFormAbsoluteUrl(form)).getXmlTemplate(false);
+		String url = getFormAbsoluteUrl(form);
+		String key = FormTemplateCache.getKey(FormTemplateCache.TEMPLATE, form, url);
+		if (key == null)
+			return new FormXmlTemplateBuilder(form,url).getXmlTemplate(false);
+		
+		String template = FormTemplateCache.get(key);
+		if (template == null) {
+			long generation = FormTemplateCache.getGeneration();
+			template = new FormXmlTemplateBuilder(form,url).getXmlTemplate(false);
+			FormTemplateCache.put(key, template, generation);
+		}
+		return template;
 	}
 	
 	/**
@@ -163,8 +175,24 @@ public class FormEntryWrapper {
 		 return OpenmrsUtil.generateUid(FORM_UID_LENGTH);
 	 }
 	 
+	 /**
+	  * Gets the schema for a form, generating it only if not in the {@link FormTemplateCache}.
+	  * 
+	  * @param form - the form reference.
+	  * @return the schema of the form.
+	  */
 	 public static String getSchema(Form form){
-		 return new FormSchemaBuilder(form).getSchema(); //((FormEntryService)Context.getService(FormEntryService.class)).getSchema(form);
+		 String key = FormTemplateCache.getKey(FormTemplateCache.SCHEMA, form, getFormAbsoluteUrl(form));
+		 if (key == null)
+			 return new FormSchemaBuilder(form).getSchema(); //((FormEntryService)Context.getService(FormEntryService.class)).getSchema(form);
+		 
+		 String schema = FormTemplateCache.get(key);
+		 if (schema == null) {
+			 long generation = FormTemplateCache.getGeneration();
+			 schema = new FormSchemaBuilder(form).getSchema();
+			 FormTemplateCache.put(key, schema, generation);
+		 }
+		 return schema;
 	 }
 	 
 	 public static String getFormSchemaNamespace(Form form) {
@@ -11,15 +11,26 @@ package org.openmrs.module.xforms.impl;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Form;
 import org.openmrs.GlobalProperty;
+import org.openmrs.Patient;
 import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.xforms.MedicalHistoryField;
@@ -31,8 +42,15 @@ import org.openmrs.module.xforms.db.XformsDAO;
 import org.openmrs.module.xforms.formentry.XformsFormEntryError;
 import org.openmrs.module.xforms.model.PatientMedicalHistory;
 import org.openmrs.module.xforms.model.PersonRepeatAttribute;
+import org.openmrs.module.xforms.model.XformSummary;
 import org.openmrs.module.xforms.model.XformUser;
+import org.openmrs.module.xforms.sms.SmsFormDefCache;
+import org.openmrs.module.xforms.util.NameLookupCache;
+import org.openmrs.module.xforms.util.XformCache;
+import org.openmrs.module.xforms.util.XformReferenceUtil;
+import org.openmrs.module.xforms.util.XformVariantCache;
 import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.util.OpenmrsConstants;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.ClassUtils;
 import org.springframework.util.ReflectionUtils;
@@ -45,6 +63,12 @@ import org.springframework.util.ReflectionUtils;
  */
 public class XformsServiceImpl implements XformsService {
 
+	/** The milliseconds between deletes of processed form uids older than their retention. */
+	private static final long PROCESSED_UID_PURGE_INTERVAL = 60 * 60 * 1000;
+
+	/** When processed form uids were last deleted. */
+	private static volatile long lastProcessedUidPurge;
+
 	private XformsDAO dao;
 
 	private Log log = LogFactory.getLog(this.getClass());
@@ -74,6 +98,10 @@ public class XformsServiceImpl implements XformsService {
 	 */
 	public void deleteXform(Integer formId) {
 		getXformsDAO().deleteXform(formId);
+		getXformsDAO().deleteXformReferences(formId);
+		SmsFormDefCache.removeAfterCommit(formId);
+		XformCache.removeAfterCommit(formId);
+		XformVariantCache.remove(formId);
 	}
 
 	/**
@@ -88,6 +116,9 @@ public class XformsServiceImpl implements XformsService {
 	 */
 	public void saveXform(Xform xform) {
 		getXformsDAO().saveXform(xform);
+		saveXformReferences(xform);
+		SmsFormDefCache.removeAfterCommit(xform.getFormId());
+		XformCache.removeAfterCommit(xform.getFormId());
 	}
 
 	/**
@@ -104,11 +135,39 @@ public class XformsServiceImpl implements XformsService {
 		return getXformsDAO().getXforms();
 	}
 
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformSummaries()
+	 */
+	public List<XformSummary> getXformSummaries() {
+		return getXformsDAO().getXformSummaries();
+	}
+
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformXml(java.lang.Integer)
+	 */
+	public String getXformXml(Integer formId) {
+		return getXformsDAO().getXformXml(formId);
+	}
+
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getXformXmls()
+	 */
+	public Map<Integer, String> getXformXmls() {
+		return getXformsDAO().getXformXmls();
+	}
+
 	/**
 	 * @see org.openmrs.module.xforms.XformsService#getXform(java.lang.Integer)
 	 */
 	public Xform getXform(Integer formId) {
-		return getXformsDAO().getXform(formId);
+		Xform xform = XformCache.get(formId);
+		if (xform == null) {
+			long generation = XformCache.getGeneration();
+			xform = getXformsDAO().getXform(formId);
+			if (xform != null)
+				XformCache.put(xform, generation);
+		}
+		return xform;
 	}
 
 	/**
@@ -253,7 +312,7 @@ public class XformsServiceImpl implements XformsService {
 	 */
 	public Xform getXform(Integer formId, boolean createNewIfNonExistant)
 			throws Exception {
-		Xform xform = getXformsDAO().getXform(formId);
+		Xform xform = getXform(formId);
 
 		if (xform == null && createNewIfNonExistant)
 			xform = getNewXform(formId);
@@ -284,6 +343,32 @@ public class XformsServiceImpl implements XformsService {
 				personAttributeId);
 	}
 
+	public Map<Integer, List<PersonRepeatAttribute>> getPersonRepeatAttributes(
+			Collection<Integer> personIds, Collection<Integer> personAttributeIds) {
+		return getXformsDAO().getPersonRepeatAttributes(personIds,
+				personAttributeIds);
+	}
+
+	public Map<Integer, Concept> getFormConcepts(Form form) {
+		if (form.getFormId() == null)
+			return new HashMap<Integer, Concept>();
+		return getXformsDAO().getFormConcepts(form.getFormId());
+	}
+
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getSavedFieldOfFormField(java.lang.Integer)
+	 */
+	public Object[] getSavedFieldOfFormField(Integer formFieldId) {
+		return getXformsDAO().getSavedFieldOfFormField(formFieldId);
+	}
+
+	/**
+	 * @see org.openmrs.module.xforms.XformsService#getFieldsOfForm(java.lang.Integer)
+	 */
+	public List<Object[]> getFieldsOfForm(Integer formId) {
+		return getXformsDAO().getFieldsOfForm(formId);
+	}
+
 	public void savePersonRepeatAttribute(
 			PersonRepeatAttribute personRepeatAttribute) {
 		getXformsDAO().savePersonRepeatAttribute(personRepeatAttribute);
@@ -298,6 +383,11 @@ public class XformsServiceImpl implements XformsService {
 		return getXformsDAO().getList(sql, displayField, valueField);
 	}
 
+	public List<Object[]> getList(String sql, String displayField,
+			String valueField, Map<String, Object> parameters) {
+		return getXformsDAO().getList(sql, displayField, valueField, parameters);
+	}
+
 	public PatientMedicalHistory getPatientMedicalHistory(Integer patientId) {
 		return getXformsDAO().getPatientMedicalHistory(patientId);
 	}
@@ -332,15 +422,170 @@ public class XformsServiceImpl implements XformsService {
 	}
 
 	public String getLocationName(Integer locationId) {
-		return getXformsDAO().getLocationName(locationId);
+		String key = String.valueOf(locationId);
+		String name = NameLookupCache.LOCATIONS.get(key);
+		if (name == null) {
+			long generation = NameLookupCache.LOCATIONS.getGeneration();
+			name = getXformsDAO().getLocationName(locationId);
+			NameLookupCache.LOCATIONS.put(key, name, generation);
+		}
+		return name;
 	}
 
 	public String getPersonName(Integer personId) {
-		return getXformsDAO().getPersonName(personId);
+		String key = String.valueOf(personId);
+		String name = NameLookupCache.PERSONS.get(key);
+		if (name == null) {
+			long generation = NameLookupCache.PERSONS.getGeneration();
+			name = getXformsDAO().getPersonName(personId);
+			NameLookupCache.PERSONS.put(key, name, generation);
+		}
+		return name;
 	}
 
 	public String getConceptName(Integer conceptId, String localeKey) {
-		return getXformsDAO().getConceptName(conceptId, localeKey);
+		String key = NameLookupCache.getConceptKey(conceptId, localeKey);
+		String name = NameLookupCache.CONCEPTS.get(key);
+		if (name == null) {
+			long generation = NameLookupCache.CONCEPTS.getGeneration();
+			name = getXformsDAO().getConceptName(conceptId, localeKey);
+			NameLookupCache.CONCEPTS.put(key, name, generation);
+		}
+		return name;
+	}
+
+	public List<Cohort> getCohorts(Integer afterCohortId, int maxResults) {
+		return getXformsDAO().getCohorts(afterCohortId, maxResults);
+	}
+
+	public List<Integer> getPatientIds(String name, String identifier,
+			Integer afterPatientId, int maxResults) {
+		if (name == null && identifier == null)
+			return getXformsDAO().getPatientIds(afterPatientId, maxResults);
+
+		// Match the patients of the unpaged download, which uses
+		// PatientService.getPatients, with the same global properties.
+		AdministrationService adminService = Context.getAdministrationService();
+		List<String> namePatterns = new ArrayList<String>();
+		if (name != null) {
+			boolean anywhere = XformConstants.PATIENT_SEARCH_MATCH_ANYWHERE
+					.equalsIgnoreCase(adminService.getGlobalProperty(
+							XformConstants.GLOBAL_PROP_KEY_PATIENT_SEARCH_MATCH_MODE, ""));
+			for (String part : name.trim().split("[\\s,]+")) {
+				if (part.length() > 0)
+					namePatterns.add((anywhere ? "%" : "") + escapeLike(part) + "%");
+			}
+		}
+
+		String identifierPattern = null;
+		if (identifier != null)
+			identifierPattern = adminService.getGlobalProperty(
+					OpenmrsConstants.GLOBAL_PROPERTY_PATIENT_IDENTIFIER_PREFIX, "")
+					+ escapeLike(identifier)
+					+ adminService.getGlobalProperty(
+							OpenmrsConstants.GLOBAL_PROPERTY_PATIENT_IDENTIFIER_SUFFIX, "%");
+
+		return getXformsDAO().getPatientIds(namePatterns, identifierPattern,
+				afterPatientId, maxResults);
+	}
+
+	/**
+	 * Escapes the wildcards of text to match literally in a like pattern.
+	 */
+	private static String escapeLike(String text) {
+		return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	public List<Patient> getPatients(List<Integer> patientIds) {
+		return getXformsDAO().getPatients(patientIds);
+	}
+
+	public List<Integer> getReferencingXformIds(String referenceType,
+			Integer referenceId) {
+		for (Integer formId : getXformsDAO().getUnindexedXformIds()) {
+			Xform xform = getXformsDAO().getXform(formId);
+			if (xform != null)
+				saveXformReferences(xform);
+		}
+
+		return getXformsDAO().getReferencingXformIds(referenceType,
+				referenceId);
+	}
+
+	/**
+	 * Indexes the concepts, locations and providers which an xform refers to.
+	 * 
+	 * @param xform the xform.
+	 */
+	private void saveXformReferences(Xform xform) {
+		Map<String, Set<Integer>> references;
+		try {
+			references = XformReferenceUtil.getReferences(xform.getXformXml());
+		} catch (Exception ex) {
+			log.error("Failed to index the references of xform with form id "
+					+ xform.getFormId(), ex);
+
+			// Still mark it as indexed, such that it is not parsed on every refresh.
+			references = new HashMap<String, Set<Integer>>();
+			references.put(XformReferenceUtil.REFERENCE_FORM,
+					Collections.singleton(0));
+		}
+
+		getXformsDAO().saveXformReferences(xform.getFormId(), references);
+	}
+
+	public boolean isFormUidProcessed(String uid) {
+		return getXformsDAO().isFormUidProcessed(uid);
+	}
+
+	public boolean saveProcessedFormUids(List<String> uids) {
+		for (String uid : uids) {
+			if (getXformsDAO().isFormUidProcessed(uid))
+				return false;
+		}
+
+		for (String uid : uids)
+			getXformsDAO().saveProcessedFormUid(uid);
+
+		purgeProcessedFormUids();
+		return true;
+	}
+
+	/**
+	 * Deletes the uids of forms processed longer ago than their retention, at most once per
+	 * interval, such that the table does not grow forever.
+	 */
+	private void purgeProcessedFormUids() {
+		long now = System.currentTimeMillis();
+		if (now - lastProcessedUidPurge < PROCESSED_UID_PURGE_INTERVAL)
+			return;
+		lastProcessedUidPurge = now;
+
+		int days = getProcessedUidRetentionDays();
+		if (days <= 0)
+			return;
+
+		int count = getXformsDAO().deleteProcessedFormUids(new Date(now - days * 24L * 60 * 60 * 1000));
+		if (count > 0)
+			log.debug("Deleted " + count + " processed form uids older than " + days + " days");
+	}
+
+	private int getProcessedUidRetentionDays() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+				XformConstants.GLOBAL_PROP_KEY_PROCESSED_UID_RETENTION_DAYS,
+				XformConstants.DEFAULT_PROCESSED_UID_RETENTION_DAYS);
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			log.error("Invalid value for "
+					+ XformConstants.GLOBAL_PROP_KEY_PROCESSED_UID_RETENTION_DAYS + ": " + value);
+			return Integer.parseInt(XformConstants.DEFAULT_PROCESSED_UID_RETENTION_DAYS);
+		}
+	}
+
+	public void deleteProcessedFormUids(List<String> uids) {
+		for (String uid : uids)
+			getXformsDAO().deleteProcessedFormUid(uid);
 	}
 
 	@Override
@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.model;
+
+import java.util.Date;
+
+/**
+ * The columns of an xform other than its xml, layout, locale, javascript and css text. This is
+ * for listing xforms without loading their text.
+ */
+public class XformSummary {
+
+	private Integer formId;
+	private String uuid;
+	private Date dateCreated;
+	private Date dateChanged;
+
+	public XformSummary(){
+
+	}
+
+	public XformSummary(Integer formId, String uuid, Date dateCreated, Date dateChanged){
+		this.formId = formId;
+		this.uuid = uuid;
+		this.dateCreated = dateCreated;
+		this.dateChanged = dateChanged;
+	}
+
+	public Integer getFormId() {
+		return formId;
+	}
+
+	public void setFormId(Integer formId) {
+		this.formId = formId;
+	}
+
+	public String getUuid() {
+		return uuid;
+	}
+
+	public void setUuid(String uuid) {
+		this.uuid = uuid;
+	}
+
+	public Date getDateCreated() {
+		return dateCreated;
+	}
+
+	public void setDateCreated(Date dateCreated) {
+		this.dateCreated = dateCreated;
+	}
+
+	public Date getDateChanged() {
+		return dateChanged;
+	}
+
+	public void setDateChanged(Date dateChanged) {
+		this.dateChanged = dateChanged;
+	}
+
+	/**
+	 * Gets when the xform was last changed, or created if never changed.
+	 */
+	public Date getLastModified() {
+		return dateChanged != null ? dateChanged : dateCreated;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.openmrs.module.xforms.serialization.Persistent;
+import org.openmrs.module.xforms.serialization.SerializationUtils;
+
+
+/**
+ * Holds the processing result of one form in a batch upload, keyed by the uid
+ * which the client put in the form header. Clients use these results to resend
+ * only the forms which failed.
+ */
+public class XformUploadResult implements Persistent{
+
+	/** The form failed to be processed. */
+	public static final byte STATUS_FAILED = 0;
+
+	/** The form was processed successfully. */
+	public static final byte STATUS_SUCCESS = 1;
+
+	/** The form had already been processed in an earlier upload and was skipped. */
+	public static final byte STATUS_DUPLICATE = 2;
+
+	/** No failure reason. */
+	public static final byte REASON_NONE = 0;
+
+	/** The form data could not be parsed. */
+	public static final byte REASON_INVALID_XML = 1;
+
+	/** The form data was parsed but failed during processing. */
+	public static final byte REASON_PROCESSING_ERROR = 2;
+
+	/** The form was merged with a new patient form which failed. */
+	public static final byte REASON_DEPENDENCY_FAILED = 3;
+
+	private String uid;
+	private byte status = STATUS_SUCCESS;
+	private byte reasonCode = REASON_NONE;
+	private String reason;
+
+	public XformUploadResult(){
+
+	}
+
+	public XformUploadResult(String uid, byte status, byte reasonCode, String reason){
+		this.uid = uid;
+		this.status = status;
+		this.reasonCode = reasonCode;
+		this.reason = reason;
+	}
+
+	public String getUid() {
+		return uid;
+	}
+
+	public void setUid(String uid) {
+		this.uid = uid;
+	}
+
+	public byte getStatus() {
+		return status;
+	}
+
+	public void setStatus(byte status) {
+		this.status = status;
+	}
+
+	public byte getReasonCode() {
+		return reasonCode;
+	}
+
+	public void setReasonCode(byte reasonCode) {
+		this.reasonCode = reasonCode;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	public void setReason(String reason) {
+		this.reason = reason;
+	}
+
+	public void read(DataInputStream dis) throws IOException, InstantiationException, IllegalAccessException {
+		setUid(SerializationUtils.readUTF(dis));
+		setStatus(dis.readByte());
+		setReasonCode(dis.readByte());
+		setReason(SerializationUtils.readUTF(dis));
+	}
+
+	public void write(DataOutputStream dos) throws IOException {
+		SerializationUtils.writeUTF(dos, getUid());
+		dos.writeByte(getStatus());
+		dos.writeByte(getReasonCode());
+		SerializationUtils.writeUTF(dos, getReason());
+	}
+}
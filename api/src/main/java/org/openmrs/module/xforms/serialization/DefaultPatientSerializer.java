@@ -111,8 +111,7 @@ public class DefaultPatientSerializer {
 			}
 
 			dos.writeInt(patients.size());
-			for (Patient patient : patients)
-				serialize(patient, dos);
+			writePatients(patients, dos);
 
 			//serialize table fields
 			List<PatientTableField> fields = patientData.getFields();
@@ -138,11 +137,7 @@ public class DefaultPatientSerializer {
 				}
 				else{
 					dos.writeInt(fieldVals.size());
-					for (PatientTableFieldValue fieldVal : fieldVals) {
-						dos.writeInt(fieldVal.getFieldId());
-						dos.writeInt(fieldVal.getPatientId());
-						dos.writeUTF(fieldVal.getValue().toString());
-					}
+					writeFieldValues(fieldVals, dos);
 				}
 			}
 
@@ -152,8 +147,7 @@ public class DefaultPatientSerializer {
 				dos.writeInt(0); //medical history size
 			else{
 				dos.writeInt(medicalHistory.size());
-				for (PatientMedicalHistory history : medicalHistory)
-					history.write(dos);
+				writeMedicalHistory(medicalHistory, dos);
 			}
 
 		} catch (IOException e) {
@@ -161,6 +155,51 @@ public class DefaultPatientSerializer {
 		}
 	}
 
+	/**
+	 * Writes a list of patients to the stream, without the list size.
+	 * 
+	 * @param patients - the patients to write.
+	 * @param dos - the stream to write to.
+	 */
+	protected void writePatients(List<Patient> patients, DataOutputStream dos) throws IOException {
+		for (Patient patient : patients)
+			serialize(patient, dos);
+	}
+
+	/**
+	 * Writes a list of patient table field values to the stream, without the list size.
+	 * 
+	 * @param fieldVals - the field values to write.
+	 * @param dos - the stream to write to.
+	 */
+	protected void writeFieldValues(List<PatientTableFieldValue> fieldVals, DataOutputStream dos) throws IOException {
+		for (PatientTableFieldValue fieldVal : fieldVals)
+			serialize(fieldVal, dos);
+	}
+
+	/**
+	 * Writes a patient table field value to the stream.
+	 * 
+	 * @param fieldVal - the field value to write.
+	 * @param dos - the stream to write to.
+	 */
+	protected void serialize(PatientTableFieldValue fieldVal, DataOutputStream dos) throws IOException {
+		dos.writeInt(fieldVal.getFieldId());
+		dos.writeInt(fieldVal.getPatientId());
+		dos.writeUTF(fieldVal.getValue().toString());
+	}
+
+	/**
+	 * Writes a list of patient medical histories to the stream, without the list size.
+	 * 
+	 * @param medicalHistory - the medical histories to write.
+	 * @param dos - the stream to write to.
+	 */
+	protected void writeMedicalHistory(List<PatientMedicalHistory> medicalHistory, DataOutputStream dos) throws IOException {
+		for (PatientMedicalHistory history : medicalHistory)
+			history.write(dos);
+	}
+
 	/**
 	 * @see org.openmrs.module.xforms.SerializableData#deSerialize(java.io.DataInputStream,
 	 *      java.lang.Object)
@@ -0,0 +1,186 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.openmrs.Patient;
+import org.openmrs.module.xforms.model.PatientMedicalHistory;
+import org.openmrs.module.xforms.model.PatientTableFieldValue;
+
+/**
+ * Serializes patients in exactly the same format as {@link DefaultPatientSerializer}, but splits
+ * large lists into fixed size slices which are serialized into separate buffers on a thread pool
+ * and then written out in their original order. It is turned on by setting the
+ * {xforms.patientSerializer} global property to this class.
+ *
+ * Patient names and identifiers are loaded on the calling thread before the slices are handed
+ * over, such that the pool threads never need the hibernate session.
+ */
+public class ParallelPatientSerializer extends DefaultPatientSerializer {
+
+	/** The number of items serialized by one task. */
+	private static final int SLICE_SIZE = 200;
+
+	private static ExecutorService executor;
+
+	public ParallelPatientSerializer() {
+
+	}
+
+	/**
+	 * Stops the serializing threads. Serializing afterwards starts a new pool.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+				private int count = 0;
+
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "xforms-patient-serializer-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * @see org.openmrs.module.xforms.serialization.DefaultPatientSerializer#writePatients(java.util.List,
+	 *      java.io.DataOutputStream)
+	 */
+	@Override
+	protected void writePatients(List<Patient> patients, DataOutputStream dos) throws IOException {
+		if (patients.size() <= SLICE_SIZE) {
+			super.writePatients(patients, dos);
+			return;
+		}
+
+		//Load lazy properties here, since the hibernate session is not thread safe.
+		for (Patient patient : patients) {
+			patient.getPersonName();
+			patient.getPatientIdentifier();
+		}
+
+		writeSlices(patients, dos, new ItemWriter<Patient>() {
+
+			public void write(Patient patient, DataOutputStream dos) throws IOException {
+				serialize(patient, dos);
+			}
+		});
+	}
+
+	/**
+	 * @see org.openmrs.module.xforms.serialization.DefaultPatientSerializer#writeFieldValues(java.util.List,
+	 *      java.io.DataOutputStream)
+	 */
+	@Override
+	protected void writeFieldValues(List<PatientTableFieldValue> fieldVals, DataOutputStream dos) throws IOException {
+		writeSlices(fieldVals, dos, new ItemWriter<PatientTableFieldValue>() {
+
+			public void write(PatientTableFieldValue fieldVal, DataOutputStream dos) throws IOException {
+				serialize(fieldVal, dos);
+			}
+		});
+	}
+
+	/**
+	 * @see org.openmrs.module.xforms.serialization.DefaultPatientSerializer#writeMedicalHistory(java.util.List,
+	 *      java.io.DataOutputStream)
+	 */
+	@Override
+	protected void writeMedicalHistory(List<PatientMedicalHistory> medicalHistory, DataOutputStream dos)
+	                                                                                                     throws IOException {
+		writeSlices(medicalHistory, dos, new ItemWriter<PatientMedicalHistory>() {
+
+			public void write(PatientMedicalHistory history, DataOutputStream dos) throws IOException {
+				history.write(dos);
+			}
+		});
+	}
+
+	/**
+	 * Serializes a list in slices on the thread pool and writes the slices to the stream in the
+	 * order of the list.
+	 *
+	 * @param items the items to write.
+	 * @param dos the stream to write to.
+	 * @param writer writes one item.
+	 */
+	private <T> void writeSlices(List<T> items, DataOutputStream dos, final ItemWriter<T> writer) throws IOException {
+		if (items.size() <= SLICE_SIZE) {
+			for (T item : items)
+				writer.write(item, dos);
+			return;
+		}
+
+		ExecutorService executor = getExecutor();
+		List<Future<byte[]>> slices = new ArrayList<Future<byte[]>>();
+		for (int start = 0; start < items.size(); start += SLICE_SIZE) {
+			final List<T> slice = items.subList(start, Math.min(start + SLICE_SIZE, items.size()));
+			slices.add(executor.submit(new Callable<byte[]>() {
+
+				public byte[] call() throws IOException {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					DataOutputStream sliceDos = new DataOutputStream(baos);
+					for (T item : slice)
+						writer.write(item, sliceDos);
+					sliceDos.flush();
+					return baos.toByteArray();
+				}
+			}));
+		}
+
+		try {
+			for (Future<byte[]> slice : slices)
+				dos.write(slice.get());
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while serializing patients");
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause().getMessage());
+		}
+		finally {
+			for (Future<byte[]> slice : slices)
+				slice.cancel(true);
+		}
+	}
+
+	/**
+	 * Writes one item of a list to a stream.
+	 */
+	private interface ItemWriter<T> {
+
+		void write(T item, DataOutputStream dos) throws IOException;
+	}
+}
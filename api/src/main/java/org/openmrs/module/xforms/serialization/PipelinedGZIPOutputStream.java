@@ -0,0 +1,267 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.serialization;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A GZIP output stream which compresses on a separate thread. Written bytes are collected into
+ * blocks which are handed over to the compressing thread, such that the writer, for instance a
+ * serializer, goes on producing data while the earlier blocks are being compressed. The output is
+ * the same as that of a {@link GZIPOutputStream} given the same bytes.
+ *
+ * Compressing threads come from a shared pool with one thread per processor. When all of them are
+ * busy, a new stream simply compresses on the writing thread.
+ */
+public class PipelinedGZIPOutputStream extends OutputStream {
+
+	/** The size of the blocks handed over for compression. */
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/** The number of blocks which can wait for compression before the writer is blocked. */
+	private static final int MAX_PENDING_BLOCKS = 16;
+
+	/** Marks the end of the data. */
+	private static final byte[] END = new byte[0];
+
+	private static ThreadPoolExecutor executor;
+
+	private final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(MAX_PENDING_BLOCKS);
+
+	private final OutputStream os;
+
+	private final GZIPOutputStream gzip;
+
+	/** The compression running on the pool, or null if compressing on the writing thread. */
+	private final Future<?> compressor;
+
+	private volatile IOException error;
+
+	private volatile boolean aborted;
+
+	private boolean finished;
+
+	private byte[] buffer = new byte[BLOCK_SIZE];
+
+	private int count;
+
+	public PipelinedGZIPOutputStream(OutputStream os) throws IOException {
+		this.os = os;
+		this.gzip = new GZIPOutputStream(os);
+
+		Future<?> future = null;
+		try {
+			future = getExecutor().submit(new Runnable() {
+
+				public void run() {
+					compress();
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			//All compressing threads are busy.
+		}
+		compressor = future;
+	}
+
+	/**
+	 * Stops the compressing threads. Streams created afterwards start a new pool.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(0, Runtime.getRuntime().availableProcessors(), 60, TimeUnit.SECONDS,
+			        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+				        private int count = 0;
+
+				        public synchronized Thread newThread(Runnable runnable) {
+					        Thread thread = new Thread(runnable, "xforms-gzip-" + (++count));
+					        thread.setDaemon(true);
+					        return thread;
+				        }
+			        });
+		}
+		return executor;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buffer[count++] = (byte) b;
+		if (count == BLOCK_SIZE)
+			flushBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int size = Math.min(len, BLOCK_SIZE - count);
+			System.arraycopy(b, off, buffer, count, size);
+			count += size;
+			off += size;
+			len -= size;
+
+			if (count == BLOCK_SIZE)
+				flushBlock();
+		}
+	}
+
+	/**
+	 * Hands over the bytes written so far for compression.
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBlock();
+	}
+
+	/**
+	 * Finishes compression, without closing the underlying stream.
+	 */
+	public void finish() throws IOException {
+		if (finished)
+			return;
+
+		flushBlock();
+		end();
+
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Stops compression and drops any bytes which have not yet been compressed. What has already
+	 * been written to the underlying stream is not a complete GZIP stream and should be discarded.
+	 */
+	public void abort() throws IOException {
+		if (finished)
+			return;
+
+		aborted = true;
+		count = 0;
+		end();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		os.close();
+	}
+
+	private void flushBlock() throws IOException {
+		if (error != null)
+			throw error;
+
+		if (count == 0)
+			return;
+
+		if (compressor == null) {
+			gzip.write(buffer, 0, count);
+			count = 0;
+			return;
+		}
+
+		put(buffer.length == count ? buffer : copy(buffer, count));
+		buffer = new byte[BLOCK_SIZE];
+		count = 0;
+	}
+
+	private void end() throws IOException {
+		finished = true;
+
+		if (compressor == null) {
+			if (!aborted)
+				gzip.finish();
+			return;
+		}
+
+		put(END);
+
+		try {
+			compressor.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for compression to finish");
+		}
+		catch (ExecutionException ex) {
+			throw new IOException(ex.getCause().getMessage());
+		}
+	}
+
+	private void put(byte[] block) throws IOException {
+		try {
+			//The compressing thread can stop early, such as when the pool is shut down.
+			while (!blocks.offer(block, 1, TimeUnit.SECONDS)) {
+				if (compressor.isDone())
+					throw error != null ? error : new IOException("Compression stopped");
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to compress");
+		}
+	}
+
+	/**
+	 * Runs on the compressing thread. After a failure or an abort, blocks are still taken off the
+	 * queue, such that the writer never waits forever on a full queue.
+	 */
+	private void compress() {
+		try {
+			while (true) {
+				byte[] block = blocks.take();
+				if (block == END)
+					break;
+
+				if (error == null && !aborted) {
+					try {
+						gzip.write(block);
+					}
+					catch (IOException ex) {
+						error = ex;
+					}
+				}
+			}
+
+			if (error == null && !aborted)
+				gzip.finish();
+		}
+		catch (IOException ex) {
+			error = ex;
+		}
+		catch (InterruptedException ex) {
+			error = new InterruptedIOException("Compression interrupted");
+		}
+	}
+
+	private static byte[] copy(byte[] bytes, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, 0, copy, 0, length);
+		return copy;
+	}
+}
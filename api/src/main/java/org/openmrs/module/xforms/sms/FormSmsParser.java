@@ -73,7 +73,7 @@ public class FormSmsParser {
 
 	public void init(){
 		String val = Context.getAdministrationService().getGlobalProperty("xforms.smsFieldSepChar");
-		if(val != null)
+		if(val != null && val.length() > 0)
 			FIELD_SEP_CHAR = val;
 
 		val = Context.getAdministrationService().getGlobalProperty("xforms.smsValidateNamePassword");
@@ -104,30 +104,20 @@ public class FormSmsParser {
 		//settings or form definition. May introduce an unnecessary performance penalty.
 		init();
 
-		//First get off closing spaces if any.
-		text = text.trim();
+		List<SmsToken> tokens = SmsTokenizer.tokenize(text, FIELD_SEP_CHAR);
 
 		//Authenticate the user
-		text = authenticateUser(sender,text);
+		authenticateUser(sender,tokens.get(0),tokens.get(1));
 
 		//Create an epihandy form data object.
-		text = initFormData(text);
-
-		//Zero or more spaces, followed by one or more digits, followed by zero or more spaces, followed by equal sign
-		String[] values = text.split("\\s*\\d+\\s*=");
+		initFormData(tokens.get(2));
 
 		//Set the values from the sms
 		List<String> errors = new ArrayList<String>();
-		int pos,startindex = 0;
-		for(int index = 1; index < values.length; index++){
-			String value = values[index];
-			pos = text.indexOf(value, text.indexOf(FIELD_SEP_CHAR, startindex)+1);
-			String key = text.substring(startindex,pos);  //eg 1=,2=,3=,4=
-			startindex = pos + value.length();
-
-			QuestionData questionData = getQuestion(key,formData,errors);
+		for(SmsToken answer : tokens.subList(3, tokens.size())){
+			QuestionData questionData = getQuestion(answer,formData,errors);
 			if(questionData != null)
-				setQuestionAnswer(questionData,formData,value.trim(),errors);
+				setQuestionAnswer(questionData,formData,answer,errors);
 		}
 
 		//Turn off required attribute for patient id for the sake of thoses patients
@@ -170,22 +160,10 @@ public class FormSmsParser {
 		return EpihandyXform.updateXformModel(doc,formData);
 	}
 
-	private String authenticateUser(String sender, String text) throws Exception{
-
-		int pos = 0;
-
-		//if(smsValidateNamePassword){
-		pos = text.indexOf(' ');
-		if(pos < 0)
-			throw new Exception("Expected space after username");
+	private void authenticateUser(String sender, SmsToken usernameToken, SmsToken passwordToken) throws Exception{
 
-		String username = text.substring(0,pos).trim();
-
-		text = text.substring(pos).trim();
-		pos = text.indexOf(' ');
-		if(pos < 0)
-			throw new Exception("Expected space after password");
-		String password = text.substring(0,pos).trim();
+		String username = usernameToken.getValue();
+		String password = passwordToken.getValue();
 
 		try{
 			Context.authenticate(username, password);
@@ -206,26 +184,20 @@ public class FormSmsParser {
 
 			Context.setAuthenticatedUser(user);
 		}*/
-
-		return text.substring(pos).trim();
 	}
 
-	private String initFormData(String text) throws Exception{
-
-		//Get the form identifier.
-		int pos = text.indexOf(' ');
-		if(pos < 0)
-			throw new Exception("Expected space after form identifier");
+	private void initFormData(SmsToken formIdToken) throws Exception{
 
 		FormDef formDef = null;
-		String formid = text.substring(0,pos).trim();
+		String formid = formIdToken.getValue();
 		Integer formId = getFormId(formid);
 
 		if(formId != null){
+			long generation = SmsFormDefCache.getGeneration();
 			xform = ((XformsService)Context.getService(XformsService.class)).getXform(formId);
 			if(xform == null)
 				throw new Exception("No xform found with id="+formid);
-			formDef = EpihandyXform.fromXform2FormDef(new StringReader(xform.getXformXml()));
+			formDef = SmsFormDefCache.getFormDef(xform, generation);
 			/*formDef = EpihandyXform.fromXform2FormDef(new FileReader("testform.xml"));
 			xform = new Xform();
 			xform.setXformXml(XformsUtil.readFile("testform.xml"));*/
@@ -235,29 +207,19 @@ public class FormSmsParser {
 			throw new Exception("No form found with id="+formid);
 
 		formData = new org.fcitmuk.epihandy.FormData(formDef);
-
-		return text.substring(pos);
 	}
 
-	private QuestionData getQuestion(String idtext,org.fcitmuk.epihandy.FormData formData,List<String> errors) throws Exception{
-		/*String text = idtext.substring(0,idtext.indexOf('=')).trim();
-		int id = Integer.parseInt(text);
-		QuestionData questionData = formData.getQuestion((byte)id);
-		if(questionData == null)
-			throw new Exception("No form question found at position " + id);
-
-		return questionData;*/
-		
-		String text = idtext.substring(0,idtext.indexOf('=')).trim();
-		int id = Integer.parseInt(text);
-		QuestionData questionData = formData.getQuestion((byte)id);
+	private QuestionData getQuestion(SmsToken answer,org.fcitmuk.epihandy.FormData formData,List<String> errors) throws Exception{
+		int id = answer.getQuestionNumber();
+		QuestionData questionData = id <= Byte.MAX_VALUE ? formData.getQuestion((byte)id) : null;
 		if(questionData == null)
-			errors.add("Form has not question at position "+id);
+			errors.add("Form has no question " + id + " at position " + (answer.getQuestionNumberStart() + 1));
 		return questionData;
 	}
 
-	private void setQuestionAnswer(QuestionData questionData, org.fcitmuk.epihandy.FormData formData, String answer,List<String> errors){
+	private void setQuestionAnswer(QuestionData questionData, org.fcitmuk.epihandy.FormData formData, SmsToken answerToken,List<String> errors){
 		//TODO May need to handle dynamic optiondef
+		String answer = answerToken.getValue();
 		QuestionDef questionDef = questionData.getDef();
 		if(questionDef.getType() == QuestionDef.QTN_TYPE_LIST_EXCLUSIVE || questionDef.getType() == QuestionDef.QTN_TYPE_LIST_EXCLUSIVE_DYNAMIC){
 			questionData.setAnswer(getOptionData(questionDef,answer,errors));
@@ -265,9 +227,8 @@ public class FormSmsParser {
 		}
 		else if(questionDef.getType() == QuestionDef.QTN_TYPE_LIST_MULTIPLE){
 			Vector<OptionData> optionAnswers = new Vector<OptionData>();
-			String values[] = answer.split(" ");
-			for(int index = 0; index < values.length; index++)
-				optionAnswers.addElement(getOptionData(questionDef,values[index],errors));
+			for(String value : answerToken.getValues())
+				optionAnswers.addElement(getOptionData(questionDef,value,errors));
 			questionData.setAnswer(optionAnswers);
 		}
 		else if(questionDef.getType() == QuestionDef.QTN_TYPE_BOOLEAN)
@@ -293,7 +254,7 @@ public class FormSmsParser {
 			//Since we have an out of range error message,we do not need to also report the 
 			//required error, hence making the error report sms as small as possible.
 			//This will not result into bugs only on condition that on each sms received,
-			//a new formdef is constructed.
+			//a new formdef is constructed, which SmsFormDefCache does.
 			questionDef.setMandatory(false);
 			
 			return null;
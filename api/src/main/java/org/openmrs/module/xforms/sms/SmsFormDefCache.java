@@ -0,0 +1,146 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StringReader;
+
+import org.fcitmuk.epihandy.FormDef;
+import org.fcitmuk.epihandy.xform.EpihandyXform;
+import org.openmrs.module.xforms.SharedItemsetManager;
+import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.util.LruCache;
+
+/**
+ * Caches the form definitions used to parse sms form data, such that each sms does not have to
+ * build a form definition from the xform xml. Definitions are kept in their compact binary form,
+ * which holds the question order, data types and bindings, and a new {@link FormDef} is read from
+ * it for each sms. This is because parsing an sms changes the definition, for instance by turning
+ * off the required flag of some questions.
+ *
+ * Entries are keyed by form id and versioned by the xform xml they were compiled from, since not
+ * every change of an xform sets its date changed. They are also removed when an xform is saved or
+ * deleted, now and again once the change is committed. The cache is bounded by the number of
+ * definitions and their size.
+ */
+public class SmsFormDefCache {
+
+	/** The most form definitions kept. */
+	private static final int MAX_SIZE = 200;
+
+	/** The most bytes of form definitions, and characters of the xform xml they were compiled from, kept. */
+	private static final long MAX_WEIGHT = 16L * 1024 * 1024;
+
+	private static final LruCache<Integer, CachedFormDef> cache = new LruCache<Integer, CachedFormDef>("smsFormDefs",
+	        MAX_SIZE, MAX_WEIGHT) {
+
+		@Override
+		protected long weigh(CachedFormDef cachedFormDef) {
+			return cachedFormDef.data.length + cachedFormDef.xformXml.length();
+		}
+	};
+
+	/**
+	 * Gets the current generation, to pass to {@link #getFormDef(Xform, long)}, before reading the
+	 * xform.
+	 */
+	public static long getGeneration() {
+		return cache.getGeneration();
+	}
+
+	/**
+	 * Gets a new form definition for an xform.
+	 *
+	 * @param xform the xform.
+	 * @param generation the generation from before the xform was read, such that a definition of
+	 *            an xform which changed since is not cached.
+	 * @return the form definition.
+	 * @throws Exception
+	 */
+	public static FormDef getFormDef(final Xform xform, long generation) throws Exception {
+		CachedFormDef cachedFormDef = cache.get(xform.getFormId(), new LruCache.Predicate<CachedFormDef>() {
+
+			public boolean apply(CachedFormDef cached) {
+				return cached.isFor(xform.getXformXml());
+			}
+		});
+
+		if (cachedFormDef == null) {
+			cachedFormDef = compile(xform);
+			cache.put(xform.getFormId(), cachedFormDef, generation);
+		}
+
+		FormDef formDef = new FormDef();
+		formDef.read(new DataInputStream(new ByteArrayInputStream(cachedFormDef.data)));
+		return formDef;
+	}
+
+	/**
+	 * Removes the cached form definition of a form now and again once the current transaction
+	 * completes.
+	 *
+	 * @param formId the form id.
+	 */
+	public static void removeAfterCommit(Integer formId) {
+		cache.removeAfterCommit(formId);
+	}
+
+	/**
+	 * Removes all cached form definitions.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Gets the underlying cache, for reporting its statistics.
+	 */
+	public static LruCache<Integer, CachedFormDef> getCache() {
+		return cache;
+	}
+
+	private static CachedFormDef compile(Xform xform) throws Exception {
+		FormDef formDef = EpihandyXform.fromXform2FormDef(new StringReader(SharedItemsetManager.fillItemsets(xform.getXformXml())));
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		formDef.write(dos);
+		dos.flush();
+
+		return new CachedFormDef(xform.getXformXml(), baos.toByteArray());
+	}
+
+	/**
+	 * Holds a compiled form definition together with the xform xml it was compiled from.
+	 */
+	public static class CachedFormDef {
+
+		private final String xformXml;
+
+		private final byte[] data;
+
+		CachedFormDef(String xformXml, byte[] data) {
+			this.xformXml = xformXml;
+			this.data = data;
+		}
+
+		/**
+		 * Checks if this definition was compiled from some xform xml. The xml is usually the same
+		 * string, shared through the xform cache, so it is mostly not compared character by
+		 * character.
+		 */
+		boolean isFor(String xformXml) {
+			return this.xformXml.equals(xformXml);
+		}
+	}
+}
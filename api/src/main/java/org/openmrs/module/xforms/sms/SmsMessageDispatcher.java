@@ -0,0 +1,198 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Processes sms messages on a pool of threads. Messages from different senders are processed
+ * concurrently, while those from the same sender are processed one at a time in the order they
+ * were submitted, such that for instance a new patient form is processed before the encounter
+ * forms which follow it.
+ *
+ * The number of messages waiting to be processed is bounded. Messages submitted beyond that are
+ * rejected, rather than letting a burst of messages use up the memory.
+ *
+ * @author Daniel
+ *
+ */
+public class SmsMessageDispatcher {
+
+	/**
+	 * Processes one sms message.
+	 */
+	public interface MessageProcessor {
+
+		/**
+		 * Processes an sms message.
+		 *
+		 * @param sender the phone number of the sender.
+		 * @param text the message text.
+		 * @return the reply to send back, or null if none.
+		 */
+		String processMessage(String sender, String text);
+	}
+
+	private final MessageProcessor processor;
+
+	private final ExecutorService executor;
+
+	/** Permits for the messages which can be waiting or being processed. */
+	private final Semaphore admission;
+
+	/** The queues of senders which have messages waiting or being processed. */
+	private final Map<String, SenderQueue> senders = new HashMap<String, SenderQueue>();
+
+	/**
+	 * Creates a new dispatcher.
+	 *
+	 * @param processor the processor of each message.
+	 * @param poolSize the number of threads processing messages.
+	 * @param maxPendingMessages the maximum number of messages waiting or being processed.
+	 */
+	public SmsMessageDispatcher(MessageProcessor processor, int poolSize, int maxPendingMessages) {
+		this.processor = processor;
+		this.admission = new Semaphore(maxPendingMessages);
+		this.executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+
+			private int count = 0;
+
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "xforms-sms-" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues an sms message for processing.
+	 *
+	 * @param sender the phone number of the sender.
+	 * @param text the message text.
+	 * @return the reply to the message, available once it has been processed.
+	 * @throws RejectedExecutionException if too many messages are already waiting.
+	 */
+	public Future<String> submit(final String sender, final String text) {
+		if (!admission.tryAcquire())
+			throw new RejectedExecutionException("Too many sms messages waiting to be processed");
+
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+
+			public String call() {
+				return processor.processMessage(sender, text);
+			}
+		});
+
+		String key = sender != null ? sender : "";
+		SenderQueue queue;
+		boolean schedule = false;
+		synchronized (senders) {
+			queue = senders.get(key);
+			if (queue == null) {
+				queue = new SenderQueue(key);
+				senders.put(key, queue);
+				schedule = true;
+			}
+			queue.tasks.add(task);
+		}
+
+		if (schedule) {
+			try {
+				executor.execute(queue);
+			}
+			catch (RejectedExecutionException ex) {
+				synchronized (senders) {
+					senders.remove(key);
+				}
+				admission.release();
+				throw ex;
+			}
+		}
+
+		return task;
+	}
+
+	/**
+	 * Gets the number of messages waiting or being processed.
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		synchronized (senders) {
+			for (SenderQueue queue : senders.values())
+				count += queue.tasks.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Stops accepting messages. Those already submitted are still processed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * The messages of one sender. It processes one message at a time and then goes back to the
+	 * end of the executor queue if the sender has more, such that a sender with many messages
+	 * does not hold up the others.
+	 */
+	private class SenderQueue implements Runnable {
+
+		private final String sender;
+
+		/** The messages of this sender, with the one being processed at the head. */
+		private final LinkedList<FutureTask<String>> tasks = new LinkedList<FutureTask<String>>();
+
+		SenderQueue(String sender) {
+			this.sender = sender;
+		}
+
+		public void run() {
+			FutureTask<String> task;
+			synchronized (senders) {
+				task = tasks.peek();
+			}
+
+			try {
+				task.run();
+			}
+			finally {
+				admission.release();
+			}
+
+			synchronized (senders) {
+				tasks.poll();
+				if (tasks.isEmpty()) {
+					senders.remove(sender);
+					return;
+				}
+			}
+
+			try {
+				executor.execute(this);
+			}
+			catch (RejectedExecutionException ex) {
+				//Shutting down, so finish this sender's messages on the current thread.
+				run();
+			}
+		}
+	}
+}
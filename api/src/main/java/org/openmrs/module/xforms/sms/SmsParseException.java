@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import org.openmrs.module.xforms.XformsException;
+
+/**
+ * Thrown when the text of an sms does not follow the sms form data format. The message, which is
+ * sent back to the sender, includes the position in the text where the problem was found.
+ */
+public class SmsParseException extends XformsException {
+
+	public static final long serialVersionUID = 121212344443790L;
+
+	/** The position in the sms text where the problem was found. */
+	private final int offset;
+
+	public SmsParseException(String message, int offset) {
+		super(message + " at position " + (offset + 1));
+		this.offset = offset;
+	}
+
+	/**
+	 * Gets the zero based position in the sms text where the problem was found.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A piece of sms form data text as found by {@link SmsTokenizer}, together with its position in
+ * the text.
+ */
+public class SmsToken {
+
+	/** The name of the user sending the data. */
+	public static final byte TYPE_USERNAME = 1;
+
+	/** The password of the user sending the data. */
+	public static final byte TYPE_PASSWORD = 2;
+
+	/** The id of the form the data is for. */
+	public static final byte TYPE_FORM_ID = 3;
+
+	/** The answer to a question, as in 2=67.8 */
+	public static final byte TYPE_ANSWER = 4;
+
+	private final byte type;
+
+	private final String value;
+
+	private final int start;
+
+	private final int end;
+
+	private final int questionNumber;
+
+	private final int questionNumberStart;
+
+	public SmsToken(byte type, String value, int start, int end) {
+		this(type, value, start, end, -1, -1);
+	}
+
+	public SmsToken(byte type, String value, int start, int end, int questionNumber, int questionNumberStart) {
+		this.type = type;
+		this.value = value;
+		this.start = start;
+		this.end = end;
+		this.questionNumber = questionNumber;
+		this.questionNumberStart = questionNumberStart;
+	}
+
+	/**
+	 * Gets one of the TYPE_XXX constants.
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the token text, without surrounding spaces.
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * Gets the zero based position in the sms text where the value starts.
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * Gets the zero based position in the sms text just after the value.
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Gets the position of the question in the form, for answer tokens.
+	 */
+	public int getQuestionNumber() {
+		return questionNumber;
+	}
+
+	/**
+	 * Gets the zero based position in the sms text of the question number, for answer tokens.
+	 */
+	public int getQuestionNumberStart() {
+		return questionNumberStart;
+	}
+
+	/**
+	 * Gets the space separated values of an answer, as given for multiple select questions.
+	 *
+	 * @return the values.
+	 */
+	public List<String> getValues() {
+		List<String> values = new ArrayList<String>();
+		int valueStart = -1;
+		for (int index = 0; index <= value.length(); index++) {
+			if (index == value.length() || Character.isWhitespace(value.charAt(index))) {
+				if (valueStart >= 0)
+					values.add(value.substring(valueStart, index));
+				valueStart = -1;
+			}
+			else if (valueStart < 0)
+				valueStart = index;
+		}
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return (questionNumber >= 0 ? questionNumber + "=" : "") + value + "@" + start;
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the text of an sms with form data into tokens, in a single pass over the text.
+ * The text has the format: username password formid 1=answer 2=answer ...
+ * for example: guyzb daniel123 15 1=Daniel Kayiwa 2=67.8 3=m 4=1 3 4
+ *
+ * An answer goes on up to the next question number followed by the field separator, and so
+ * may contain spaces, as is the case for names and multiple select answers.
+ */
+public class SmsTokenizer {
+
+	/** The largest number of digits a question number can have. */
+	private static final int MAX_QUESTION_NUMBER_DIGITS = 9;
+
+	/**
+	 * Splits sms text into tokens.
+	 *
+	 * @param text the sms text.
+	 * @param fieldSeparator the separator between question numbers and answers.
+	 * @return the username, password and form id tokens, followed by the answer tokens in the
+	 *         order they appear in the text.
+	 * @throws SmsParseException if the text is not in the expected format.
+	 */
+	public static List<SmsToken> tokenize(String text, String fieldSeparator) throws SmsParseException {
+		List<SmsToken> tokens = new ArrayList<SmsToken>();
+
+		int pos = skipWhitespace(text, 0);
+		pos = addWord(text, pos, SmsToken.TYPE_USERNAME, "Expected username", tokens);
+		pos = addWord(text, pos, SmsToken.TYPE_PASSWORD, "Expected password", tokens);
+		pos = addWord(text, pos, SmsToken.TYPE_FORM_ID, "Expected form identifier", tokens);
+
+		int length = text.length();
+		int separatorLength = fieldSeparator.length();
+		char firstSeparatorChar = fieldSeparator.charAt(0);
+
+		//Where the text after the last question number and separator starts.
+		int segmentStart = pos;
+		int questionNumber = -1;
+		int questionNumberStart = -1;
+
+		for (int index = pos; index < length; index++) {
+			if (text.charAt(index) != firstSeparatorChar || !text.startsWith(fieldSeparator, index))
+				continue;
+
+			//Look back for the question number before the separator, allowing spaces around it.
+			int back = skipWhitespaceBack(text, index - 1, segmentStart);
+			int digitsEnd = back + 1;
+			while (back >= segmentStart && isDigit(text.charAt(back)))
+				back--;
+			int digitsStart = back + 1;
+
+			//A separator without a number before it is part of an answer.
+			if (digitsStart == digitsEnd)
+				continue;
+
+			int markerStart = skipWhitespaceBack(text, back, segmentStart) + 1;
+			addAnswer(text, segmentStart, markerStart, questionNumber, questionNumberStart, tokens);
+
+			if (digitsEnd - digitsStart > MAX_QUESTION_NUMBER_DIGITS)
+				throw new SmsParseException("Question number is too large", digitsStart);
+
+			questionNumber = Integer.parseInt(text.substring(digitsStart, digitsEnd));
+			questionNumberStart = digitsStart;
+			segmentStart = index + separatorLength;
+			index = segmentStart - 1;
+		}
+
+		addAnswer(text, segmentStart, length, questionNumber, questionNumberStart, tokens);
+
+		return tokens;
+	}
+
+	/**
+	 * Adds a token for a word which ends at the next space or at the end of the text.
+	 *
+	 * @return the position of the next word.
+	 */
+	private static int addWord(String text, int start, byte type, String error, List<SmsToken> tokens) {
+		int end = start;
+		while (end < text.length() && !Character.isWhitespace(text.charAt(end)))
+			end++;
+
+		if (end == start)
+			throw new SmsParseException(error, start);
+
+		tokens.add(new SmsToken(type, text.substring(start, end), start, end));
+		return skipWhitespace(text, end);
+	}
+
+	/**
+	 * Adds the answer found between two question numbers. Text before the first question number
+	 * can only be spaces.
+	 */
+	private static void addAnswer(String text, int start, int end, int questionNumber, int questionNumberStart,
+	                              List<SmsToken> tokens) {
+		int valueStart = skipWhitespace(text, start);
+		int valueEnd = skipWhitespaceBack(text, end - 1, valueStart) + 1;
+
+		if (questionNumber < 0) {
+			if (valueStart < valueEnd)
+				throw new SmsParseException("Expected question number", valueStart);
+			return;
+		}
+
+		if (valueStart >= valueEnd)
+			throw new SmsParseException("Expected an answer for question " + questionNumber, start);
+
+		tokens.add(new SmsToken(SmsToken.TYPE_ANSWER, text.substring(valueStart, valueEnd), valueStart, valueEnd,
+		        questionNumber, questionNumberStart));
+	}
+
+	private static int skipWhitespace(String text, int pos) {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * Moves back over spaces, without going before a given position.
+	 *
+	 * @return the position of the last character which is not a space, or one before the limit.
+	 */
+	private static int skipWhitespaceBack(String text, int pos, int limit) {
+		while (pos >= limit && Character.isWhitespace(text.charAt(pos)))
+			pos--;
+		return pos;
+	}
+
+	private static boolean isDigit(char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+}
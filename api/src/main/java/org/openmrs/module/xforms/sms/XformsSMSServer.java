@@ -14,12 +14,14 @@ package org.openmrs.module.xforms.sms;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.fcitmuk.communication.sms.SMSServer;
 import org.fcitmuk.communication.sms.SMSServerListener;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.XformConstants;
 import org.openmrs.module.xforms.XformsServer;
 import org.openmrs.module.xforms.download.XformDataUploadManager;
 
@@ -36,20 +38,31 @@ public class XformsSMSServer  implements SMSServerListener{
 	
 	private SMSServer smsServer;
 	private XformsServer xformsServer;
-	private FormSmsParser formsSmsParser;
+	
+	/** Processes text sms messages concurrently, keeping those of each sender in order. */
+	private SmsMessageDispatcher dispatcher;
 	
 	
 	/** Flag to determine whether the sms sender wants success reports. */
-	private boolean smsSendSuccessReports = true;
+	private volatile boolean smsSendSuccessReports = true;
 	
 	/** Flag to determine if the sms sender wants failure reports. */
-	private boolean smsSendFailureReports = true;
+	private volatile boolean smsSendFailureReports = true;
 	
 	 	
 	public XformsSMSServer(String id,String comPort, int msgDstPort, int msgSrcPort, int baudRate, String manufacturer, String model){
 		smsServer = new SMSServer(id,comPort,msgDstPort,msgSrcPort,baudRate,manufacturer,model,this);
 		xformsServer = new XformsServer();
-		formsSmsParser = new FormSmsParser();
+		
+		dispatcher = new SmsMessageDispatcher(new SmsMessageDispatcher.MessageProcessor() {
+			public String processMessage(String sender, String text) {
+				String reply = processSms(sender, text);
+				if(reply != null)
+					sendReply(sender, reply);
+				return reply;
+			}
+		}, getIntegerSetting(XformConstants.GLOBAL_PROP_KEY_SMS_WORKER_THREADS, XformConstants.DEFAULT_SMS_WORKER_THREADS),
+		getIntegerSetting(XformConstants.GLOBAL_PROP_KEY_SMS_MAX_PENDING_MESSAGES, XformConstants.DEFAULT_SMS_MAX_PENDING_MESSAGES));
 	}
 	
 	public void start(){
@@ -59,6 +72,8 @@ public class XformsSMSServer  implements SMSServerListener{
 	public void stop(){
 		if(smsServer != null)
 			smsServer.stop();
+		
+		dispatcher.shutdown();
 	}
 	
 	public void processMessage(DataInputStream dis, DataOutputStream dos){
@@ -75,7 +90,30 @@ public class XformsSMSServer  implements SMSServerListener{
 		}
 	}
 	
+	/**
+	 * Called by the sms server for each text sms received. The message is handed over to the
+	 * dispatcher and this returns at once, without a reply, such that the sms server can go on
+	 * receiving messages. The report of the message is sent later by {@link #sendReply}.
+	 */
 	public String processMessage(String sender, String text){
+		try{
+			dispatcher.submit(sender, text);
+		}
+		catch(RejectedExecutionException ex){
+			log.warn("Rejected sms from " + sender + ": " + ex.getMessage());
+			if(smsSendFailureReports)
+				return "Server is busy. Please resend the message later.";
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Processes a text sms on a dispatcher thread.
+	 * 
+	 * @return the report to send back to the sender, or null if none.
+	 */
+	private String processSms(String sender, String text){
 		String reply = null;
 
 		try{
@@ -83,7 +121,8 @@ public class XformsSMSServer  implements SMSServerListener{
 
 			loadSettings();
 			
-			XformDataUploadManager.queueForm(formsSmsParser.sms2FormXml(sender, text),true,null);
+			//The parser keeps per message state and hence a new one for each message.
+			XformDataUploadManager.queueForm(new FormSmsParser().sms2FormXml(sender, text),true,null);
 
 			/*FormSmsArchive formSmsArchive = new FormSmsArchive(new FormDataArchive(formData));
 			formSmsArchive.setSender(sender);
@@ -122,6 +161,18 @@ public class XformsSMSServer  implements SMSServerListener{
 		return reply;
 	}
 	
+	/**
+	 * Sends the report of a processed message back to its sender through the sms server.
+	 */
+	private void sendReply(String sender, String reply){
+		try{
+			smsServer.sendMessage(sender, reply);
+		}
+		catch(Exception ex){
+			log.error("Failed to send sms reply to " + sender, ex);
+		}
+	}
+	
 	public void errorOccured(String errorMessage, Exception e){
 		log.error(errorMessage, e);
 	}
@@ -135,4 +186,17 @@ public class XformsSMSServer  implements SMSServerListener{
 		if("false".equalsIgnoreCase(val))
 			smsSendFailureReports = false;
 	}
+	
+	private int getIntegerSetting(String name, String defaultValue){
+		String val = Context.getAdministrationService().getGlobalProperty(name, defaultValue);
+		try{
+			int value = Integer.parseInt(val.trim());
+			if(value > 0)
+				return value;
+		}
+		catch(NumberFormatException ex){}
+		
+		log.error("Invalid value for " + name + ": " + val);
+		return Integer.parseInt(defaultValue);
+	}
 }
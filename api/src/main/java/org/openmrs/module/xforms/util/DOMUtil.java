@@ -13,7 +13,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.openmrs.api.context.Context;
-import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.XformBuilder;
 import org.openmrs.module.xforms.XformConstants;
 import org.openmrs.module.xforms.XformsService;
@@ -109,12 +108,12 @@ public class DOMUtil {
 	}
 	
 	public static List<String> getModelComplexObsNodeNames(int id) throws Exception{
-		Xform xform = ((XformsService)Context.getService(XformsService.class)).getXform(id);
+		String xml = ((XformsService)Context.getService(XformsService.class)).getXformXml(id);
 		
-		if(xform == null)
+		if(xml == null)
 			return new ArrayList<String>(); //could be a new patient xform which may not be saved yet.
 		
-		Document doc = XformsUtil.fromString2Doc(xform.getXformXml());
+		Document doc = XformsUtil.fromString2Doc(xml);
 
 		return getXformComplexObsNodeNames(doc.getDocumentElement());
 	}
@@ -0,0 +1,151 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.xforms.XformsActivator;
+
+/**
+ * Runs short tasks as the daemon user on a few long lived daemon threads. Unlike
+ * {@link XformsUtil#runAsDaemon(Runnable)}, which starts a daemon thread for every task, it suits
+ * callers on hot paths, like checking the sync token of every connection.
+ *
+ * The threads are started when first needed. The hibernate session of a thread is cleared after
+ * each task, such that tasks do not see entities loaded by earlier ones.
+ */
+public class DaemonExecutor {
+
+	private static final Log log = LogFactory.getLog(DaemonExecutor.class);
+
+	/** The number of daemon threads. */
+	private static final int THREAD_COUNT = 2;
+
+	/** The seconds to wait for a task to be run. */
+	private static final long TIMEOUT = 30;
+
+	private static final BlockingQueue<FutureTask<?>> tasks = new LinkedBlockingQueue<FutureTask<?>>();
+
+	private static final List<Thread> threads = new ArrayList<Thread>();
+
+	/**
+	 * Runs a task as the daemon user and waits for its result.
+	 *
+	 * @param callable the task.
+	 * @return the result of the task.
+	 * @throws IllegalStateException if the module has no daemon token.
+	 * @throws Exception thrown by the task, or when it times out or the wait is interrupted.
+	 */
+	public static <T> T call(Callable<T> callable) throws Exception {
+		startThreads();
+
+		FutureTask<T> task = new FutureTask<T>(callable);
+		tasks.add(task);
+
+		try {
+			return task.get(TIMEOUT, TimeUnit.SECONDS);
+		}
+		catch (TimeoutException ex) {
+			task.cancel(true);
+			throw ex;
+		}
+		catch (InterruptedException ex) {
+			task.cancel(true);
+			Thread.currentThread().interrupt();
+			throw ex;
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof Exception)
+				throw (Exception) ex.getCause();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Stops the daemon threads and cancels the tasks which have not yet run. The threads are
+	 * started again by the next task.
+	 */
+	public static synchronized void shutdown() {
+		for (Thread thread : threads)
+			thread.interrupt();
+		threads.clear();
+
+		List<FutureTask<?>> pending = new ArrayList<FutureTask<?>>();
+		tasks.drainTo(pending);
+		for (FutureTask<?> task : pending)
+			task.cancel(false);
+	}
+
+	/**
+	 * Starts daemon threads in place of those which are not running.
+	 */
+	private static synchronized void startThreads() {
+		Iterator<Thread> iterator = threads.iterator();
+		while (iterator.hasNext()) {
+			if (!iterator.next().isAlive())
+				iterator.remove();
+		}
+
+		if (threads.size() == THREAD_COUNT)
+			return;
+
+		DaemonToken token = XformsActivator.getDaemonToken();
+		if (token == null)
+			throw new IllegalStateException("The xforms module has no daemon token");
+
+		while (threads.size() < THREAD_COUNT)
+			threads.add(Daemon.runInDaemonThread(new Worker(), token));
+	}
+
+	/**
+	 * Runs tasks until its thread is interrupted.
+	 */
+	private static class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (!Thread.currentThread().isInterrupted()) {
+				FutureTask<?> task;
+				try {
+					task = tasks.take();
+				}
+				catch (InterruptedException ex) {
+					return;
+				}
+
+				try {
+					task.run();
+				}
+				finally {
+					try {
+						Context.clearSession();
+					}
+					catch (Exception ex) {
+						log.error("Failed to clear the session of a daemon thread", ex);
+					}
+				}
+			}
+		}
+	}
+}
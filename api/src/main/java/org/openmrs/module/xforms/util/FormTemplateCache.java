@@ -0,0 +1,120 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.util.Date;
+
+import org.openmrs.Form;
+import org.openmrs.api.context.Context;
+
+/**
+ * A least recently used cache of the xml templates and schemas generated from the fields of
+ * forms, which are otherwise generated by walking the whole form structure every time an xform
+ * is built or patient table fields are looked up.
+ *
+ * Entries are keyed by form id, the date the form was last changed, its build, the locale of the
+ * concept names and the server url in the template. They are removed when the fields of a form
+ * change, and all are cleared when a field or concept changes, which can be on many forms.
+ */
+public class FormTemplateCache {
+
+	/** The kind of entry for xml templates. */
+	public static final String TEMPLATE = "template";
+
+	/** The kind of entry for schemas. */
+	public static final String SCHEMA = "schema";
+
+	/** The most templates and schemas kept. */
+	private static final int MAX_SIZE = 500;
+
+	private static final LruCache<String, String> cache = new LruCache<String, String>("formTemplates", MAX_SIZE);
+
+	/**
+	 * Gets the key of the template or schema of a form.
+	 *
+	 * @param kind {@link #TEMPLATE} or {@link #SCHEMA}.
+	 * @param form the form.
+	 * @param serverUrl the server url the template or schema refers to.
+	 * @return the key, or null if the form is not saved and should not be cached.
+	 */
+	public static String getKey(String kind, Form form, String serverUrl) {
+		if (form.getFormId() == null)
+			return null;
+
+		Date date = form.getDateChanged() != null ? form.getDateChanged() : form.getDateCreated();
+		return kind + "\n" + form.getFormId() + "\n" + (date != null ? date.getTime() : 0) + "\n" + form.getBuild()
+		        + "\n" + Context.getLocale() + "\n" + serverUrl;
+	}
+
+	/**
+	 * Gets a cached template or schema.
+	 *
+	 * @param key the key.
+	 * @return the template or schema, or null if not cached.
+	 */
+	public static String get(String key) {
+		return cache.get(key);
+	}
+
+	/**
+	 * Gets the current generation, to pass to {@link #put(String, String, long)} before
+	 * generating a template or schema.
+	 */
+	public static long getGeneration() {
+		return cache.getGeneration();
+	}
+
+	/**
+	 * Caches a template or schema, unless something was removed since it was generated.
+	 *
+	 * @param key the key.
+	 * @param text the template or schema.
+	 * @param readGeneration the generation before it was generated.
+	 */
+	public static void put(String key, String text, long readGeneration) {
+		cache.put(key, text, readGeneration);
+	}
+
+	/**
+	 * Removes the template and schema of a form now and again once the current transaction
+	 * completes, such that one generated by another transaction before the commit is not kept.
+	 *
+	 * @param formId the form id.
+	 */
+	public static void removeAfterCommit(Integer formId) {
+		final String templatePrefix = TEMPLATE + "\n" + formId + "\n";
+		final String schemaPrefix = SCHEMA + "\n" + formId + "\n";
+
+		cache.removeKeysAfterCommit(new LruCache.Predicate<String>() {
+
+			public boolean apply(String key) {
+				return key.startsWith(templatePrefix) || key.startsWith(schemaPrefix);
+			}
+		});
+	}
+
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Clears the cache now and again once the current transaction completes.
+	 */
+	public static void clearAfterCommit() {
+		cache.clearAfterCommit();
+	}
+
+	/**
+	 * Gets the underlying cache, for reporting its statistics.
+	 */
+	public static LruCache<String, String> getCache() {
+		return cache;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Whether openmrs is gzipping responses, such that the xforms filter does not gzip them again.
+ * The global property is read once, and again only after it changes. This listener is registered
+ * in the module's application context, and the value is kept statically for the filter, which is
+ * made by the servlet container rather than by spring.
+ */
+public class GzipSetting implements GlobalPropertyListener {
+
+	private static final Log log = LogFactory.getLog(GzipSetting.class);
+
+	/** Whether openmrs is gzipping responses, or null if not yet read. */
+	private static volatile Boolean openmrsZipping;
+
+	/**
+	 * Checks if openmrs is gzipping responses.
+	 *
+	 * @return true if gzip.enabled is true, else false, also when it can not be read.
+	 */
+	public static boolean isOpenmrsZipping() {
+		Boolean zipping = openmrsZipping;
+		if (zipping != null)
+			return zipping;
+
+		try {
+			String gzipEnabled = Context.getAdministrationService().getGlobalProperty(
+			    OpenmrsConstants.GLOBAL_PROPERTY_GZIP_ENABLED, "");
+
+			zipping = gzipEnabled.toLowerCase().equals("true");
+			openmrsZipping = zipping;
+			return zipping;
+		}
+		catch (Exception ex) {
+			log.debug("Could not read " + OpenmrsConstants.GLOBAL_PROPERTY_GZIP_ENABLED, ex);
+		}
+
+		return false;
+	}
+
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	@Override
+	public void globalPropertyChanged(GlobalProperty gp) {
+		openmrsZipping = null;
+	}
+
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	@Override
+	public void globalPropertyDeleted(String gpName) {
+		openmrsZipping = null;
+	}
+
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	@Override
+	public boolean supportsPropertyName(String gpName) {
+		return OpenmrsConstants.GLOBAL_PROPERTY_GZIP_ENABLED.equals(gpName);
+	}
+}
@@ -9,9 +9,11 @@
  */
 package org.openmrs.module.xforms.util;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.openmrs.module.xforms.xpath.XPathExpression;
+import org.openmrs.module.xforms.xpath.CompiledXPath;
+import org.openmrs.module.xforms.xpath.XPathContext;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -68,6 +70,18 @@ public class LanguageUtil {
 	 * @return the new document xml after its text has been replaced with that from the language document.
 	 */
 	public static String translate(Document doc, Element parentLangNode){
+		return translate(doc, getTexts(parentLangNode));
+	}
+
+	/**
+	 * Gets the localized text of a language node, as xpath and value pairs, which, unlike the
+	 * node, can be kept and shared by threads.
+	 * 
+	 * @param parentLangNode the parent node of the language text.
+	 * @return the xpath and value pairs, in document order.
+	 */
+	public static List<String[]> getTexts(Element parentLangNode){
+		List<String[]> texts = new ArrayList<String[]>();
 		NodeList nodes = parentLangNode.getChildNodes();
 		for(int index = 0; index < nodes.getLength(); index++){
 			Node node = nodes.item(index);
@@ -79,7 +93,25 @@ public class LanguageUtil {
 			if(xpath == null || value == null)
 				continue;
 
-			Vector<?> result = new XPathExpression(doc, xpath).getResult();
+			texts.add(new String[]{xpath, value});
+		}
+		return texts;
+	}
+
+	/**
+	 * Replaces localizable text in am xml document with localized text.
+	 * 
+	 * @param doc the document whose localizable text to replace.
+	 * @param texts the xpath and value pairs of the localized text, as got from {@link #getTexts(Element)}.
+	 * @return the new document xml after its text has been replaced.
+	 */
+	public static String translate(Document doc, List<String[]> texts){
+		XPathContext context = new XPathContext();
+		for(String[] text : texts){
+			String xpath = text[0];
+			String value = text[1];
+
+			List<Object> result = CompiledXPath.compile(xpath).evaluate(doc, context);
 			if(result != null){
 
 				//TODO We need to uniquely identify nodes and so each xpath should
@@ -100,9 +132,14 @@ public class LanguageUtil {
 						if(pos > 0 && xpath.indexOf('=',pos) < 0){
 							String attributeName = xpath.substring(pos + 1, xpath.indexOf(']',pos));
 							targetNode.setAttribute(attributeName, value);
+							context.attributeChanged(attributeName);
 						}
-						else
+						else{
+							//Replacing the text of an element with child elements removes them.
+							if(hasChildElements(targetNode))
+								context.childrenChanged();
 							targetNode.setTextContent(value);
+						}
 					}
 				}
 			}
@@ -110,6 +147,14 @@ public class LanguageUtil {
 		return XformsUtil.doc2String(doc);
 	}
 
+	private static boolean hasChildElements(Element element){
+		for(Node child = element.getFirstChild(); child != null; child = child.getNextSibling()){
+			if(child.getNodeType() == Node.ELEMENT_NODE)
+				return true;
+		}
+		return false;
+	}
+
 	public static Element getLocaleTextNode(String localeXml, String localeKey) throws Exception {
 
 		Document localeDoc = XformsUtil.fromString2Doc(localeXml);
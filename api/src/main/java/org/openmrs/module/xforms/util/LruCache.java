@@ -0,0 +1,339 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A least recently used cache, bounded by the number of entries and optionally by their total
+ * weight, such as the length of their text, which the module caches are built on. It counts hits,
+ * misses and evictions for the cache status page.
+ *
+ * Each removal increments a generation. A value read from the database before a removal can be
+ * put with the generation from before the read, and is then not cached, since it may be the one
+ * which was just removed.
+ *
+ * Null values are not cached.
+ */
+public class LruCache<K, V> {
+
+	/**
+	 * A condition on keys or values.
+	 */
+	public interface Predicate<T> {
+
+		boolean apply(T item);
+	}
+
+	private final String name;
+
+	private final int maxSize;
+
+	private final long maxWeight;
+
+	private final Map<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+	private long weight;
+
+	private long generation;
+
+	private long hitCount;
+
+	private long missCount;
+
+	private long evictionCount;
+
+	/**
+	 * Creates a cache bounded by the number of entries only.
+	 *
+	 * @param name the name shown on the cache status page.
+	 * @param maxSize the most entries kept.
+	 */
+	public LruCache(String name, int maxSize) {
+		this(name, maxSize, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a cache bounded by the number of entries and their total weight, as returned by
+	 * {@link #weigh(Object)}.
+	 *
+	 * @param name the name shown on the cache status page.
+	 * @param maxSize the most entries kept.
+	 * @param maxWeight the most total weight kept. Heavier values are not cached.
+	 */
+	public LruCache(String name, int maxSize, long maxWeight) {
+		this.name = name;
+		this.maxSize = maxSize;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Gets a string predicate which holds for keys starting with a prefix.
+	 *
+	 * @param prefix the prefix.
+	 * @return the predicate.
+	 */
+	public static Predicate<String> startsWith(final String prefix) {
+		return new Predicate<String>() {
+
+			public boolean apply(String key) {
+				return key.startsWith(prefix);
+			}
+		};
+	}
+
+	/**
+	 * Gets the weight of a value, which is 0 unless overridden.
+	 *
+	 * @param value the value.
+	 * @return the weight.
+	 */
+	protected long weigh(V value) {
+		return 0;
+	}
+
+	/**
+	 * Gets a cached value.
+	 *
+	 * @param key the key.
+	 * @return the value, or null if not cached.
+	 */
+	public V get(K key) {
+		return get(key, null);
+	}
+
+	/**
+	 * Gets a cached value if it is still valid. An invalid value, like one that has expired or was
+	 * made from an older version of some text, is removed and counted as a miss.
+	 *
+	 * @param key the key.
+	 * @param valid the check of the value, or null if any is valid.
+	 * @return the value, or null if not cached or not valid.
+	 */
+	public synchronized V get(K key, Predicate<? super V> valid) {
+		V value = entries.get(key);
+		if (value != null && valid != null && !valid.apply(value)) {
+			removeEntry(key);
+			value = null;
+		}
+
+		if (value == null)
+			missCount++;
+		else
+			hitCount++;
+		return value;
+	}
+
+	/**
+	 * Gets the current generation, to pass to {@link #put(Object, Object, long)} before reading a
+	 * value to cache.
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Caches a value.
+	 *
+	 * @param key the key.
+	 * @param value the value.
+	 */
+	public synchronized void put(K key, V value) {
+		store(key, value);
+	}
+
+	/**
+	 * Caches a value, unless anything was removed since it was read.
+	 *
+	 * @param key the key.
+	 * @param value the value.
+	 * @param readGeneration the generation before the value was read.
+	 */
+	public synchronized void put(K key, V value, long readGeneration) {
+		if (readGeneration == generation)
+			store(key, value);
+	}
+
+	/**
+	 * Removes a cached value.
+	 *
+	 * @param key the key.
+	 */
+	public synchronized void remove(K key) {
+		removeEntry(key);
+		generation++;
+	}
+
+	/**
+	 * Removes the cached values whose keys match a predicate.
+	 *
+	 * @param predicate the predicate.
+	 */
+	public synchronized void removeKeys(Predicate<? super K> predicate) {
+		Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<K, V> entry = iterator.next();
+			if (predicate.apply(entry.getKey())) {
+				weight -= weigh(entry.getValue());
+				iterator.remove();
+			}
+		}
+		generation++;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+		generation++;
+	}
+
+	/**
+	 * Removes a cached value now and again once the current transaction completes, such that a
+	 * value read by another transaction before the commit is not kept. Without a transaction, it
+	 * is only removed right away.
+	 *
+	 * @param key the key.
+	 */
+	public void removeAfterCommit(final K key) {
+		remove(key);
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			return;
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+			@Override
+			public void afterCompletion(int status) {
+				remove(key);
+			}
+		});
+	}
+
+	/**
+	 * Removes the cached values whose keys match a predicate now and again once the current
+	 * transaction completes.
+	 *
+	 * @param predicate the predicate.
+	 */
+	public void removeKeysAfterCommit(final Predicate<? super K> predicate) {
+		removeKeys(predicate);
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			return;
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+			@Override
+			public void afterCompletion(int status) {
+				removeKeys(predicate);
+			}
+		});
+	}
+
+	/**
+	 * Clears the cache now and again once the current transaction completes.
+	 */
+	public void clearAfterCommit() {
+		clear();
+
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			return;
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+			@Override
+			public void afterCompletion(int status) {
+				clear();
+			}
+		});
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the most total weight kept, or Long.MAX_VALUE if the cache is bounded by the number of
+	 * entries only.
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the total weight of the cached values.
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Gets the fraction of lookups which were found in the cache, or 0 if there were none.
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hitCount + missCount;
+		return lookups == 0 ? 0 : (double) hitCount / lookups;
+	}
+
+	private void store(K key, V value) {
+		if (value == null)
+			return;
+
+		long valueWeight = weigh(value);
+		if (valueWeight > maxWeight) {
+			removeEntry(key);
+			return;
+		}
+
+		V old = entries.put(key, value);
+		if (old != null)
+			weight -= weigh(old);
+		weight += valueWeight;
+
+		//The value just put is the most recently used, so it is the last one evicted.
+		Iterator<V> iterator = entries.values().iterator();
+		while ((entries.size() > maxSize || weight > maxWeight) && iterator.hasNext()) {
+			weight -= weigh(iterator.next());
+			iterator.remove();
+			evictionCount++;
+		}
+	}
+
+	private void removeEntry(K key) {
+		V old = entries.remove(key);
+		if (old != null)
+			weight -= weigh(old);
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded, least recently used cache of the concept, location and person names looked up by
+ * the xforms service. Entries are removed by the concept, location and user advisors when these
+ * change, now and again once the change is committed.
+ *
+ * Names which are not found are not cached, such that a location which is unretired, without
+ * going through the advisors, is found again.
+ */
+public class NameLookupCache extends LruCache<String, String> {
+
+	/** Concept names keyed by {@link #getConceptKey(Integer, String)}. */
+	public static final NameLookupCache CONCEPTS = new NameLookupCache("conceptNames", 10000);
+
+	/** Location names keyed by location id. */
+	public static final NameLookupCache LOCATIONS = new NameLookupCache("locationNames", 5000);
+
+	/** Person names keyed by person id. */
+	public static final NameLookupCache PERSONS = new NameLookupCache("personNames", 5000);
+
+	public NameLookupCache(String name, int maxSize) {
+		super(name, maxSize);
+	}
+
+	/**
+	 * Gets the cache key of a concept name.
+	 *
+	 * @param conceptId the concept id.
+	 * @param localeKey the locale key.
+	 * @return the key.
+	 */
+	public static String getConceptKey(Integer conceptId, String localeKey) {
+		return conceptId + "_" + localeKey;
+	}
+
+	/**
+	 * Gets all the caches, for reporting their statistics.
+	 */
+	public static List<NameLookupCache> getCaches() {
+		List<NameLookupCache> caches = new ArrayList<NameLookupCache>();
+		caches.add(CONCEPTS);
+		caches.add(LOCATIONS);
+		caches.add(PERSONS);
+		return caches;
+	}
+
+	/**
+	 * Removes the cached names of a concept, in all locales, now and again once the current
+	 * transaction completes.
+	 *
+	 * @param conceptId the concept id.
+	 */
+	public void removeConceptAfterCommit(Integer conceptId) {
+		removeKeysAfterCommit(startsWith(conceptId + "_"));
+	}
+}
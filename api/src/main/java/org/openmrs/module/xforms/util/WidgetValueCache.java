@@ -0,0 +1,115 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.XformConstants;
+
+/**
+ * Caches the display and value rows of widgets with external sources, keyed by their query and
+ * filter value, for the number of seconds in the widget value cache ttl global property. A form
+ * with several such widgets asks for the same lists every time it is opened, and these lists,
+ * like tribes or districts, rarely change.
+ *
+ * Since the queries can read any table, there is no way of knowing when a list changes. Rows are
+ * kept until the ttl runs out, or until an administrator clears the cache.
+ */
+public class WidgetValueCache {
+
+	private static final Log log = LogFactory.getLog(WidgetValueCache.class);
+
+	/** The most lists kept. */
+	private static final int MAX_SIZE = 1000;
+
+	private static final LruCache<String, Entry> cache = new LruCache<String, Entry>("widgetValues", MAX_SIZE);
+
+	private static final LruCache.Predicate<Entry> NOT_EXPIRED = new LruCache.Predicate<Entry>() {
+
+		public boolean apply(Entry entry) {
+			return entry.expiryTime > System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Gets the key of a list.
+	 *
+	 * @param sql the query.
+	 * @param filterValue the filter value bound to the query, or null if none.
+	 * @return the key.
+	 */
+	public static String getKey(String sql, String filterValue) {
+		return filterValue == null ? sql : sql + "\n" + filterValue;
+	}
+
+	/**
+	 * Gets the rows of a list, if cached and not expired.
+	 *
+	 * @param key the key.
+	 * @return the rows, or null if not cached.
+	 */
+	public static List<Object[]> get(String key) {
+		Entry entry = cache.get(key, NOT_EXPIRED);
+		return entry == null ? null : entry.rows;
+	}
+
+	/**
+	 * Caches the rows of a list, unless the ttl is 0.
+	 *
+	 * @param key the key.
+	 * @param rows the rows, which should not be changed afterwards.
+	 */
+	public static void put(String key, List<Object[]> rows) {
+		long ttl = getTtl();
+		if (ttl > 0)
+			cache.put(key, new Entry(rows, System.currentTimeMillis() + ttl * 1000));
+	}
+
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Gets the underlying cache, for reporting its statistics.
+	 */
+	public static LruCache<String, ?> getCache() {
+		return cache;
+	}
+
+	/**
+	 * Gets the number of seconds lists are cached for.
+	 */
+	private static long getTtl() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    XformConstants.GLOBAL_PROP_KEY_WIDGET_VALUE_CACHE_TTL, XformConstants.DEFAULT_WIDGET_VALUE_CACHE_TTL);
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException ex) {
+			log.error("Invalid value for " + XformConstants.GLOBAL_PROP_KEY_WIDGET_VALUE_CACHE_TTL + ": " + value);
+			return Long.parseLong(XformConstants.DEFAULT_WIDGET_VALUE_CACHE_TTL);
+		}
+	}
+
+	private static class Entry {
+
+		final List<Object[]> rows;
+
+		final long expiryTime;
+
+		Entry(List<Object[]> rows, long expiryTime) {
+			this.rows = rows;
+			this.expiryTime = expiryTime;
+		}
+	}
+}
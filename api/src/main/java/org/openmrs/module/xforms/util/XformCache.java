@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.Xform;
+
+/**
+ * A least recently used cache of the stored xforms, keyed by form id, which the xforms service
+ * reads through. It is bounded by both the number of xforms and the total length of their text,
+ * since a few forms with large layouts can take more memory than hundreds of small ones.
+ *
+ * Xforms are cached and returned as copies, which are not attached to any session, so that
+ * callers can change them without changing the cached one. Changes go through saveXform, which
+ * merges them.
+ *
+ * The cached copies keep only the ids of their creator and changer, since the users read with an
+ * xform belong to the session which read it and may be uninitialized proxies. The users are
+ * loaded again in the session of the caller when a copy is handed out.
+ */
+public class XformCache {
+
+	/** The most xforms kept. */
+	private static final int MAX_SIZE = 500;
+
+	/** The most characters of xml, layout, locale, javascript and css text kept. */
+	private static final long MAX_CHARS = 16L * 1024 * 1024;
+
+	private static final LruCache<Integer, Xform> cache = new LruCache<Integer, Xform>("xforms", MAX_SIZE, MAX_CHARS) {
+
+		@Override
+		protected long weigh(Xform xform) {
+			return getCharCount(xform);
+		}
+	};
+
+	/**
+	 * Gets a copy of a cached xform.
+	 *
+	 * @param formId the form id.
+	 * @return the xform, or null if not cached.
+	 */
+	public static Xform get(Integer formId) {
+		Xform xform = cache.get(formId);
+		if (xform == null)
+			return null;
+
+		Xform copy = copy(xform);
+		copy.setCreator(loadUser(xform.getCreator()));
+		copy.setChangedBy(loadUser(xform.getChangedBy()));
+		return copy;
+	}
+
+	/**
+	 * Gets the current generation, to pass to {@link #put(Xform, long)} before reading an xform
+	 * from the database.
+	 */
+	public static long getGeneration() {
+		return cache.getGeneration();
+	}
+
+	/**
+	 * Caches a copy of an xform, unless an xform was removed since it was read.
+	 *
+	 * @param xform the xform.
+	 * @param readGeneration the generation before the xform was read.
+	 */
+	public static void put(Xform xform, long readGeneration) {
+		Xform copy = copy(xform);
+		copy.setCreator(userId(xform.getCreator()));
+		copy.setChangedBy(userId(xform.getChangedBy()));
+		cache.put(xform.getFormId(), copy, readGeneration);
+	}
+
+	/**
+	 * Removes a cached xform now and again once the current transaction completes, such that an
+	 * xform read by another transaction before the commit is not kept.
+	 *
+	 * @param formId the form id.
+	 */
+	public static void removeAfterCommit(Integer formId) {
+		cache.removeAfterCommit(formId);
+	}
+
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Gets the underlying cache, for reporting its statistics.
+	 */
+	public static LruCache<Integer, Xform> getCache() {
+		return cache;
+	}
+
+	private static Xform copy(Xform xform) {
+		Xform copy = new Xform();
+		copy.setUuid(xform.getUuid());
+		copy.setFormId(xform.getFormId());
+		copy.setXformXml(xform.getXformXml());
+		copy.setLayoutXml(xform.getLayoutXml());
+		copy.setLocaleXml(xform.getLocaleXml());
+		copy.setJavaScriptSrc(xform.getJavaScriptSrc());
+		copy.setCss(xform.getCss());
+		copy.setDateCreated(xform.getDateCreated());
+		copy.setDateChanged(xform.getDateChanged());
+		return copy;
+	}
+
+	/**
+	 * Gets a user holding only the id of a user, which does not need the session the user was
+	 * read with. The id of a proxy is read without initializing it.
+	 */
+	private static User userId(User user) {
+		return user == null ? null : new User(user.getUserId());
+	}
+
+	private static User loadUser(User user) {
+		return user == null ? null : Context.getUserService().getUser(user.getUserId());
+	}
+
+	private static long getCharCount(Xform xform) {
+		return length(xform.getXformXml()) + length(xform.getLayoutXml()) + length(xform.getLocaleXml())
+		        + length(xform.getJavaScriptSrc()) + length(xform.getCss());
+	}
+
+	private static int length(String text) {
+		return text == null ? 0 : text.length();
+	}
+}
@@ -0,0 +1,406 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openmrs.module.xforms.XformBuilder;
+
+/**
+ * Makes narrow edits to the items of an xforms select1 node directly in the xform text, instead
+ * of parsing it into a DOM and serializing it back. The select1 node and item are found with a
+ * streaming StAX scan, and the edit is spliced into the text, leaving the rest of it untouched.
+ *
+ * The edits give the same text as the DOM edits would, for an xform which was last written by
+ * {@link XformsUtil#doc2String(org.w3c.dom.Node)}. Edits which cannot be spliced, such as
+ * setting the label of an empty label node, return null for the caller to use the DOM instead.
+ */
+public class XformItemPatcher {
+
+	private static final String SELECT1 = XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1;
+
+	private static final String ITEM = XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM;
+
+	private static final String LABEL = XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_LABEL;
+
+	private static final String VALUE = XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_VALUE;
+
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+	static {
+		//Element names are compared with their prefix, the same way as for the non namespace aware DOM.
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	}
+
+	/**
+	 * Finds the first select1 node with a given bind attribute, and within it the first item with
+	 * a given id attribute.
+	 *
+	 * @param xml the xform xml.
+	 * @param bind the bind attribute value of the select1 node, compared ignoring case.
+	 * @param itemId the id attribute value of the item.
+	 * @return the item location, or null if the xml cannot be scanned.
+	 */
+	public static ItemLocation locate(String xml, String bind, String itemId) {
+		ItemLocation location = new ItemLocation();
+
+		int select1Index = -1, itemIndex = -1, labelIndex = -1;
+		int select1Depth = -1, itemDepth = -1, labelDepth = -1;
+		StringBuilder labelText = null;
+
+		try {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(xml));
+			try {
+				int elementIndex = -1, depth = 0;
+
+				scan: while (reader.hasNext()) {
+					switch (reader.next()) {
+						case XMLStreamConstants.START_ELEMENT:
+							elementIndex++;
+							depth++;
+
+							String name = reader.getLocalName();
+							if (select1Depth < 0) {
+								if (SELECT1.equals(name) && bind.equalsIgnoreCase(getAttribute(reader, XformBuilder.ATTRIBUTE_BIND))) {
+									select1Index = elementIndex;
+									select1Depth = depth;
+								}
+							} else if (itemDepth < 0) {
+								if (ITEM.equals(name) && itemId.equals(getAttribute(reader, XformBuilder.ATTRIBUTE_ID))) {
+									itemIndex = elementIndex;
+									itemDepth = depth;
+									location.itemIsChild = depth == select1Depth + 1;
+								}
+							} else if (labelIndex < 0 && LABEL.equals(name)) {
+								labelIndex = elementIndex;
+								labelDepth = depth;
+								labelText = new StringBuilder();
+							}
+							break;
+
+						case XMLStreamConstants.CHARACTERS:
+						case XMLStreamConstants.CDATA:
+						case XMLStreamConstants.SPACE:
+							if (labelText != null && labelDepth > 0)
+								labelText.append(reader.getText());
+							break;
+
+						case XMLStreamConstants.END_ELEMENT:
+							if (depth == itemDepth || depth == select1Depth)
+								break scan; //Found all we need, or the item is not in the select1 node.
+							if (depth == labelDepth)
+								labelDepth = 0; //Done with the label text.
+							depth--;
+							break;
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (XMLStreamException ex) {
+			return null;
+		}
+
+		if (select1Index < 0)
+			return location;
+
+		int[] offsets = getStartTagOffsets(xml, new int[] { select1Index, itemIndex, labelIndex });
+		if (offsets == null)
+			return null;
+
+		location.select1Found = true;
+
+		int select1TagEnd = getStartTagEnd(xml, offsets[0]);
+		if (select1TagEnd < 0)
+			return null;
+		if (!isEmptyElementTag(xml, select1TagEnd))
+			location.select1ContentEnd = xml.indexOf("</" + SELECT1, select1TagEnd);
+
+		if (itemIndex < 0)
+			return location;
+
+		location.itemFound = true;
+		location.itemStart = offsets[1];
+		location.itemEnd = getElementEnd(xml, offsets[1], ITEM);
+		if (location.itemEnd < 0)
+			return null;
+
+		if (labelIndex < 0)
+			return location;
+
+		location.labelText = labelText.toString();
+
+		int labelTagEnd = getStartTagEnd(xml, offsets[2]);
+		if (labelTagEnd < 0)
+			return null;
+		if (!isEmptyElementTag(xml, labelTagEnd)) {
+			location.labelContentStart = labelTagEnd;
+			location.labelContentEnd = xml.indexOf("</" + LABEL, labelTagEnd);
+		}
+
+		return location;
+	}
+
+	/**
+	 * Removes the found item.
+	 *
+	 * @param xml the xform xml.
+	 * @param location the item location.
+	 * @return the patched xml, or null if the item cannot be removed by splicing.
+	 */
+	public static String removeItem(String xml, ItemLocation location) {
+		if (!location.itemFound || !location.itemIsChild)
+			return null;
+
+		return xml.substring(0, location.itemStart) + xml.substring(location.itemEnd);
+	}
+
+	/**
+	 * Replaces the text of the found item's label.
+	 *
+	 * @param xml the xform xml.
+	 * @param location the item location.
+	 * @param label the new label text.
+	 * @return the patched xml, or null if the label cannot be set by splicing.
+	 */
+	public static String setItemLabel(String xml, ItemLocation location, String label) {
+		if (location.labelContentStart < 0 || location.labelContentEnd < 0)
+			return null;
+
+		StringBuilder builder = new StringBuilder(xml.length() + label.length());
+		builder.append(xml, 0, location.labelContentStart);
+		appendText(builder, label);
+		builder.append(xml, location.labelContentEnd, xml.length());
+		return builder.toString();
+	}
+
+	/**
+	 * Adds an item as the last child of the found select1 node.
+	 *
+	 * @param xml the xform xml.
+	 * @param location the item location.
+	 * @param itemId the id attribute value of the new item.
+	 * @param label the label text of the new item.
+	 * @param value the value text of the new item.
+	 * @return the patched xml, or null if the item cannot be added by splicing.
+	 */
+	public static String appendItem(String xml, ItemLocation location, String itemId, String label, String value) {
+		if (!location.select1Found || location.select1ContentEnd < 0)
+			return null;
+
+		StringBuilder builder = new StringBuilder(xml.length() + 64 + label.length());
+		builder.append(xml, 0, location.select1ContentEnd);
+
+		builder.append('<').append(ITEM).append(' ').append(XformBuilder.ATTRIBUTE_ID).append("=\"");
+		appendAttributeValue(builder, itemId);
+		builder.append("\"><").append(LABEL).append('>');
+		appendText(builder, label);
+		builder.append("</").append(LABEL).append("><").append(VALUE).append('>');
+		appendText(builder, value);
+		builder.append("</").append(VALUE).append("></").append(ITEM).append('>');
+
+		builder.append(xml, location.select1ContentEnd, xml.length());
+		return builder.toString();
+	}
+
+	private static String getAttribute(XMLStreamReader reader, String name) {
+		for (int index = 0; index < reader.getAttributeCount(); index++) {
+			if (name.equals(reader.getAttributeLocalName(index)))
+				return reader.getAttributeValue(index);
+		}
+		return "";
+	}
+
+	/**
+	 * Gets the offsets of start tags by their position among all start tags of the document.
+	 *
+	 * @param xml the xml text.
+	 * @param indexes the start tag positions, in increasing order, with -1 for those not needed.
+	 * @return the offsets, or null if the text has markup which is not scanned.
+	 */
+	private static int[] getStartTagOffsets(String xml, int[] indexes) {
+		int[] offsets = new int[indexes.length];
+		int next = 0, elementIndex = -1, pos = 0, length = xml.length();
+
+		while (next < indexes.length && indexes[next] >= 0) {
+			pos = xml.indexOf('<', pos);
+			if (pos < 0 || pos + 1 >= length)
+				return null;
+
+			char c = xml.charAt(pos + 1);
+			if (c == '?') {
+				pos = skipPast(xml, pos, "?>");
+			} else if (xml.startsWith("<!--", pos)) {
+				pos = skipPast(xml, pos, "-->");
+			} else if (xml.startsWith("<![CDATA[", pos)) {
+				pos = skipPast(xml, pos, "]]>");
+			} else if (c == '!') {
+				int end = xml.indexOf('>', pos);
+				if (end < 0 || xml.lastIndexOf('[', end) > pos)
+					return null; //A document type declaration with an internal subset.
+				pos = end + 1;
+			} else if (c == '/') {
+				pos = skipPast(xml, pos, ">");
+			} else {
+				if (++elementIndex == indexes[next])
+					offsets[next++] = pos;
+				pos = getStartTagEnd(xml, pos);
+			}
+
+			if (pos < 0)
+				return null;
+		}
+
+		return offsets;
+	}
+
+	private static int skipPast(String xml, int pos, String end) {
+		int index = xml.indexOf(end, pos);
+		return index < 0 ? -1 : index + end.length();
+	}
+
+	/**
+	 * Gets the offset just past the end of the start tag at an offset, skipping quoted attribute
+	 * values.
+	 */
+	private static int getStartTagEnd(String xml, int pos) {
+		char quote = 0;
+		for (int index = pos + 1; index < xml.length(); index++) {
+			char c = xml.charAt(index);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '"' || c == '\'') {
+				quote = c;
+			} else if (c == '>') {
+				return index + 1;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isEmptyElementTag(String xml, int tagEnd) {
+		return xml.charAt(tagEnd - 2) == '/';
+	}
+
+	/**
+	 * Gets the offset just past the end of the element at an offset, which does not contain
+	 * elements of the same name.
+	 */
+	private static int getElementEnd(String xml, int pos, String name) {
+		int tagEnd = getStartTagEnd(xml, pos);
+		if (tagEnd < 0 || isEmptyElementTag(xml, tagEnd))
+			return tagEnd;
+
+		int endTag = xml.indexOf("</" + name, tagEnd);
+		return endTag < 0 ? -1 : skipPast(xml, endTag, ">");
+	}
+
+	/**
+	 * Escapes text the same way as the xml serializer used by XformsUtil.doc2String does.
+	 */
+	private static void appendText(StringBuilder builder, String text) {
+		for (int index = 0; index < text.length(); index++) {
+			char c = text.charAt(index);
+			switch (c) {
+				case '&':
+					builder.append("&amp;");
+					break;
+				case '<':
+					builder.append("&lt;");
+					break;
+				case '>':
+					builder.append("&gt;");
+					break;
+				case '\r':
+					builder.append("&#13;");
+					break;
+				default:
+					builder.append(c);
+			}
+		}
+	}
+
+	private static void appendAttributeValue(StringBuilder builder, String value) {
+		for (int index = 0; index < value.length(); index++) {
+			char c = value.charAt(index);
+			switch (c) {
+				case '&':
+					builder.append("&amp;");
+					break;
+				case '<':
+					builder.append("&lt;");
+					break;
+				case '"':
+					builder.append("&quot;");
+					break;
+				case '\n':
+					builder.append("&#10;");
+					break;
+				case '\r':
+					builder.append("&#13;");
+					break;
+				case '\t':
+					builder.append("&#9;");
+					break;
+				default:
+					builder.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Where a select1 node and one of its items are in the xform text.
+	 */
+	public static class ItemLocation {
+
+		private boolean select1Found;
+
+		/** The offset of the select1 end tag, or -1 for an empty select1 node. */
+		private int select1ContentEnd = -1;
+
+		private boolean itemFound;
+
+		/** Whether the item is a child of the select1 node, rather than a deeper descendant. */
+		private boolean itemIsChild;
+
+		private int itemStart = -1;
+
+		private int itemEnd = -1;
+
+		/** The text of the item's first label node, or null if it has none. */
+		private String labelText;
+
+		private int labelContentStart = -1;
+
+		private int labelContentEnd = -1;
+
+		public boolean isSelect1Found() {
+			return select1Found;
+		}
+
+		public boolean isItemFound() {
+			return itemFound;
+		}
+
+		public String getLabelText() {
+			return labelText;
+		}
+	}
+}
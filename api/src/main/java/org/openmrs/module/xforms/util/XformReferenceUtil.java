@@ -0,0 +1,113 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.module.xforms.XformBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Finds the concepts, locations and providers which an xform refers to. These are kept in the
+ * xforms_xform_reference table, such that when any of them changes, only the xforms which refer
+ * to it are refreshed.
+ */
+public class XformReferenceUtil {
+
+	/** Marks an xform whose references have been indexed, with a reference id of 0. */
+	public static final String REFERENCE_FORM = "form";
+
+	/** A concept in a concept_id attribute, of a question or an answer. */
+	public static final String REFERENCE_CONCEPT = "concept";
+
+	/** The encounter location question, with a reference id of 0. */
+	public static final String REFERENCE_LOCATION_FIELD = "location_field";
+
+	/** A location in the encounter location question. */
+	public static final String REFERENCE_LOCATION = "location";
+
+	/** The encounter provider question, with a reference id of 0. */
+	public static final String REFERENCE_PROVIDER_FIELD = "provider_field";
+
+	/** A provider, by person id, in the encounter provider question. */
+	public static final String REFERENCE_PROVIDER = "provider";
+
+	/**
+	 * Gets the references of an xform.
+	 *
+	 * @param xml the xform xml.
+	 * @return the referenced ids keyed by reference type, including the {@link #REFERENCE_FORM}
+	 *         marker.
+	 * @throws Exception if the xml cannot be parsed.
+	 */
+	public static Map<String, Set<Integer>> getReferences(String xml) throws Exception {
+		Map<String, Set<Integer>> references = new HashMap<String, Set<Integer>>();
+		addReference(references, REFERENCE_FORM, 0);
+
+		Document doc = XformsUtil.fromString2Doc(xml);
+
+		NodeList elements = doc.getDocumentElement().getElementsByTagName("*");
+		for (int index = 0; index < elements.getLength(); index++) {
+			Element element = (Element) elements.item(index);
+			addReference(references, REFERENCE_CONCEPT, element.getAttribute(XformBuilder.ATTRIBUTE_CONCEPT_ID));
+		}
+
+		elements = doc.getDocumentElement().getElementsByTagName(
+		    XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.CONTROL_SELECT1);
+		for (int index = 0; index < elements.getLength(); index++) {
+			Element element = (Element) elements.item(index);
+			if (element.getAttribute(XformBuilder.ATTRIBUTE_ITEMSET).length() > 0)
+				continue; //Filled from a shared itemset when served, so location and provider changes do not touch it.
+			
+			String bind = element.getAttribute(XformBuilder.ATTRIBUTE_BIND);
+			if (XformBuilder.NODE_ENCOUNTER_LOCATION_ID.equalsIgnoreCase(bind))
+				addItemReferences(references, element, REFERENCE_LOCATION_FIELD, REFERENCE_LOCATION);
+			else if (XformBuilder.NODE_ENCOUNTER_PROVIDER_ID.equalsIgnoreCase(bind))
+				addItemReferences(references, element, REFERENCE_PROVIDER_FIELD, REFERENCE_PROVIDER);
+		}
+
+		return references;
+	}
+
+	private static void addItemReferences(Map<String, Set<Integer>> references, Element select1Element,
+	                                      String fieldType, String itemType) {
+		addReference(references, fieldType, 0);
+
+		NodeList items = select1Element.getElementsByTagName(XformBuilder.PREFIX_XFORMS + ":" + XformBuilder.NODE_ITEM);
+		for (int index = 0; index < items.getLength(); index++)
+			addReference(references, itemType, ((Element) items.item(index)).getAttribute(XformBuilder.ATTRIBUTE_ID));
+	}
+
+	private static void addReference(Map<String, Set<Integer>> references, String type, String id) {
+		if (id == null || id.length() == 0)
+			return;
+
+		try {
+			addReference(references, type, Integer.parseInt(id.trim()));
+		}
+		catch (NumberFormatException ex) {
+			//Not an id we can refresh, so nothing to index.
+		}
+	}
+
+	private static void addReference(Map<String, Set<Integer>> references, String type, int id) {
+		Set<Integer> ids = references.get(type);
+		if (ids == null) {
+			ids = new HashSet<Integer>();
+			references.put(type, ids);
+		}
+		ids.add(id);
+	}
+}
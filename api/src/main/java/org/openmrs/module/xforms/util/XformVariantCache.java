@@ -0,0 +1,184 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.openmrs.module.xforms.Xform;
+import org.w3c.dom.Element;
+
+/**
+ * Keeps the localized text of each xform for each locale it is opened in, together with its
+ * translated layout. Otherwise, every time a form is opened, its locale document is parsed to find
+ * the text for the locale, and its layout is parsed and translated.
+ *
+ * The xform itself is not kept translated, since it is translated after its itemsets and values
+ * for the request are filled in, such that these are translated too. Only the localized text of
+ * the xform is kept, as xpath and value pairs, which are applied to the filled in xform.
+ *
+ * Variants are made when a locale is first asked for. Each is keyed by form id and locale, and
+ * versioned by the layout and locale text it was made from, so a variant of an older version of an
+ * xform is never served. The cache is bounded by the number of variants and the length of their
+ * text.
+ */
+public class XformVariantCache {
+
+	/** The most variants kept. */
+	private static final int MAX_SIZE = 1000;
+
+	/** The most characters of layout and localized text kept. */
+	private static final long MAX_CHARS = 16L * 1024 * 1024;
+
+	private static final LruCache<String, Variant> cache = new LruCache<String, Variant>("xformVariants", MAX_SIZE,
+	        MAX_CHARS) {
+
+		@Override
+		protected long weigh(Variant variant) {
+			return variant.getCharCount();
+		}
+	};
+
+	/**
+	 * Gets the variant of an xform for a locale, making it if there is none for this version of
+	 * the xform.
+	 *
+	 * @param xform the xform.
+	 * @param locale the locale language.
+	 * @return the variant.
+	 */
+	public static Variant getVariant(final Xform xform, String locale) throws Exception {
+		String key = getKey(xform.getFormId(), locale);
+
+		Variant variant = cache.get(key, new LruCache.Predicate<Variant>() {
+
+			public boolean apply(Variant cached) {
+				return cached.isVersionOf(xform);
+			}
+		});
+
+		if (variant == null) {
+			variant = translate(xform, locale);
+			cache.put(key, variant);
+		}
+		return variant;
+	}
+
+	/**
+	 * Removes the variants of an xform in all locales.
+	 *
+	 * @param formId the form id.
+	 */
+	public static void remove(Integer formId) {
+		cache.removeKeys(LruCache.startsWith(formId + "\n"));
+	}
+
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Gets the underlying cache, for reporting its statistics.
+	 */
+	public static LruCache<String, Variant> getCache() {
+		return cache;
+	}
+
+	private static String getKey(Integer formId, String locale) {
+		return formId + "\n" + locale.toLowerCase();
+	}
+
+	/**
+	 * Finds the localized text of an xform and translates its layout, as used to be done when it
+	 * was opened.
+	 */
+	private static Variant translate(Xform xform, String locale) throws Exception {
+		List<String[]> xformTexts = null;
+		String layoutXml = xform.getLayoutXml();
+
+		String localeXml = xform.getLocaleXml();
+		if (localeXml != null && localeXml.trim().length() > 0) {
+			Element languageTextNode = LanguageUtil.getLocaleTextNode(localeXml, locale);
+			if (languageTextNode != null) {
+				Element xformsNode = LanguageUtil.getXformsLocaleNode(languageTextNode);
+				if (xformsNode != null)
+					xformTexts = Collections.unmodifiableList(LanguageUtil.getTexts(xformsNode));
+
+				if (layoutXml != null && layoutXml.length() > 0)
+					layoutXml = LanguageUtil.translateLayoutXml(layoutXml, languageTextNode);
+			}
+		}
+
+		return new Variant(xform, xformTexts, layoutXml);
+	}
+
+	private static boolean same(String text, String otherText) {
+		return text == otherText || (text != null && text.equals(otherText));
+	}
+
+	/**
+	 * The localized text of an xform and its layout translated into a locale.
+	 */
+	public static class Variant {
+
+		/** The text this variant was made from. */
+		private final String sourceLayoutXml;
+
+		private final String sourceLocaleXml;
+
+		/** The localized text of the xform, or null if it has none for the locale. */
+		private final List<String[]> xformTexts;
+
+		private final String layoutXml;
+
+		private Variant(Xform xform, List<String[]> xformTexts, String layoutXml) {
+			this.sourceLayoutXml = xform.getLayoutXml();
+			this.sourceLocaleXml = xform.getLocaleXml();
+			this.xformTexts = xformTexts;
+			this.layoutXml = layoutXml;
+		}
+
+		/**
+		 * Checks if this variant was made from the current text of an xform.
+		 */
+		private boolean isVersionOf(Xform xform) {
+			return same(sourceLayoutXml, xform.getLayoutXml()) && same(sourceLocaleXml, xform.getLocaleXml());
+		}
+
+		private long getCharCount() {
+			long chars = layoutXml == null ? 0 : layoutXml.length();
+			if (xformTexts != null) {
+				for (String[] text : xformTexts)
+					chars += text[0].length() + text[1].length();
+			}
+			return chars;
+		}
+
+		/**
+		 * Translates xform xml, such as the stored xform with its values filled in, into the
+		 * locale of this variant.
+		 *
+		 * @param xml the xform xml.
+		 * @return the translated xml, or the same xml if there is no localized text.
+		 */
+		public String translateXformXml(String xml) throws Exception {
+			if (xformTexts == null)
+				return xml;
+			return LanguageUtil.translate(XformsUtil.fromString2Doc(xml), xformTexts);
+		}
+
+		/**
+		 * Gets the translated layout xml, or null if the xform has no layout.
+		 */
+		public String getLayoutXml() {
+			return layoutXml;
+		}
+	}
+}
@@ -61,8 +61,11 @@ import org.openmrs.api.AdministrationService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
 import org.openmrs.module.xforms.XformBuilder;
 import org.openmrs.module.xforms.XformConstants;
+import org.openmrs.module.xforms.XformsActivator;
 import org.openmrs.module.xforms.XformsService;
 import org.openmrs.module.xforms.formentry.FormEntryWrapper;
 import org.openmrs.obs.ComplexObsHandler;
@@ -385,6 +388,23 @@ public class XformsUtil {
 		return xformsQueueDir;
 	}
 	
+	/**
+	 * Gets the directory where chunks of resumable batch uploads are staged until the whole batch
+	 * has been received.
+	 * 
+	 * @return directory in which to stage uploads
+	 */
+	public static File getXformsUploadStagingDir() {
+		AdministrationService as = Context.getAdministrationService();
+		String folderName = as.getGlobalProperty(XformConstants.XFORMS_UPLOAD_STAGING_DIR,
+		    XformConstants.XFORMS_UPLOAD_STAGING_DIR_DEFAULT);
+		File stagingDir = OpenmrsUtil.getDirectoryInApplicationDataDirectory(folderName);
+		if (log.isDebugEnabled())
+			log.debug("Loaded xforms upload staging directory from global properties: " + stagingDir.getAbsolutePath());
+		
+		return stagingDir;
+	}
+	
 	/**
 	 * Gets the directory where the user specified for storage of complex obs.
 	 * 
@@ -1035,4 +1055,23 @@ public class XformsUtil {
 		
 		return formStructure;
 	}
+	
+	/**
+	 * Runs some work as the daemon user, on a new thread with its own session, and waits for it
+	 * to finish. This is for the background threads of this module, which have no authenticated
+	 * user of their own.
+	 * 
+	 * @param runnable the work to run. It should handle its own exceptions.
+	 * @return false, without running the work, if the module has not been given a daemon token,
+	 *         else true.
+	 * @throws InterruptedException if interrupted while waiting for the work to finish.
+	 */
+	public static boolean runAsDaemon(Runnable runnable) throws InterruptedException {
+		DaemonToken token = XformsActivator.getDaemonToken();
+		if (token == null)
+			return false;
+		
+		Daemon.runInDaemonThread(runnable, token).join();
+		return true;
+	}
 }
@@ -0,0 +1,198 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.xpath;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Node;
+
+/**
+ * An xpath expression parsed into its location steps, which can be evaluated over any number of
+ * documents. Translating a form into a locale evaluates one expression per localized text, and
+ * the same expressions come up for every download of the form, so compiled expressions are cached
+ * by their text.
+ *
+ * Compiled expressions are not changed by evaluation, and can be shared between threads.
+ */
+public class CompiledXPath {
+
+	/** The most compiled expressions kept. */
+	private static final int MAX_CACHE_SIZE = 20000;
+
+	private static final Map<String, CompiledXPath> cache = new LinkedHashMap<String, CompiledXPath>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompiledXPath> eldest) {
+			return size() > MAX_CACHE_SIZE;
+		}
+	};
+
+	private final String expression;
+
+	private final XPathLocationStep[] locationSteps;
+
+	/**
+	 * For each location step, whether it filters the result of the previous one instead of
+	 * selecting from it. This is the case for an attribute predicate following another, as in
+	 * input[@bind='name'][@type='text'].
+	 */
+	private final boolean[] filtersPrevious;
+
+	/**
+	 * Gets the compiled expression for some text, compiling it if not cached.
+	 *
+	 * @param expression the expression text.
+	 * @return the compiled expression.
+	 */
+	public static CompiledXPath compile(String expression) {
+		synchronized (cache) {
+			CompiledXPath xpath = cache.get(expression);
+			if (xpath != null)
+				return xpath;
+		}
+
+		CompiledXPath xpath = new CompiledXPath(expression);
+		synchronized (cache) {
+			cache.put(expression, xpath);
+		}
+		return xpath;
+	}
+
+	/**
+	 * Gets the number of compiled expressions cached.
+	 */
+	public static int getCacheSize() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Compiles an expression, without caching it.
+	 *
+	 * @param expression the expression text.
+	 */
+	public CompiledXPath(String expression) {
+		this.expression = expression;
+
+		String[] stepStrings = getLocationStepStrings(expression);
+		locationSteps = new XPathLocationStep[stepStrings.length];
+		filtersPrevious = new boolean[stepStrings.length];
+
+		boolean attributeFound = false;
+		for (int j = 0; j < stepStrings.length; j++) {
+			String locationStepString = stepStrings[j];
+			if (locationStepString.indexOf('@') >= 0) {
+				filtersPrevious[j] = attributeFound;
+				attributeFound = true;
+			} else
+				attributeFound = false;
+
+			locationSteps[j] = new XPathLocationStep(locationStepString);
+		}
+	}
+
+	/**
+	 * Evaluates this expression.
+	 *
+	 * @param startNode the node to start from, usually the document.
+	 * @return the resulting elements and attribute or text values.
+	 */
+	public List<Object> evaluate(Node startNode) {
+		return evaluate(startNode, null);
+	}
+
+	/**
+	 * Evaluates this expression, using a context for the document, which makes evaluating many
+	 * expressions over the same large document faster.
+	 *
+	 * @param startNode the node to start from, usually the document.
+	 * @param context the context of the document, or null if none.
+	 * @return the resulting elements and attribute or text values.
+	 */
+	public List<Object> evaluate(Node startNode, XPathContext context) {
+		//the result node set should contain nodes
+		//with regard to the starting poing of the xpath expression
+		//for now just pass the root of the document
+		List<Object> resultNodeSet = new ArrayList<Object>();
+		resultNodeSet.add(startNode);
+
+		for (int j = 0; j < locationSteps.length; j++) {
+			List<Object> prevResults = filtersPrevious[j] ? resultNodeSet : new ArrayList<Object>();
+			resultNodeSet = locationSteps[j].getResult(resultNodeSet, prevResults, context);
+		}
+
+		return resultNodeSet;
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Splits an expression into the text of its location steps.
+	 */
+	private static String[] getLocationStepStrings(String expression) {
+		List<String> tmp = new ArrayList<String>();
+
+		//I do not support function name in the start
+		//of an xpath expression
+
+		//parse
+		if (expression.startsWith("//")) {
+			//this way of handling "//" is obviously incomplete
+			//but we allow it like this because of the lacking resources
+			tmp.add("//");
+			expression = expression.substring(2);
+		} else if (expression.startsWith("/")) {
+			tmp.add("/");
+			//trace the root element
+			expression = expression.substring(1);
+		}
+
+		for (int start = 0, end = 0; end < expression.length() - 1 && end != -1; start = end + 1) {
+			end = expression.indexOf("/", start);
+
+			if (end != -1) {
+				String token = expression.substring(start, end);
+				if (token.indexOf('@') >= 0 && token.indexOf(']') < 0) {
+					end = expression.indexOf("]", end + 1) + 1;
+				}
+			}
+
+			String s = expression.substring(start, end != -1 ? end : expression.length());
+
+			if (s.indexOf('@') > 0)
+				addAttributeSteps(s, tmp);
+			else
+				tmp.add(s);
+		}
+
+		return tmp.toArray(new String[tmp.size()]);
+	}
+
+	private static void addAttributeSteps(String step, List<String> list) {
+		int posBeg = 0;
+		int posEnd = step.indexOf(']', posBeg);
+
+		while (posEnd > 0) {
+			list.add(step.substring(posBeg, posEnd + 1));
+			posBeg = posEnd + 1;
+			if (posBeg >= step.length())
+				break;
+			posEnd = step.indexOf(']', posBeg);
+		}
+	}
+}
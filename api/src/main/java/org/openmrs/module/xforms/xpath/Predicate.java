@@ -10,8 +10,8 @@
 package org.openmrs.module.xforms.xpath;
 
 import java.io.Serializable;
-import java.util.Enumeration;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.w3c.dom.Element;
 
@@ -21,135 +21,190 @@ import org.w3c.dom.Element;
  * @author Cosmin
  *
  * since I don't want to implement a full-blown xpath engine
- * our predicate 
+ * our predicate
+ *
+ * The predicate expression is parsed once, when the location step is compiled, and then
+ * applied to as many node sets as needed.
  */
-public class Predicate  implements Serializable 
+public class Predicate  implements Serializable
 {
-	Vector resultSet;
+	private static final long serialVersionUID = 1L;
 
-	Predicate(Vector inNodeSet, String predicateExpr)
-	{
-		int nodeIndex = -1;
+	/** The index of the node to select, or -1 if the predicate is not an index. */
+	private int nodeIndex = -1;
 
-		if(predicateExpr == null || predicateExpr.length() <= 0) {
-			resultSet = inNodeSet;
+	/** The conditions which nodes must all meet, or null to keep all nodes. */
+	private Condition[] conditions;
+
+	Predicate(String predicateExpr)
+	{
+		if(predicateExpr == null || predicateExpr.length() <= 0)
 			return;
-		} else //we need to parse predicateExpr
-			resultSet = new Vector();
+
 		//check if this predicate is just a logical condition or a complete XPath query.
 		//for now we support only logical conditions
-		/*If it is a complete XPath expression
-		{
-			ResultSet = (new XPathExpression(XML_DOM, XPath Expression))
-				.getResult();
-		}//If it is a complete XPath expression */
 		try {
 			nodeIndex = Integer.parseInt(predicateExpr);
 		} catch(NumberFormatException nfe) {
 			//we do nothing, the predicate was not an index
 		}
 
-		if(nodeIndex != -1) {
-			resultSet.addElement(inNodeSet.elementAt(nodeIndex));
+		if(nodeIndex != -1)
 			return;
+
+		if(predicateExpr.indexOf(" and ") > 0){
+			String[] tokens = predicateExpr.split(" and ");
+			conditions = new Condition[tokens.length];
+			for(int index = 0; index < tokens.length; index++)
+				conditions[index] = new Condition(tokens[index]);
 		}
-		
-
-		String[] tokens = predicateExpr.split(" and ");
-		int pos = predicateExpr.indexOf(" and ");
-		if(pos > 0){
-			/*Vector resultSet1 = new Vector();
-			String predicateExpr1 = predicateExpr.substring(0,pos);
-			fillResultSet(resultSet1, predicateExpr1, inNodeSet);
-			
-			Vector resultSet2 = new Vector();
-			String predicateExpr2 = predicateExpr.substring(pos + 5,predicateExpr.length());
-			fillResultSet(resultSet2, predicateExpr2, inNodeSet);
-			
-			for(int index = 0; index < resultSet1.size(); index++){
-				Object obj = resultSet1.get(index);
-				if(resultSet2.contains(obj))
-					resultSet.add(obj);
-			}*/
-			Vector[] resultSets = new Vector[tokens.length];
-			
-			for(int index = 0; index < tokens.length; index++){
-				resultSets[index] = new Vector();
-				fillResultSet(resultSets[index], tokens[index], inNodeSet);
-			}
-			
-			Vector resultSet1 = resultSets[0];
-			for(int index = 0; index < resultSet1.size(); index++){
-				Object obj = resultSet1.get(index);
-				
-				boolean allFound = true;
-				
-				for(int i = 1; i < tokens.length; i++){
-					Vector curResultSet = resultSets[i];
-					if(!curResultSet.contains(obj)){
-						allFound = false;
-						break;
-					}
+		else
+			conditions = new Condition[] { new Condition(predicateExpr) };
+	}//constructor
+
+	/**
+	 * Gets the nodes which meet this predicate.
+	 *
+	 * @param inNodeSet the nodes.
+	 * @return the nodes which meet the predicate. This is the same list if the predicate is empty.
+	 */
+	public List<Object> getResult(List<Object> inNodeSet)
+	{
+		if(nodeIndex != -1) {
+			List<Object> resultSet = new ArrayList<Object>(1);
+			resultSet.add(inNodeSet.get(nodeIndex));
+			return resultSet;
+		}
+
+		if(conditions == null)
+			return inNodeSet;
+
+		if(conditions.length == 1)
+			return conditions[0].getResult(inNodeSet);
+
+		List<Object>[] resultSets = new List[conditions.length];
+		for(int index = 0; index < conditions.length; index++)
+			resultSets[index] = conditions[index].getResult(inNodeSet);
+
+		List<Object> resultSet = new ArrayList<Object>();
+		List<Object> resultSet1 = resultSets[0];
+		for(int index = 0; index < resultSet1.size(); index++){
+			Object obj = resultSet1.get(index);
+
+			boolean allFound = true;
+
+			for(int i = 1; i < resultSets.length; i++){
+				if(!resultSets[i].contains(obj)){
+					allFound = false;
+					break;
 				}
-				
-				if(allFound)
-					resultSet.add(obj);
 			}
+
+			if(allFound)
+				resultSet.add(obj);
 		}
-		else
-			fillResultSet(resultSet, predicateExpr, inNodeSet);
 
-		//here we should start parsing the predicateExpr
-	}//constructor
-	
-	private void fillResultSet(Vector resultSet, String predicateExpr, Vector inNodeSet){
-		String operation = null;
-		int index = -1;
-
-		if((index = predicateExpr.indexOf("=")) != -1) {
-			operation = "=";
-		} else if((index = predicateExpr.indexOf("<")) != -1) {
-			operation = "<";
-		} else if((index = predicateExpr.indexOf(">")) != -1) {
-			operation = ">";
-		} else {
-			//shouldn't be here
-
-			//Added by me on 11/05/2009 to cater for attributes without criteria values. eg [@name]
-			if(predicateExpr.indexOf("@") != -1){
-				for(Enumeration e = inNodeSet.elements(); e.hasMoreElements(); ) {
-					Object obj = e.nextElement();
-
-					String val = ((Element)obj).getAttribute(predicateExpr.substring(1,predicateExpr.length()));
-					if(val != null && val.trim().length() > 0)
-						resultSet.addElement(obj);	
-				}
+		return resultSet;
+	}//getResult
+
+	/**
+	 * Gets the attribute, if this predicate only compares an attribute with a literal value, as in
+	 * [@id='name'].
+	 *
+	 * @return the attribute name, or null if this is some other predicate.
+	 */
+	String getEqualsAttributeName()
+	{
+		if(conditions == null || conditions.length != 1 || !"=".equals(conditions[0].operation))
+			return null;
+
+		Condition condition = conditions[0];
+		if(condition.member1.attribute == null || condition.member2.attribute != null)
+			return null;
+
+		return condition.member1.attribute;
+	}
+
+	/**
+	 * Gets the literal value an attribute is compared with, if {@link #getEqualsAttributeName()}
+	 * is not null.
+	 */
+	String getEqualsValue()
+	{
+		return conditions[0].member2.m;
+	}
+
+	/**
+	 * A single comparison, or attribute presence test, of a predicate.
+	 */
+	static class Condition implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private String operation;
+
+		/** The attribute which must have a value, for conditions without an operation. eg [@name] */
+		private String attributeName;
+
+		private Member member1;
+
+		private Member member2;
+
+		Condition(String predicateExpr)
+		{
+			int index = -1;
+
+			if((index = predicateExpr.indexOf("=")) != -1) {
+				operation = "=";
+			} else if((index = predicateExpr.indexOf("<")) != -1) {
+				operation = "<";
+			} else if((index = predicateExpr.indexOf(">")) != -1) {
+				operation = ">";
+			} else {
+				//shouldn't be here
+
+				//Added by me on 11/05/2009 to cater for attributes without criteria values. eg [@name]
+				if(predicateExpr.indexOf("@") != -1)
+					attributeName = predicateExpr.substring(1,predicateExpr.length());
+
+				return;
 			}
 
-			return;
+			member1 = new Member(predicateExpr.substring(0, index));
+			member2 = new Member(predicateExpr.substring(index+1));
 		}
 
-		Member member1 = new Member(new String(predicateExpr.toCharArray(), 0, index));
-		Member member2 = new Member(new String(predicateExpr.toCharArray(), index+1, predicateExpr.length()-index-1));
+		List<Object> getResult(List<Object> inNodeSet)
+		{
+			List<Object> resultSet = new ArrayList<Object>();
+
+			if(operation == null){
+				if(attributeName != null){
+					for(Object obj : inNodeSet){
+						String val = ((Element)obj).getAttribute(attributeName);
+						if(val != null && val.trim().length() > 0)
+							resultSet.add(obj);
+					}
+				}
 
-		for(Enumeration e = inNodeSet.elements(); e.hasMoreElements(); ) {
-			Object obj = e.nextElement();
+				return resultSet;
+			}
 
-			if(operation.equals("="))
-				if(!member1.eval(obj).equals(member2.eval(obj)))
+			for(Object obj : inNodeSet) {
+				//Only equality is tested, the other operations keep all nodes.
+				if(operation.equals("=") && !member1.eval(obj).equals(member2.eval(obj)))
 					continue;
-				else if(operation.equals(">"))
-					if(member1.eval(obj).compareTo(member2.eval(obj))<0)
-						continue;
-					else if(operation.equals("<"))
-						if(member1.eval(obj).compareTo(member2.eval(obj))>0)
-							continue;
-			resultSet.addElement(obj);					
-		}		
+				resultSet.add(obj);
+			}
+
+			return resultSet;
+		}
 	}
 
-	class Member 
+	static class Member implements Serializable
 	{
+		private static final long serialVersionUID = 1L;
+
 		String m = null;
 		String attribute = null;
 
@@ -158,14 +213,14 @@ public class Predicate  implements Serializable
 			this.m = op;
 
 			if(op.startsWith("@")) {
-				attribute = new String(op.toCharArray(), 1, op.length()-1);
+				attribute = op.substring(1);
 			}
 			//for expath expressions enclosed with quotes.
 			else if( (m.startsWith("'") && m.endsWith("'")) || (m.startsWith("\"") && m.endsWith("\"")) )
 				m = m.substring(1,m.length()-1);
 		}
 
-		public String eval(Object obj) 
+		public String eval(Object obj)
 		{
 			if(attribute == null)
 				return m;
@@ -179,9 +234,4 @@ public class Predicate  implements Serializable
 			return attr!=null?attr:"";
 		}
 	}
-
-	public Vector getResult()
-	{
-		return resultSet;
-	}//getResult
 }
@@ -0,0 +1,134 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.xpath;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Remembers, for a document which many expressions are evaluated over, the child elements of
+ * each node by name, and which of them have a given attribute value. Translating a form evaluates
+ * an expression like xforms/group[@id='1']/input[@bind='name']/label per localized text, which
+ * would otherwise scan all the groups of the form every time.
+ *
+ * Whoever changes the document while using a context has to tell it, through
+ * {@link #childrenChanged()} and {@link #attributeChanged(String)}. A context is for one thread.
+ */
+public class XPathContext {
+
+	/** The child elements of nodes, keyed by their case folded name without prefix. */
+	private final Map<Node, Map<String, List<Object>>> children = new IdentityHashMap<Node, Map<String, List<Object>>>();
+
+	/** The child element lists by attribute name and then by attribute value. */
+	private final Map<List<Object>, Map<String, Map<String, List<Object>>>> attributeIndexes = new IdentityHashMap<List<Object>, Map<String, Map<String, List<Object>>>>();
+
+	/**
+	 * Gets the child elements of a node whose name, without prefix, is some name, ignoring case.
+	 *
+	 * @param node the node.
+	 * @param name the name.
+	 * @return the elements in document order. This list should not be changed.
+	 */
+	List<Object> getChildElements(Node node, String name) {
+		Map<String, List<Object>> byName = children.get(node);
+		if (byName == null) {
+			byName = new HashMap<String, List<Object>>();
+			for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child.getNodeType() != Node.ELEMENT_NODE)
+					continue;
+
+				String childName = child.getNodeName();
+				String key = foldCase(childName.substring(childName.indexOf(':') + 1));
+				List<Object> list = byName.get(key);
+				if (list == null) {
+					list = new ArrayList<Object>();
+					byName.put(key, list);
+				}
+				list.add(child);
+			}
+			children.put(node, byName);
+		}
+
+		List<Object> list = byName.get(foldCase(name));
+		return list != null ? list : Collections.emptyList();
+	}
+
+	/**
+	 * Gets the elements of a list, got from {@link #getChildElements(Node, String)}, with a given
+	 * attribute value. Elements without the attribute have the empty value, as with
+	 * {@link Element#getAttribute(String)}.
+	 *
+	 * @param elements the elements.
+	 * @param attributeName the attribute name.
+	 * @param value the attribute value.
+	 * @return the elements in document order. This list should not be changed.
+	 */
+	List<Object> getElementsByAttribute(List<Object> elements, String attributeName, String value) {
+		Map<String, Map<String, List<Object>>> indexes = attributeIndexes.get(elements);
+		if (indexes == null) {
+			indexes = new HashMap<String, Map<String, List<Object>>>();
+			attributeIndexes.put(elements, indexes);
+		}
+
+		Map<String, List<Object>> index = indexes.get(attributeName);
+		if (index == null) {
+			index = new HashMap<String, List<Object>>();
+			for (Object element : elements) {
+				String key = ((Element) element).getAttribute(attributeName);
+				List<Object> list = index.get(key);
+				if (list == null) {
+					list = new ArrayList<Object>(1);
+					index.put(key, list);
+				}
+				list.add(element);
+			}
+			indexes.put(attributeName, index);
+		}
+
+		List<Object> list = index.get(value);
+		return list != null ? list : Collections.emptyList();
+	}
+
+	/**
+	 * Forgets everything, after elements have been added or removed.
+	 */
+	public void childrenChanged() {
+		children.clear();
+		attributeIndexes.clear();
+	}
+
+	/**
+	 * Forgets which elements have which values of an attribute, after it has been set.
+	 *
+	 * @param attributeName the attribute name.
+	 */
+	public void attributeChanged(String attributeName) {
+		for (Map<String, Map<String, List<Object>>> indexes : attributeIndexes.values())
+			indexes.remove(attributeName);
+	}
+
+	/**
+	 * Folds the case of a name such that names equal ignoring case, as by
+	 * {@link String#equalsIgnoreCase(String)}, fold to the same text.
+	 */
+	private static String foldCase(String name) {
+		char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		return new String(chars);
+	}
+}
@@ -10,8 +10,8 @@
 package org.openmrs.module.xforms.xpath;
 
 import java.io.Serializable;
-import java.util.Enumeration;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -28,6 +28,7 @@ public class XPathLocationStep implements Serializable{
 	String nodePrefix = null;
 	String functionName = null;
 	String predicate = null;
+	Predicate predicateEvaluator = null;
 
 	private void parseLocationStep(String locationStep) {
 		// todo: should check if the whole xpath expression
@@ -104,6 +105,9 @@ public class XPathLocationStep implements Serializable{
 
 	public XPathLocationStep(String locationStep) {
 		parseLocationStep(locationStep);
+
+		if (predicate != null)
+			predicateEvaluator = new Predicate(predicate);
 	}// constructor
 
 	/**
@@ -111,52 +115,47 @@ public class XPathLocationStep implements Serializable{
 	 * is needed here: to the result vector I only add Element-s or String. This
 	 * is not correct. I should only add Node-s
 	 */
-	public Vector getResult(Vector contextNodeSet, Vector resultNodeSet) {
-		Vector outputNodeSet = resultNodeSet;
+	public List<Object> getResult(List<Object> contextNodeSet, List<Object> resultNodeSet) {
+		return getResult(contextNodeSet, resultNodeSet, null);
+	}
+
+	/**
+	 * Gets the result of this step, looking up child elements, and the attribute value of their
+	 * predicate, in an evaluation context if one is given.
+	 */
+	public List<Object> getResult(List<Object> contextNodeSet, List<Object> resultNodeSet, XPathContext context) {
+		if (context != null && resultNodeSet.isEmpty() && axis.equals("child") && nodePrefix == null
+		        && !nodeTest.equals("*") && !nodeTest.equals("node()") && !nodeTest.equals("text()"))
+			return getChildResult(contextNodeSet, resultNodeSet, context);
+
+		List<Object> outputNodeSet = resultNodeSet;
 		int nodeCount = contextNodeSet.size();
 		int i = 0;
 
 		if (axis.equals("child") || axis.equals("descendant")) {
+			boolean anyName = nodeTest.equals("*") || nodeTest.equals("node()");
+			boolean text = nodeTest.equals("text()");
+			boolean descendant = axis.equals("descendant");
+
 			for (i = 0; i < nodeCount; i++) {
-				Node node = (Node) contextNodeSet.elementAt(i);
-				int childCount = node.getChildNodes().getLength();
-
-				for (int j = 0; j < childCount; j++) {
-					if (node.getChildNodes().item(j).getNodeType() == Node.ELEMENT_NODE) {
-						Element childNode = (Element) node.getChildNodes().item(j);
-						String childName = childNode.getNodeName();
-
-						//Small addition to cater for nodes with prefixes
-						int pos = childName.indexOf(':');
-						if(pos >= 0)
-							childName = childName.substring(pos+1);
-						
-						String prefix = null;
-						if (nodePrefix != null) {
-							Element element = (Element) childNode;
-							prefix = element.getNamespaceURI();
-						}
-
-						if (nodeTest.equals("*") || nodeTest.equalsIgnoreCase(childName) //TODO This was just changed from equals to make xpath expressions case insensitive
-								|| nodeTest.equals("node()")) {
-							if (((nodePrefix != null) && (nodePrefix
-									.equals(prefix)))
-									|| (nodePrefix == null))
-								outputNodeSet.addElement(childNode);
-						} else if (nodeTest.equals("text()"))
-							outputNodeSet.addElement(childNode.getChildNodes().item(0).getNodeValue());
-
-						if (axis.equals("descendant")) {
-							Vector descendants = null;
-							descendants = getMatchingDescendants(childNode);
-
-							for (int k = 0; k < descendants.size(); k++)
-								outputNodeSet.addElement(descendants
-										.elementAt(k));
-						}
-					} else if (node.getChildNodes().item(j).getNodeType() == Node.TEXT_NODE) {
-						if (nodeTest.equals("text()"))
-							outputNodeSet.addElement(node.getChildNodes().item(j).getNodeValue());
+				Node node = (Node) contextNodeSet.get(i);
+
+				for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+					short nodeType = child.getNodeType();
+					if (nodeType == Node.ELEMENT_NODE) {
+						Element childNode = (Element) child;
+
+						if (anyName || matchesName(childNode.getNodeName())) {
+							if (nodePrefix == null || nodePrefix.equals(childNode.getNamespaceURI()))
+								outputNodeSet.add(childNode);
+						} else if (text)
+							outputNodeSet.add(childNode.getChildNodes().item(0).getNodeValue());
+
+						if (descendant)
+							outputNodeSet.addAll(getMatchingDescendants(childNode));
+					} else if (nodeType == Node.TEXT_NODE) {
+						if (text)
+							outputNodeSet.add(child.getNodeValue());
 					}
 				}
 			}
@@ -164,21 +163,21 @@ public class XPathLocationStep implements Serializable{
 
 		if (axis.equals("parent")) {
 			for (i = 0; i < nodeCount; i++) {
-				Node cn = (Node) contextNodeSet.elementAt(i);
+				Node cn = (Node) contextNodeSet.get(i);
 
 				if (cn instanceof Element)
-					outputNodeSet.addElement(((Element) cn).getParentNode());
+					outputNodeSet.add(((Element) cn).getParentNode());
 			}
 		}
 
 		if (axis.equals("attribute")) {
 			for (i = 0; i < nodeCount; i++) {
-				Node n = (Node) contextNodeSet.elementAt(i);
+				Node n = (Node) contextNodeSet.get(i);
 
 				if (n instanceof Element) {
 					String val = ((Element) n).getAttribute(nodeTest);
 					if (val != null)
-						outputNodeSet.addElement(val);
+						outputNodeSet.add(val);
 				}
 			}
 		}
@@ -190,9 +189,8 @@ public class XPathLocationStep implements Serializable{
 			if (nodeTest.equals("/")) {
 				Object startNode = null;
 				// find first element in the contextNodeSet
-				for (Enumeration nodes = contextNodeSet.elements(); nodes
-				.hasMoreElements();) {
-					startNode = nodes.nextElement();
+				for (Object node : contextNodeSet) {
+					startNode = node;
 					if (startNode instanceof Element)
 						break;
 				}
@@ -211,7 +209,7 @@ public class XPathLocationStep implements Serializable{
 						tmp = ((Node) startNode).getParentNode();
 					}
 					
-					outputNodeSet.addElement(startNode);
+					outputNodeSet.add(startNode);
 				} else {
 					// System.out.println("couldn't find root");
 					// couldn't find any elements in context
@@ -219,22 +217,45 @@ public class XPathLocationStep implements Serializable{
 				}
 			} else if (nodeTest.equals(".")) {
 				// simply copy the input vector
-				for (Enumeration enumeration = contextNodeSet.elements(); enumeration
-				.hasMoreElements();)
-					outputNodeSet.addElement(enumeration.nextElement());
+				for (Object node : contextNodeSet)
+					outputNodeSet.add(node);
 			}
 		}
 
-		if (predicate != null) {
-			Predicate predicateEvaluator = new Predicate(outputNodeSet,
-					predicate);
-			outputNodeSet = predicateEvaluator.getResult();
-		}
+		if (predicateEvaluator != null)
+			outputNodeSet = predicateEvaluator.getResult(outputNodeSet);
 		return outputNodeSet;
 	}
 
-	private Vector getMatchingDescendants(Node node) {
-		Vector matchingDescendants = new Vector();
+	private List<Object> getChildResult(List<Object> contextNodeSet, List<Object> resultNodeSet, XPathContext context) {
+		String attributeName = predicateEvaluator != null ? predicateEvaluator.getEqualsAttributeName() : null;
+		if (attributeName != null && contextNodeSet.size() == 1) {
+			List<Object> children = context.getChildElements((Node) contextNodeSet.get(0), nodeTest);
+			resultNodeSet.addAll(context.getElementsByAttribute(children, attributeName,
+			    predicateEvaluator.getEqualsValue()));
+			return resultNodeSet;
+		}
+
+		for (Object node : contextNodeSet)
+			resultNodeSet.addAll(context.getChildElements((Node) node, nodeTest));
+
+		if (predicateEvaluator != null)
+			return predicateEvaluator.getResult(resultNodeSet);
+		return resultNodeSet;
+	}
+
+	/**
+	 * Checks if an element name, without its prefix, is the node test. This ignores case, to
+	 * make xpath expressions case insensitive.
+	 */
+	private boolean matchesName(String name) {
+		//Small addition to cater for nodes with prefixes
+		int start = name.indexOf(':') + 1;
+		return name.length() - start == nodeTest.length() && name.regionMatches(true, start, nodeTest, 0, nodeTest.length());
+	}
+
+	private List<Node> getMatchingDescendants(Node node) {
+		List<Node> matchingDescendants = new ArrayList<Node>();
 		int childCount = node.getChildNodes().getLength();
 
 		for (int j = 0; j < childCount; j++) {
@@ -245,18 +266,9 @@ public class XPathLocationStep implements Serializable{
 				Node childNode = (Node) node.getChildNodes().item(j);
 				String name = ((Element) childNode).getNodeName();
 				if (nodeTest.equals("*") || nodeTest.equalsIgnoreCase(name)) //TODO This was just changed from equals to make xpath expression case insensitive
-					matchingDescendants.addElement(node);
-
-				Node[] moreDescendants = null;
-
-				Vector tmp = getMatchingDescendants(childNode);
-
-				moreDescendants = new Node[tmp.size()];
-				tmp.copyInto(moreDescendants);
-				tmp = null;
+					matchingDescendants.add(node);
 
-				for (int i = 0; i < moreDescendants.length; i++)
-					matchingDescendants.addElement(moreDescendants[i]);
+				matchingDescendants.addAll(getMatchingDescendants(childNode));
 			}
 		}
 		return matchingDescendants;
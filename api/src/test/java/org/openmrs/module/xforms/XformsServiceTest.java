@@ -0,0 +1,182 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.model.PersonRepeatAttribute;
+import org.openmrs.module.xforms.util.XformCache;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+public class XformsServiceTest extends BaseModuleContextSensitiveTest {
+
+	private XformsService xformsService;
+
+	@Before
+	public void before() {
+		xformsService = Context.getService(XformsService.class);
+	}
+
+	/**
+	 * @see {@link XformsService#getPersonRepeatAttributes(java.util.Collection,java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should group the attributes by person in display order", method = "getPersonRepeatAttributes(Collection,Collection)")
+	public void getPersonRepeatAttributes_shouldGroupTheAttributesByPersonInDisplayOrder() throws Exception {
+		saveAttribute(2, 1, "b", 2, false);
+		saveAttribute(2, 1, "a", 1, false);
+		saveAttribute(7, 1, "c", 1, false);
+
+		Map<Integer, List<PersonRepeatAttribute>> attributes = xformsService.getPersonRepeatAttributes(Arrays.asList(2,
+		    7, 8), null);
+
+		Assert.assertEquals(2, attributes.size());
+		Assert.assertEquals("a", attributes.get(2).get(0).getValue());
+		Assert.assertEquals("b", attributes.get(2).get(1).getValue());
+		Assert.assertEquals("c", attributes.get(7).get(0).getValue());
+		Assert.assertNull(attributes.get(8));
+	}
+
+	/**
+	 * @see {@link XformsService#getPersonRepeatAttributes(java.util.Collection,java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should leave out voided attributes", method = "getPersonRepeatAttributes(Collection,Collection)")
+	public void getPersonRepeatAttributes_shouldLeaveOutVoidedAttributes() throws Exception {
+		saveAttribute(2, 1, "current", 1, false);
+		saveAttribute(2, 1, "old", 2, true);
+		saveAttribute(7, 1, "old", 1, true);
+
+		Map<Integer, List<PersonRepeatAttribute>> attributes = xformsService.getPersonRepeatAttributes(Arrays.asList(2,
+		    7), null);
+
+		Assert.assertEquals(1, attributes.size());
+		Assert.assertEquals(1, attributes.get(2).size());
+		Assert.assertEquals("current", attributes.get(2).get(0).getValue());
+	}
+
+	/**
+	 * @see {@link XformsService#getPersonRepeatAttributes(java.util.Collection,java.util.Collection)}
+	 */
+	@Test
+	@Verifies(value = "should only return the given attribute types", method = "getPersonRepeatAttributes(Collection,Collection)")
+	public void getPersonRepeatAttributes_shouldOnlyReturnTheGivenAttributeTypes() throws Exception {
+		saveAttribute(2, 1, "one", 1, false);
+		saveAttribute(2, 2, "two", 1, false);
+
+		Map<Integer, List<PersonRepeatAttribute>> attributes = xformsService.getPersonRepeatAttributes(Arrays.asList(2),
+		    Arrays.asList(2));
+
+		Assert.assertEquals(1, attributes.get(2).size());
+		Assert.assertEquals("two", attributes.get(2).get(0).getValue());
+	}
+
+	/**
+	 * @see {@link XformsService#getPatientIds(String,String,Integer,int)}
+	 */
+	@Test
+	@Verifies(value = "should page the patients PatientService finds by name", method = "getPatientIds(String,String,Integer,int)")
+	public void getPatientIds_shouldPageThePatientsPatientServiceFindsByName() throws Exception {
+		Assert.assertFalse(assertSamePagesAsPatientService("Hor", null).isEmpty());
+		assertSamePagesAsPatientService("Test", null);
+		assertSamePagesAsPatientService("Horatio Hornblower", null);
+	}
+
+	/**
+	 * @see {@link XformsService#getPatientIds(String,String,Integer,int)}
+	 */
+	@Test
+	@Verifies(value = "should page the patients PatientService finds by identifier", method = "getPatientIds(String,String,Integer,int)")
+	public void getPatientIds_shouldPageThePatientsPatientServiceFindsByIdentifier() throws Exception {
+		assertSamePagesAsPatientService(null, "1");
+		assertSamePagesAsPatientService("Hor", "1");
+	}
+
+	/**
+	 * @see {@link XformsService#getPatientIds(String,String,Integer,int)}
+	 */
+	@Test
+	@Verifies(value = "should match wildcards literally", method = "getPatientIds(String,String,Integer,int)")
+	public void getPatientIds_shouldMatchWildcardsLiterally() throws Exception {
+		Assert.assertTrue(xformsService.getPatientIds("%", null, null, 10).isEmpty());
+		Assert.assertTrue(xformsService.getPatientIds(null, "_", null, 10).isEmpty());
+	}
+
+	/**
+	 * @see {@link XformsService#getXform(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should give cached xforms the users of the current session", method = "getXform(Integer)")
+	public void getXform_shouldGiveCachedXformsTheUsersOfTheCurrentSession() throws Exception {
+		XformCache.clear();
+		xformsService.saveXform(new Xform(1, "<xf:xforms xmlns:xf=\"http://www.w3.org/2002/xforms\"/>"));
+		Context.flushSession();
+		Context.clearSession();
+
+		Integer creatorId = xformsService.getXform(1).getCreator().getUserId();
+		Assert.assertEquals(1, XformCache.getCache().getSize());
+		Context.clearSession();
+
+		User creator = xformsService.getXform(1).getCreator();
+		Assert.assertSame(Context.getUserService().getUser(creatorId), creator);
+		Assert.assertNotNull(creator.getUsername());
+	}
+
+	/**
+	 * Pages through the patients matching a name and identifier one at a time, and checks that
+	 * they are the ones PatientService finds.
+	 * 
+	 * @return the paged patient ids.
+	 */
+	private List<Integer> assertSamePagesAsPatientService(String name, String identifier) {
+		List<Integer> expected = new ArrayList<Integer>();
+		for (Patient patient : Context.getPatientService().getPatients(name, identifier, null, false))
+			expected.add(patient.getPatientId());
+		Collections.sort(expected);
+
+		List<Integer> paged = new ArrayList<Integer>();
+		List<Integer> page = xformsService.getPatientIds(name, identifier, null, 1);
+		while (!page.isEmpty()) {
+			Assert.assertEquals(1, page.size());
+			paged.addAll(page);
+			page = xformsService.getPatientIds(name, identifier, page.get(0), 1);
+		}
+
+		Assert.assertEquals(expected, paged);
+		return paged;
+	}
+
+	private void saveAttribute(Integer personId, Integer attributeTypeId, String value, int displayOrder, boolean voided) {
+		PersonRepeatAttribute attribute = new PersonRepeatAttribute();
+		attribute.setPersonId(personId);
+		attribute.setAttributeTypeId(attributeTypeId);
+		attribute.setValue(value);
+		attribute.setValueId(0);
+		attribute.setValueIdType(0);
+		attribute.setValueDisplayOrder(displayOrder);
+		attribute.setCreator(Context.getAuthenticatedUser().getUserId());
+		attribute.setDateCreated(new Date());
+		attribute.setVoided(voided);
+		xformsService.savePersonRepeatAttribute(attribute);
+	}
+}
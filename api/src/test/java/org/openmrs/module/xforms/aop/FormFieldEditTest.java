@@ -0,0 +1,358 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.FormField;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.FormService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.XformBuilder;
+import org.openmrs.module.xforms.XformBuilderEx;
+import org.openmrs.module.xforms.XformConstants;
+import org.openmrs.module.xforms.util.FormTemplateCache;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.FormUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Checks that the questions of changed form fields, spliced into a stored xform, give the same
+ * xform as building the whole form again.
+ */
+public class FormFieldEditTest extends BaseModuleContextSensitiveTest {
+
+	private static final String DATASET = "FormFieldEditTest.xml";
+
+	private static final Integer FORM_ID = 100;
+
+	private static final Integer PATIENT_SECTION_ID = 100;
+
+	private static final Integer OBS_SECTION_ID = 110;
+
+	private static final Integer WEIGHT_ID = 111;
+
+	private static final Integer CD4_COUNT_ID = 112;
+
+	/** A coded question with a single answer. */
+	private static final Integer CIVIL_STATUS_ID = 113;
+
+	/** A section with a repeat of questions. */
+	private static final Integer FOOD_SECTION_ID = 120;
+
+	private FormService formService;
+
+	@Before
+	public void before() throws Exception {
+		executeDataSet(DATASET);
+		formService = Context.getFormService();
+
+		//Relationship nodes are the same with and without the edit, and need relationship types.
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(XformConstants.GLOBAL_PROP_KEY_INCLUDE_PATIENT_RELATIONSHIPS, "false"));
+	}
+
+	@Test
+	public void apply_shouldAddTheQuestionOfANewField() throws Exception {
+		Document doc = build();
+
+		FormFieldEdit edit = FormFieldEdit.create(addFormField(115, OBS_SECTION_ID, 14));
+
+		Assert.assertTrue(apply(edit, doc));
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldRemoveTheQuestionOfAPurgedField() throws Exception {
+		Document doc = build();
+
+		FormField formField = formService.getFormField(CD4_COUNT_ID);
+		FormFieldEdit edit = FormFieldEdit.create(formField);
+		formField.getForm().removeFormField(formField);
+		formService.purgeFormField(formField);
+
+		Assert.assertTrue(apply(edit, doc));
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldRemoveTheQuestionOfAPurgedFieldWithoutBuildingTheForm() throws Exception {
+		Document doc = build();
+
+		FormField formField = formService.getFormField(CD4_COUNT_ID);
+		FormFieldEdit edit = FormFieldEdit.create(formField, true);
+		formField.getForm().removeFormField(formField);
+		formService.purgeFormField(formField);
+
+		Assert.assertTrue(apply(edit, doc));
+		Assert.assertEquals(0, FormTemplateCache.getCache().getSize());
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldNotBuildTheFormWhenTheQuestionIsUnchanged() throws Exception {
+		Document doc = build();
+
+		FormField formField = formService.getFormField(WEIGHT_ID);
+		formField.setRequired(!formField.isRequired());
+		FormFieldEdit edit = FormFieldEdit.create(formField);
+		formService.saveFormField(formField);
+
+		Assert.assertFalse(apply(edit, doc));
+		Assert.assertEquals(0, FormTemplateCache.getCache().getSize());
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldUpdateTheQuestionOfAFieldChangedToAMultipleSelect() throws Exception {
+		Document doc = build();
+
+		FormFieldEdit edit = setSelectMultiple(CIVIL_STATUS_ID);
+
+		Assert.assertTrue(apply(edit, doc));
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldRemoveTheQuestionOfAPurgedMultipleSelectField() throws Exception {
+		Document doc = build();
+		Assert.assertTrue(apply(setSelectMultiple(CIVIL_STATUS_ID), doc));
+
+		FormField formField = formService.getFormField(CIVIL_STATUS_ID);
+		FormFieldEdit edit = FormFieldEdit.create(formField);
+		formField.getForm().removeFormField(formField);
+		formService.purgeFormField(formField);
+
+		Assert.assertTrue(apply(edit, doc));
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldReplaceTheQuestionOfTheConceptAFieldHadBefore() throws Exception {
+		Document doc = build();
+		String oldToken = FormUtil.getXmlToken(formService.getFormField(CD4_COUNT_ID).getField().getName());
+		Assert.assertNotNull(getControl(doc, oldToken));
+
+		//Taken before the save, like the advice does.
+		FormField formField = formService.getFormField(CD4_COUNT_ID);
+		formField.setField(formService.getField(115));
+		FormFieldEdit edit = FormFieldEdit.create(formField);
+		formService.saveFormField(formField);
+
+		Assert.assertTrue(apply(edit, doc));
+		Assert.assertNull(getControl(doc, oldToken));
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldAddTheQuestionOfANewFieldInARepeat() throws Exception {
+		Document doc = build();
+
+		FormFieldEdit edit = FormFieldEdit.create(addFormField(122, FOOD_SECTION_ID, 22));
+
+		Assert.assertTrue(apply(edit, doc));
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldAddTheQuestionOfANewDatabaseField() throws Exception {
+		Document doc = build();
+
+		FormFieldEdit edit = FormFieldEdit.create(addFormField(101, PATIENT_SECTION_ID, 3));
+
+		Assert.assertTrue(apply(edit, doc));
+		assertSameAsRebuild(doc);
+	}
+
+	@Test
+	public void apply_shouldNotModifyTheXformWhenTheQuestionIsUnchanged() throws Exception {
+		Document doc = build();
+		String xml = XformsUtil.doc2String(doc);
+
+		FormField formField = formService.getFormField(WEIGHT_ID);
+		FormFieldEdit edit = FormFieldEdit.create(formField);
+		formService.saveFormField(formField);
+
+		Assert.assertFalse(apply(edit, doc));
+		Assert.assertEquals(xml, XformsUtil.doc2String(doc));
+	}
+
+	@Test
+	public void apply_shouldKeepTheLabelTextOfExistingQuestions() throws Exception {
+		Document doc = build();
+		String token = FormUtil.getXmlToken(formService.getFormField(CIVIL_STATUS_ID).getField().getName());
+		getChild(getControl(doc, token), XformBuilder.NODE_LABEL).setTextContent("Status, as edited in the designer");
+
+		FormFieldEdit edit = setSelectMultiple(CIVIL_STATUS_ID);
+
+		Assert.assertTrue(apply(edit, doc));
+		Element control = getControl(doc, token);
+		Assert.assertTrue(isNamed(control, XformBuilder.CONTROL_SELECT));
+		Assert.assertEquals("Status, as edited in the designer", getChild(control, XformBuilder.NODE_LABEL).getTextContent());
+	}
+
+	/**
+	 * Lets the field of a form field have several answers.
+	 * 
+	 * @return the edit, taken before the change is saved.
+	 */
+	private FormFieldEdit setSelectMultiple(Integer formFieldId) {
+		FormField formField = formService.getFormField(formFieldId);
+		formField.getField().setSelectMultiple(true);
+		FormFieldEdit edit = FormFieldEdit.create(formField);
+		formService.saveField(formField.getField());
+		return edit;
+	}
+
+	private FormField addFormField(Integer fieldId, Integer parentId, int fieldNumber) {
+		FormField formField = new FormField();
+		formField.setForm(formService.getForm(FORM_ID));
+		formField.setField(formService.getField(fieldId));
+		formField.setParent(formService.getFormField(parentId));
+		formField.setFieldNumber(fieldNumber);
+		formField.setSortWeight((float) fieldNumber);
+		formField.setMinOccurs(0);
+		formField.setMaxOccurs(1);
+		formField.setRequired(false);
+		return formService.saveFormField(formField);
+	}
+
+	/**
+	 * Builds the xform of the test form as saved so far.
+	 */
+	private Document build() throws Exception {
+		clearSession();
+		return XformsUtil.fromString2Doc(XformBuilderEx.buildXform(formService.getForm(FORM_ID)));
+	}
+
+	private boolean apply(FormFieldEdit edit, Document doc) {
+		clearSession();
+		return edit.apply(doc);
+	}
+
+	/**
+	 * Saves the changes and starts a new session, such that the form is read with its changed
+	 * fields, and its template is built again.
+	 */
+	private void clearSession() {
+		Context.flushSession();
+		Context.clearSession();
+		FormTemplateCache.clear();
+	}
+
+	/**
+	 * Checks that an edited xform has the same instance, bindings and controls as the one built
+	 * again from the changed form. Bindings added by an edit come after the others, so they are
+	 * compared in any order.
+	 */
+	private void assertSameAsRebuild(Document doc) throws Exception {
+		Assert.assertEquals(describe(build()), describe(doc));
+	}
+
+	private String describe(Document doc) throws Exception {
+		StringBuilder description = new StringBuilder();
+		List<String> binds = new ArrayList<String>();
+
+		for (Element child : getChildElements(doc.getDocumentElement())) {
+			if (!isNamed(child, XformBuilder.NODE_MODEL)) {
+				description.append(toXml(child));
+				continue;
+			}
+
+			for (Element modelChild : getChildElements(child)) {
+				if (isNamed(modelChild, XformBuilder.NODE_BIND))
+					binds.add(toXml(modelChild));
+				else
+					description.append(toXml(modelChild));
+			}
+		}
+
+		Collections.sort(binds);
+		return description.append(binds).toString();
+	}
+
+	/**
+	 * Gets the control bound to a binding, or null if there is none.
+	 */
+	private Element getControl(Document doc, String bindId) {
+		NodeList nodes = doc.getElementsByTagName("*");
+		for (int index = 0; index < nodes.getLength(); index++) {
+			Element element = (Element) nodes.item(index);
+			if (bindId.equals(element.getAttribute(XformBuilder.ATTRIBUTE_BIND)))
+				return element;
+		}
+		return null;
+	}
+
+	private Element getChild(Element parent, String name) {
+		for (Element child : getChildElements(parent)) {
+			if (isNamed(child, name))
+				return child;
+		}
+		return null;
+	}
+
+	private List<Element> getChildElements(Element parent) {
+		List<Element> children = new ArrayList<Element>();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element)
+				children.add((Element) node);
+		}
+		return children;
+	}
+
+	private boolean isNamed(Node node, String name) {
+		return node.getNodeName().equals(name) || node.getNodeName().endsWith(":" + name);
+	}
+
+	/**
+	 * Writes an element without the whitespace between elements, which an edit does not keep the
+	 * same as a build.
+	 */
+	private String toXml(Element element) throws Exception {
+		Element copy = (Element) element.cloneNode(true);
+		removeWhitespace(copy);
+
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		StringWriter writer = new StringWriter();
+		transformer.transform(new DOMSource(copy), new StreamResult(writer));
+		return writer.toString();
+	}
+
+	private void removeWhitespace(Node parent) {
+		Node node = parent.getFirstChild();
+		while (node != null) {
+			Node next = node.getNextSibling();
+			if (node.getNodeType() == Node.TEXT_NODE && node.getNodeValue().trim().length() == 0)
+				parent.removeChild(node);
+			else
+				removeWhitespace(node);
+			node = next;
+		}
+	}
+}
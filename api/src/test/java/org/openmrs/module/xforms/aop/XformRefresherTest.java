@@ -0,0 +1,202 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.XformConstants;
+import org.openmrs.module.xforms.XformsService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.w3c.dom.Document;
+
+/**
+ * Checks when the {@link XformRefresher} applies edits, for an immediate and a delayed refresh.
+ */
+public class XformRefresherTest extends BaseModuleContextSensitiveTest {
+
+	private static final String XFORM_RESOURCE = "test_xform_with_locations_and_providers.xml";
+
+	private static final Integer FORM_ID = 1;
+
+	/** A delay long enough for the background thread never to apply edits during a test. */
+	private static final String LONG_DELAY = "600000";
+
+	private XformsService xformsService;
+
+	@Before
+	public void before() throws Exception {
+		//The reference index is created by sqldiff.xml, which the test database does not run.
+		Context.getAdministrationService().executeSQL(
+		    "create table if not exists xforms_xform_reference (form_id int not null, reference_type varchar(20) not null, "
+		            + "reference_id int not null, primary key (form_id, reference_type, reference_id))", false);
+
+		xformsService = Context.getService(XformsService.class);
+
+		InputStream in = getClass().getClassLoader().getResourceAsStream(XFORM_RESOURCE);
+		Xform xform;
+		try {
+			xform = new Xform(FORM_ID, IOUtils.toString(in, "UTF-8"));
+		}
+		finally {
+			in.close();
+		}
+		xformsService.saveXform(xform);
+	}
+
+	@After
+	public void after() {
+		XformRefresher.shutdown();
+	}
+
+	@Test
+	public void schedule_shouldApplyTheEditRightAwayWhenTheDelayIsZero() throws Exception {
+		setRefreshDelay("0");
+
+		XformRefresher.schedule(Collections.singletonList(FORM_ID), new MarkEdit("a"));
+
+		Assert.assertEquals(0, XformRefresher.getPendingFormCount());
+		assertMarks("a");
+	}
+
+	@Test
+	public void schedule_shouldNotQueueDelayedEditsBeforeTheTransactionCommits() throws Exception {
+		setRefreshDelay(LONG_DELAY);
+
+		XformRefresher.schedule(Collections.singletonList(FORM_ID), new MarkEdit("a"));
+
+		Assert.assertEquals(0, XformRefresher.getPendingFormCount());
+		assertMarks("");
+
+		commit();
+		Assert.assertEquals(1, XformRefresher.getPendingFormCount());
+
+		XformRefresher.flush();
+		Assert.assertEquals(0, XformRefresher.getPendingFormCount());
+		assertMarks("a");
+	}
+
+	@Test
+	public void schedule_shouldDropDelayedEditsWhenTheTransactionRollsBack() throws Exception {
+		setRefreshDelay(LONG_DELAY);
+
+		XformRefresher.schedule(Collections.singletonList(FORM_ID), new MarkEdit("a"));
+		for (TransactionSynchronization synchronization : getSynchronizations())
+			synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+		Assert.assertEquals(0, XformRefresher.getPendingFormCount());
+		XformRefresher.flush();
+		assertMarks("");
+	}
+
+	@Test
+	public void schedule_shouldApplyDelayedEditsOfAFormTogetherInOrder() throws Exception {
+		setRefreshDelay(LONG_DELAY);
+
+		XformRefresher.schedule(Collections.singletonList(FORM_ID), new MarkEdit("a"));
+		XformRefresher.schedule(Collections.singletonList(FORM_ID), new MarkEdit("b"));
+		commit();
+
+		Assert.assertEquals(1, XformRefresher.getPendingFormCount());
+		XformRefresher.flush();
+		assertMarks("ab");
+	}
+
+	@Test
+	public void schedule_shouldSkipFormsWithoutXforms() throws Exception {
+		setRefreshDelay("0");
+
+		long failedCount = XformRefresher.getFailedFormCount();
+		XformRefresher.schedule(Collections.singletonList(999999), new MarkEdit("a"));
+
+		Assert.assertEquals(failedCount, XformRefresher.getFailedFormCount());
+	}
+
+	@Test
+	public void scheduleAfterCommit_shouldNotApplyTheEditBeforeTheTransactionCommitsWhenTheDelayIsZero() throws Exception {
+		setRefreshDelay("0");
+
+		XformRefresher.scheduleAfterCommit(Collections.singletonList(FORM_ID), new MarkEdit("a"));
+
+		Assert.assertEquals(0, XformRefresher.getPendingFormCount());
+		assertMarks("");
+		Assert.assertFalse(getSynchronizations().isEmpty());
+	}
+
+	@Test
+	public void scheduleAfterCommit_shouldDropTheEditWhenTheTransactionRollsBack() throws Exception {
+		setRefreshDelay("0");
+
+		XformRefresher.scheduleAfterCommit(Collections.singletonList(FORM_ID), new MarkEdit("a"));
+		for (TransactionSynchronization synchronization : getSynchronizations())
+			synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+		Assert.assertEquals(0, XformRefresher.getPendingFormCount());
+		XformRefresher.flush();
+		assertMarks("");
+	}
+
+	/**
+	 * Runs what the edits registered to run after the test transaction commits.
+	 */
+	private void commit() {
+		for (TransactionSynchronization synchronization : getSynchronizations())
+			synchronization.afterCommit();
+	}
+
+	private List<TransactionSynchronization> getSynchronizations() {
+		return new ArrayList<TransactionSynchronization>(TransactionSynchronizationManager.getSynchronizations());
+	}
+
+	private void setRefreshDelay(String delay) {
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(XformConstants.GLOBAL_PROP_KEY_FORM_REFRESH_DELAY, delay));
+	}
+
+	private void assertMarks(String marks) {
+		String xml = xformsService.getXform(FORM_ID).getXformXml();
+		Assert.assertTrue(xml, xml.contains(" " + MarkEdit.ATTRIBUTE + "=\"" + marks + "\"") || marks.length() == 0
+		        && !xml.contains(MarkEdit.ATTRIBUTE));
+	}
+
+	/**
+	 * Appends a mark to an attribute of the root element, such that tests can see which edits were
+	 * applied and in which order.
+	 */
+	private static class MarkEdit implements XformEdit {
+
+		static final String ATTRIBUTE = "refreshMarks";
+
+		private final String mark;
+
+		MarkEdit(String mark) {
+			this.mark = mark;
+		}
+
+		public boolean apply(Document doc) {
+			String marks = doc.getDocumentElement().getAttribute(ATTRIBUTE);
+			doc.getDocumentElement().setAttribute(ATTRIBUTE, marks + mark);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.aop;
+
+import java.io.InputStream;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.w3c.dom.Document;
+
+/**
+ * Checks that the location and provider edits spliced into the xform text give the same xform as
+ * the edits through the DOM.
+ */
+public class XformTextEditTest {
+
+	private static final String XFORM_RESOURCE = "test_xform_with_locations_and_providers.xml";
+
+	/** The test xform as written by the DOM, which is how refreshed xforms are stored. */
+	private String xml;
+
+	/** The test xform as written by hand, with comments, character references and cdata. */
+	private String rawXml;
+
+	@Before
+	public void loadXform() throws Exception {
+		InputStream in = getClass().getClassLoader().getResourceAsStream(XFORM_RESOURCE);
+		try {
+			rawXml = IOUtils.toString(in, "UTF-8");
+		}
+		finally {
+			in.close();
+		}
+		xml = XformsUtil.doc2String(XformsUtil.fromString2Doc(rawXml));
+	}
+
+	@Test
+	public void patch_shouldRemoveDeletedLocation() throws Exception {
+		assertSameAsDom(location(RefreshOperation.DELETE, "2", "Mobile Clinic & Outreach [2]", "Mobile Clinic & Outreach [2]"), true);
+		assertSameAsDom(location(RefreshOperation.DELETE, "3", "Kampala Bélanger [3]", "Kampala Bélanger [3]"), true);
+	}
+
+	@Test
+	public void patch_shouldNotChangeXformForDeletedLocationWhichIsNotInIt() throws Exception {
+		XformTextEdit edit = location(RefreshOperation.DELETE, "99", "Gone [99]", "Gone [99]");
+		Assert.assertSame(xml, edit.patch(xml));
+		assertSameAsDom(edit, false);
+	}
+
+	@Test
+	public void patch_shouldRenameEditedLocation() throws Exception {
+		assertSameAsDom(location(RefreshOperation.EDIT, "1", "Unknown Location [1]", "Lost & <Found> [1]"), true);
+		assertSameAsDom(location(RefreshOperation.EDIT, "2", "Mobile Clinic & Outreach [2]", "Mobile Clinic [2]"), true);
+		assertSameAsDom(location(RefreshOperation.EDIT, "3", "Kampala Bélanger [3]", "Kampala Bélanger Est\r\n[3]"), true);
+	}
+
+	@Test
+	public void patch_shouldNotRenameLocationWhoseLabelWasChangedInTheXform() throws Exception {
+		XformTextEdit edit = location(RefreshOperation.EDIT, "1", "Some Other Name [1]", "New Name [1]");
+		Assert.assertSame(xml, edit.patch(xml));
+		assertSameAsDom(edit, false);
+	}
+
+	@Test
+	public void patch_shouldAddNewLocation() throws Exception {
+		assertSameAsDom(location(RefreshOperation.ADD, "6", null, "Gulu \"North\" & East [6]"), true);
+	}
+
+	@Test
+	public void patch_shouldAddEditedLocationWhichIsNotInXform() throws Exception {
+		assertSameAsDom(location(RefreshOperation.EDIT, "7", "Old [7]", "New [7]"), true);
+	}
+
+	@Test
+	public void patch_shouldNotAddLocationWhichIsAlreadyInXform() throws Exception {
+		XformTextEdit edit = location(RefreshOperation.ADD, "1", null, "Unknown Location [1]");
+		Assert.assertSame(xml, edit.patch(xml));
+		assertSameAsDom(edit, false);
+	}
+
+	@Test
+	public void patch_shouldLeaveStructuralChangesToTheDom() throws Exception {
+		//An empty label node needs a start and end tag.
+		Assert.assertNull(location(RefreshOperation.EDIT, "4", "", "Named [4]").patch(xml));
+
+		//An item without a label fails the same way through the DOM.
+		Assert.assertNull(location(RefreshOperation.EDIT, "5", "Old [5]", "New [5]").patch(xml));
+	}
+
+	@Test
+	public void patch_shouldEditProviders() throws Exception {
+		assertSameAsDom(provider(RefreshOperation.EDIT, "501", "Super User [501]", "Admin User [501]"), true);
+		assertSameAsDom(provider(RefreshOperation.EDIT, "502", "Jane <Doe> [502]", "Jane Doe [502]"), true);
+		assertSameAsDom(provider(RefreshOperation.DELETE, "502", "Jane <Doe> [502]", "Jane <Doe> [502]"), true);
+		assertSameAsDom(provider(RefreshOperation.ADD, "503", null, "John Doe [503]"), true);
+	}
+
+	@Test
+	public void patch_shouldNotChangeXformWithoutTheQuestion() throws Exception {
+		String xformWithoutLocation = xml.replace("bind=\"encounter.location_id\"", "bind=\"encounter.other_id\"");
+		XformTextEdit edit = location(RefreshOperation.ADD, "6", null, "Gulu [6]");
+		Assert.assertSame(xformWithoutLocation, edit.patch(xformWithoutLocation));
+	}
+
+	@Test
+	public void patch_shouldApplySeveralEditsInTurn() throws Exception {
+		XformTextEdit[] edits = { location(RefreshOperation.DELETE, "1", "Unknown Location [1]", "Unknown Location [1]"),
+		        location(RefreshOperation.ADD, "6", null, "Gulu [6]"),
+		        location(RefreshOperation.EDIT, "6", "Gulu [6]", "Gulu Main [6]"),
+		        provider(RefreshOperation.ADD, "503", null, "John Doe [503]") };
+
+		String patchedXml = xml;
+		Document doc = XformsUtil.fromString2Doc(xml);
+		for (XformTextEdit edit : edits) {
+			patchedXml = edit.patch(patchedXml);
+			Assert.assertNotNull(patchedXml);
+			edit.apply(doc);
+		}
+
+		Assert.assertEquals(XformsUtil.doc2String(doc), patchedXml);
+	}
+
+	@Test
+	public void patch_shouldGiveTheSameDocumentForHandWrittenXforms() throws Exception {
+		XformTextEdit[] edits = { location(RefreshOperation.DELETE, "3", "Kampala Bélanger [3]", "Kampala Bélanger [3]"),
+		        location(RefreshOperation.EDIT, "2", "Mobile Clinic & Outreach [2]", "Mobile Clinic [2]"),
+		        location(RefreshOperation.ADD, "6", null, "Gulu [6]"),
+		        provider(RefreshOperation.EDIT, "502", "Jane <Doe> [502]", "Jane Doe [502]") };
+
+		for (XformTextEdit edit : edits) {
+			String patchedXml = edit.patch(rawXml);
+			Assert.assertNotNull(patchedXml);
+
+			//The rest of the text is left as written, so compare the documents rather than the text.
+			Document doc = XformsUtil.fromString2Doc(rawXml);
+			Assert.assertTrue(edit.apply(doc));
+			Assert.assertEquals(XformsUtil.doc2String(doc), XformsUtil.doc2String(XformsUtil.fromString2Doc(patchedXml)));
+		}
+	}
+
+	private XformTextEdit location(RefreshOperation operation, String id, String oldName, String newName) {
+		return new XformsLocationAdvisor.LocationEdit(operation, id, oldName, newName);
+	}
+
+	private XformTextEdit provider(RefreshOperation operation, String id, String oldName, String newName) {
+		return new XformsProviderAdvisor.ProviderEdit(operation, id, oldName, newName);
+	}
+
+	/**
+	 * Applies an edit both ways, checking that the text is the same.
+	 */
+	private void assertSameAsDom(XformTextEdit edit, boolean modified) throws Exception {
+		Document doc = XformsUtil.fromString2Doc(xml);
+		Assert.assertEquals(modified, edit.apply(doc));
+		String domXml = modified ? XformsUtil.doc2String(doc) : xml;
+
+		String patchedXml = edit.patch(xml);
+		Assert.assertNotNull("Expected the edit to be spliced", patchedXml);
+		Assert.assertEquals(domXml, patchedXml);
+	}
+}
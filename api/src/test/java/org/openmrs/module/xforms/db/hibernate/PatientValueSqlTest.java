@@ -0,0 +1,108 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.db.hibernate;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Checks the sql built for patient table fields, and that table and column names outside the
+ * allowlist never reach it.
+ */
+public class PatientValueSqlTest {
+
+	@Test
+	public void getSql_shouldReadPatientFieldsWhichMovedToPersonFromPerson() {
+		Assert.assertEquals("select birthdate from person where person_id = :patientId", PatientValueSql.getSql(
+		    "patient", "birthdate", false));
+		Assert.assertEquals("select given_name from person_name where person_id = :patientId", PatientValueSql.getSql(
+		    "patient_name", "given_name", false));
+		Assert.assertEquals("select address1 from person_address where person_id = :patientId", PatientValueSql
+		        .getSql("patient_address", "address1", false));
+	}
+
+	@Test
+	public void getSql_shouldReadPatientTablesByPatientId() {
+		Assert.assertEquals("select tribe from patient where patient_id = :patientId", PatientValueSql.getSql("patient",
+		    "tribe", false));
+	}
+
+	@Test
+	public void getSql_shouldBindTheIdentifierTypeOfFilteredIdentifiers() {
+		String sql = PatientValueSql.getSql("patient_identifier", "identifier", true);
+
+		Assert.assertEquals(
+		    "select identifier from patient_identifier where patient_id = :patientId and identifier_type = :identifierType",
+		    sql);
+		Assert.assertTrue(PatientValueSql.isFiltered(sql));
+	}
+
+	@Test
+	public void getSql_shouldReadThePreferredIdentifierWhenNotFiltered() {
+		String sql = PatientValueSql.getSql("patient_identifier", "identifier", false);
+
+		Assert.assertEquals("select identifier from patient_identifier where patient_id = :patientId and preferred = 1",
+		    sql);
+		Assert.assertFalse(PatientValueSql.isFiltered(sql));
+	}
+
+	@Test
+	public void getSql_shouldIgnoreTheCaseAndSurroundingSpacesOfNames() {
+		Assert.assertEquals("select gender from person where person_id = :patientId", PatientValueSql.getSql(" Person ",
+		    "GENDER ", false));
+	}
+
+	@Test
+	public void getSql_shouldReuseTheSqlOfATableAndColumn() {
+		String sql = PatientValueSql.getSql("person", "dead", false);
+		int templateCount = PatientValueSql.getTemplateCount();
+
+		Assert.assertSame(sql, PatientValueSql.getSql("person", "dead", false));
+		Assert.assertEquals(templateCount, PatientValueSql.getTemplateCount());
+	}
+
+	@Test
+	public void getSql_shouldRejectTablesOutsideTheAllowlist() {
+		Assert.assertNull(PatientValueSql.getSql("users", "password", false));
+		Assert.assertNull(PatientValueSql.getSql("obs", "value_text", false));
+		Assert.assertNull(PatientValueSql.getSql("person; delete from person", "gender", false));
+	}
+
+	@Test
+	public void getSql_shouldRejectColumnsOutsideTheAllowlist() {
+		Assert.assertNull(PatientValueSql.getSql("person", "password", false));
+		Assert.assertNull(PatientValueSql.getSql("person", "gender from users --", false));
+		Assert.assertNull(PatientValueSql.getSql("person_name", "given_name, (select password from users)", false));
+		Assert.assertNull(PatientValueSql.getSql("patient", "birthdate or 1=1", false));
+	}
+
+	@Test
+	public void getSql_shouldRejectColumnsOfAnotherAllowedTable() {
+		Assert.assertNull(PatientValueSql.getSql("patient", "identifier", false));
+		Assert.assertNull(PatientValueSql.getSql("patient_address", "city_village", false));
+	}
+
+	@Test
+	public void getSql_shouldNotKeepRejectedNames() {
+		int templateCount = PatientValueSql.getTemplateCount();
+
+		PatientValueSql.getSql("users", "password", false);
+		PatientValueSql.getSql("person", "password", false);
+
+		Assert.assertEquals(templateCount, PatientValueSql.getTemplateCount());
+	}
+
+	@Test
+	public void getSql_shouldRejectMissingNames() {
+		Assert.assertNull(PatientValueSql.getSql(null, "gender", false));
+		Assert.assertNull(PatientValueSql.getSql("person", null, false));
+	}
+}
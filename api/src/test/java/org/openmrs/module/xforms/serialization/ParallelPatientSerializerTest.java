@@ -0,0 +1,133 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonName;
+import org.openmrs.module.xforms.model.PatientData;
+import org.openmrs.module.xforms.model.PatientTableField;
+import org.openmrs.module.xforms.model.PatientTableFieldValue;
+
+/**
+ * Checks that the parallel patient serializer writes exactly the same bytes as the default one.
+ */
+public class ParallelPatientSerializerTest {
+
+	@AfterClass
+	public static void shutdown() {
+		ParallelPatientSerializer.shutdown();
+	}
+
+	@Test
+	public void serialize_shouldWriteTheSameBytesAsTheDefaultSerializerForSmallLists() throws Exception {
+		assertSameAsDefault(createPatientData(10, 2));
+	}
+
+	@Test
+	public void serialize_shouldWriteTheSameBytesAsTheDefaultSerializerForListsOfManySlices() throws Exception {
+		assertSameAsDefault(createPatientData(1001, 3));
+	}
+
+	@Test
+	public void serialize_shouldWriteTheSameBytesAsTheDefaultSerializerForPatientsWithoutFields() throws Exception {
+		assertSameAsDefault(createPatientData(450, 0));
+	}
+
+	@Test
+	public void serialize_shouldWriteTheSameBytesAsTheDefaultSerializerWhenRunConcurrently() throws Exception {
+		final PatientData patientData = createPatientData(800, 2);
+		final byte[] expected = serialize(new DefaultPatientSerializer(), patientData);
+
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int index = 0; index < 4; index++) {
+			Thread thread = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						Assert.assertTrue(Arrays.equals(expected, serialize(new ParallelPatientSerializer(),
+						    patientData)));
+					}
+					catch (Throwable ex) {
+						synchronized (failures) {
+							failures.add(ex);
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+
+		Assert.assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	private void assertSameAsDefault(PatientData patientData) throws Exception {
+		byte[] expected = serialize(new DefaultPatientSerializer(), patientData);
+		byte[] actual = serialize(new ParallelPatientSerializer(), patientData);
+
+		Assert.assertEquals(expected.length, actual.length);
+		Assert.assertTrue(Arrays.equals(expected, actual));
+	}
+
+	private static byte[] serialize(DefaultPatientSerializer serializer, PatientData patientData) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		serializer.serialize(baos, patientData);
+		return baos.toByteArray();
+	}
+
+	private static PatientData createPatientData(int patientCount, int fieldCount) {
+		List<Patient> patients = new ArrayList<Patient>();
+		List<PatientTableField> fields = new ArrayList<PatientTableField>();
+		List<PatientTableFieldValue> fieldValues = new ArrayList<PatientTableFieldValue>();
+
+		for (int fieldId = 1; fieldId <= fieldCount; fieldId++)
+			fields.add(new PatientTableField(fieldId, "field" + fieldId));
+
+		for (int patientId = 1; patientId <= patientCount; patientId++) {
+			Patient patient = new Patient(patientId);
+			patient.setGender(patientId % 2 == 0 ? "F" : "M");
+			patient.setBirthdate(patientId % 7 == 0 ? null : new Date(86400000L * patientId));
+			patient.addName(new PersonName("Given" + patientId, patientId % 3 == 0 ? null : "Middle",
+			        "Familyé" + patientId));
+
+			PatientIdentifier identifier = new PatientIdentifier();
+			identifier.setIdentifier("ID-" + patientId);
+			identifier.setPreferred(true);
+			patient.addIdentifier(identifier);
+			patients.add(patient);
+
+			for (PatientTableField field : fields)
+				fieldValues.add(new PatientTableFieldValue(field.getId(), patientId, "value " + field.getId() + "/"
+				        + patientId));
+		}
+
+		PatientData patientData = new PatientData();
+		patientData.setPatients(patients);
+		patientData.setFields(fields);
+		patientData.setFieldValues(fieldValues);
+		return patientData;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Checks that the pipelined gzip stream writes exactly the same bytes as a plain gzip stream,
+ * whether it compresses on the pool or on the writing thread.
+ */
+public class PipelinedGZIPOutputStreamTest {
+
+	@AfterClass
+	public static void shutdown() {
+		PipelinedGZIPOutputStream.shutdown();
+	}
+
+	@Test
+	public void finish_shouldWriteTheSameBytesAsGZIPOutputStream() throws Exception {
+		byte[] data = createData(1000 * 1000);
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		PipelinedGZIPOutputStream gzip = new PipelinedGZIPOutputStream(actual);
+		write(gzip, data);
+		gzip.finish();
+
+		Assert.assertTrue(Arrays.equals(gzip(data), actual.toByteArray()));
+	}
+
+	@Test
+	public void finish_shouldWriteTheSameBytesWhenAllCompressingThreadsAreBusy() throws Exception {
+		byte[] data = createData(300 * 1000);
+		byte[] expected = gzip(data);
+
+		//Keeps every pool thread busy, such that the last stream compresses on this thread.
+		int count = Runtime.getRuntime().availableProcessors() + 1;
+		List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+		List<PipelinedGZIPOutputStream> streams = new ArrayList<PipelinedGZIPOutputStream>();
+		for (int index = 0; index < count; index++) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			outputs.add(baos);
+			streams.add(new PipelinedGZIPOutputStream(baos));
+		}
+
+		for (PipelinedGZIPOutputStream stream : streams)
+			write(stream, data);
+		for (PipelinedGZIPOutputStream stream : streams)
+			stream.finish();
+
+		for (ByteArrayOutputStream baos : outputs)
+			Assert.assertTrue(Arrays.equals(expected, baos.toByteArray()));
+	}
+
+	@Test
+	public void finish_shouldWriteAValidStreamForEmptyData() throws Exception {
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		PipelinedGZIPOutputStream gzip = new PipelinedGZIPOutputStream(actual);
+		gzip.finish();
+
+		Assert.assertTrue(Arrays.equals(gzip(new byte[0]), actual.toByteArray()));
+	}
+
+	/**
+	 * Writes in uneven pieces, some of them single bytes, to cross block boundaries.
+	 */
+	private static void write(PipelinedGZIPOutputStream gzip, byte[] data) throws Exception {
+		int offset = 0;
+		int size = 1;
+		while (offset < data.length) {
+			int length = Math.min(size, data.length - offset);
+			if (length == 1)
+				gzip.write(data[offset]);
+			else
+				gzip.write(data, offset, length);
+			offset += length;
+			size = (size * 7 + 3) % 70001;
+		}
+	}
+
+	private static byte[] gzip(byte[] data) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(baos);
+		gzip.write(data);
+		gzip.finish();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Creates data which compresses somewhat, like serialized patients do.
+	 */
+	private static byte[] createData(int size) {
+		Random random = new Random(42);
+		byte[] data = new byte[size];
+		for (int index = 0; index < size; index++)
+			data[index] = (byte) ('a' + random.nextInt(random.nextInt(5) == 0 ? 26 : 4));
+		return data;
+	}
+}
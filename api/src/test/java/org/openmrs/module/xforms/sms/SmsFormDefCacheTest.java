@@ -0,0 +1,92 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import java.io.InputStream;
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.util.LruCache;
+
+/**
+ * Checks that compiled sms form definitions are versioned by the xform xml, whether or not the
+ * date changed of the xform is set, and that a definition compiled before a removal is not kept.
+ */
+public class SmsFormDefCacheTest {
+
+	private static final String XFORM_RESOURCE = "test_xform_with_locations_and_providers.xml";
+
+	private static final Date DATE_CHANGED = new Date(1000000);
+
+	private String xml;
+
+	@Before
+	public void before() throws Exception {
+		SmsFormDefCache.clear();
+
+		InputStream in = getClass().getClassLoader().getResourceAsStream(XFORM_RESOURCE);
+		try {
+			xml = IOUtils.toString(in, "UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void getFormDef_shouldReuseTheDefinitionOfTheSameXformXml() throws Exception {
+		LruCache<Integer, ?> cache = SmsFormDefCache.getCache();
+		long hitCount = cache.getHitCount();
+
+		Assert.assertNotNull(getFormDef(xml));
+		Assert.assertNotNull(getFormDef(new String(xml)));
+
+		Assert.assertEquals(1, cache.getSize());
+		Assert.assertEquals(hitCount + 1, cache.getHitCount());
+	}
+
+	@Test
+	public void getFormDef_shouldCompileAgainWhenTheXformXmlChangesWithoutItsDate() throws Exception {
+		LruCache<Integer, ?> cache = SmsFormDefCache.getCache();
+		long hitCount = cache.getHitCount();
+		getFormDef(xml);
+
+		getFormDef(xml.replace("<xf:label>Page1</xf:label>", "<xf:label>Page 1</xf:label>"));
+
+		Assert.assertEquals(hitCount, cache.getHitCount());
+		Assert.assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void getFormDef_shouldNotCacheADefinitionOfAnXformReadBeforeARemoval() throws Exception {
+		long generation = SmsFormDefCache.getGeneration();
+		SmsFormDefCache.removeAfterCommit(1);
+
+		Assert.assertNotNull(SmsFormDefCache.getFormDef(newXform(xml), generation));
+		Assert.assertEquals(0, SmsFormDefCache.getCache().getSize());
+	}
+
+	private Object getFormDef(String xformXml) throws Exception {
+		return SmsFormDefCache.getFormDef(newXform(xformXml), SmsFormDefCache.getGeneration());
+	}
+
+	private Xform newXform(String xformXml) {
+		Xform xform = new Xform();
+		xform.setFormId(1);
+		xform.setXformXml(xformXml);
+		xform.setDateChanged(DATE_CHANGED);
+		return xform;
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the sms throughput of {@link SmsMessageDispatcher} for different pool sizes, using an
+ * in process fake sms source which sends a burst of messages from many senders, as happens after
+ * a network outage. Each message takes a fixed time to process, standing in for the session,
+ * authentication and xform processing, and the order of each sender's messages is checked.
+ * 
+ * The sms listener only submits each message and sends its report later, so the time to submit the
+ * burst is how long the sms server is held up, while the time to drain it is the throughput.
+ *
+ * Not run as part of the build. Run with: java SmsMessageDispatcherBenchmark [messages] [senders]
+ * [millisPerMessage]
+ *
+ * @author Daniel
+ *
+ */
+public class SmsMessageDispatcherBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int senders = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		long millisPerMessage = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+		for (int poolSize : new int[] { 1, 2, 4, 8, 16 }) {
+			FakeSmsSource source = new FakeSmsSource(messages, senders);
+			OrderCheckingProcessor processor = new OrderCheckingProcessor(millisPerMessage);
+			SmsMessageDispatcher dispatcher = new SmsMessageDispatcher(processor, poolSize, messages);
+
+			long start = System.nanoTime();
+			List<Future<String>> replies = new ArrayList<Future<String>>(messages);
+			while (source.hasNext()) {
+				String[] sms = source.next();
+				replies.add(dispatcher.submit(sms[0], sms[1]));
+			}
+			long submitMillis = (System.nanoTime() - start) / 1000000;
+			for (Future<String> reply : replies)
+				reply.get();
+			long millis = (System.nanoTime() - start) / 1000000;
+
+			dispatcher.shutdown();
+
+			System.out.println("threads=" + poolSize + " messages=" + messages + " submit=" + submitMillis + "ms time=" + millis + "ms throughput="
+			        + (messages * 1000L / Math.max(millis, 1)) + "/s outOfOrder=" + processor.getOutOfOrderCount());
+		}
+	}
+
+	/**
+	 * Sends numbered messages from senders in turn. The number after the sender's phone number
+	 * is the position of the message among those of the sender.
+	 */
+	private static class FakeSmsSource {
+
+		private final int messages;
+
+		private final int senders;
+
+		private int sent = 0;
+
+		FakeSmsSource(int messages, int senders) {
+			this.messages = messages;
+			this.senders = senders;
+		}
+
+		boolean hasNext() {
+			return sent < messages;
+		}
+
+		String[] next() {
+			String sender = "+2567000" + (sent % senders);
+			String text = "admin test 1 " + (sent / senders) + " 1=Daniel 2=67.8 3=m";
+			sent++;
+			return new String[] { sender, text };
+		}
+	}
+
+	/**
+	 * Stands in for the xform pipeline and counts messages processed out of their sender's order.
+	 */
+	private static class OrderCheckingProcessor implements SmsMessageDispatcher.MessageProcessor {
+
+		private final long millisPerMessage;
+
+		private final Map<String, Integer> lastPositions = new HashMap<String, Integer>();
+
+		private int outOfOrderCount = 0;
+
+		OrderCheckingProcessor(long millisPerMessage) {
+			this.millisPerMessage = millisPerMessage;
+		}
+
+		public String processMessage(String sender, String text) {
+			int position = Integer.parseInt(text.split(" ")[3]);
+			synchronized (this) {
+				Integer last = lastPositions.get(sender);
+				if (last != null && last + 1 != position)
+					outOfOrderCount++;
+				lastPositions.put(sender, position);
+			}
+
+			try {
+				Thread.sleep(millisPerMessage);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			return "Message received and processed sucessfully.";
+		}
+
+		synchronized int getOutOfOrderCount() {
+			return outOfOrderCount;
+		}
+	}
+}
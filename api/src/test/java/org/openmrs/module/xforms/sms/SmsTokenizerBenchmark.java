@@ -0,0 +1,52 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+/**
+ * Compares the time taken to split sms text by {@link SmsTokenizer} with the regular expression
+ * splitting it replaced, using the sms of {@link FormSmsParserTest}.
+ *
+ * Not run as part of the build. Run with: java SmsTokenizerBenchmark [iterations]
+ */
+public class SmsTokenizerBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		//Warm up both, so that the measured runs are compiled.
+		run(iterations / 10, true);
+		run(iterations / 10, false);
+
+		long regexNanos = run(iterations, true);
+		long tokenizerNanos = run(iterations, false);
+
+		System.out.println("iterations=" + iterations);
+		System.out.println("regex=" + (regexNanos / iterations) + "ns/sms");
+		System.out.println("tokenizer=" + (tokenizerNanos / iterations) + "ns/sms");
+	}
+
+	private static long run(int iterations, boolean regex) {
+		int count = 0;
+		long start = System.nanoTime();
+		for (int index = 0; index < iterations; index++) {
+			if (regex)
+				count += SmsTokenizerTest.splitWithRegex(SmsTokenizerTest.TEXT).size();
+			else
+				count += SmsTokenizer.tokenize(SmsTokenizerTest.TEXT, "=").size();
+		}
+		long nanos = System.nanoTime() - start;
+
+		//Use the count such that the work is not optimized away.
+		if (count != iterations * 14)
+			throw new IllegalStateException("Unexpected token count: " + count);
+
+		return nanos;
+	}
+}
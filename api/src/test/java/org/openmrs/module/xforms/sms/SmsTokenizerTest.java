@@ -0,0 +1,143 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.sms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Checks how sms messages are split into tokens.
+ */
+public class SmsTokenizerTest {
+
+	/** The sms used by {@link FormSmsParserTest}. */
+	static final String TEXT = "admin test 15 10=Vurugayo 15=m 9=11/12/2001 1=20/08/2009 2=2 3=1 5=10 11 12 6=2 7=1 2 3 8=223.789 12=DeleteMan";
+
+	@Test
+	public void testTokenize() throws Exception {
+		List<SmsToken> tokens = SmsTokenizer.tokenize(TEXT, "=");
+
+		Assert.assertEquals(14, tokens.size());
+		assertToken(tokens.get(0), SmsToken.TYPE_USERNAME, "admin", 0);
+		assertToken(tokens.get(1), SmsToken.TYPE_PASSWORD, "test", 6);
+		assertToken(tokens.get(2), SmsToken.TYPE_FORM_ID, "15", 11);
+
+		SmsToken answer = tokens.get(3);
+		assertToken(answer, SmsToken.TYPE_ANSWER, "Vurugayo", 17);
+		Assert.assertEquals(10, answer.getQuestionNumber());
+		Assert.assertEquals(14, answer.getQuestionNumberStart());
+
+		answer = tokens.get(9);
+		Assert.assertEquals(5, answer.getQuestionNumber());
+		Assert.assertEquals("10 11 12", answer.getValue());
+		Assert.assertEquals(3, answer.getValues().size());
+		Assert.assertEquals("12", answer.getValues().get(2));
+
+		answer = tokens.get(13);
+		Assert.assertEquals(12, answer.getQuestionNumber());
+		Assert.assertEquals("DeleteMan", answer.getValue());
+		Assert.assertEquals(TEXT.length(), answer.getEnd());
+	}
+
+	/**
+	 * The tokenizer should give the same answers as the regular expression splitting it replaced.
+	 */
+	@Test
+	public void testTokenizeMatchesRegexSplitting() throws Exception {
+		String[] texts = { TEXT, "guyzb daniel123 newform 1=Daniel Kayiwa 2=67.8 3=m 4=1 3 4",
+		        "  admin   test 15   1 = a b   2=  c=d 3 =e  ", "admin test 15 1=Daniel2=x 3=a1 4=y" };
+
+		for (String text : texts) {
+			List<String> expected = splitWithRegex(text);
+			List<String> actual = new ArrayList<String>();
+			for (SmsToken token : SmsTokenizer.tokenize(text, "="))
+				actual.add(token.getType() == SmsToken.TYPE_ANSWER ? token.getQuestionNumber() + "=" + token.getValue()
+				        : token.getValue());
+
+			Assert.assertEquals(text, expected, actual);
+		}
+	}
+
+	@Test
+	public void testTokenizeWithOtherSeparator() throws Exception {
+		List<SmsToken> tokens = SmsTokenizer.tokenize("admin test 15 1:a 2:b=c", ":");
+		Assert.assertEquals(5, tokens.size());
+		Assert.assertEquals("b=c", tokens.get(4).getValue());
+	}
+
+	@Test
+	public void testTokenizeReportsMissingFormId() throws Exception {
+		assertParseError("admin test ", "Expected form identifier", 11);
+	}
+
+	@Test
+	public void testTokenizeReportsTextBeforeFirstQuestion() throws Exception {
+		assertParseError("admin test 15 Daniel 1=x", "Expected question number", 14);
+	}
+
+	@Test
+	public void testTokenizeReportsMissingAnswer() throws Exception {
+		assertParseError("admin test 15 1=x 2= 3=y", "Expected an answer for question 2", 20);
+	}
+
+	@Test
+	public void testTokenizeReportsTooLargeQuestionNumber() throws Exception {
+		assertParseError("admin test 15 12345678901=x", "Question number is too large", 14);
+	}
+
+	private void assertToken(SmsToken token, byte type, String value, int start) {
+		Assert.assertEquals(type, token.getType());
+		Assert.assertEquals(value, token.getValue());
+		Assert.assertEquals(start, token.getStart());
+		Assert.assertEquals(start + value.length(), token.getEnd());
+	}
+
+	private void assertParseError(String text, String message, int offset) {
+		try {
+			SmsTokenizer.tokenize(text, "=");
+			Assert.fail("Expected a parse error for: " + text);
+		}
+		catch (SmsParseException ex) {
+			Assert.assertEquals(message + " at position " + (offset + 1), ex.getMessage());
+			Assert.assertEquals(offset, ex.getOffset());
+		}
+	}
+
+	/**
+	 * Splits sms text the way FormSmsParser did before it used the tokenizer.
+	 */
+	static List<String> splitWithRegex(String text) {
+		List<String> tokens = new ArrayList<String>();
+
+		text = text.trim();
+		for (int count = 0; count < 3; count++) {
+			int pos = text.indexOf(' ');
+			tokens.add(text.substring(0, pos).trim());
+			text = text.substring(pos).trim();
+		}
+		text = " " + text;
+
+		String[] values = text.split("\\s*\\d+\\s*=");
+		int pos, startindex = 0;
+		for (int index = 1; index < values.length; index++) {
+			String value = values[index];
+			pos = text.indexOf(value, text.indexOf("=", startindex) + 1);
+			String key = text.substring(startindex, pos);
+			startindex = pos + value.length();
+			tokens.add(Integer.parseInt(key.substring(0, key.indexOf('=')).trim()) + "=" + value.trim());
+		}
+
+		return tokens;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Checks the bounds, statistics and generation guard of the cache the module caches are built on.
+ */
+public class LruCacheTest {
+
+	@Test
+	public void put_shouldEvictTheLeastRecentlyUsedEntry() {
+		LruCache<String, String> cache = new LruCache<String, String>("test", 2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.put("c", "3");
+
+		Assert.assertEquals("1", cache.get("a"));
+		Assert.assertNull(cache.get("b"));
+		Assert.assertEquals("3", cache.get("c"));
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void put_shouldEvictUntilTheTotalWeightFits() {
+		LruCache<String, String> cache = newWeighedCache(10);
+		cache.put("a", "1234");
+		cache.put("b", "1234");
+		cache.put("c", "123456");
+
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals("1234", cache.get("b"));
+		Assert.assertEquals(10, cache.getWeight());
+		Assert.assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void put_shouldNotCacheValuesHeavierThanTheMaximumWeight() {
+		LruCache<String, String> cache = newWeighedCache(10);
+		cache.put("a", "1234");
+		cache.put("a", "12345678901");
+
+		Assert.assertNull(cache.get("a"));
+		Assert.assertEquals(0, cache.getSize());
+		Assert.assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void put_shouldNotCacheValuesReadBeforeARemoval() {
+		LruCache<String, String> cache = new LruCache<String, String>("test", 10);
+		long generation = cache.getGeneration();
+		cache.remove("a");
+		cache.put("a", "1", generation);
+		Assert.assertNull(cache.get("a"));
+
+		cache.put("a", "1", cache.getGeneration());
+		Assert.assertEquals("1", cache.get("a"));
+	}
+
+	@Test
+	public void get_shouldRemoveAndCountInvalidValuesAsMisses() {
+		LruCache<String, String> cache = new LruCache<String, String>("test", 10);
+		cache.put("a", "old");
+
+		LruCache.Predicate<String> isNew = new LruCache.Predicate<String>() {
+
+			public boolean apply(String value) {
+				return value.equals("new");
+			}
+		};
+
+		Assert.assertNull(cache.get("a", isNew));
+		Assert.assertEquals(0, cache.getSize());
+		Assert.assertEquals(0, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void removeKeys_shouldRemoveMatchingKeysOnly() {
+		LruCache<String, String> cache = newWeighedCache(100);
+		cache.put("1_en", "one");
+		cache.put("1_fr", "un");
+		cache.put("10_en", "ten");
+
+		cache.removeKeys(LruCache.startsWith("1_"));
+
+		Assert.assertEquals(1, cache.getSize());
+		Assert.assertEquals("ten", cache.get("10_en"));
+		Assert.assertEquals(3, cache.getWeight());
+	}
+
+	@Test
+	public void getHitRate_shouldBeTheFractionOfLookupsFound() {
+		LruCache<String, String> cache = new LruCache<String, String>("test", 10);
+		Assert.assertEquals(0.0, cache.getHitRate());
+
+		cache.put("a", "1");
+		cache.get("a");
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+
+		Assert.assertEquals(0.75, cache.getHitRate());
+	}
+
+	private LruCache<String, String> newWeighedCache(long maxWeight) {
+		return new LruCache<String, String>("test", 100, maxWeight) {
+
+			@Override
+			protected long weigh(String value) {
+				return value.length();
+			}
+		};
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.util;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.xforms.Xform;
+import org.openmrs.module.xforms.util.XformVariantCache.Variant;
+
+/**
+ * Checks that variants are made per locale when asked for, and that they translate xform xml
+ * which was filled in after it was read, like opening a form does.
+ */
+public class XformVariantCacheTest {
+
+	private static final String XFORM_XML = "<xf:xforms><xf:group id=\"1\"><xf:label>Page</xf:label>"
+	        + "<xf:select1 bind=\"q1\"><xf:label>Question</xf:label></xf:select1></xf:group></xf:xforms>";
+
+	private static final String LAYOUT_XML = "<Form><Page Text=\"Page\"/></Form>";
+
+	private static final String LOCALE_XML = "<LanguageTextRoot>"
+	        + "<LanguageText lang=\"en\"><xform>"
+	        + "<text xpath=\"xforms/group[@id='1']/label\" value=\"Page\"/>"
+	        + "<text xpath=\"xforms/group[@id='1']/select1[@bind='q1']/item[@id='yes']/label\" value=\"Yes\"/>"
+	        + "</xform><Form><text xpath=\"Form/Page[@Text]\" value=\"Page\"/></Form></LanguageText>"
+	        + "<LanguageText lang=\"fr\"><xform>"
+	        + "<text xpath=\"xforms/group[@id='1']/label\" value=\"Feuille\"/>"
+	        + "<text xpath=\"xforms/group[@id='1']/select1[@bind='q1']/item[@id='yes']/label\" value=\"Oui\"/>"
+	        + "</xform><Form><text xpath=\"Form/Page[@Text]\" value=\"Feuille\"/></Form></LanguageText>"
+	        + "</LanguageTextRoot>";
+
+	private Xform xform;
+
+	@Before
+	public void before() {
+		XformVariantCache.clear();
+
+		xform = new Xform();
+		xform.setFormId(1);
+		xform.setXformXml(XFORM_XML);
+		xform.setLayoutXml(LAYOUT_XML);
+		xform.setLocaleXml(LOCALE_XML);
+	}
+
+	@Test
+	public void getVariant_shouldOnlyMakeVariantsForLocalesAskedFor() throws Exception {
+		Assert.assertEquals(0, XformVariantCache.getCache().getSize());
+
+		XformVariantCache.getVariant(xform, "fr");
+
+		Assert.assertEquals(1, XformVariantCache.getCache().getSize());
+		Assert.assertTrue(XformVariantCache.getCache().getWeight() > 0);
+	}
+
+	@Test
+	public void getVariant_shouldReuseTheVariantOfTheSameVersion() throws Exception {
+		Variant variant = XformVariantCache.getVariant(xform, "fr");
+
+		Assert.assertSame(variant, XformVariantCache.getVariant(xform, "FR"));
+	}
+
+	@Test
+	public void getVariant_shouldMakeANewVariantWhenTheLocaleTextChanges() throws Exception {
+		Variant variant = XformVariantCache.getVariant(xform, "fr");
+		xform.setLocaleXml(LOCALE_XML.replace("Feuille", "Page 1"));
+
+		Variant newVariant = XformVariantCache.getVariant(xform, "fr");
+
+		Assert.assertNotSame(variant, newVariant);
+		Assert.assertTrue(newVariant.getLayoutXml().contains("Page 1"));
+	}
+
+	@Test
+	public void translateXformXml_shouldTranslateTextFilledInAfterTheVariantWasMade() throws Exception {
+		Variant variant = XformVariantCache.getVariant(xform, "fr");
+
+		//An itemset filled in for the request, after the variant was made.
+		String filledXml = XFORM_XML.replace("</xf:select1>",
+		    "<xf:item id=\"yes\"><xf:label>Yes</xf:label><xf:value>1</xf:value></xf:item></xf:select1>");
+		String xml = variant.translateXformXml(filledXml);
+
+		Assert.assertTrue(xml, xml.contains("Feuille"));
+		Assert.assertTrue(xml, xml.contains("Oui"));
+		Assert.assertTrue(variant.getLayoutXml(), variant.getLayoutXml().contains("Feuille"));
+	}
+
+	@Test
+	public void translateXformXml_shouldKeepTheXmlOfLocalesWithoutText() throws Exception {
+		Variant variant = XformVariantCache.getVariant(xform, "de");
+
+		Assert.assertSame(XFORM_XML, variant.translateXformXml(XFORM_XML));
+		Assert.assertSame(LAYOUT_XML, variant.getLayoutXml());
+	}
+}
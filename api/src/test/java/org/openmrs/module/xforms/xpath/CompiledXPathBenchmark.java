@@ -0,0 +1,148 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.xpath;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Measures translating a form into its locales, as done for each download, with the xpath
+ * expressions of the localized text parsed for every translation as before, compiled once and
+ * cached, and also evaluated with a context for the document. The form has a question per page
+ * group, each with a label and a hint, and every fifth question has five options. The results of
+ * all are checked to be the same nodes.
+ *
+ * Not run as part of the build. Run with: java CompiledXPathBenchmark [questions] [locales]
+ * [translations]
+ */
+public class CompiledXPathBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int questions = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int locales = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int translations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		Document doc = createXform(questions);
+		List<String> xpaths = getLocalizedXpaths(questions);
+		System.out.println("questions=" + questions + " expressions=" + xpaths.size() + " locales=" + locales);
+
+		checkSameResults(doc, xpaths);
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int t = 0; t < translations; t++) {
+				for (int locale = 0; locale < locales; locale++) {
+					for (String xpath : xpaths)
+						new CompiledXPath(xpath).evaluate(doc);
+				}
+			}
+			long parsedMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			for (int t = 0; t < translations; t++) {
+				for (int locale = 0; locale < locales; locale++) {
+					for (String xpath : xpaths)
+						CompiledXPath.compile(xpath).evaluate(doc);
+				}
+			}
+			long compiledMillis = (System.nanoTime() - start) / 1000000;
+
+			start = System.nanoTime();
+			for (int t = 0; t < translations; t++) {
+				for (int locale = 0; locale < locales; locale++) {
+					XPathContext context = new XPathContext();
+					for (String xpath : xpaths)
+						CompiledXPath.compile(xpath).evaluate(doc, context);
+				}
+			}
+			long contextMillis = (System.nanoTime() - start) / 1000000;
+
+			System.out.println("round=" + round + " parsedEachTime=" + (parsedMillis / translations)
+			        + "ms/translation compiledAndCached=" + (compiledMillis / translations)
+			        + "ms/translation withContext=" + (contextMillis / translations) + "ms/translation cached="
+			        + CompiledXPath.getCacheSize());
+		}
+	}
+
+	/**
+	 * Creates an xform, as parsed by the module, without namespace awareness.
+	 */
+	private static Document createXform(int questions) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element root = doc.createElement("xf:xforms");
+		doc.appendChild(root);
+
+		for (int q = 1; q <= questions; q++) {
+			Element group = child(root, "xf:group", null);
+			group.setAttribute("id", String.valueOf(q));
+			child(group, "xf:label", "Page " + q);
+
+			boolean select = q % 5 == 0;
+			Element input = child(group, select ? "xf:select1" : "xf:input", null);
+			input.setAttribute("bind", "question" + q);
+			child(input, "xf:label", "Question " + q);
+			child(input, "xf:hint", "Hint " + q);
+
+			for (int option = 1; select && option <= 5; option++) {
+				Element item = child(input, "xf:item", null);
+				item.setAttribute("id", "option" + option);
+				child(item, "xf:label", "Option " + option);
+				child(item, "xf:value", String.valueOf(option));
+			}
+		}
+
+		return doc;
+	}
+
+	/**
+	 * Gets the xpath expressions of the localized text of the form, as the form designer writes
+	 * them into the locale xml.
+	 */
+	private static List<String> getLocalizedXpaths(int questions) {
+		List<String> xpaths = new ArrayList<String>();
+		for (int q = 1; q <= questions; q++) {
+			String group = "xforms/group[@id='" + q + "']";
+			xpaths.add(group + "/label");
+
+			boolean select = q % 5 == 0;
+			String input = group + (select ? "/select1" : "/input") + "[@bind='question" + q + "']";
+			xpaths.add(input + "/label");
+			xpaths.add(input + "/hint");
+
+			for (int option = 1; select && option <= 5; option++)
+				xpaths.add(input + "/item[@id='option" + option + "']/label");
+		}
+		return xpaths;
+	}
+
+	private static void checkSameResults(Document doc, List<String> xpaths) {
+		XPathContext context = new XPathContext();
+		for (String xpath : xpaths) {
+			List<Object> parsed = new CompiledXPath(xpath).evaluate(doc);
+			List<Object> compiled = CompiledXPath.compile(xpath).evaluate(doc);
+			List<Object> compiledAgain = CompiledXPath.compile(xpath).evaluate(doc, context);
+			if (parsed.size() != 1 || !parsed.equals(compiled) || !parsed.equals(compiledAgain))
+				throw new IllegalStateException("Different results for " + xpath + ": " + parsed + " " + compiled);
+		}
+	}
+
+	private static Element child(Element parent, String name, String text) {
+		Element child = parent.getOwnerDocument().createElement(name);
+		if (text != null)
+			child.setTextContent(text);
+		parent.appendChild(child);
+		return child;
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.xpath;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Checks that {@link CompiledXPath} selects the same nodes and values as the engine it replaced,
+ * which is kept in the legacy package, whether an expression is compiled each time, cached, or
+ * evaluated with an {@link XPathContext}.
+ */
+public class CompiledXPathTest {
+
+	/** An xform with indenting text between its elements, as stored, with a namespace. */
+	private static final String PARSED_XFORM = "<xf:xforms xmlns:xf=\"http://www.w3.org/2002/xforms\">\n"
+	        + "  <xf:group id=\"1\">\n    <xf:label>One</xf:label>\n"
+	        + "    <xf:input bind=\"q1\"><xf:label>Q1</xf:label></xf:input>\n  </xf:group>\n"
+	        + "  <xf:group id=\"2\">text<xf:label>Two</xf:label></xf:group>\n</xf:xforms>";
+
+	/** An xform built the way the form designer output is parsed, without namespace awareness. */
+	private Document builtXform;
+
+	private Document parsedXform;
+
+	@Before
+	public void before() throws Exception {
+		builtXform = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element root = builtXform.createElement("xf:xforms");
+		builtXform.appendChild(root);
+
+		for (int q = 1; q <= 6; q++) {
+			Element group = child(root, "xf:group", null);
+			group.setAttribute("id", String.valueOf(q));
+			child(group, "xf:label", "Page " + q);
+
+			boolean select = q % 3 == 0;
+			Element input = child(group, select ? "xf:select1" : "xf:input", null);
+			input.setAttribute("bind", "q" + q);
+			if (q % 2 == 0)
+				input.setAttribute("type", "text");
+			child(input, "xf:label", "Question " + q);
+			child(input, "xf:hint", "Hint " + q);
+
+			for (int option = 1; select && option <= 3; option++) {
+				Element item = child(input, "xf:item", null);
+				item.setAttribute("id", "o" + option);
+				child(item, "xf:label", "Option " + option);
+				child(item, "xf:value", String.valueOf(option));
+			}
+		}
+
+		Element group = child(root, "xf:group", null);
+		group.setAttribute("id", "a/b");
+		child(group, "xf:label", "Slash");
+
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		parsedXform = factory.newDocumentBuilder().parse(new ByteArrayInputStream(PARSED_XFORM.getBytes("UTF-8")));
+	}
+
+	@Test
+	public void evaluate_shouldSelectChildStepsLikeTheLegacyEngine() throws Exception {
+		assertSameResults("xforms/group/label", 7);
+		assertSameResults("/xforms/group/label", 7);
+		assertSameResults("XFORMS/Group/LABEL", 7);
+		assertSameResults("xforms/*/label", 7);
+		assertSameResults("xforms/group/node()", 13);
+		assertSameResults("xf:xforms/xf:group", 0);
+		assertSameResults("//label", 0);
+		assertSameResults("descendant::label", 0);
+	}
+
+	@Test
+	public void evaluate_shouldFilterByPredicatesLikeTheLegacyEngine() throws Exception {
+		assertSameResults("xforms/group[@id='1']/label", 1);
+		assertSameResults("xforms/group[@id='7']/label", 0);
+		assertSameResults("xforms/group[@id='a/b']/label", 1);
+		assertSameResults("xforms/group/input[@bind=\"q4\"]/hint", 1);
+		assertSameResults("xforms/group/input[@type]/label", 2);
+		assertSameResults("xforms/group/input[@bind='q2'][@type='text']/label", 1);
+		assertSameResults("xforms/group/input[@bind='q2'][@type='none']", 0);
+		assertSameResults("xforms/group/input[@bind='q2' and @type='text']", 1);
+		assertSameResults("xforms/group/input[@bind='q1' and @type='text']", 0);
+		assertSameResults("xforms/group/select1[@bind='q3']/item[@id='o2']/label", 1);
+		assertSameResults("xforms/group/input[@bind>'q2']", 4);
+	}
+
+	@Test
+	public void evaluate_shouldSelectPositionalStepsLikeTheLegacyEngine() throws Exception {
+		//Positions are counted from 0, as the legacy engine did.
+		assertSameResults("xforms/group[0]", 1);
+		assertSameResults("xforms/group[1]/label", 1);
+		assertSameResults(builtXform, "xforms/group[@id='3']/select1/item[1]/value", 1);
+		Assert.assertEquals("Page 2", ((Element) evaluate("xforms/group[1]/label", builtXform).get(0)).getTextContent());
+	}
+
+	@Test
+	public void evaluate_shouldFailForPositionsOutOfRangeLikeTheLegacyEngine() throws Exception {
+		assertOutOfRange("xforms/group[9]");
+		assertOutOfRange("xforms/group[@id='7']/input[0]");
+	}
+
+	@Test
+	public void evaluate_shouldSelectAttributesAndTextLikeTheLegacyEngine() throws Exception {
+		assertSameResults("xforms/group/@id", 7);
+		assertSameResults("xforms/group/input/@bind", 4);
+		assertSameResults("xforms/group[@id='2']/input[@bind='q2']/@type", 2);
+		assertSameResults("xforms/group/label/text()", 7);
+		assertSameResults("xforms/group/text()", 13);
+		assertSameResults("xforms/text()", 7);
+		assertSameResults("xforms/group[@id='3']/select1[@bind='q3']/item[@id='o3']/value/text()", 1);
+	}
+
+	@Test
+	public void evaluate_shouldSelectRelativePathsLikeTheLegacyEngine() throws Exception {
+		Element group = (Element) builtXform.getDocumentElement().getElementsByTagName("xf:group").item(1);
+
+		assertSameResults(group, "label", 1);
+		assertSameResults(group, ".", 1);
+		assertSameResults(group, "..", 1);
+		assertSameResults(group, "@id", 1);
+		assertSameResults(group, "./input/label", 1);
+		assertSameResults(group, "input[@bind='q2']/hint", 1);
+		assertSameResults(group, "input/../label", 1);
+		assertSameResults(group, "../group[@id='1']/label", 1);
+		assertSameResults("xforms/group[@id='2']/input[@bind='q2']/../label", 1);
+		assertSameResults("xforms/group[@id='2']/./label", 1);
+	}
+
+	@Test
+	public void evaluate_shouldSeeChangedAttributesWithAContextLikeTheLegacyEngine() throws Exception {
+		String xpath = "xforms/group/input[@bind='renamed']/label";
+		XPathContext context = new XPathContext();
+		Assert.assertEquals(0, CompiledXPath.compile(xpath).evaluate(builtXform, context).size());
+
+		Element input = (Element) builtXform.getDocumentElement().getElementsByTagName("xf:input").item(0);
+		input.setAttribute("bind", "renamed");
+		context.attributeChanged("bind");
+
+		List<Object> expected = legacy(builtXform, xpath);
+		Assert.assertEquals(1, expected.size());
+		Assert.assertEquals(expected, CompiledXPath.compile(xpath).evaluate(builtXform, context));
+	}
+
+	@Test
+	public void evaluate_shouldSeeAddedElementsWithAContextLikeTheLegacyEngine() throws Exception {
+		String xpath = "xforms/group[@id='1']/hint";
+		XPathContext context = new XPathContext();
+		Assert.assertEquals(0, CompiledXPath.compile(xpath).evaluate(builtXform, context).size());
+
+		child((Element) builtXform.getDocumentElement().getFirstChild(), "xf:hint", "Added");
+		context.childrenChanged();
+
+		List<Object> expected = legacy(builtXform, xpath);
+		Assert.assertEquals(1, expected.size());
+		Assert.assertEquals(expected, CompiledXPath.compile(xpath).evaluate(builtXform, context));
+	}
+
+	/**
+	 * Checks that an expression gives the same results with both engines, on the built and parsed
+	 * xforms, and that it selects some number of results from the built one.
+	 */
+	private void assertSameResults(String xpath, int builtResultCount) {
+		assertSameResults(builtXform, xpath, builtResultCount);
+		assertSameResults(parsedXform, xpath, -1);
+	}
+
+	private void assertSameResults(Node startNode, String xpath, int resultCount) {
+		List<Object> expected = legacy(startNode, xpath);
+		if (resultCount >= 0)
+			Assert.assertEquals(xpath, resultCount, expected.size());
+
+		Assert.assertEquals(xpath, expected, new CompiledXPath(xpath).evaluate(startNode));
+		Assert.assertEquals(xpath, expected, CompiledXPath.compile(xpath).evaluate(startNode));
+		Assert.assertEquals(xpath, expected, CompiledXPath.compile(xpath).evaluate(startNode, new XPathContext()));
+		Assert.assertEquals(xpath, expected, new XPathExpression(startNode, xpath).getResult());
+	}
+
+	private void assertOutOfRange(String xpath) {
+		try {
+			legacy(builtXform, xpath);
+			Assert.fail("The legacy engine selected " + xpath);
+		}
+		catch (IndexOutOfBoundsException ex) {}
+
+		try {
+			evaluate(xpath, builtXform);
+			Assert.fail("The compiled engine selected " + xpath);
+		}
+		catch (IndexOutOfBoundsException ex) {}
+	}
+
+	private List<Object> evaluate(String xpath, Node startNode) {
+		return CompiledXPath.compile(xpath).evaluate(startNode);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object> legacy(Node startNode, String xpath) {
+		return new org.openmrs.module.xforms.xpath.legacy.XPathExpression(startNode, xpath).getResult();
+	}
+
+	private static Element child(Element parent, String name, String text) {
+		Element child = parent.getOwnerDocument().createElement(name);
+		if (text != null)
+			child.setTextContent(text);
+		parent.appendChild(child);
+		return child;
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.sms.SmsFormDefCache;
+import org.openmrs.module.xforms.util.FormTemplateCache;
+import org.openmrs.module.xforms.util.LruCache;
+import org.openmrs.module.xforms.util.NameLookupCache;
+import org.openmrs.module.xforms.util.WidgetValueCache;
+import org.openmrs.module.xforms.util.XformCache;
+import org.openmrs.module.xforms.util.XformVariantCache;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.util.PrivilegeConstants;
+
+/**
+ * Shows the size and hit rate of the xforms module caches.
+ */
+public class CacheStatusServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1239820102030344237L;
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!XformsUtil.isAuthenticated(request, response, null))
+			return;
+
+		if (!Context.hasPrivilege(PrivilegeConstants.VIEW_ADMIN_FUNCTIONS)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentType("text/plain");
+
+		List<LruCache<?, ?>> caches = new ArrayList<LruCache<?, ?>>();
+		caches.addAll(NameLookupCache.getCaches());
+		caches.add(XformCache.getCache());
+		caches.add(WidgetValueCache.getCache());
+		caches.add(XformVariantCache.getCache());
+		caches.add(FormTemplateCache.getCache());
+		caches.add(StaticAssetCache.getCache());
+		caches.add(SmsFormDefCache.getCache());
+
+		PrintWriter writer = response.getWriter();
+		for (LruCache<?, ?> cache : caches) {
+			String prefix = cache.getName() + ".";
+			writer.println(prefix + "size=" + cache.getSize() + "/" + cache.getMaxSize());
+			if (cache.getMaxWeight() != Long.MAX_VALUE)
+				writer.println(prefix + "weight=" + cache.getWeight() + "/" + cache.getMaxWeight());
+			writer.println(prefix + "hits=" + cache.getHitCount());
+			writer.println(prefix + "misses=" + cache.getMissCount());
+			writer.println(prefix + "evictions=" + cache.getEvictionCount());
+			writer.println(prefix + "hitRate=" + String.format("%.3f", cache.getHitRate()));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.web;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.ContextAuthenticationException;
+import org.openmrs.module.xforms.SharedItemsetManager;
+import org.openmrs.module.xforms.SharedItemsetManager.Itemset;
+import org.openmrs.module.xforms.XformConstants;
+import org.openmrs.module.xforms.util.XformsUtil;
+
+/**
+ * Serves the shared location and provider itemsets, with their version as the ETag, such that
+ * clients which already have the current version get a 304 instead of the whole list.
+ */
+public class ItemsetServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1239820102030344236L;
+
+	private Log log = LogFactory.getLog(this.getClass());
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		try {
+			XformsUtil.authenticateInlineUser(request);
+		}
+		catch (ContextAuthenticationException e) {
+			log.error(e.getMessage(), e);
+			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+
+		if (!XformsUtil.isAuthenticated(request, response, null))
+			return;
+
+		Itemset itemset = SharedItemsetManager.getItemset(request.getParameter("name"));
+		if (itemset == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		String etag = "\"" + itemset.getVersion() + "\"";
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", "private, no-cache");
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		response.setContentType(XformConstants.HTTP_HEADER_CONTENT_TYPE_XML);
+		response.setCharacterEncoding(XformConstants.DEFAULT_CHARACTER_ENCODING);
+		response.getWriter().print(itemset.getXml());
+	}
+}
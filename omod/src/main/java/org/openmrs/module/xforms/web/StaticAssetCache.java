@@ -0,0 +1,218 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.IOUtils;
+import org.openmrs.module.xforms.util.LruCache;
+
+/**
+ * A least recently used cache of the module's static resources, like the form designer and form
+ * runner scripts, together with their gzipped copies. Such resources used to be read and gzipped
+ * again for every request.
+ *
+ * Each resource has a strong ETag made from a digest of its content. Where the resource is a file
+ * on disk, it is reloaded when the file changes, such as after the module is upgraded.
+ */
+public class StaticAssetCache {
+
+	/** Where the module resources are put in the webapp. */
+	private static final String RESOURCES_PATH = "/WEB-INF/view/module/xforms/resources";
+
+	/** The most bytes kept, counting both the plain and gzipped copies. */
+	private static final long MAX_BYTE_COUNT = 32 * 1024 * 1024;
+
+	/** Resources larger than this are not kept. */
+	private static final long MAX_ASSET_BYTE_COUNT = 4 * 1024 * 1024;
+
+	private static final LruCache<String, Asset> cache = new LruCache<String, Asset>("staticAssets", Integer.MAX_VALUE,
+	        MAX_BYTE_COUNT) {
+
+		@Override
+		protected long weigh(Asset asset) {
+			return asset.getByteCount();
+		}
+	};
+
+	/**
+	 * Gets a module resource, loading it if not cached or changed since it was cached.
+	 *
+	 * @param servletContext the servlet context.
+	 * @param path the path of the resource within the module resources, like
+	 *            /formdesigner/FormDesigner.nocache.js
+	 * @return the resource, or null if there is no such resource or it is too large to keep.
+	 */
+	public static Asset get(ServletContext servletContext, String path) throws IOException {
+		if (path.contains("..") || path.endsWith("/"))
+			return null;
+
+		String resourcePath = RESOURCES_PATH + path;
+		String realPath = servletContext.getRealPath(resourcePath);
+		final File file = (realPath == null) ? null : new File(realPath);
+
+		Asset asset = cache.get(path, new LruCache.Predicate<Asset>() {
+
+			public boolean apply(Asset asset) {
+				return asset.isVersionOf(file);
+			}
+		});
+
+		if (asset == null) {
+			asset = load(servletContext, resourcePath, file);
+			if (asset != null)
+				cache.put(path, asset);
+		}
+		return asset;
+	}
+
+	public static void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Gets the underlying cache, for reporting its statistics.
+	 */
+	public static LruCache<String, Asset> getCache() {
+		return cache;
+	}
+
+	private static Asset load(ServletContext servletContext, String resourcePath, File file) throws IOException {
+		if (file != null && (!file.isFile() || file.length() > MAX_ASSET_BYTE_COUNT))
+			return null;
+
+		InputStream input = servletContext.getResourceAsStream(resourcePath);
+		if (input == null)
+			return null;
+
+		byte[] content;
+		try {
+			content = IOUtils.toByteArray(input);
+		}
+		finally {
+			input.close();
+		}
+
+		if (content.length > MAX_ASSET_BYTE_COUNT)
+			return null;
+
+		String contentType = servletContext.getMimeType(resourcePath);
+		byte[] gzippedContent = isCompressible(resourcePath, contentType) ? gzip(content) : null;
+		if (gzippedContent != null && gzippedContent.length >= content.length)
+			gzippedContent = null;
+
+		long lastModified = (file != null) ? file.lastModified() : System.currentTimeMillis();
+		return new Asset(content, gzippedContent, contentType, digest(content), lastModified, file != null ? file
+		        .length() : -1);
+	}
+
+	/**
+	 * Checks if a resource is text, which is worth gzipping, rather than an image.
+	 */
+	private static boolean isCompressible(String path, String contentType) {
+		if (contentType != null)
+			return contentType.startsWith("text/") || contentType.contains("javascript") || contentType.contains("xml")
+			        || contentType.contains("json");
+
+		return path.endsWith(".js") || path.endsWith(".css") || path.endsWith(".html") || path.endsWith(".xml");
+	}
+
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 3 + 64);
+		GZIPOutputStream gzipOutput = new GZIPOutputStream(output);
+		gzipOutput.write(content);
+		gzipOutput.close();
+		return output.toByteArray();
+	}
+
+	private static String digest(byte[] content) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash)
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * A module resource with its gzipped copy and validators.
+	 */
+	public static class Asset {
+
+		private final byte[] content;
+
+		/** The gzipped content, or null if not worth gzipping. */
+		private final byte[] gzippedContent;
+
+		private final String contentType;
+
+		private final String digest;
+
+		private final long lastModified;
+
+		/** The length of the file the content was read from, or -1 if not from a file. */
+		private final long fileLength;
+
+		private Asset(byte[] content, byte[] gzippedContent, String contentType, String digest, long lastModified,
+		    long fileLength) {
+			this.content = content;
+			this.gzippedContent = gzippedContent;
+			this.contentType = contentType;
+			this.digest = digest;
+			this.lastModified = lastModified;
+			this.fileLength = fileLength;
+		}
+
+		private boolean isVersionOf(File file) {
+			if (file == null || fileLength < 0)
+				return true;
+			return file.lastModified() == lastModified && file.length() == fileLength;
+		}
+
+		private long getByteCount() {
+			return content.length + (gzippedContent != null ? gzippedContent.length : 0);
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public byte[] getGzippedContent() {
+			return gzippedContent;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * Gets the strong ETag of the content, or of its gzipped copy.
+		 */
+		public String getETag(boolean gzipped) {
+			return "\"" + digest + (gzipped ? "-gzip" : "") + "\"";
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+}
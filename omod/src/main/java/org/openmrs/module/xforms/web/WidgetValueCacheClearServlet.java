@@ -0,0 +1,55 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.web;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.util.WidgetValueCache;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.util.PrivilegeConstants;
+
+/**
+ * Clears the cached values of widgets with external sources, for when an administrator has
+ * changed a list and does not want to wait for the cache ttl. Only POST is accepted, since
+ * clearing changes state.
+ */
+public class WidgetValueCacheClearServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1239820102030344238L;
+
+	private Log log = LogFactory.getLog(this.getClass());
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!XformsUtil.isAuthenticated(request, response, null))
+			return;
+
+		if (!Context.hasPrivilege(PrivilegeConstants.VIEW_ADMIN_FUNCTIONS)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		int size = WidgetValueCache.getCache().getSize();
+		WidgetValueCache.clear();
+		log.info(Context.getAuthenticatedUser() + " cleared " + size + " cached widget value lists");
+
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentType("text/plain");
+		response.getWriter().println("cleared=" + size);
+	}
+}
@@ -10,7 +10,11 @@
 package org.openmrs.module.xforms.web;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -22,6 +26,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.xforms.XformConstants;
 import org.openmrs.module.xforms.XformsService;
+import org.openmrs.module.xforms.util.WidgetValueCache;
 import org.openmrs.module.xforms.util.XformsUtil;
 
 
@@ -34,6 +39,8 @@ public class WidgetValueServlet extends HttpServlet {
 
 	public static final long serialVersionUID = 12342787837723432L;
 
+	private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+	
 	private Log log = LogFactory.getLog(this.getClass());
 	
 	
@@ -59,32 +66,65 @@ public class WidgetValueServlet extends HttpServlet {
 		String filterField = request.getParameter("FilterField");
 		String filterValue = request.getParameter("FilterValue");
 		
+		if(source == null || source.equalsIgnoreCase("concept"))
+			return; //sql = "select name, concat(concept_id,concat(concat('^',name),'^99DCT')) as id from concept_name where locale='"+ Context.getLocale().getLanguage()+"'";
+		
+		boolean filtered = (filterField != null && filterField.trim().length() > 0) &&
+				filterValue != null && filterValue.trim().length() > 0;
+		
+		//Names go into the sql as they are, so only allow plain table and column names.
+		boolean query = source.startsWith("select");
+		if(!isName(displayField, query) || !isName(valueField, query) || (filtered && !isName(filterField, false))
+				|| (!query && !isName(source, false))){
+			log.error("Invalid widget external source: " + source + " display: " + displayField + " value: "
+					+ valueField + " filter: " + filterField);
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		
 		String sql = source;
 		if(!sql.startsWith("select"))
 			sql = "select " + displayField + "," + valueField + " from " + source + 
 			" where " + displayField + " is not null and " + valueField + " is not null ";
 		
-		if((filterField != null && filterField.trim().length() > 0) &&
-				filterValue != null && filterValue.trim().length() > 0){
-			
+		Map<String, Object> parameters = null;
+		if(filtered){
 			sql += " and " + filterField;
 			
-			if(filterValue.equalsIgnoreCase("IS NULL"))
-				 sql += " is null ";
-			else
-				sql += "='" + filterValue + "'";
+			if(filterValue.equalsIgnoreCase("IS NULL")){
+				sql += " is null ";
+				filterValue = null;
+			}
+			else{
+				sql += " = :filterValue";
+				parameters = new HashMap<String, Object>();
+				parameters.put("filterValue", filterValue);
+			}
 		}
-		
-		if(source.equalsIgnoreCase("concept"))
-			return; //sql = "select name, concat(concept_id,concat(concat('^',name),'^99DCT')) as id from concept_name where locale='"+ Context.getLocale().getLanguage()+"'";
+		else
+			filterValue = null;
 		
 		sql += " order by " + displayField;
 		
-		XformsService xformsService = (XformsService)Context.getService(XformsService.class);
-		List<Object[]> list = xformsService.getList(sql, displayField, valueField);
+		String key = WidgetValueCache.getKey(sql, filterValue);
+		List<Object[]> list = WidgetValueCache.get(key);
+		if(list == null){
+			XformsService xformsService = (XformsService)Context.getService(XformsService.class);
+			list = xformsService.getList(sql, displayField, valueField, parameters);
+			WidgetValueCache.put(key, list);
+		}
 		
-		String result = null; //"Baganda|1$Bacholi|2$Bagisu|3$Basoga|4$Banyankole|5";
+		response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("Pragma", "no-cache");
+        response.setDateHeader("Expires", -1);
+        response.setHeader("Cache-Control", "no-store");
+        
+ 		response.setContentType("text/plain; charset=UTF-8");
+ 		response.setCharacterEncoding(XformConstants.DEFAULT_CHARACTER_ENCODING);
 		
+		//e.g. Baganda|1$Bacholi|2$Bagisu|3$Basoga|4$Banyankole|5
+		PrintWriter writer = response.getWriter();
+		boolean empty = true;
 		for(Object[] obj : list){
 			
 			if(obj[0] == null || obj[0].toString().trim().length() == 0)
@@ -93,23 +133,30 @@ public class WidgetValueServlet extends HttpServlet {
 			if(obj[1] == null || obj[1].toString().trim().length() == 0)
 				continue;
 			
-			if(result != null)
-				result += "$";
-			else
-				result = "";
+			if(!empty)
+				writer.print('$');
+			empty = false;
 			
-			result += obj[0];
-			result += "|" + obj[1];
+			writer.print(obj[0]);
+			writer.print('|');
+			writer.print(obj[1]);
 		}
-				
-		response.setHeader("Cache-Control", "no-cache");
-        response.setHeader("Pragma", "no-cache");
-        response.setDateHeader("Expires", -1);
-        response.setHeader("Cache-Control", "no-store");
-        
- 		response.setContentType("text/plain; charset=UTF-8");
- 		response.setCharacterEncoding(XformConstants.DEFAULT_CHARACTER_ENCODING);
-		response.getWriter().print(result);
+		
+		//The widgets have always been sent null for empty lists.
+		if(empty)
+			writer.print((String)null);
+	}
+	
+	/**
+	 * Checks if a request parameter is a plain, optionally table qualified, column or table name.
+	 * 
+	 * @param name the parameter value.
+	 * @param optional true if the parameter can be left out.
+	 */
+	private boolean isName(String name, boolean optional) {
+		if(name == null || name.trim().length() == 0)
+			return optional;
+		return NAME_PATTERN.matcher(name).matches();
 	}
 
 }
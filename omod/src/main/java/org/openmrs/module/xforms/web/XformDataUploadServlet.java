@@ -14,6 +14,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -38,6 +39,7 @@ import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.xforms.XformConstants;
 import org.openmrs.module.xforms.XformsServer;
+import org.openmrs.module.xforms.download.ChunkedUploadManager;
 import org.openmrs.module.xforms.download.XformDataUploadManager;
 import org.openmrs.module.xforms.util.ServletFileUploadUtil;
 import org.openmrs.module.xforms.util.XformsUtil;
@@ -66,11 +68,12 @@ public class XformDataUploadServlet extends HttpServlet{
 
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		
-		PrintWriter writer = response.getWriter();
-		
 		try{
+			//check if external client sending a batch of filled forms in resumable chunks.
+			if(XformConstants.TRUE_TEXT_VALUE.equalsIgnoreCase(request.getParameter(XformConstants.REQUEST_PARAM_CHUNKED_UPLOAD)))
+				processChunkedUpload(request, response);
 			//check if external client sending multiple filled forms.
-			if(XformConstants.TRUE_TEXT_VALUE.equalsIgnoreCase(request.getParameter(XformConstants.REQUEST_PARAM_BATCH_ENTRY)))                        
+			else if(XformConstants.TRUE_TEXT_VALUE.equalsIgnoreCase(request.getParameter(XformConstants.REQUEST_PARAM_BATCH_ENTRY)))                        
 				new XformsServer().processConnection(new DataInputStream((InputStream)request.getInputStream()), new DataOutputStream((OutputStream)response.getOutputStream()));
 			else{
 				//try to authenticate users who logon inline (with the request).
@@ -79,6 +82,7 @@ public class XformDataUploadServlet extends HttpServlet{
 				// check if user is authenticated
 				if (XformsUtil.isAuthenticated(request,response,"/moduleServlet/xforms/xformDataUpload")){
 					response.setCharacterEncoding(XformConstants.DEFAULT_CHARACTER_ENCODING);
+					PrintWriter writer = response.getWriter();
 
 					request.setAttribute(XformConstants.REQUEST_ATTRIBUTE_ID_ERROR_MESSAGE, null);
 					request.setAttribute(XformConstants.REQUEST_ATTRIBUTE_ID_PATIENT_ID, null);
@@ -141,7 +145,77 @@ public class XformDataUploadServlet extends HttpServlet{
 			}
 		}
 		catch(Exception e){
+			PrintWriter writer = getErrorWriter(response);
 			XformsUtil.reportDataUploadError(e, request, response, writer);
+			writer.flush();
+		}
+	}
+	
+	/**
+	 * Gets a writer for reporting an error. Batch uploads are answered on the output stream, on
+	 * which the servlet spec does not allow getting the writer, so the report is then written to
+	 * the output stream.
+	 * 
+	 * @param response the http response.
+	 * @return the writer.
+	 * @throws IOException
+	 */
+	private PrintWriter getErrorWriter(HttpServletResponse response) throws IOException {
+		try{
+			return response.getWriter();
+		}
+		catch(IllegalStateException ex){
+			return new PrintWriter(new OutputStreamWriter(response.getOutputStream(), XformConstants.DEFAULT_CHARACTER_ENCODING));
+		}
+	}
+
+	/**
+	 * Handles a resumable batch upload. The client starts an upload session, sends the batch in
+	 * chunks and then asks for the complete batch to be processed. The batch is in the same format
+	 * as that of a batchEntry request, and so is the response to the complete action.
+	 * 
+	 * @param request the http request.
+	 * @param response the http response.
+	 * @throws Exception
+	 */
+	private void processChunkedUpload(HttpServletRequest request, HttpServletResponse response) throws Exception {
+		String action = request.getParameter(XformConstants.REQUEST_PARAM_UPLOAD_ACTION);
+		String uploadId = request.getParameter(XformConstants.REQUEST_PARAM_UPLOAD_ID);
+		
+		//Only authenticated users can take up space in the staging area, and only the user
+		//who started an upload can carry it on.
+		XformsUtil.authenticateInlineUser(request);
+		if(!Context.isAuthenticated()){
+			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		
+		if("start".equals(action)){
+			long totalSize = Long.parseLong(request.getParameter(XformConstants.REQUEST_PARAM_TOTAL_SIZE));
+			response.getWriter().print(ChunkedUploadManager.startUpload(totalSize));
+		}
+		else if("status".equals(action))
+			response.getWriter().print(ChunkedUploadManager.getOffset(uploadId));
+		else if("chunk".equals(action)){
+			long offset = Long.parseLong(request.getParameter(XformConstants.REQUEST_PARAM_OFFSET));
+			response.getWriter().print(ChunkedUploadManager.addChunk(uploadId, offset, request.getInputStream(),
+			    request.getParameter(XformConstants.REQUEST_PARAM_CHECKSUM)));
+		}
+		else if("complete".equals(action)){
+			InputStream is = ChunkedUploadManager.getUploadStream(uploadId);
+			boolean processed;
+			try{
+				processed = new XformsServer().processConnection(new DataInputStream(is), new DataOutputStream((OutputStream)response.getOutputStream()));
+			}
+			finally{
+				is.close();
+			}
+			
+			//A failed batch stays staged such that the client can complete it again.
+			if(processed)
+				ChunkedUploadManager.removeUpload(uploadId);
 		}
+		else
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown upload action: " + action);
 	}
 }
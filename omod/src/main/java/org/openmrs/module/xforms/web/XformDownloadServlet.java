@@ -51,6 +51,7 @@ import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.ContextAuthenticationException;
 import org.openmrs.module.xforms.RelativeBuilder;
+import org.openmrs.module.xforms.SharedItemsetManager;
 import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.XformBuilder;
 import org.openmrs.module.xforms.XformConstants;
@@ -60,7 +61,8 @@ import org.openmrs.module.xforms.XformsService;
 import org.openmrs.module.xforms.download.XformDownloadManager;
 import org.openmrs.module.xforms.formentry.FormEntryWrapper;
 import org.openmrs.module.xforms.util.ItextParser;
-import org.openmrs.module.xforms.util.LanguageUtil;
+import org.openmrs.module.xforms.util.XformVariantCache;
+import org.openmrs.module.xforms.util.XformVariantCache.Variant;
 import org.openmrs.module.xforms.util.XformsUtil;
 import org.openmrs.util.FormUtil;
 import org.openmrs.util.OpenmrsConstants;
@@ -145,7 +147,7 @@ public class XformDownloadServlet extends HttpServlet {
 						if (port != 80)
 							url += ":" + Integer.toString(port);
 
-						url += request.getContextPath() + "/moduleServlet/xforms/xformDownload?target=xform&contentType=xml&excludeLayout=true&formId=";
+						url += request.getContextPath() + "/moduleServlet/xforms/xformDownload?target=xform&contentType=xml&excludeLayout=true&fillItemsets=true&formId=";
 
 						url = formatXml(url);
 						
@@ -278,6 +280,10 @@ public class XformDownloadServlet extends HttpServlet {
 
 		String xformXml = XformDownloadManager.getXform(formService,xformsService,form.getFormId(),createNew);
 
+		//Clients which do not load shared itemsets themselves ask for the items to be filled in.
+		if("true".equals(request.getParameter("fillItemsets")))
+			xformXml = SharedItemsetManager.fillItemsets(xformXml);
+
 		if(!attachment && !"true".equals(request.getParameter("excludeLayout"))){
 			Xform xform = xformsService.getXform(form.getFormId());
 			if(xform != null){
@@ -381,7 +387,7 @@ public class XformDownloadServlet extends HttpServlet {
 	 * @throws IOException
 	 */
 	protected void doXformEntryGet(HttpServletRequest request, HttpServletResponse response, Form form, Patient patient, FormService formService,XformsService xformsService, boolean createNew, PrintWriter writer) throws Exception {			
-		String xformXml = XformDownloadManager.getXform(formService,xformsService,form.getFormId(),createNew);
+		String xformXml = SharedItemsetManager.fillItemsets(XformDownloadManager.getXform(formService,xformsService,form.getFormId(),createNew));
 
 		Document doc = XformBuilder.getDocument(xformXml);
 
@@ -468,21 +474,7 @@ public class XformDownloadServlet extends HttpServlet {
 		Xform xform = xformsService.getXform(form.getFormId());
 
 		if (xform != null && !"true".equals(request.getParameter("excludeLayout"))){
-			org.w3c.dom.Element languageTextNode = null;
-			String localeXml = xform.getLocaleXml();
-			if(localeXml != null && localeXml.trim().length() > 0){
-				languageTextNode = LanguageUtil.getLocaleTextNode(localeXml, Context.getLocale().getLanguage());
-				if(languageTextNode != null)
-					xml = LanguageUtil.translateXformXml(xml,languageTextNode);
-			}
-
-			String layoutXml = xform.getLayoutXml();
-			if(layoutXml != null && layoutXml.length() > 0){
-				if(languageTextNode != null)
-					layoutXml = LanguageUtil.translateLayoutXml(layoutXml,languageTextNode);
-
-				xml += XformConstants.PURCFORMS_FORMDEF_LAYOUT_XML_SEPARATOR + layoutXml;
-			}
+			xml = translate(xml, xform);
 
 			String javaScriptSrc = xform.getJavaScriptSrc();
 			if(javaScriptSrc != null && javaScriptSrc.length() > 0)
@@ -653,22 +645,7 @@ public class XformDownloadServlet extends HttpServlet {
 			xml = ItextParser.parse(xml, Context.getLocale().getLanguage());
 
 		if (xform != null && !"true".equals(request.getParameter("excludeLayout"))) {
-			org.w3c.dom.Element languageTextNode = null;
-			String localeXml = xform.getLocaleXml();
-			if(localeXml != null && localeXml.trim().length() > 0){
-				languageTextNode = LanguageUtil.getLocaleTextNode(localeXml, Context.getLocale().getLanguage());
-				if(languageTextNode != null)
-					xml = LanguageUtil.translateXformXml(xml,languageTextNode);
-			}
-
-
-			String layoutXml = xform.getLayoutXml();
-			if(layoutXml != null && layoutXml.length() > 0){
-				if(languageTextNode != null)
-					layoutXml = LanguageUtil.translateLayoutXml(layoutXml,languageTextNode);
-
-				xml += XformConstants.PURCFORMS_FORMDEF_LAYOUT_XML_SEPARATOR + layoutXml;
-			}
+			xml = translate(xml, xform);
 
 			String javaScriptSrc = xform.getJavaScriptSrc();
 			if(javaScriptSrc != null && javaScriptSrc.length() > 0)
@@ -690,6 +667,26 @@ public class XformDownloadServlet extends HttpServlet {
 		//formRunner.loadForm(formDef,layoutXml);
 	}
 	
+	/**
+	 * Translates filled in xform xml into the current locale, and appends the translated layout
+	 * of the xform to it. The localized text and layout come from the variant of the xform for the
+	 * locale, which is made once rather than parsed from the locale document for every request.
+	 * 
+	 * @param xml the xform xml, with its itemsets and values filled in.
+	 * @param xform the stored xform.
+	 * @return the translated xml with the layout appended.
+	 */
+	private String translate(String xml, Xform xform) throws Exception {
+		Variant variant = XformVariantCache.getVariant(xform, Context.getLocale().getLanguage());
+		xml = variant.translateXformXml(xml);
+
+		String layoutXml = variant.getLayoutXml();
+		if(layoutXml != null && layoutXml.length() > 0)
+			xml += XformConstants.PURCFORMS_FORMDEF_LAYOUT_XML_SEPARATOR + layoutXml;
+
+		return xml;
+	}
+
 	private void setServerDateTime(Document doc) {
 		String date = XformsUtil.fromDate2SubmitString(new Date());
 		if (XformsUtil.encounterDateIncludesTime()) {
@@ -0,0 +1,88 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.download.XformRebuilder;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.util.PrivilegeConstants;
+
+/**
+ * Starts rebuilding all stored xforms from their form fields, on a post, and shows the progress
+ * of the rebuild.
+ */
+public class XformRebuildServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1239820102030344239L;
+
+	private Log log = LogFactory.getLog(this.getClass());
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!XformsUtil.isAuthenticated(request, response, null))
+			return;
+
+		if (!Context.hasPrivilege(PrivilegeConstants.MANAGE_FORMS)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		boolean started = XformRebuilder.startAll();
+		if (started)
+			log.info(Context.getAuthenticatedUser() + " started rebuilding all xforms");
+
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentType("text/plain");
+
+		PrintWriter writer = response.getWriter();
+		writer.println("started=" + started);
+		printStatus(writer);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!XformsUtil.isAuthenticated(request, response, null))
+			return;
+
+		if (!Context.hasPrivilege(PrivilegeConstants.MANAGE_FORMS)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentType("text/plain");
+
+		printStatus(response.getWriter());
+	}
+
+	private void printStatus(PrintWriter writer) {
+		long startTime = XformRebuilder.getStartTime();
+		long endTime = XformRebuilder.getEndTime();
+
+		writer.println("running=" + XformRebuilder.isRunning());
+		writer.println("totalForms=" + XformRebuilder.getTotalCount());
+		writer.println("rebuiltForms=" + XformRebuilder.getRebuiltCount());
+		writer.println("skippedForms=" + XformRebuilder.getSkippedCount());
+		writer.println("failedForms=" + XformRebuilder.getFailedCount());
+		writer.println("startTime=" + (startTime == 0 ? "" : new Date(startTime).toString()));
+		writer.println("endTime=" + (endTime == 0 ? "" : new Date(endTime).toString()));
+	}
+}
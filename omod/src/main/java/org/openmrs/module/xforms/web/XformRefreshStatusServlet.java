@@ -0,0 +1,56 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Date;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xforms.aop.XformRefresher;
+import org.openmrs.module.xforms.util.XformsUtil;
+import org.openmrs.util.PrivilegeConstants;
+
+/**
+ * Shows how far behind the background refreshing of xforms, after concept, location and
+ * provider changes, is.
+ */
+public class XformRefreshStatusServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1239820102030344235L;
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!XformsUtil.isAuthenticated(request, response, null))
+			return;
+
+		if (!Context.hasPrivilege(PrivilegeConstants.VIEW_ADMIN_FUNCTIONS)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentType("text/plain");
+
+		long lastRefreshTime = XformRefresher.getLastRefreshTime();
+
+		PrintWriter writer = response.getWriter();
+		writer.println("pendingForms=" + XformRefresher.getPendingFormCount());
+		writer.println("lagMillis=" + XformRefresher.getLag());
+		writer.println("refreshedForms=" + XformRefresher.getRefreshedFormCount());
+		writer.println("failedForms=" + XformRefresher.getFailedFormCount());
+		writer.println("lastRefresh=" + (lastRefreshTime == 0 ? "" : new Date(lastRefreshTime).toString()));
+	}
+}
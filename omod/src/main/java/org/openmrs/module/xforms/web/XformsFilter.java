@@ -14,6 +14,7 @@ import java.io.IOException;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -22,13 +23,15 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.api.context.Context;
-import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.module.xforms.util.GzipSetting;
 import org.openmrs.web.filter.GZIPResponseWrapper;
 
 
 /**
- * Filter for caching and gzip xforms resources.
+ * Filter for caching and gzip xforms resources. The module's own static resources are served
+ * from the {@link StaticAssetCache}, already gzipped, with strong ETags.
+ * 
+ * Whether openmrs is already gzipping is read from {@link GzipSetting}.
  * 
  * @author danielkayiwa
  *
@@ -37,6 +40,11 @@ public class XformsFilter implements Filter {
 
 	protected final Log log = LogFactory.getLog(getClass());
 
+	/** The path module resources are requested under. */
+	private static final String MODULE_RESOURCES_PATH = "/moduleResources/xforms";
+
+	private ServletContext servletContext;
+
 	//* 1 day in seconds = 86400
 	//* 1 week in seconds = 604800
 	//* 1 month in seconds = 2629000
@@ -47,6 +55,9 @@ public class XformsFilter implements Filter {
 		HttpServletRequest httpRequest = (HttpServletRequest) req;
 		HttpServletResponse httpResponse = (HttpServletResponse) res;
 
+		if (serveStaticAsset(httpRequest, httpResponse))
+			return;
+
 		if(shouldCache(httpRequest.getRequestURI())){
 			httpResponse.setHeader("Cache-Control", "max-age=31536000"); // HTTP 1.1
 			httpResponse.setHeader("Pragma", "public"); // HTTP 1.0
@@ -69,6 +80,69 @@ public class XformsFilter implements Filter {
 		chain.doFilter(httpRequest, httpResponse);
 	}
 
+	/**
+	 * Serves a module resource from the {@link StaticAssetCache}, gzipped if the browser supports
+	 * it and openmrs is not already gzipping the response, else plain. Resources whose names have nocache, like the GWT module loaders, are revalidated on
+	 * every use, which mostly ends in a not modified response.
+	 * 
+	 * @return true if served, else false for the rest of the chain to serve the request.
+	 */
+	private boolean serveStaticAsset(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String method = request.getMethod();
+		if (servletContext == null || !("GET".equals(method) || "HEAD".equals(method)))
+			return false;
+
+		String uri = request.getRequestURI();
+		int pos = uri.indexOf(MODULE_RESOURCES_PATH + "/");
+		if (pos < 0)
+			return false;
+
+		StaticAssetCache.Asset asset = StaticAssetCache.get(servletContext, uri.substring(pos + MODULE_RESOURCES_PATH.length()));
+		if (asset == null)
+			return false;
+
+		//The gzip filter of openmrs would gzip the gzipped copy again.
+		boolean openmrsZipping = isOpenmrsZipping();
+		boolean gzipped = asset.getGzippedContent() != null && isGZIPSupported(request) && !openmrsZipping;
+
+		response.setHeader("ETag", asset.getETag(gzipped));
+		response.setDateHeader("Last-Modified", asset.getLastModified());
+		response.setHeader("Vary", "Accept-Encoding");
+		if (uri.contains("nocache"))
+			response.setHeader("Cache-Control", "no-cache");
+		else
+			response.setHeader("Cache-Control", "public, max-age=31536000");
+
+		if (isNotModified(request.getHeader("If-None-Match"), asset)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+
+		byte[] content = gzipped ? asset.getGzippedContent() : asset.getContent();
+		if (asset.getContentType() != null)
+			response.setContentType(asset.getContentType());
+		if (gzipped)
+			response.setHeader("Content-Encoding", "gzip");
+		if (!openmrsZipping)
+			response.setContentLength(content.length);
+
+		if ("GET".equals(method))
+			response.getOutputStream().write(content);
+
+		return true;
+	}
+
+	/**
+	 * Checks if an If-None-Match header has the ETag of either copy of a resource.
+	 */
+	private boolean isNotModified(String ifNoneMatch, StaticAssetCache.Asset asset) {
+		if (ifNoneMatch == null)
+			return false;
+
+		return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(asset.getETag(false))
+		        || ifNoneMatch.contains(asset.getETag(true));
+	}
+
 	private boolean shouldCache(String uri){
 		if(uri.contains("nocache"))
 			return false;
@@ -134,6 +208,13 @@ public class XformsFilter implements Filter {
 		return false;
 	}
 
+	/**
+	 * Checks if openmrs is gzipping responses, such that this filter should not.
+	 */
+	boolean isOpenmrsZipping() {
+		return GzipSetting.isOpenmrsZipping();
+	}
+
 	/**
 	 * Convenience method to test for GZIP capabilities
 	 * 
@@ -153,23 +234,8 @@ public class XformsFilter implements Filter {
 			return supported;
 	}
 
-	private boolean isOpenmrsZipping(){
-		try{
-			String gzipEnabled = Context.getAdministrationService().getGlobalProperty(
-					OpenmrsConstants.GLOBAL_PROPERTY_GZIP_ENABLED, "");
-
-			return gzipEnabled.toLowerCase().equals("true");
-		}
-		catch(Exception ex){
-
-		}
-
-		return false;
-	}
-
-
 	public void init(FilterConfig filterConfig) {
-
+		servletContext = filterConfig.getServletContext();
 	}
 
 	public void destroy() {
@@ -21,8 +21,8 @@ import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.web.FormEntryContext;
 import org.openmrs.module.web.extension.FormEntryHandler;
-import org.openmrs.module.xforms.Xform;
 import org.openmrs.module.xforms.XformsService;
+import org.openmrs.module.xforms.model.XformSummary;
 import org.openmrs.util.PrivilegeConstants;
 
 
@@ -85,8 +85,8 @@ public class XformsFormEntryHandler extends FormEntryHandler {
     	
     	FormService formService = Context.getFormService();
     	
-    	List<Xform> xforms = ((XformsService)Context.getService(XformsService.class)).getXforms();
-	    for (Xform xform : xforms) {
+    	List<XformSummary> xforms = ((XformsService)Context.getService(XformsService.class)).getXformSummaries();
+	    for (XformSummary xform : xforms) {
 	    	Form form = formService.getForm(xform.getFormId());
 	    	if (form != null && (showUnpublished || form.getPublished()))
 	    		ret.add(form);
@@ -0,0 +1,217 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.xforms.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.module.xforms.web.StaticAssetCache.Asset;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+
+/**
+ * Checks that module resources are cached with their gzipped copies and ETags, reloaded when their
+ * files change, and served by the {@link XformsFilter} with the right cache headers.
+ */
+public class StaticAssetCacheTest {
+
+	private static final String RESOURCES_PATH = "/WEB-INF/view/module/xforms/resources";
+
+	private static final String SCRIPT = "/formrunner/FormRunner.cache.js";
+
+	private static final String LOADER = "/formrunner/FormRunner.nocache.js";
+
+	/** Text long enough for its gzipped copy to be smaller, and so kept. */
+	private static final String CONTENT = StringUtils.repeat("formRunner.load();\n", 50);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ServletContext servletContext;
+
+	private XformsFilter filter;
+
+	@Before
+	public void before() throws Exception {
+		StaticAssetCache.clear();
+
+		//Mime types are not the same in every version of the mock servlet context.
+		servletContext = new MockServletContext("file:" + folder.getRoot().getAbsolutePath()) {
+
+			@Override
+			public String getMimeType(String filePath) {
+				return filePath.endsWith(".js") ? "text/javascript" : null;
+			}
+		};
+
+		writeResource(SCRIPT, CONTENT);
+		writeResource(LOADER, CONTENT);
+
+		filter = new XformsFilter();
+		filter.init(new MockFilterConfig(servletContext));
+	}
+
+	@Test
+	public void get_shouldKeepAGzippedCopyWithItsOwnETag() throws Exception {
+		Asset asset = StaticAssetCache.get(servletContext, SCRIPT);
+
+		Assert.assertEquals(CONTENT, new String(asset.getContent(), "UTF-8"));
+		Assert.assertEquals(CONTENT, gunzip(asset.getGzippedContent()));
+		Assert.assertFalse(asset.getETag(false).equals(asset.getETag(true)));
+		Assert.assertTrue(asset.getETag(false).startsWith("\""));
+	}
+
+	@Test
+	public void get_shouldReuseTheResourceWhileItsFileIsUnchanged() throws Exception {
+		Asset asset = StaticAssetCache.get(servletContext, SCRIPT);
+
+		Assert.assertSame(asset, StaticAssetCache.get(servletContext, SCRIPT));
+	}
+
+	@Test
+	public void get_shouldReloadTheResourceWhenItsFileIsModified() throws Exception {
+		Asset asset = StaticAssetCache.get(servletContext, SCRIPT);
+
+		//The same length, such that only the modification time tells the change.
+		File file = writeResource(SCRIPT, CONTENT.replace("load", "LOAD"));
+		file.setLastModified(asset.getLastModified() + 10000);
+
+		Asset newAsset = StaticAssetCache.get(servletContext, SCRIPT);
+		Assert.assertNotSame(asset, newAsset);
+		Assert.assertTrue(new String(newAsset.getContent(), "UTF-8").contains("LOAD"));
+		Assert.assertFalse(asset.getETag(false).equals(newAsset.getETag(false)));
+	}
+
+	@Test
+	public void get_shouldNotLoadResourcesOutsideTheModuleResources() throws Exception {
+		Assert.assertNull(StaticAssetCache.get(servletContext, "/../../web.xml"));
+		Assert.assertNull(StaticAssetCache.get(servletContext, "/formrunner/missing.js"));
+	}
+
+	@Test
+	public void doFilter_shouldServeTheGzippedCopyWithItsETagAndALongMaxAge() throws Exception {
+		Asset asset = StaticAssetCache.get(servletContext, SCRIPT);
+		MockHttpServletRequest request = newRequest(SCRIPT);
+		request.addHeader("Accept-Encoding", "gzip, deflate");
+		MockFilterChain chain = new MockFilterChain();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, chain);
+
+		Assert.assertNull(chain.getRequest());
+		Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		Assert.assertEquals(asset.getETag(true), response.getHeaderValue("ETag"));
+		Assert.assertEquals("gzip", response.getHeaderValue("Content-Encoding"));
+		Assert.assertEquals("public, max-age=31536000", response.getHeaderValue("Cache-Control"));
+		Assert.assertEquals(CONTENT, gunzip(response.getContentAsByteArray()));
+	}
+
+	@Test
+	public void doFilter_shouldServeThePlainCopyWhenOpenmrsIsGzipping() throws Exception {
+		Asset asset = StaticAssetCache.get(servletContext, SCRIPT);
+		XformsFilter zippingFilter = new XformsFilter() {
+
+			@Override
+			boolean isOpenmrsZipping() {
+				return true;
+			}
+		};
+		zippingFilter.init(new MockFilterConfig(servletContext));
+		MockHttpServletRequest request = newRequest(SCRIPT);
+		request.addHeader("Accept-Encoding", "gzip, deflate");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		zippingFilter.doFilter(request, response, new MockFilterChain());
+
+		Assert.assertEquals(asset.getETag(false), response.getHeaderValue("ETag"));
+		Assert.assertNull(response.getHeaderValue("Content-Encoding"));
+		Assert.assertEquals(CONTENT, response.getContentAsString());
+	}
+
+	@Test
+	public void doFilter_shouldServeThePlainCopyToBrowsersWithoutGzip() throws Exception {
+		Asset asset = StaticAssetCache.get(servletContext, SCRIPT);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(newRequest(SCRIPT), response, new MockFilterChain());
+
+		Assert.assertEquals(asset.getETag(false), response.getHeaderValue("ETag"));
+		Assert.assertNull(response.getHeaderValue("Content-Encoding"));
+		Assert.assertEquals(CONTENT, response.getContentAsString());
+	}
+
+	@Test
+	public void doFilter_shouldAnswerNotModifiedForAMatchingETag() throws Exception {
+		Asset asset = StaticAssetCache.get(servletContext, SCRIPT);
+		MockHttpServletRequest request = newRequest(SCRIPT);
+		request.addHeader("If-None-Match", asset.getETag(false));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, new MockFilterChain());
+
+		Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+		Assert.assertEquals(0, response.getContentAsByteArray().length);
+	}
+
+	@Test
+	public void doFilter_shouldServeTheContentAgainForAnOldETag() throws Exception {
+		String oldETag = StaticAssetCache.get(servletContext, SCRIPT).getETag(false);
+		writeResource(SCRIPT, CONTENT + " ").setLastModified(System.currentTimeMillis() + 10000);
+		MockHttpServletRequest request = newRequest(SCRIPT);
+		request.addHeader("If-None-Match", oldETag);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(request, response, new MockFilterChain());
+
+		Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		Assert.assertEquals(CONTENT + " ", response.getContentAsString());
+	}
+
+	@Test
+	public void doFilter_shouldRevalidateNocacheResources() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		filter.doFilter(newRequest(LOADER), response, new MockFilterChain());
+
+		Assert.assertEquals("no-cache", response.getHeaderValue("Cache-Control"));
+		Assert.assertEquals(CONTENT, response.getContentAsString());
+	}
+
+	private MockHttpServletRequest newRequest(String path) {
+		return new MockHttpServletRequest(servletContext, "GET", "/openmrs/moduleResources/xforms" + path);
+	}
+
+	private File writeResource(String path, String content) throws IOException {
+		File file = new File(folder.getRoot(), RESOURCES_PATH + path);
+		FileUtils.writeStringToFile(file, content, "UTF-8");
+		return file;
+	}
+
+	private String gunzip(byte[] content) throws IOException {
+		return IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(content)), "UTF-8");
+	}
+}